@@ -0,0 +1,1300 @@
+package com.logicpole.txstats.accumulate;
+
+import com.logicpole.txstats.dto.StatisticsDTO;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Double accumulator
+ * <p>
+ * This class is designed to accumulate timestamped double values over a moving
+ * time window, by default the last 60 seconds, and provide simple statistics
+ * based on the accumulated values.  The window length and resolution are
+ * given by a {@link WindowSpec}.
+ * <p>
+ * The accumulator may optionally be tiered, in which case it also keeps
+ * statistics over longer windows at coarser resolutions.  Values are only
+ * ever written to the first (finest) tier, and are rolled up into the next
+ * tier as they age out of the previous one, so one call to accumulate feeds
+ * every tier.
+ * <p>
+ * The accumulator may optionally keep a quantile sketch of each slice, as
+ * given by a {@link SketchSpec}, in which case statistics may also include
+ * estimated quantiles of the values.
+ * <p>
+ * The accumulator may optionally keep HyperLogLog registers of each slice,
+ * as given by a {@link DistinctSpec}, in which case values may be
+ * accumulated with a key, such as an account or card ID, and statistics also
+ * include an estimate of the number of distinct keys.
+ * <p>
+ * The accumulator may optionally be striped, in which case each writing thread
+ * is assigned one of several independent sets of slices (a "stripe") so that
+ * concurrent writers do not contend on a single lock.  The stripes are merged
+ * when statistics are requested.
+ * <p>
+ * Statistics are normally read without taking the lock of any stripe, so
+ * readers do not hold up writers however often they read.  A read just after
+ * a slice has turned over takes the lock to age the slice out, unless a
+ * write has already done so, or the accumulator is maintained by a
+ * {@link MaintenanceScheduler}, which does so as each slice turns over.
+ * <p>
+ * The accumulator may optionally keep its slices in a memory-mapped file as
+ * well as in memory, in which case a new accumulator on the same file, such
+ * as after a restart, starts with the slices still in its windows.
+ * <p>
+ * The window ends at the current time of a {@link TimeSource}, by default
+ * the wall clock.  With a {@link Watermark} it follows the event time of the
+ * values instead, so that recorded values can be replayed.
+ *
+ * @author Max McCormick
+ */
+public class DoubleAccumulator implements AutoCloseable {
+
+   /*
+    * Implementation Notes:
+    *
+    * Data is maintained in fixed-size arrays of primitives (for performance
+    * reasons).  Each array index is associated with a "slice" of data.
+    * By default there are 60 slices, each of which is associated with one
+    * second of data.  Time is divided into one second "buckets" numbered from
+    * the epoch, ie. bucket = timestamp / 1000, and a bucket is assigned the
+    * slice bucket % 60.  For example, a data item with a timestamp of
+    * 1497016756897 falls in bucket 1497016756 and is assigned the slice 16.
+    * The bucket number is stored with the slice and used to determine the
+    * relevance of the data, ie. whether it occurred within the last minute.
+    * Other window specifications work the same way with a different bucket
+    * length and slice count.  The arrays for one window specification make
+    * up a SliceRing.
+    *
+    * Since the stored bucket number is absolute, a slice can never be mistaken
+    * for one from an earlier minute or hour.  Before each read or write the
+    * rings are advanced, clearing the slices whose bucket has aged out of the
+    * window.  This only visits the slices which aged since the last advance,
+    * so no background sweep is needed and neither accumulate() nor
+    * statistics() allocates anything besides the returned statistics.
+    * (Quantiles, and distinct counts merged from more than one ring, take a
+    * scratch array per call.)
+    *
+    * With several tiers, a slice aging out of one tier is added to the slice
+    * of the next tier covering its bucket, rather than being dropped.  Each
+    * value is therefore held in exactly one tier at a time:  the finest tier
+    * whose window it is still in.  Statistics over a window are the sum of
+    * every tier finer than the one covering the window, plus the slices of
+    * that tier inside the window.  The tiers are advanced coarsest first, so
+    * that a slice is never rolled into a slice of the next tier which is
+    * itself waiting to age out.
+    *
+    * Each stripe is a StampedLock.  Writers take the write lock, and readers
+    * read the stripe optimistically, without locking, and then validate that
+    * no writer held the lock meanwhile, retrying if one did.  A read which
+    * would have to change the stripe, because a slice has aged out of the
+    * window since the last write or the merged distinct registers must be
+    * rebuilt, takes the write lock instead; that happens at most once per
+    * slice of elapsed time.  Torn values read from a stripe being written
+    * are always discarded by the validation, and reading them cannot fail
+    * since every array index comes from the ring's fixed geometry.
+    */
+
+   /*
+    * Source of per-thread probe values used to assign each writing thread to
+    * a stripe.  Threads are numbered round-robin on first use so that, as long
+    * as there are at least as many stripes as writers, no two writers share a
+    * stripe.
+    */
+   private static final AtomicInteger nextProbe = new AtomicInteger();
+   private static final ThreadLocal<Integer> probe =
+           ThreadLocal.withInitial(nextProbe::getAndIncrement);
+
+   /*
+    * One in SAMPLE_MASK + 1 lock acquisitions by writers, and calls for
+    * statistics, is timed.  Reading the clock can cost as much as a call
+    * for statistics.
+    */
+   private static final int SAMPLE_MASK = 63;
+
+   /*
+    * Number of optimistic reads of a stripe to attempt before locking it.
+    */
+   private static final int OPTIMISTIC_READS = 3;
+
+   /*
+    * The window of each tier, from the finest to the coarsest.  Values are
+    * accepted within the window of the first tier.
+    */
+   private final WindowSpec[] tiers;
+   private final long sliceMillis;
+   private final int numSlices;
+
+   /*
+    * The specification of the quantile sketch of each slice, or null if
+    * sketches are not kept.
+    */
+   private final SketchSpec sketch;
+
+   /*
+    * The specification of the distinct count registers of each slice, or
+    * null if distinct counts are not kept.
+    */
+   private final DistinctSpec distinct;
+
+   /*
+    * The stripes of slice data.  There is always at least one stripe, and the
+    * number of stripes is always a power of two.
+    */
+   private final Stripe[] stripes;
+
+   /*
+    * Mask used to map a thread probe value onto a stripe index.
+    */
+   private final int stripeMask;
+
+   /*
+    * The file the slices are saved to, or null, and the number of slices
+    * restored from it.
+    */
+   private final StateFile stateFile;
+   private final int restoredSlices;
+
+   /*
+    * The source of the time at which the window ends.
+    */
+   private final TimeSource clock;
+
+   /*
+    * Metrics:  the time writers take to acquire a stripe lock, and the time
+    * taken by calls for statistics, both sampled, and the number of calls.
+    */
+   private final LatencyHistogram lockWait = new LatencyHistogram();
+   private final LatencyHistogram statisticsLatency = new LatencyHistogram();
+   private final LongAdder statisticsCalls = new LongAdder();
+
+   /*
+    * Metrics:  the number of stripe reads for statistics which took the lock
+    * rather than reading optimistically.
+    */
+   private final LongAdder lockedReads = new LongAdder();
+
+   /*
+    * The maintenance task aging the slices, or null if not maintained.
+    */
+   private MaintenanceScheduler.Task maintenance;
+
+   /**
+    * Construct an empty DoubleAccumulator which accumulates double data
+    * values over a moving window of 60 seconds from the current instant
+    * and back.
+    */
+   public DoubleAccumulator() {
+      this(WindowSpec.DEFAULT, 1);
+   }
+
+   /**
+    * Construct an empty, striped DoubleAccumulator which accumulates double
+    * data values over a moving window of 60 seconds from the current instant
+    * and back.
+    * <p>
+    * Each stripe holds its own set of slices and its own lock.  A reasonable
+    * choice for the stripe count is the number of available processors, or
+    * the number of threads expected to write concurrently.
+    *
+    * @param stripes the number of stripes, rounded up to a power of two.
+    */
+   public DoubleAccumulator(int stripes) {
+      this(WindowSpec.DEFAULT, stripes);
+   }
+
+   /**
+    * Construct an empty, striped DoubleAccumulator which accumulates double
+    * data values over the given moving window from the current instant and
+    * back.
+    *
+    * @param spec    the window length and slice resolution.
+    * @param stripes the number of stripes, rounded up to a power of two.
+    */
+   public DoubleAccumulator(WindowSpec spec, int stripes) {
+      this(new WindowSpec[]{spec}, stripes);
+   }
+
+   /**
+    * Construct an empty, striped and tiered DoubleAccumulator.  Values are
+    * accepted over the window of the first tier, and statistics are available
+    * over any window up to that of the last tier.
+    * <p>
+    * Each tier must have a longer window than the one before, and a slice
+    * length which is a multiple of the one before.  For example tiers of
+    * 60s/1s, 5m/5s and 1h/1m answer a one hour query from 180 slices rather
+    * than 3600.
+    *
+    * @param tiers   the window length and slice resolution of each tier, from
+    *                the finest to the coarsest.
+    * @param stripes the number of stripes, rounded up to a power of two.
+    */
+   public DoubleAccumulator(WindowSpec[] tiers, int stripes) {
+      this(tiers, stripes, null);
+   }
+
+   /**
+    * Construct an empty, striped and tiered DoubleAccumulator which also
+    * keeps a quantile sketch of each slice.  The sketches take
+    * sketch.getBins() * 4 bytes per slice per stripe, so are best suited to
+    * windows of up to a few thousand slices.
+    *
+    * @param tiers   the window length and slice resolution of each tier, from
+    *                the finest to the coarsest.
+    * @param stripes the number of stripes, rounded up to a power of two.
+    * @param sketch  the sketch specification, or null for no sketches.
+    */
+   public DoubleAccumulator(WindowSpec[] tiers, int stripes, SketchSpec sketch) {
+      this(tiers, stripes, sketch, null);
+   }
+
+   /**
+    * Construct an empty, striped and tiered DoubleAccumulator which also
+    * keeps a quantile sketch and distinct count registers of each slice.  The
+    * registers take distinct.getRegisters() bytes per slice per stripe.
+    *
+    * @param tiers    the window length and slice resolution of each tier,
+    *                 from the finest to the coarsest.
+    * @param stripes  the number of stripes, rounded up to a power of two.
+    * @param sketch   the sketch specification, or null for no sketches.
+    * @param distinct the distinct count specification, or null for no
+    *                 distinct counts.
+    */
+   public DoubleAccumulator(WindowSpec[] tiers, int stripes, SketchSpec sketch, DistinctSpec distinct) {
+      this(tiers, stripes, sketch, distinct, null);
+   }
+
+   /**
+    * Construct a striped and tiered DoubleAccumulator which also keeps its
+    * slices in the given memory-mapped file, so that they survive a restart.
+    * <p>
+    * Every change to a slice is written through to the mapping, which costs
+    * a few memory stores per value and no system calls.  If the file holds
+    * slices of an accumulator with the same specifications, those which
+    * pass their consistency check are restored, and those which have since
+    * aged out of a tier are rolled up or dropped as usual.  Otherwise the
+    * file is reset.
+    *
+    * @param tiers     the window length and slice resolution of each tier,
+    *                  from the finest to the coarsest.
+    * @param stripes   the number of stripes, rounded up to a power of two.
+    * @param sketch    the sketch specification, or null for no sketches.
+    * @param distinct  the distinct count specification, or null for no
+    *                  distinct counts.
+    * @param stateFile the file to keep the slices in, or null to keep them
+    *                  in memory only.
+    * @throws UncheckedIOException if the file could not be opened or mapped.
+    */
+   public DoubleAccumulator(WindowSpec[] tiers, int stripes, SketchSpec sketch, DistinctSpec distinct,
+                            Path stateFile) {
+      this(tiers, stripes, sketch, distinct, stateFile, TimeSource.SYSTEM);
+   }
+
+   /**
+    * Construct a striped and tiered DoubleAccumulator whose window ends at
+    * the current time of the given time source rather than of the wall
+    * clock.
+    *
+    * @param tiers     the window length and slice resolution of each tier,
+    *                  from the finest to the coarsest.
+    * @param stripes   the number of stripes, rounded up to a power of two.
+    * @param sketch    the sketch specification, or null for no sketches.
+    * @param distinct  the distinct count specification, or null for no
+    *                  distinct counts.
+    * @param stateFile the file to keep the slices in, or null to keep them
+    *                  in memory only.
+    * @param clock     the source of the current time.
+    * @throws UncheckedIOException if the file could not be opened or mapped.
+    */
+   public DoubleAccumulator(WindowSpec[] tiers, int stripes, SketchSpec sketch, DistinctSpec distinct,
+                            Path stateFile, TimeSource clock) {
+      if (stripes < 1)
+         throw new IllegalArgumentException("stripes must be positive: " + stripes);
+      if (tiers.length < 1)
+         throw new IllegalArgumentException("at least one tier is required");
+      for (int t = 1; t < tiers.length; t++) {
+         if (tiers[t].getWindowMillis() <= tiers[t - 1].getWindowMillis()
+                 || tiers[t].getSliceMillis() % tiers[t - 1].getSliceMillis() != 0)
+            throw new IllegalArgumentException("tier " + tiers[t] + " does not extend tier " + tiers[t - 1]);
+      }
+
+      // round up to a power of two so a stripe can be selected with a mask
+      int size = Integer.highestOneBit(stripes);
+      if (size < stripes)
+         size <<= 1;
+
+      this.tiers = tiers.clone();
+      sliceMillis = tiers[0].getSliceMillis();
+      numSlices = tiers[0].getSlices();
+      this.sketch = sketch;
+      this.distinct = distinct;
+      this.clock = clock;
+
+      this.stateFile = stateFile == null ? null : openStateFile(stateFile, size);
+
+      // initialize fixed arrays in which to accumulate data
+      this.stripes = new Stripe[size];
+      for (int i = 0; i < size; i++)
+         this.stripes[i] = new Stripe(this.tiers, sketch, distinct, this.stateFile);
+      stripeMask = size - 1;
+
+      int restored = 0;
+      if (this.stateFile != null && this.stateFile.isRestorable()) {
+         long now = clock.currentTimeMillis();
+         for (Stripe stripe : this.stripes) {
+            for (SliceRing ring : stripe.rings)
+               restored += ring.restore(now / ring.sliceMillis);
+            stripe.advance(now);
+         }
+      }
+      restoredSlices = restored;
+   }
+
+   private StateFile openStateFile(Path path, int stripes) {
+      long[] regionBytes = new long[stripes * tiers.length];
+      int recordBytes = SliceRing.recordBytes(sketch, distinct);
+      for (int i = 0; i < regionBytes.length; i++)
+         regionBytes[i] = (long) recordBytes * tiers[i % tiers.length].getSlices();
+      String layout = "tiers " + Arrays.toString(tiers) + ", stripes " + stripes
+              + ", sketch " + sketch + ", distinct " + distinct;
+      try {
+         return new StateFile(path, layout, regionBytes);
+      } catch (IOException e) {
+         throw new UncheckedIOException("cannot map state file " + path, e);
+      }
+   }
+
+   /**
+    * Get the number of slices restored from the state file on construction.
+    *
+    * @return the number of slices, over every stripe and tier, or 0 if there
+    * is no state file.
+    */
+   public int getRestoredSlices() {
+      return restoredSlices;
+   }
+
+   /**
+    * Write the slices through to the storage device holding the state file,
+    * so that they also survive the machine failing.  Without this, they are
+    * written back when the operating system chooses, which is enough to
+    * survive the process failing.  Does nothing if there is no state file.
+    */
+   public void force() {
+      if (stateFile != null)
+         stateFile.force();
+   }
+
+   /**
+    * Age out the slices of every stripe as of the current time, as the next
+    * read or write would, and rebuild the merged distinct registers, so
+    * that neither has to.  Stripes which are already current are not
+    * locked.
+    */
+   public void maintain() {
+      long now = clock.currentTimeMillis();
+      int last = tiers.length - 1;
+      for (Stripe stripe : stripes) {
+         if (stripe.isCurrent(now, last))
+            continue;
+         long stamp = stripe.writeLock();
+         try {
+            stripe.advance(now);
+            stripe.refreshDistinct();
+         } finally {
+            stripe.unlockWrite(stamp);
+         }
+      }
+   }
+
+   /**
+    * Pass the slices of the first tier to the given listener as they leave
+    * its window, before rolling them into the next tier, if any.  Slices
+    * aged before the listener is set are not passed to it.
+    *
+    * @param listener the listener.
+    */
+   public void setExpiryListener(ExpiryListener listener) {
+      for (Stripe stripe : stripes) {
+         long stamp = stripe.writeLock();
+         try {
+            stripe.firstConsumer = new Expiry(listener, stripe.rollUps[0]);
+         } finally {
+            stripe.unlockWrite(stamp);
+         }
+      }
+   }
+
+   /**
+    * Maintain this accumulator with the given scheduler, which then calls
+    * {@link #maintain()} as each slice of the first tier turns over, until
+    * the accumulator is closed.
+    *
+    * @param scheduler the scheduler.
+    * @throws IllegalStateException if the accumulator is already
+    *                               maintained.
+    */
+   public synchronized void maintainWith(MaintenanceScheduler scheduler) {
+      if (maintenance != null)
+         throw new IllegalStateException("already maintained");
+      maintenance = scheduler.schedule(this::maintain, sliceMillis);
+   }
+
+   /**
+    * Stop maintaining this accumulator, if maintained, and write the slices
+    * through to the state file, if any.  The accumulator may still be used,
+    * and ages its slices as it is read and written, as if never maintained.
+    */
+   @Override
+   public synchronized void close() {
+      if (maintenance != null) {
+         maintenance.cancel();
+         maintenance = null;
+      }
+      force();
+   }
+
+   /**
+    * Get the window specification of this accumulator, ie. of its first tier.
+    *
+    * @return the window length and slice resolution.
+    */
+   public WindowSpec getSpec() {
+      return tiers[0];
+   }
+
+   /**
+    * Get the window specification of each tier of this accumulator.
+    *
+    * @return the tiers, from the finest to the coarsest.
+    */
+   public WindowSpec[] getTiers() {
+      return tiers.clone();
+   }
+
+   /**
+    * Get the specification of the quantile sketches of this accumulator.
+    *
+    * @return the sketch specification, or null if sketches are not kept.
+    */
+   public SketchSpec getSketch() {
+      return sketch;
+   }
+
+   /**
+    * Get the specification of the distinct count registers of this
+    * accumulator.
+    *
+    * @return the distinct count specification, or null if distinct counts
+    * are not kept.
+    */
+   public DistinctSpec getDistinct() {
+      return distinct;
+   }
+
+   /**
+    * Get the source of the time at which the window of this accumulator
+    * ends.
+    *
+    * @return the time source.
+    */
+   public TimeSource getClock() {
+      return clock;
+   }
+
+   /**
+    * Get the number of stripes used by this accumulator.
+    *
+    * @return the stripe count, always a power of two.
+    */
+   public int getStripes() {
+      return stripes.length;
+   }
+
+   /**
+    * Accumulate a double value with the given timestamp.  Values with a
+    * timestamp older than the window (60 seconds by default) will be
+    * discarded.
+    * <p>
+    * This function executes in approximately constant time and memory (O(1)).
+    *
+    * @param timestamp the unix epochtime (msec) associated with the data value.
+    * @param value     the value to accumulate.
+    * @return <tt>true</tt> if the data was accumulated, false if the timestamp
+    * fell outside the current time window.
+    */
+   public boolean accumulate(long timestamp, double value) {
+      return accumulate(clock.currentTimeMillis(), timestamp, value, false, 0);
+   }
+
+   /**
+    * Accumulate a double value with the given timestamp and key.  The key is
+    * counted towards the distinct count of the statistics, if distinct counts
+    * are kept, and the value is otherwise accumulated as for
+    * {@link #accumulate(long, double)}.
+    *
+    * @param timestamp the unix epochtime (msec) associated with the data value.
+    * @param value     the value to accumulate.
+    * @param key       the key, such as an account or card ID.
+    * @return <tt>true</tt> if the data was accumulated, false if the timestamp
+    * fell outside the current time window.
+    */
+   public boolean accumulate(long timestamp, double value, long key) {
+      return accumulate(clock.currentTimeMillis(), timestamp, value, true, key);
+   }
+
+   /**
+    * Accumulate a double value with the given timestamp as of the given time
+    * rather than the time of the clock, as for
+    * {@link #accumulate(long, double)}.  A caller feeding the same value to
+    * other accumulators reads the time once and passes it to each, so that
+    * they all agree on whether the value is in the window.
+    *
+    * @param now       the current unix epochtime (msec), read once by the
+    *                  caller.
+    * @param timestamp the unix epochtime (msec) associated with the data value.
+    * @param value     the value to accumulate.
+    * @return <tt>true</tt> if the data was accumulated, false if the timestamp
+    * fell outside the time window as of now.
+    */
+   public boolean accumulateAsOf(long now, long timestamp, double value) {
+      return accumulate(now, timestamp, value, false, 0);
+   }
+
+   /**
+    * Accumulate a double value with the given timestamp and key as of the
+    * given time rather than the time of the clock, as for
+    * {@link #accumulate(long, double, long)}.
+    *
+    * @param now       the current unix epochtime (msec), read once by the
+    *                  caller.
+    * @param timestamp the unix epochtime (msec) associated with the data value.
+    * @param value     the value to accumulate.
+    * @param key       the key, such as an account or card ID.
+    * @return <tt>true</tt> if the data was accumulated, false if the timestamp
+    * fell outside the time window as of now.
+    */
+   public boolean accumulateAsOf(long now, long timestamp, double value, long key) {
+      return accumulate(now, timestamp, value, true, key);
+   }
+
+   /**
+    * Check whether a value with the given timestamp would be accumulated
+    * now, rather than discarded as older than the window or in the future.
+    *
+    * @param timestamp the unix epochtime (msec) associated with the data value.
+    * @return <tt>true</tt> if the timestamp falls in the current time window.
+    */
+   public boolean inWindow(long timestamp) {
+      return inWindowAsOf(clock.currentTimeMillis(), timestamp);
+   }
+
+   /**
+    * Check whether a value with the given timestamp would be accumulated as
+    * of the given time, as by {@link #accumulateAsOf(long, long, double)}.
+    *
+    * @param now       the current unix epochtime (msec).
+    * @param timestamp the unix epochtime (msec) associated with the data value.
+    * @return <tt>true</tt> if the timestamp falls in the time window as of
+    * now.
+    */
+   public boolean inWindowAsOf(long now, long timestamp) {
+      return timestamp / sliceMillis > now / sliceMillis - numSlices && timestamp <= now;
+   }
+
+   private boolean accumulate(long now, long timestamp, double value, boolean keyed, long key) {
+
+      // check whether timestamp is older than the window and discard if outside
+      // the window of interest.  note:  also discarding values from the future.
+      // Although this scenario is possible due to clock drift we will not deal
+      // with it here.  The window is measured in whole buckets, so that a
+      // value can never land in the slice of the current bucket.
+      long bucket = timestamp / sliceMillis;
+      if (bucket <= now / sliceMillis - numSlices || timestamp > now)
+         return false;
+
+      // find the histogram bin and distinct register before taking the lock
+      int bin = sketch == null ? 0 : sketch.binOf(value);
+      boolean counted = keyed && distinct != null;
+      long hash = counted ? KeyedAccumulator.hash(key) : 0;
+
+      // each stripe is its own lock, so writers on different stripes
+      // proceed without contention
+      Stripe stripe = stripes[probe.get() & stripeMask];
+      boolean sampled = (ThreadLocalRandom.current().nextInt() & SAMPLE_MASK) == 0;
+      long waitStart = sampled ? System.nanoTime() : 0;
+      long waited;
+      int slot;
+      long stamp = stripe.writeLock();
+      try {
+         waited = sampled ? System.nanoTime() - waitStart : 0;
+         stripe.advance(now);
+         SliceRing ring = stripe.rings[0];
+         slot = ring.addToSlice(bucket, 1, value, value, value);
+         if (slot >= 0) {
+            if (sketch != null)
+               ring.addToSketch(slot, bin, 1);
+            if (counted)
+               ring.addToDistinct(slot, distinct.registerOf(hash), distinct.rankOf(hash));
+         }
+      } finally {
+         stripe.unlockWrite(stamp);
+      }
+      if (sampled)
+         lockWait.record(waited);
+      return slot >= 0;
+   }
+
+   /**
+    * Accumulate a batch of double values with the given timestamps.  Values
+    * with a timestamp older than the window, or in the future, are discarded
+    * as for {@link #accumulate(long, double)}.
+    * <p>
+    * Consecutive values falling in the same slice are combined first and
+    * then added to the slice in a single critical section, so a batch sorted
+    * by time (or mostly so) costs one lock acquisition per slice rather than
+    * one per value.  The batch is not applied atomically; statistics taken
+    * concurrently may see part of it.
+    *
+    * @param timestamps the unix epochtimes (msec) associated with the values.
+    * @param values     the values to accumulate.
+    * @param length     the number of values to take from the arrays.
+    * @return the number of values accumulated.  The remainder fell outside
+    * the current time window.
+    */
+   public int accumulateAll(long[] timestamps, double[] values, int length) {
+      return accumulateAll(timestamps, values, null, null, length);
+   }
+
+   /**
+    * Accumulate a batch of double values with the given timestamps, some or
+    * all of which also have a key counted towards the distinct count, as for
+    * {@link #accumulate(long, double, long)}.
+    *
+    * @param timestamps the unix epochtimes (msec) associated with the values.
+    * @param values     the values to accumulate.
+    * @param keys       the key of each value, or null if none has a key.
+    * @param keyed      whether each value has a key, or null if all values
+    *                   have a key.
+    * @param length     the number of values to take from the arrays.
+    * @return the number of values accumulated.
+    * @see #accumulateAll(long[], double[], int)
+    */
+   public int accumulateAll(long[] timestamps, double[] values, long[] keys, boolean[] keyed, int length) {
+      return accumulateAllAsOf(clock.currentTimeMillis(), timestamps, values, keys, keyed, length);
+   }
+
+   /**
+    * Accumulate a batch of double values as of the given time rather than
+    * the time of the clock, as for
+    * {@link #accumulateAll(long[], double[], long[], boolean[], int)}.  The
+    * values accumulated are those for which
+    * {@link #inWindowAsOf(long, long)} holds.
+    *
+    * @param now        the current unix epochtime (msec), read once by the
+    *                   caller.
+    * @param timestamps the unix epochtimes (msec) associated with the values.
+    * @param values     the values to accumulate.
+    * @param keys       the key of each value, or null if none has a key.
+    * @param keyed      whether each value has a key, or null if all values
+    *                   have a key.
+    * @param length     the number of values to take from the arrays.
+    * @return the number of values accumulated.
+    */
+   public int accumulateAllAsOf(long now, long[] timestamps, double[] values, long[] keys, boolean[] keyed,
+                                int length) {
+      if (length > timestamps.length || length > values.length
+              || keys != null && length > keys.length || keyed != null && length > keyed.length)
+         throw new IllegalArgumentException("length exceeds arrays: " + length);
+      boolean counted = keys != null && distinct != null;
+
+      long oldestBucket = now / sliceMillis - numSlices + 1;
+      Stripe stripe = stripes[probe.get() & stripeMask];
+      int accepted = 0;
+
+      int i = 0;
+      while (i < length) {
+         // skip values outside the window of interest, as in accumulate()
+         long bucket = timestamps[i] / sliceMillis;
+         if (bucket < oldestBucket || timestamps[i] > now) {
+            i++;
+            continue;
+         }
+
+         // combine the run of in-window values sharing this bucket
+         int start = i;
+         int count = 1;
+         double sum = values[i];
+         double min = values[i];
+         double max = values[i];
+         for (i++; i < length; i++) {
+            if (timestamps[i] / sliceMillis != bucket || timestamps[i] > now)
+               break;
+            count++;
+            sum += values[i];
+            if (values[i] < min)
+               min = values[i];
+            if (values[i] > max)
+               max = values[i];
+         }
+
+         boolean sampled = (ThreadLocalRandom.current().nextInt() & SAMPLE_MASK) == 0;
+         long waitStart = sampled ? System.nanoTime() : 0;
+         long waited;
+         long stamp = stripe.writeLock();
+         try {
+            waited = sampled ? System.nanoTime() - waitStart : 0;
+            stripe.advance(now);
+            SliceRing ring = stripe.rings[0];
+            int slot = ring.addToSlice(bucket, count, sum, min, max);
+            if (slot >= 0) {
+               if (sketch != null) {
+                  for (int j = start; j < i; j++)
+                     ring.addToSketch(slot, sketch.binOf(values[j]), 1);
+               }
+               if (counted) {
+                  for (int j = start; j < i; j++) {
+                     if (keyed == null || keyed[j]) {
+                        long hash = KeyedAccumulator.hash(keys[j]);
+                        ring.addToDistinct(slot, distinct.registerOf(hash), distinct.rankOf(hash));
+                     }
+                  }
+               }
+               accepted += count;
+            }
+         } finally {
+            stripe.unlockWrite(stamp);
+         }
+         if (sampled)
+            lockWait.record(waited);
+      }
+      return accepted;
+   }
+
+   /**
+    * Accumulate a batch of double values with the given timestamps.
+    *
+    * @param timestamps the unix epochtimes (msec) associated with the values.
+    * @param values     the values to accumulate, one per timestamp.
+    * @return the number of values accumulated.
+    * @see #accumulateAll(long[], double[], int)
+    */
+   public int accumulateAll(long[] timestamps, double[] values) {
+      if (timestamps.length != values.length)
+         throw new IllegalArgumentException("timestamps and values differ in length");
+      return accumulateAll(timestamps, values, timestamps.length);
+   }
+
+   /**
+    * Get the statistics corresponding to the data values accumulated over the
+    * window of the first tier (by default the last 60 seconds).
+    * <p>
+    * This function executes in time proportional to the number of stripes,
+    * independent of the number of slices, and constant memory.
+    *
+    * @return the statistics.
+    */
+   public StatisticsDTO statistics() {
+      return statistics(tiers[0].getWindowMillis(), null);
+   }
+
+   /**
+    * Get the statistics of the window of the first tier as of the given time
+    * rather than the time of the clock, as for {@link #statistics()}, so that
+    * they can be combined with those of other accumulators as of the same
+    * time.
+    *
+    * @param now the current unix epochtime (msec), read once by the caller.
+    * @return the statistics.
+    */
+   public StatisticsDTO statisticsAsOf(long now) {
+      return timedStats(now, tiers[0].getWindowMillis(), 0, null);
+   }
+
+   /**
+    * Get the statistics corresponding to the data values accumulated over the
+    * given window, which may be up to the window of the last tier.  The
+    * window is answered from the coarsest tier needed, to the resolution of
+    * that tier.
+    * <p>
+    * If the window is exactly that of a tier, this function executes in time
+    * proportional to the number of tiers times the number of stripes.
+    * Otherwise the slices of the covering tier are visited, so the time is
+    * also proportional to the number of slices in that tier.  It executes in
+    * constant memory.
+    *
+    * @param windowMillis the length of the window in msec.
+    * @return the statistics.
+    * @throws IllegalArgumentException if the window is not positive or is
+    *                                  longer than the window of the last tier.
+    */
+   public StatisticsDTO statistics(long windowMillis) {
+      return statistics(windowMillis, null);
+   }
+
+   /**
+    * Get the statistics corresponding to the data values accumulated over the
+    * given window, including estimates of the given quantiles.  Quantiles
+    * require sketches to be kept, and add time proportional to the number of
+    * sketch bins (or bins times slices, for a window between tier lengths).
+    *
+    * @param windowMillis the length of the window in msec.
+    * @param quantiles    the quantiles to estimate, each from 0 to 1, or null
+    *                     for none.
+    * @return the statistics.
+    * @throws IllegalArgumentException if the window is not positive or is
+    *                                  longer than the window of the last tier,
+    *                                  or quantiles are requested which are out
+    *                                  of range or without sketches.
+    */
+   public StatisticsDTO statistics(long windowMillis, double[] quantiles) {
+      if (quantiles != null) {
+         if (sketch == null)
+            throw new IllegalArgumentException("quantile sketches are not enabled");
+         for (double q : quantiles) {
+            if (!(q >= 0 && q <= 1))
+               throw new IllegalArgumentException("quantile out of range: " + q);
+         }
+      }
+      if (windowMillis <= 0 || windowMillis > tiers[tiers.length - 1].getWindowMillis())
+         throw new IllegalArgumentException("window " + windowMillis + " msec is not covered by "
+                 + tiers[tiers.length - 1]);
+
+      // find the finest tier covering the window
+      int tier = 0;
+      while (tiers[tier].getWindowMillis() < windowMillis)
+         tier++;
+
+      // dynamically generate stats covering the buckets of the window
+      return timedStats(clock.currentTimeMillis(), windowMillis, tier, quantiles);
+   }
+
+   /**
+    * Generate statistics as by generateStats, recording the call and, for
+    * one in 64, its time.
+    */
+   private StatisticsDTO timedStats(long now, long windowMillis, int tier, double[] quantiles) {
+      boolean sampled = (ThreadLocalRandom.current().nextInt() & SAMPLE_MASK) == 0;
+      long start = sampled ? System.nanoTime() : 0;
+      StatisticsDTO stats = generateStats(now, windowMillis, tier, quantiles);
+      if (sampled)
+         statisticsLatency.record(System.nanoTime() - start);
+      statisticsCalls.increment();
+      return stats;
+   }
+
+   /**
+    * Get the count, sum, minimum and maximum of each slice of the window of
+    * the first tier, merged over the stripes, so that they can be merged
+    * with those of accumulators on other nodes.
+    * <p>
+    * This function executes in time proportional to the number of stripes
+    * times the number of slices.
+    *
+    * @return the partial statistics.
+    */
+   public PartialStatistics partialStatistics() {
+      PartialStatistics partial = new PartialStatistics(tiers[0]);
+      long now = clock.currentTimeMillis();
+      for (Stripe stripe : stripes) {
+         long stamp = stripe.writeLock();
+         try {
+            stripe.advance(now);
+            SliceRing ring = stripe.rings[0];
+            for (int i = 0; i < ring.numSlices; i++) {
+               if (ring.sliceBucket[i] != SliceRing.EMPTY)
+                  partial.add(ring.sliceBucket[i], ring.sliceCount[i], ring.sliceSum[i],
+                          ring.sliceMin(i), ring.sliceMax(i));
+            }
+         } finally {
+            stripe.unlockWrite(stamp);
+         }
+      }
+      return partial;
+   }
+
+   /**
+    * Get the time writers have taken to acquire a stripe lock, including
+    * the cost of the lock itself, sampled from one in 64 acquisitions.
+    *
+    * @return the histogram of lock wait times.
+    */
+   public LatencyHistogram getLockWait() {
+      return lockWait;
+   }
+
+   /**
+    * Get the time taken by calls for statistics, sampled from one in 64.
+    *
+    * @return the histogram of statistics times.
+    */
+   public LatencyHistogram getStatisticsLatency() {
+      return statisticsLatency;
+   }
+
+   /**
+    * Get the number of calls for statistics.
+    *
+    * @return the call count.
+    */
+   public long getStatisticsCalls() {
+      return statisticsCalls.sum();
+   }
+
+   /**
+    * Get the number of reads of a stripe for statistics which locked the
+    * stripe, because it had to be advanced or writers kept invalidating the
+    * optimistic reads.  Every other read took no lock.
+    *
+    * @return the locked read count.
+    */
+   public long getLockedReads() {
+      return lockedReads.sum();
+   }
+
+   /**
+    * Get the number of slices which have aged out of each tier, rolled up
+    * into the next tier or, from the last, dropped.
+    * <p>
+    * This function takes the read lock of every stripe in turn.
+    *
+    * @return the count for each tier, from the finest to the coarsest.
+    */
+   public long[] agedSlices() {
+      long[] aged = new long[tiers.length];
+      for (Stripe stripe : stripes) {
+         long stamp = stripe.readLock();
+         try {
+            for (int t = 0; t < tiers.length; t++)
+               aged[t] += stripe.rings[t].agedSlices;
+         } finally {
+            stripe.unlockRead(stamp);
+         }
+      }
+      return aged;
+   }
+
+   /**
+    * Generate statistics covering the given window as of the given time, from
+    * the given tier and those finer than it, and with the given quantiles if
+    * not null.  The slices of each stripe are merged in turn, reading each
+    * optimistically and only locking it if it must be advanced or is
+    * written to on every attempt.
+    */
+   private StatisticsDTO generateStats(long now, long windowMillis, int tier, double[] quantiles) {
+      long count = 0;
+      double min = Double.POSITIVE_INFINITY;
+      double max = Double.NEGATIVE_INFINITY;
+      double sum = 0;
+      long[] histogram = quantiles == null ? null : new long[sketch.getBins()];
+
+      // a distinct count from a single ring is kept up to date by the ring,
+      // otherwise the registers of every ring and slice in the window are
+      // merged here
+      long distinctCount = 0;
+      byte[] registers = null;
+      if (distinct != null) {
+         boolean single = stripes.length == 1 && tier == 0
+                 && (windowMillis + sliceMillis - 1) / sliceMillis >= numSlices;
+         if (!single)
+            registers = new byte[distinct.getRegisters()];
+      }
+
+      // the histogram and registers of a stripe are read into scratch arrays
+      // first, so that a failed optimistic read can be discarded
+      long[] stripeHistogram = histogram == null ? null : new long[histogram.length];
+      byte[] stripeRegisters = registers == null ? null : new byte[registers.length];
+
+      for (Stripe stripe : stripes) {
+         long stripeCount;
+         double stripeMin;
+         double stripeMax;
+         double stripeSum;
+         long stripeDistinct;
+         long stamp = stripe.tryOptimisticRead();
+         for (int attempt = 1; ; attempt++) {
+            // lock the stripe if it has to be changed to be read, or if
+            // writers keep invalidating the optimistic reads
+            boolean locked = stamp == 0 || attempt > OPTIMISTIC_READS || !stripe.isCurrent(now, tier);
+            if (locked) {
+               lockedReads.increment();
+               stamp = stripe.writeLock();
+               // after advancing, every slice left holds data from within
+               // the window of its tier.  the merged distinct registers are
+               // only rebuilt here, since an optimistic read must not write.
+               stripe.advance(now);
+               stripe.refreshDistinct();
+            }
+            stripeCount = 0;
+            stripeMin = Double.POSITIVE_INFINITY;
+            stripeMax = Double.NEGATIVE_INFINITY;
+            stripeSum = 0;
+            stripeDistinct = 0;
+            if (stripeHistogram != null)
+               Arrays.fill(stripeHistogram, 0);
+            if (stripeRegisters != null)
+               Arrays.fill(stripeRegisters, (byte) 0);
+
+            for (int t = 0; t <= tier; t++) {
+               SliceRing ring = stripe.rings[t];
+
+               // the covering tier only contributes the buckets inside the
+               // window, rounded up to whole slices.  the tiers before it
+               // contribute everything, as does the covering tier if the
+               // window spans all of it.
+               long slices = (windowMillis + ring.sliceMillis - 1) / ring.sliceMillis;
+               if (t < tier || slices >= ring.numSlices) {
+                  // use the aggregates over the whole ring
+                  stripeCount += ring.totalCount;
+                  stripeSum += ring.totalSum;
+                  stripeMin = Math.min(stripeMin, ring.min());
+                  stripeMax = Math.max(stripeMax, ring.max());
+                  if (stripeHistogram != null) {
+                     for (int bin = 0; bin < stripeHistogram.length; bin++)
+                        stripeHistogram[bin] += ring.totalSketch[bin];
+                  }
+                  if (stripeRegisters != null)
+                     ring.mergeDistinctInto(stripeRegisters);
+                  else if (distinct != null)
+                     stripeDistinct = ring.distinct();
+                  continue;
+               }
+
+               // iterate through all the slices
+               long oldestBucket = now / ring.sliceMillis - slices + 1;
+               for (int i = 0; i < ring.numSlices; i++) {
+
+                  // skip the slice unless it holds data from within the
+                  // window.  this also skips empty slices.
+                  if (ring.sliceBucket[i] < oldestBucket)
+                     continue;
+
+                  // if so, update sum, count, max and min values
+                  stripeMin = Math.min(stripeMin, ring.sliceMin(i));
+                  stripeMax = Math.max(stripeMax, ring.sliceMax(i));
+                  stripeSum += ring.sliceSum[i];
+                  stripeCount += ring.sliceCount[i];
+                  if (stripeHistogram != null) {
+                     for (int bin = 0, j = i * ring.bins; bin < stripeHistogram.length; bin++, j++)
+                        stripeHistogram[bin] += ring.sliceSketch[j];
+                  }
+                  if (stripeRegisters != null)
+                     ring.mergeDistinctInto(stripeRegisters, i);
+               }
+            }
+
+            if (locked) {
+               stripe.unlockWrite(stamp);
+               break;
+            }
+            if (stripe.validate(stamp))
+               break;
+            stamp = stripe.tryOptimisticRead();
+         }
+
+         count += stripeCount;
+         sum += stripeSum;
+         min = Math.min(min, stripeMin);
+         max = Math.max(max, stripeMax);
+         distinctCount = stripeDistinct;
+         if (histogram != null) {
+            for (int bin = 0; bin < histogram.length; bin++)
+               histogram[bin] += stripeHistogram[bin];
+         }
+         if (registers != null) {
+            for (int r = 0; r < registers.length; r++) {
+               if (stripeRegisters[r] > registers[r])
+                  registers[r] = stripeRegisters[r];
+            }
+         }
+      }
+      // generate average based on sum and count
+      double avg = 0;
+      if (count > 0)
+         avg = sum / count;
+      else
+         min = max = 0;
+
+      // estimate the quantiles from the merged histogram
+      Map<String, Double> estimates = null;
+      if (histogram != null) {
+         estimates = new LinkedHashMap<>();
+         for (double q : quantiles)
+            estimates.put(Double.toString(q), count == 0 ? 0 : sketch.quantile(histogram, count, min, max, q));
+      }
+
+      Long distinctKeys = null;
+      if (distinct != null)
+         distinctKeys = registers == null ? distinctCount : distinct.estimate(registers);
+
+      return new StatisticsDTO(sum, avg, max, min, count, estimates, distinctKeys);
+   }
+
+   /**
+    * Fields of a stripe.  A stripe is an independent set of slices, one ring
+    * per tier, and is also the lock guarding access to them.
+    */
+   @SuppressWarnings("serial")
+   private static class StripeFields extends StampedLock {
+
+      /*
+       * The ring of slices of each tier.
+       */
+      final SliceRing[] rings;
+
+      /*
+       * The consumer rolling aged slices of each tier into the next one.
+       * The last tier has none, so its aged slices are dropped.
+       */
+      final RollUp[] rollUps;
+
+      /*
+       * The consumer of aged slices of the first tier:  its roll up, or an
+       * Expiry passing them to a listener as well.
+       */
+      SliceRing.AgedSliceConsumer firstConsumer;
+
+      StripeFields(WindowSpec[] tiers, SketchSpec sketch, DistinctSpec distinct, StateFile stateFile) {
+         rings = new SliceRing[tiers.length];
+         rollUps = new RollUp[tiers.length];
+         int recordBytes = SliceRing.recordBytes(sketch, distinct);
+         for (int t = 0; t < tiers.length; t++) {
+            rings[t] = new SliceRing(tiers[t], sketch, distinct, stateFile == null ? null
+                    : stateFile.nextRegion((long) recordBytes * tiers[t].getSlices()));
+         }
+         for (int t = 0; t < tiers.length - 1; t++)
+            rollUps[t] = new RollUp(t + 1);
+         firstConsumer = rollUps[0];
+      }
+
+      /**
+       * Age out the slices of every tier as of the given time, coarsest tier
+       * first, rolling each into the next tier.
+       */
+      void advance(long now) {
+         for (int t = rings.length - 1; t >= 0; t--)
+            rings[t].advance(now, t == 0 ? firstConsumer : rollUps[t]);
+      }
+
+      /**
+       * Rebuild the merged distinct registers of every tier, if stale.
+       */
+      void refreshDistinct() {
+         for (SliceRing ring : rings)
+            ring.refreshDistinct();
+      }
+
+      /**
+       * Check whether the tiers up to the given one can be read as of the
+       * given time without changing them, ie. none has a slice to age out
+       * and none has merged distinct registers to rebuild.
+       */
+      boolean isCurrent(long now, int tier) {
+         for (int t = 0; t <= tier; t++) {
+            if (!rings[t].isCurrent(now))
+               return false;
+         }
+         return true;
+      }
+
+      /**
+       * Add the data values of a slice of the previous tier, for the given
+       * bucket, to the given tier.  If the tier's slice for the bucket has
+       * also aged out, which happens after a long idle period, pass the values
+       * on to the next tier in turn, or drop them after the last.
+       */
+      void rollUp(int tier, long bucket, SliceRing from, int slot) {
+         long millis = bucket * from.sliceMillis;
+         for (; tier < rings.length; tier++) {
+            SliceRing ring = rings[tier];
+            if (ring.addSlice(millis / ring.sliceMillis, from, slot))
+               return;
+         }
+      }
+
+      /**
+       * Consumer of aged slices from one tier, adding them to the next.
+       */
+      private final class RollUp implements SliceRing.AgedSliceConsumer {
+
+         private final int tier;
+
+         private RollUp(int tier) {
+            this.tier = tier;
+         }
+
+         @Override
+         public void aged(long bucket, SliceRing ring, int slot) {
+            rollUp(tier, bucket, ring, slot);
+         }
+      }
+   }
+
+   /**
+    * Consumer of aged slices of the first tier, passing each to a listener
+    * and then on to the next tier, if any.
+    */
+   private static final class Expiry implements SliceRing.AgedSliceConsumer {
+
+      private final ExpiryListener listener;
+      private final SliceRing.AgedSliceConsumer next;
+
+      private Expiry(ExpiryListener listener, SliceRing.AgedSliceConsumer next) {
+         this.listener = listener;
+         this.next = next;
+      }
+
+      @Override
+      public void aged(long bucket, SliceRing ring, int slot) {
+         listener.expired(bucket * ring.sliceMillis, ring.sliceCount[slot], ring.sliceSum[slot],
+                 ring.sliceMin(slot), ring.sliceMax(slot));
+         if (next != null)
+            next.aged(bucket, ring, slot);
+      }
+   }
+
+   /**
+    * Receiver of the slices of the first tier as they leave its window, when
+    * their aggregates are final.
+    */
+   public interface ExpiryListener {
+
+      /**
+       * Receive the aggregates of a slice which has left the window of the
+       * first tier.  With several stripes, each passes its own slice for
+       * the same time.  This is called by whichever thread ages the slice,
+       * with the stripe locked, so must be quick.
+       *
+       * @param startMillis the unix epochtime (msec) at which the slice
+       *                    starts.
+       * @param count       the number of values.
+       * @param sum         the sum of the values.
+       * @param min         the smallest value.
+       * @param max         the largest value.
+       */
+      void expired(long startMillis, long count, double sum, double min, double max);
+   }
+
+   /**
+    * A stripe, padded so that its lock state does not share a cache line
+    * with a neighbouring stripe.  The JVM lays out superclass fields first,
+    * so the padding here always trails the lock state and stripe fields.
+    */
+   @SuppressWarnings({"unused", "serial"})
+   private static final class Stripe extends StripeFields {
+      private long p0, p1, p2, p3, p4, p5, p6, p7;
+
+      Stripe(WindowSpec[] tiers, SketchSpec sketch, DistinctSpec distinct, StateFile stateFile) {
+         super(tiers, sketch, distinct, stateFile);
+      }
+   }
+}
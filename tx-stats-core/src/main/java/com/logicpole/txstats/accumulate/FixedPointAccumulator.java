@@ -0,0 +1,317 @@
+package com.logicpole.txstats.accumulate;
+
+import com.logicpole.txstats.dto.StatisticsDTO;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed-point accumulator
+ * <p>
+ * This class accumulates timestamped amounts over a moving time window, as
+ * {@link DoubleAccumulator} does, but holds them as whole minor units of a
+ * fixed number of decimal places, such as cents, in longs.  The sum is
+ * therefore exact and independent of the order in which amounts arrive, so
+ * it reconciles to the unit with any other count of the same amounts.
+ * <p>
+ * Amounts may be given as minor units, or as doubles which are rounded to
+ * the nearest unit.  A double with no more decimal places than the scale,
+ * and less than 2^53 units, rounds to exactly the amount it was written as.
+ * Larger doubles are only as precise as a double, and the sum overflows
+ * after about 9.2e18 units, 92 quadrillion at 2 decimal places.
+ * <p>
+ * Since every slice is only longs, slices are updated with atomic
+ * instructions rather than under a lock:  a value is added with an atomic
+ * add of the count and the sum, plus a compare-and-set of the minimum or
+ * maximum in the rare case of a new one.  A slice which has aged out of the
+ * window is replaced with a fresh one by compare-and-set, the only time a
+ * writer allocates.  As with DoubleAccumulator, writers are spread over
+ * stripes of slices so that they do not contend on the same cache lines.
+ * <p>
+ * Statistics read each slice without a lock, so are not a snapshot:  a
+ * value being added concurrently may be in the sum but not yet in the
+ * count.  Once writers are quiet, statistics are exact.
+ *
+ * @author Max McCormick
+ */
+public class FixedPointAccumulator {
+
+   /*
+    * Source of per-thread probe values used to assign each writing thread to
+    * a stripe, as in DoubleAccumulator.
+    */
+   private static final AtomicInteger nextProbe = new AtomicInteger();
+   private static final ThreadLocal<Integer> probe =
+           ThreadLocal.withInitial(nextProbe::getAndIncrement);
+
+   /*
+    * The most decimal places, at which 2^53 units is still over 9 million
+    * whole amounts.
+    */
+   private static final int MAX_SCALE = 9;
+
+   private final WindowSpec spec;
+   private final long sliceMillis;
+   private final int numSlices;
+
+   /*
+    * The number of decimal places of a unit, and the number of units in 1.
+    */
+   private final int scale;
+   private final long unitsPerOne;
+
+   /*
+    * The slices of each stripe, indexed by bucket % numSlices.  A slot is
+    * null until first written.
+    */
+   private final AtomicReferenceArray<Slice>[] stripes;
+   private final int stripeMask;
+
+   /*
+    * The source of the time at which the window ends.
+    */
+   private final TimeSource clock;
+
+   /**
+    * Construct an empty, striped FixedPointAccumulator which accumulates
+    * amounts to the given number of decimal places over the given moving
+    * window from the current instant and back.
+    *
+    * @param spec    the window length and slice resolution.
+    * @param stripes the number of stripes, rounded up to a power of two.
+    * @param scale   the number of decimal places, such as 2 for cents.
+    */
+   public FixedPointAccumulator(WindowSpec spec, int stripes, int scale) {
+      this(spec, stripes, scale, TimeSource.SYSTEM);
+   }
+
+   /**
+    * Construct an empty, striped FixedPointAccumulator whose window ends at
+    * the current time of the given time source.
+    *
+    * @param spec    the window length and slice resolution.
+    * @param stripes the number of stripes, rounded up to a power of two.
+    * @param scale   the number of decimal places, such as 2 for cents.
+    * @param clock   the source of the current time.
+    */
+   @SuppressWarnings("unchecked")
+   public FixedPointAccumulator(WindowSpec spec, int stripes, int scale, TimeSource clock) {
+      if (stripes < 1)
+         throw new IllegalArgumentException("stripes must be positive: " + stripes);
+      if (scale < 0 || scale > MAX_SCALE)
+         throw new IllegalArgumentException("scale must be from 0 to " + MAX_SCALE + ": " + scale);
+
+      // round up to a power of two so a stripe can be selected with a mask
+      int size = Integer.highestOneBit(stripes);
+      if (size < stripes)
+         size <<= 1;
+
+      this.spec = spec;
+      sliceMillis = spec.getSliceMillis();
+      numSlices = spec.getSlices();
+      this.scale = scale;
+      long units = 1;
+      for (int i = 0; i < scale; i++)
+         units *= 10;
+      unitsPerOne = units;
+      this.stripes = new AtomicReferenceArray[size];
+      for (int i = 0; i < size; i++)
+         this.stripes[i] = new AtomicReferenceArray<>(numSlices);
+      stripeMask = size - 1;
+      this.clock = clock;
+   }
+
+   /**
+    * Get the window specification of this accumulator.
+    *
+    * @return the window length and slice resolution.
+    */
+   public WindowSpec getSpec() {
+      return spec;
+   }
+
+   /**
+    * Get the number of decimal places of the units of this accumulator.
+    *
+    * @return the scale.
+    */
+   public int getScale() {
+      return scale;
+   }
+
+   /**
+    * Convert an amount to the nearest whole number of units, rounding
+    * halves to even.  Amounts beyond the range of a long saturate.
+    *
+    * @param amount the amount.
+    * @return the amount in units.
+    */
+   public long toUnits(double amount) {
+      return (long) Math.rint(amount * unitsPerOne);
+   }
+
+   /**
+    * Accumulate an amount with the given timestamp, rounded to the nearest
+    * unit.  Amounts with a timestamp older than the window will be
+    * discarded.
+    *
+    * @param timestamp the unix epochtime (msec) associated with the amount.
+    * @param amount    the amount to accumulate.
+    * @return <tt>true</tt> if the amount was accumulated, false if the
+    * timestamp fell outside the current time window.
+    */
+   public boolean accumulate(long timestamp, double amount) {
+      return accumulateUnits(timestamp, toUnits(amount));
+   }
+
+   /**
+    * Accumulate an amount in units with the given timestamp.  Amounts with a
+    * timestamp older than the window will be discarded.
+    * <p>
+    * This function is lock-free and executes in constant time.
+    *
+    * @param timestamp the unix epochtime (msec) associated with the amount.
+    * @param units     the amount to accumulate in units, such as cents.
+    * @return <tt>true</tt> if the amount was accumulated, false if the
+    * timestamp fell outside the current time window.
+    */
+   public boolean accumulateUnits(long timestamp, long units) {
+      return accumulateUnits(clock.currentTimeMillis(), timestamp, units);
+   }
+
+   /**
+    * Accumulate an amount with the given timestamp as of the given time
+    * rather than the time of the clock, so that a caller feeding the same
+    * amount to other accumulators can have them all agree on whether it is
+    * in the window.
+    *
+    * @param now       the current unix epochtime (msec), read once by the
+    *                  caller.
+    * @param timestamp the unix epochtime (msec) associated with the amount.
+    * @param amount    the amount to accumulate.
+    * @return <tt>true</tt> if the amount was accumulated, false if the
+    * timestamp fell outside the time window as of now.
+    */
+   public boolean accumulateAsOf(long now, long timestamp, double amount) {
+      return accumulateUnits(now, timestamp, toUnits(amount));
+   }
+
+   private boolean accumulateUnits(long now, long timestamp, long units) {
+      // discard values outside the window of interest, as in
+      // DoubleAccumulator
+      long bucket = timestamp / sliceMillis;
+      if (bucket <= now / sliceMillis - numSlices || timestamp > now)
+         return false;
+
+      AtomicReferenceArray<Slice> slices = stripes[probe.get() & stripeMask];
+      int i = (int) (bucket % numSlices);
+      Slice slice = slices.get(i);
+      while (slice == null || slice.bucket != bucket) {
+         // a slot holding a newer bucket means this one has aged out since
+         // the check above
+         if (slice != null && slice.bucket > bucket)
+            return false;
+         // replace the aged slice.  if another writer replaces it first,
+         // use the one it installed
+         Slice fresh = new Slice(bucket);
+         if (slices.compareAndSet(i, slice, fresh))
+            slice = fresh;
+         else
+            slice = slices.get(i);
+      }
+      slice.add(units);
+      return true;
+   }
+
+   /**
+    * Get the statistics corresponding to the amounts accumulated over the
+    * window, with the sum and other amounts converted from units.
+    * <p>
+    * This function executes in time proportional to the number of stripes
+    * times the number of slices, without locking.
+    *
+    * @return the statistics.
+    */
+   public StatisticsDTO statistics() {
+      return statisticsAsOf(clock.currentTimeMillis());
+   }
+
+   /**
+    * Get the statistics of the window as of the given time rather than the
+    * time of the clock, as for {@link #statistics()}.
+    *
+    * @param now the current unix epochtime (msec), read once by the caller.
+    * @return the statistics.
+    */
+   public StatisticsDTO statisticsAsOf(long now) {
+      long oldestBucket = now / sliceMillis - numSlices + 1;
+      long count = 0;
+      long sum = 0;
+      long min = Long.MAX_VALUE;
+      long max = Long.MIN_VALUE;
+      for (AtomicReferenceArray<Slice> slices : stripes) {
+         for (int i = 0; i < numSlices; i++) {
+            Slice slice = slices.get(i);
+            if (slice == null || slice.bucket < oldestBucket)
+               continue;
+            long sliceCount = slice.count;
+            if (sliceCount == 0)
+               continue;
+            count += sliceCount;
+            sum += slice.sum;
+            min = Math.min(min, slice.min);
+            max = Math.max(max, slice.max);
+         }
+      }
+      if (count == 0)
+         return new StatisticsDTO(0, 0, 0, 0, 0);
+      return new StatisticsDTO(toAmount(sum), toAmount(sum) / count, toAmount(max), toAmount(min), count);
+   }
+
+   /**
+    * Convert units to the nearest double amount, which prints as the exact
+    * decimal amount for up to 2^53 units.
+    */
+   private double toAmount(long units) {
+      return (double) units / unitsPerOne;
+   }
+
+   /**
+    * The count, sum, minimum and maximum in units of the amounts of one
+    * bucket.  The bucket of a slice never changes; an aged slice is replaced.
+    */
+   private static final class Slice {
+
+      private static final AtomicLongFieldUpdater<Slice> COUNT =
+              AtomicLongFieldUpdater.newUpdater(Slice.class, "count");
+      private static final AtomicLongFieldUpdater<Slice> SUM =
+              AtomicLongFieldUpdater.newUpdater(Slice.class, "sum");
+      private static final AtomicLongFieldUpdater<Slice> MIN =
+              AtomicLongFieldUpdater.newUpdater(Slice.class, "min");
+      private static final AtomicLongFieldUpdater<Slice> MAX =
+              AtomicLongFieldUpdater.newUpdater(Slice.class, "max");
+
+      final long bucket;
+      volatile long count;
+      volatile long sum;
+      volatile long min = Long.MAX_VALUE;
+      volatile long max = Long.MIN_VALUE;
+
+      Slice(long bucket) {
+         this.bucket = bucket;
+      }
+
+      void add(long units) {
+         // the count is added last and read first, so a reader sees the
+         // sum, minimum and maximum of every value it counts
+         SUM.getAndAdd(this, units);
+         long current;
+         while (units < (current = min) && !MIN.compareAndSet(this, current, units)) {
+         }
+         while (units > (current = max) && !MAX.compareAndSet(this, current, units)) {
+         }
+         COUNT.incrementAndGet(this);
+      }
+   }
+}
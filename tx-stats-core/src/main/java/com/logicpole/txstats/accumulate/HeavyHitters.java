@@ -0,0 +1,250 @@
+package com.logicpole.txstats.accumulate;
+
+import com.logicpole.txstats.dto.TopKeyDTO;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Heavy hitters
+ * <p>
+ * This class tracks the keys with the highest count and the highest sum of
+ * timestamped double values over a moving time window, in memory bounded by
+ * a fixed capacity whatever the number of distinct keys.
+ * <p>
+ * Each slice of the window holds two {@link SpaceSaving} summaries of the
+ * keys in its bucket, one weighted by count and one by value.  The top keys
+ * are found by merging the summaries of the slices in the window.  For each
+ * key the merged estimate is the sum over the slices of its counter, or of
+ * the lightest counter of a slice which does not count it, so the estimate
+ * is never below the true value and exceeds it by at most the reported
+ * error.  The error is at most the total over the window divided by the
+ * capacity, and every key whose true value exceeds that bound is reported
+ * ahead of every key which is not counted at all.  For example with a
+ * capacity of 256, no top key by sum is overstated by more than 0.4% of the
+ * window's total sum.
+ * <p>
+ * The keys are spread over several stripes by hash, as for
+ * {@link KeyedAccumulator}, so each key is counted in exactly one stripe and
+ * the bound holds for the total of that stripe.
+ *
+ * @author Max McCormick
+ */
+public class HeavyHitters {
+
+   /**
+    * The ranking of the top keys.
+    */
+   public enum By {
+      COUNT, SUM
+   }
+
+   private final WindowSpec spec;
+   private final long sliceMillis;
+   private final int numSlices;
+   private final int capacity;
+
+   /*
+    * The stripes of slice summaries.  The number of stripes is always a
+    * power of two.
+    */
+   private final Stripe[] stripes;
+   private final int stripeMask;
+
+   /*
+    * The source of the time at which the window ends.
+    */
+   private final TimeSource clock;
+
+   /**
+    * Construct an empty, striped HeavyHitters over the given moving window
+    * from the current instant and back.
+    *
+    * @param spec     the window length and slice resolution.
+    * @param capacity the number of keys counted in each slice.  Memory is
+    *                 about 96 bytes per key per slice per stripe.
+    * @param stripes  the number of stripes, rounded up to a power of two.
+    */
+   public HeavyHitters(WindowSpec spec, int capacity, int stripes) {
+      this(spec, capacity, stripes, TimeSource.SYSTEM);
+   }
+
+   /**
+    * Construct an empty, striped HeavyHitters whose window ends at the
+    * current time of the given time source.
+    *
+    * @param spec     the window length and slice resolution.
+    * @param capacity the number of keys counted in each slice.
+    * @param stripes  the number of stripes, rounded up to a power of two.
+    * @param clock    the source of the current time.
+    */
+   public HeavyHitters(WindowSpec spec, int capacity, int stripes, TimeSource clock) {
+      if (stripes < 1)
+         throw new IllegalArgumentException("stripes must be positive: " + stripes);
+      if (capacity < 1)
+         throw new IllegalArgumentException("capacity must be positive: " + capacity);
+
+      // round up to a power of two so a stripe can be selected with a mask
+      int size = Integer.highestOneBit(stripes);
+      if (size < stripes)
+         size <<= 1;
+
+      this.spec = spec;
+      sliceMillis = spec.getSliceMillis();
+      numSlices = spec.getSlices();
+      this.capacity = capacity;
+      this.stripes = new Stripe[size];
+      for (int i = 0; i < size; i++)
+         this.stripes[i] = new Stripe(numSlices, capacity);
+      stripeMask = size - 1;
+      this.clock = clock;
+   }
+
+   /**
+    * Get the window specification of this summary.
+    *
+    * @return the window length and slice resolution.
+    */
+   public WindowSpec getSpec() {
+      return spec;
+   }
+
+   /**
+    * Get the number of keys counted in each slice, which is the most top
+    * keys which may be requested.
+    *
+    * @return the capacity.
+    */
+   public int getCapacity() {
+      return capacity;
+   }
+
+   /**
+    * Count a positive double value for the given key with the given
+    * timestamp.  Values with a timestamp older than the window, or in the
+    * future, are discarded as for
+    * {@link DoubleAccumulator#accumulate(long, double)}.
+    * <p>
+    * This function executes in O(log capacity) time and allocates nothing.
+    *
+    * @param key       the key.
+    * @param timestamp the unix epochtime (msec) associated with the data value.
+    * @param value     the value, which must be positive.
+    * @return <tt>true</tt> if the data was counted, false if the timestamp
+    * fell outside the current time window or the value was not positive.
+    */
+   public boolean accumulate(long key, long timestamp, double value) {
+      return accumulateAsOf(clock.currentTimeMillis(), key, timestamp, value);
+   }
+
+   /**
+    * Count a positive double value for the given key as of the given time
+    * rather than the time of the clock, as for
+    * {@link #accumulate(long, long, double)}.
+    *
+    * @param now       the current unix epochtime (msec), read once by the
+    *                  caller.
+    * @param key       the key.
+    * @param timestamp the unix epochtime (msec) associated with the data value.
+    * @param value     the value, which must be positive.
+    * @return <tt>true</tt> if the data was counted, false if the timestamp
+    * fell outside the time window as of now or the value was not positive.
+    */
+   public boolean accumulateAsOf(long now, long key, long timestamp, double value) {
+      long bucket = timestamp / sliceMillis;
+      if (bucket <= now / sliceMillis - numSlices || timestamp > now || !(value > 0))
+         return false;
+
+      Stripe stripe = stripes[(int) (KeyedAccumulator.hash(key) >>> 32) & stripeMask];
+      int i = (int) (bucket % numSlices);
+      synchronized (stripe) {
+         if (stripe.sliceBucket[i] != bucket) {
+            // the slice holds a newer bucket only if this thread stalled
+            if (stripe.sliceBucket[i] > bucket)
+               return false;
+            stripe.byCount[i].clear();
+            stripe.bySum[i].clear();
+            stripe.sliceBucket[i] = bucket;
+         }
+         stripe.byCount[i].add(key, 1);
+         stripe.bySum[i].add(key, value);
+         return true;
+      }
+   }
+
+   /**
+    * Get the top keys over the window by count or by sum, heaviest first.
+    * <p>
+    * This function executes in time proportional to the number of slices
+    * times the number of stripes times the capacity.
+    *
+    * @param k  the number of keys, up to the capacity.
+    * @param by the ranking.
+    * @return up to k keys with their estimated value and its error.
+    * @throws IllegalArgumentException if k is not positive or exceeds the
+    *                                  capacity.
+    */
+   public List<TopKeyDTO> top(int k, By by) {
+      if (k < 1 || k > capacity)
+         throw new IllegalArgumentException("k must be from 1 to " + capacity + ": " + k);
+
+      long now = clock.currentTimeMillis();
+      long oldestBucket = now / sliceMillis - numSlices + 1;
+      List<TopKeyDTO> candidates = new ArrayList<>();
+      Map<Long, double[]> merged = new HashMap<>();
+
+      for (Stripe stripe : stripes) {
+         // each key is only counted in its own stripe, so stripes merge
+         // separately.  every key starts from the sum of the lightest
+         // counters, and the counted keys add the excess of their counter
+         // over the lightest one.
+         double base = 0;
+         merged.clear();
+         synchronized (stripe) {
+            for (int i = 0; i < numSlices; i++) {
+               if (stripe.sliceBucket[i] < oldestBucket)
+                  continue;
+               SpaceSaving summary = by == By.COUNT ? stripe.byCount[i] : stripe.bySum[i];
+               double min = summary.minWeight();
+               base += min;
+               for (int c = 0; c < summary.size; c++) {
+                  double[] excess = merged.computeIfAbsent(summary.keys[c], key -> new double[2]);
+                  excess[0] += summary.weights[c] - min;
+                  excess[1] += summary.errors[c] - min;
+               }
+            }
+         }
+         for (Map.Entry<Long, double[]> entry : merged.entrySet()) {
+            double[] excess = entry.getValue();
+            candidates.add(new TopKeyDTO(entry.getKey(), base + excess[0], Math.max(base + excess[1], 0)));
+         }
+      }
+
+      candidates.sort((a, b) -> Double.compare(b.getValue(), a.getValue()));
+      return new ArrayList<>(candidates.subList(0, Math.min(k, candidates.size())));
+   }
+
+   /**
+    * A stripe, holding the summaries of each slice and their bucket numbers,
+    * and also the lock guarding access to them.
+    */
+   private static final class Stripe {
+
+      final long[] sliceBucket;
+      final SpaceSaving[] byCount;
+      final SpaceSaving[] bySum;
+
+      Stripe(int numSlices, int capacity) {
+         sliceBucket = new long[numSlices];
+         byCount = new SpaceSaving[numSlices];
+         bySum = new SpaceSaving[numSlices];
+         for (int i = 0; i < numSlices; i++) {
+            sliceBucket[i] = SliceRing.EMPTY;
+            byCount[i] = new SpaceSaving(capacity);
+            bySum[i] = new SpaceSaving(capacity);
+         }
+      }
+   }
+}
@@ -0,0 +1,268 @@
+package com.logicpole.txstats.accumulate;
+
+import com.logicpole.txstats.dto.StatisticsDTO;
+
+/**
+ * Key table
+ * <p>
+ * An open-addressing hash table from long keys to a small ring of slices per
+ * key, for one stripe of a {@link KeyedAccumulator}.  Keys are placed by
+ * linear probing, and the slices of the key at table position p are held at
+ * p * numSlices to (p + 1) * numSlices - 1 of a flat primitive array, so a key
+ * costs no objects at all.  The fields of a key, and of each of its slices,
+ * are interleaved in one array rather than kept in one array per field, so
+ * that a value with a key which is not in cache costs two cache misses rather
+ * than one per field.
+ * <p>
+ * Unlike a {@link SliceRing}, slices do not carry their bucket number.  Each
+ * key records only its newest bucket, and the slices of the buckets between
+ * its previous newest bucket and the new one are cleared as it advances, so
+ * slice j always holds the bucket b in (newest - numSlices, newest] with
+ * b % numSlices == j, or nothing.
+ * <p>
+ * Keys are never removed individually.  When the table reaches its load
+ * limit it is rebuilt, dropping every key which has been idle for longer
+ * than the window, and is only doubled in size if most keys are still live.
+ * <p>
+ * This class is not thread safe; callers hold its lock.
+ *
+ * @author Max McCormick
+ */
+final class KeyTable {
+
+   // newest bucket of a table position which holds no key
+   private static final long EMPTY = -1;
+
+   // bytes per key position, and per slice of each key
+   static final int KEY_BYTES = 16;
+   static final int SLICE_BYTES = 32;
+
+   // offsets of the fields of a slice, which takes SLICE_LONGS elements
+   private static final int COUNT = 0;
+   private static final int SUM = 1;
+   private static final int MIN = 2;
+   private static final int MAX = 3;
+   private static final int SLICE_LONGS = 4;
+
+   private static final int MIN_CAPACITY = 16;
+
+   final long sliceMillis;
+   final int numSlices;
+
+   /*
+    * The largest capacity whose slice arrays can be indexed by an int.
+    */
+   private final int maxCapacity;
+
+   /*
+    * The key at each table position p at 2p, and its newest bucket or EMPTY
+    * at 2p + 1.
+    */
+   private long[] keys;
+
+   /*
+    * The count, sum, minimum and maximum of the data values in each slice of
+    * each key, the doubles stored as their raw bits.  The minimum and maximum
+    * are only meaningful if the count is not zero.
+    */
+   private long[] slices;
+
+   private int mask;
+   private int size;
+   private int threshold;
+
+   /*
+    * Metrics:  the number of idle keys dropped by rebuilds.
+    */
+   private long expunged;
+
+   KeyTable(WindowSpec spec, int initialCapacity) {
+      sliceMillis = spec.getSliceMillis();
+      numSlices = spec.getSlices();
+      maxCapacity = Integer.highestOneBit(Integer.MAX_VALUE / (numSlices * SLICE_LONGS));
+
+      int capacity = Integer.highestOneBit(Math.max(initialCapacity, MIN_CAPACITY) - 1) << 1;
+      allocate(Math.min(capacity, maxCapacity));
+   }
+
+   /**
+    * Get the number of keys in the table, including idle keys not yet
+    * dropped.
+    */
+   int size() {
+      return size;
+   }
+
+   /**
+    * Get the number of idle keys dropped since the table was created.
+    */
+   long expunged() {
+      return expunged;
+   }
+
+   /**
+    * Get the approximate memory used by the table in bytes.
+    */
+   long memoryBytes() {
+      return (long) capacity() * (KEY_BYTES + (long) numSlices * SLICE_BYTES);
+   }
+
+   /**
+    * Add a data value for the given key to the slice for the given bucket.
+    * The bucket must be within the window as of nowBucket.  Returns false,
+    * without adding, if the key is new and the table can grow no further.
+    */
+   boolean accumulate(long key, int hash, long bucket, long nowBucket, double value) {
+      int p = find(key, hash);
+      if (p < 0) {
+         if (size >= threshold) {
+            rebuild(nowBucket);
+            p = find(key, hash);
+            // only possible at the largest capacity
+            if (size >= threshold)
+               return false;
+         }
+         // new positions are always zeroed, so there is nothing to clear
+         p = ~p;
+         keys[2 * p] = key;
+         keys[2 * p + 1] = bucket;
+         size++;
+      } else {
+         long newest = keys[2 * p + 1];
+         if (bucket > newest) {
+            // clear the slices of the buckets skipped since the newest one,
+            // which is all of them if the key has been idle for a window
+            long skipped = Math.min(bucket - newest, numSlices);
+            for (long b = bucket - skipped + 1; b <= bucket; b++)
+               slices[index(p, b) + COUNT] = 0;
+            keys[2 * p + 1] = bucket;
+         } else if (bucket <= newest - numSlices) {
+            return false;
+         }
+      }
+
+      int i = index(p, bucket);
+      if (slices[i + COUNT]++ == 0) {
+         long bits = Double.doubleToRawLongBits(value);
+         slices[i + SUM] = bits;
+         slices[i + MIN] = bits;
+         slices[i + MAX] = bits;
+      } else {
+         slices[i + SUM] = Double.doubleToRawLongBits(Double.longBitsToDouble(slices[i + SUM]) + value);
+         if (value < Double.longBitsToDouble(slices[i + MIN]))
+            slices[i + MIN] = Double.doubleToRawLongBits(value);
+         if (value > Double.longBitsToDouble(slices[i + MAX]))
+            slices[i + MAX] = Double.doubleToRawLongBits(value);
+      }
+      return true;
+   }
+
+   /**
+    * Generate statistics covering the buckets of the given key from
+    * oldestBucket onwards.
+    */
+   StatisticsDTO statistics(long key, int hash, long oldestBucket) {
+      long count = 0;
+      double min = Double.POSITIVE_INFINITY;
+      double max = Double.NEGATIVE_INFINITY;
+      double sum = 0;
+
+      int p = find(key, hash);
+      if (p >= 0 && keys[2 * p + 1] >= oldestBucket) {
+         long newest = keys[2 * p + 1];
+         int newestSlot = slot(newest);
+         for (int j = 0; j < numSlices; j++) {
+            int i = (p * numSlices + j) * SLICE_LONGS;
+            // the bucket held by slice j, counting back from the newest
+            long bucket = newest - (newestSlot - j + numSlices) % numSlices;
+            if (slices[i + COUNT] == 0 || bucket < oldestBucket)
+               continue;
+            count += slices[i + COUNT];
+            sum += Double.longBitsToDouble(slices[i + SUM]);
+            min = Math.min(min, Double.longBitsToDouble(slices[i + MIN]));
+            max = Math.max(max, Double.longBitsToDouble(slices[i + MAX]));
+         }
+      }
+
+      double avg = 0;
+      if (count > 0)
+         avg = sum / count;
+      else
+         min = max = 0;
+      return new StatisticsDTO(sum, avg, max, min, count);
+   }
+
+   private int slot(long bucket) {
+      return (int) (bucket % numSlices);
+   }
+
+   /**
+    * Get the index of the first field of the slice of the key at position p
+    * for the given bucket.
+    */
+   private int index(int p, long bucket) {
+      return (p * numSlices + slot(bucket)) * SLICE_LONGS;
+   }
+
+   private int capacity() {
+      return keys.length / 2;
+   }
+
+   /**
+    * Find the position of the given key, or if it is not in the table, the
+    * complement of the free position where it would be inserted.
+    */
+   private int find(long key, int hash) {
+      for (int p = hash & mask; ; p = (p + 1) & mask) {
+         if (keys[2 * p + 1] == EMPTY)
+            return ~p;
+         if (keys[2 * p] == key)
+            return p;
+      }
+   }
+
+   /**
+    * Rebuild the table without the keys idle since before the window as of
+    * nowBucket, doubling its capacity if more than half of it is still live.
+    */
+   private void rebuild(long nowBucket) {
+      long oldestBucket = nowBucket - numSlices + 1;
+      int oldCapacity = capacity();
+      int live = 0;
+      for (int p = 0; p < oldCapacity; p++) {
+         if (keys[2 * p + 1] >= oldestBucket)
+            live++;
+      }
+
+      expunged += size - live;
+      long[] oldKeys = keys;
+      long[] oldSlices = slices;
+
+      int capacity = oldCapacity;
+      if (live >= capacity / 2 && capacity < maxCapacity)
+         capacity <<= 1;
+      allocate(capacity);
+
+      int length = numSlices * SLICE_LONGS;
+      for (int p = 0; p < oldCapacity; p++) {
+         long key = oldKeys[2 * p];
+         if (oldKeys[2 * p + 1] < oldestBucket)
+            continue;
+         int q = ~find(key, (int) KeyedAccumulator.hash(key));
+         keys[2 * q] = key;
+         keys[2 * q + 1] = oldKeys[2 * p + 1];
+         System.arraycopy(oldSlices, p * length, slices, q * length, length);
+         size++;
+      }
+   }
+
+   private void allocate(int capacity) {
+      keys = new long[2 * capacity];
+      slices = new long[capacity * numSlices * SLICE_LONGS];
+      for (int p = 0; p < capacity; p++)
+         keys[2 * p + 1] = EMPTY;
+      mask = capacity - 1;
+      size = 0;
+      threshold = capacity / 4 * 3;
+   }
+}
@@ -0,0 +1,226 @@
+package com.logicpole.txstats.accumulate;
+
+import com.logicpole.txstats.dto.StatisticsDTO;
+
+/**
+ * Keyed accumulator
+ * <p>
+ * This class accumulates timestamped double values for each of any number of
+ * long keys, such as merchant or account IDs, over a moving time window, and
+ * provides the same simple statistics as {@link DoubleAccumulator} for one key
+ * at a time.
+ * <p>
+ * Keys are held in open-addressing hash tables of primitive arrays, with a
+ * small ring of slices per key and no objects per key, so memory is roughly
+ * (16 + 32 * slices) bytes per key divided by the load factor, which is from
+ * 3/8 to 3/4.  The window is typically coarser than that of a
+ * DoubleAccumulator for this reason, eg. 60 seconds in 5 second slices takes
+ * about 530 to 1,050 bytes per key.  Keys idle for longer than the window are
+ * dropped lazily, when a table next fills up.
+ * <p>
+ * The keys are spread over several stripes by hash, each stripe being its
+ * own table and lock, so writers of different keys seldom contend and a
+ * query for one key locks only the stripe holding it.
+ *
+ * @author Max McCormick
+ */
+public class KeyedAccumulator {
+
+   /*
+    * Initial capacity of the table of each stripe.
+    */
+   private static final int INITIAL_CAPACITY = 1024;
+
+   private final WindowSpec spec;
+   private final long sliceMillis;
+   private final int numSlices;
+
+   /*
+    * The key tables.  There is always at least one, and the number of tables
+    * is always a power of two.
+    */
+   private final KeyTable[] tables;
+
+   /*
+    * Mask used to map the high half of a key hash onto a table index.  The
+    * low half gives the position within the table.
+    */
+   private final int tableMask;
+
+   /*
+    * The source of the time at which the window ends.
+    */
+   private final TimeSource clock;
+
+   /**
+    * Construct an empty, striped KeyedAccumulator which accumulates double
+    * data values per key over the given moving window from the current
+    * instant and back.
+    *
+    * @param spec    the window length and slice resolution.
+    * @param stripes the number of stripes, rounded up to a power of two.
+    */
+   public KeyedAccumulator(WindowSpec spec, int stripes) {
+      this(spec, stripes, TimeSource.SYSTEM);
+   }
+
+   /**
+    * Construct an empty, striped KeyedAccumulator whose window ends at the
+    * current time of the given time source.
+    *
+    * @param spec    the window length and slice resolution.
+    * @param stripes the number of stripes, rounded up to a power of two.
+    * @param clock   the source of the current time.
+    */
+   public KeyedAccumulator(WindowSpec spec, int stripes, TimeSource clock) {
+      if (stripes < 1)
+         throw new IllegalArgumentException("stripes must be positive: " + stripes);
+
+      // round up to a power of two so a stripe can be selected with a mask
+      int size = Integer.highestOneBit(stripes);
+      if (size < stripes)
+         size <<= 1;
+
+      this.spec = spec;
+      sliceMillis = spec.getSliceMillis();
+      numSlices = spec.getSlices();
+      tables = new KeyTable[size];
+      for (int i = 0; i < size; i++)
+         tables[i] = new KeyTable(spec, INITIAL_CAPACITY);
+      tableMask = size - 1;
+      this.clock = clock;
+   }
+
+   /**
+    * Get the window specification of this accumulator.
+    *
+    * @return the window length and slice resolution.
+    */
+   public WindowSpec getSpec() {
+      return spec;
+   }
+
+   /**
+    * Accumulate a double value for the given key with the given timestamp.
+    * Values with a timestamp older than the window, or in the future, are
+    * discarded as for {@link DoubleAccumulator#accumulate(long, double)}.
+    * <p>
+    * This function executes in amortized constant time, and only allocates
+    * when a table grows.
+    *
+    * @param key       the key.
+    * @param timestamp the unix epochtime (msec) associated with the data value.
+    * @param value     the value to accumulate.
+    * @return <tt>true</tt> if the data was accumulated, false if the timestamp
+    * fell outside the current time window or there is no room for a new key.
+    */
+   public boolean accumulate(long key, long timestamp, double value) {
+      return accumulateAsOf(clock.currentTimeMillis(), key, timestamp, value);
+   }
+
+   /**
+    * Accumulate a double value for the given key as of the given time rather
+    * than the time of the clock, as for
+    * {@link #accumulate(long, long, double)}.
+    *
+    * @param now       the current unix epochtime (msec), read once by the
+    *                  caller.
+    * @param key       the key.
+    * @param timestamp the unix epochtime (msec) associated with the data value.
+    * @param value     the value to accumulate.
+    * @return <tt>true</tt> if the data was accumulated, false if the timestamp
+    * fell outside the time window as of now or there is no room for a new key.
+    */
+   public boolean accumulateAsOf(long now, long key, long timestamp, double value) {
+      long nowBucket = now / sliceMillis;
+      long bucket = timestamp / sliceMillis;
+      if (bucket <= nowBucket - numSlices || timestamp > now)
+         return false;
+
+      long hash = hash(key);
+      KeyTable table = tables[(int) (hash >>> 32) & tableMask];
+      synchronized (table) {
+         return table.accumulate(key, (int) hash, bucket, nowBucket, value);
+      }
+   }
+
+   /**
+    * Get the statistics corresponding to the data values accumulated for the
+    * given key over the window.  A key with no values in the window has
+    * statistics of zero.
+    * <p>
+    * This function executes in time proportional to the number of slices.
+    *
+    * @param key the key.
+    * @return the statistics.
+    */
+   public StatisticsDTO statistics(long key) {
+      long now = clock.currentTimeMillis();
+      long hash = hash(key);
+      KeyTable table = tables[(int) (hash >>> 32) & tableMask];
+      synchronized (table) {
+         return table.statistics(key, (int) hash, now / sliceMillis - numSlices + 1);
+      }
+   }
+
+   /**
+    * Get the number of keys held, including keys which have gone idle but
+    * have not yet been dropped.
+    *
+    * @return the key count.
+    */
+   public long size() {
+      long size = 0;
+      for (KeyTable table : tables) {
+         synchronized (table) {
+            size += table.size();
+         }
+      }
+      return size;
+   }
+
+   /**
+    * Get the number of idle keys which have been dropped.
+    *
+    * @return the dropped key count.
+    */
+   public long expungedKeys() {
+      long expunged = 0;
+      for (KeyTable table : tables) {
+         synchronized (table) {
+            expunged += table.expunged();
+         }
+      }
+      return expunged;
+   }
+
+   /**
+    * Get the approximate memory used by the key tables.
+    *
+    * @return the memory in bytes.
+    */
+   public long memoryBytes() {
+      long bytes = 0;
+      for (KeyTable table : tables) {
+         synchronized (table) {
+            bytes += table.memoryBytes();
+         }
+      }
+      return bytes;
+   }
+
+   /**
+    * Hash a key, mixing its bits so that sequential keys spread evenly over
+    * both the stripes and the positions of a table.  This is the finalizer
+    * of MurmurHash3.
+    */
+   static long hash(long key) {
+      long h = key;
+      h ^= h >>> 33;
+      h *= 0xff51afd7ed558ccdL;
+      h ^= h >>> 33;
+      h *= 0xc4ceb9fe1a85ec53L;
+      h ^= h >>> 33;
+      return h;
+   }
+}
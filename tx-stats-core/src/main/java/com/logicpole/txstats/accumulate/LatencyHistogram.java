@@ -0,0 +1,128 @@
+package com.logicpole.txstats.accumulate;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histogram
+ * <p>
+ * A lock-free histogram of durations in nanoseconds, for metrics of the
+ * accumulators.  Durations under 16 ns have a bucket each, and longer ones
+ * fall in one of 8 buckets per power of two, so quantiles are estimated to
+ * within 6.25% of the true value over the whole range of a long.  The
+ * buckets are a fixed array of atomic counters, so recording a duration is
+ * a single atomic increment, plus one more in the rare case of a new
+ * maximum, and never allocates.
+ *
+ * @author Max McCormick
+ */
+public final class LatencyHistogram {
+
+   private static final int LINEAR = 16;
+   private static final int SUB_BITS = 3;
+   private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+   // the linear buckets, then 8 buckets for each power of two from 2^4
+   // to 2^62
+   private static final int BUCKETS = LINEAR + (63 - 4) * SUB_BUCKETS;
+
+   private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+   private final AtomicLong max = new AtomicLong();
+
+   /**
+    * Record a duration.
+    *
+    * @param nanos the duration in nsec.  A negative duration, from a clock
+    *              adjustment, is recorded as 0.
+    */
+   public void record(long nanos) {
+      long value = Math.max(nanos, 0);
+      counts.incrementAndGet(bucketOf(value));
+      if (value > max.get())
+         max.accumulateAndGet(value, Math::max);
+   }
+
+   /**
+    * Take a copy of the counts, from which quantiles are estimated.  The
+    * copy is not atomic, so durations recorded meanwhile may be missed.
+    *
+    * @return the snapshot.
+    */
+   public Snapshot snapshot() {
+      long[] copy = new long[BUCKETS];
+      long total = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+         copy[i] = counts.get(i);
+         total += copy[i];
+      }
+      return new Snapshot(copy, total, max.get());
+   }
+
+   static int bucketOf(long value) {
+      if (value < LINEAR)
+         return (int) value;
+      int exponent = 63 - Long.numberOfLeadingZeros(value);
+      return LINEAR + (exponent - 4) * SUB_BUCKETS
+              + (int) ((value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1));
+   }
+
+   /**
+    * Get the middle of the range of durations counted in a bucket.
+    */
+   static long valueOf(int bucket) {
+      if (bucket < LINEAR)
+         return bucket;
+      int exponent = (bucket - LINEAR) / SUB_BUCKETS + 4;
+      long width = 1L << (exponent - SUB_BITS);
+      return (1L << exponent) + (bucket - LINEAR) % SUB_BUCKETS * width + width / 2;
+   }
+
+   /**
+    * A copy of the counts of a histogram.
+    */
+   public static final class Snapshot {
+
+      private final long[] counts;
+      private final long count;
+      private final long max;
+
+      private Snapshot(long[] counts, long count, long max) {
+         this.counts = counts;
+         this.count = count;
+         this.max = max;
+      }
+
+      /**
+       * Get the number of durations recorded.
+       */
+      public long getCount() {
+         return count;
+      }
+
+      /**
+       * Get the longest duration recorded, in nsec.
+       */
+      public long getMax() {
+         return max;
+      }
+
+      /**
+       * Estimate a quantile of the durations.
+       *
+       * @param q the quantile, from 0 to 1.
+       * @return the estimate in nsec, or 0 if nothing was recorded.
+       */
+      public long quantile(double q) {
+         if (count == 0)
+            return 0;
+         long rank = Math.max((long) Math.ceil(q * count), 1);
+         long seen = 0;
+         for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank)
+               return Math.min(valueOf(i), max);
+         }
+         return max;
+      }
+   }
+}
@@ -0,0 +1,353 @@
+package com.logicpole.txstats.accumulate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Maintenance scheduler
+ * <p>
+ * Runs periodic maintenance tasks, such as aging the slices of an
+ * accumulator as each slice turns over, for any number of accumulators on a
+ * single daemon thread, so that an accumulator costs a task rather than a
+ * thread.
+ * <p>
+ * Tasks are held in a hashed timer wheel:  a ring of buckets, each holding
+ * the tasks due in one tick, with a count of whole turns of the wheel still
+ * to wait for tasks due further ahead.  Scheduling and cancelling a task
+ * take constant time, and each tick visits only the tasks in one bucket, so
+ * the cost of the thread is proportional to the tasks which run, not to the
+ * number scheduled.  A task runs within a tick after it is due.
+ * <p>
+ * A task with a period runs at every multiple of the period on the clock of
+ * the accumulators, such as on every whole second, rather than at a fixed
+ * delay after it was scheduled, so that maintenance lands just after a slice
+ * turns over.  The wheel itself turns in real time, so a task is put in the
+ * bucket of the real time left until its multiple, and if the clock has not
+ * reached the multiple by then, as a {@link Watermark} which stalls may not
+ * have, the task waits again for the time still left rather than running.
+ * <p>
+ * Tasks run on the scheduler thread one after another, so they must be
+ * short.  A task which throws, even an Error, is counted, and runs again at
+ * its next time.  The first failure of each task is logged with its cause.
+ *
+ * @author Max McCormick
+ */
+public class MaintenanceScheduler implements AutoCloseable {
+
+   /*
+    * Default tick and wheel size, which turns the wheel every 5.12 seconds.
+    */
+   private static final long DEFAULT_TICK_MILLIS = 10;
+   private static final int DEFAULT_WHEEL_SIZE = 512;
+
+   private static final Logger LOG = Logger.getLogger(MaintenanceScheduler.class.getName());
+
+   private final long tickMillis;
+   private final long tickNanos;
+
+   /*
+    * The clock to whose multiples of a period tasks are aligned.
+    */
+   private final TimeSource clock;
+
+   /*
+    * The buckets of the wheel, each a list of the tasks due in it, and the
+    * mask mapping a tick onto a bucket.  Only the scheduler thread touches
+    * them.
+    */
+   private final List<Task>[] wheel;
+   private final int wheelMask;
+
+   /*
+    * Tasks scheduled since the last tick, which the scheduler thread moves
+    * into the wheel.
+    */
+   private final Queue<Task> scheduled = new ConcurrentLinkedQueue<>();
+
+   private final Thread thread;
+   private volatile boolean closed;
+
+   /*
+    * Metrics.
+    */
+   private final AtomicInteger tasks = new AtomicInteger();
+   private final LongAdder runs = new LongAdder();
+   private final LongAdder failures = new LongAdder();
+
+   /**
+    * Create a scheduler with a tick of 10 msec on the wall clock, and start
+    * its thread.
+    */
+   public MaintenanceScheduler() {
+      this(TimeSource.SYSTEM);
+   }
+
+   /**
+    * Create a scheduler with a tick of 10 msec, aligning tasks to the given
+    * clock, and start its thread.
+    *
+    * @param clock the clock of the accumulators maintained.
+    */
+   public MaintenanceScheduler(TimeSource clock) {
+      this(DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE, clock);
+   }
+
+   /**
+    * Create a scheduler on the wall clock and start its thread.
+    *
+    * @param tickMillis the length of a tick, the precision of the times at
+    *                   which tasks run, in msec.
+    * @param wheelSize  the number of buckets, rounded up to a power of two.
+    */
+   public MaintenanceScheduler(long tickMillis, int wheelSize) {
+      this(tickMillis, wheelSize, TimeSource.SYSTEM);
+   }
+
+   /**
+    * Create a scheduler and start its thread.
+    *
+    * @param tickMillis the length of a tick, the precision of the times at
+    *                   which tasks run, in msec.
+    * @param wheelSize  the number of buckets, rounded up to a power of two.
+    * @param clock      the clock of the accumulators maintained.
+    */
+   @SuppressWarnings("unchecked")
+   public MaintenanceScheduler(long tickMillis, int wheelSize, TimeSource clock) {
+      if (tickMillis < 1)
+         throw new IllegalArgumentException("tick must be positive: " + tickMillis);
+      if (wheelSize < 1)
+         throw new IllegalArgumentException("wheel size must be positive: " + wheelSize);
+
+      // round up to a power of two so a bucket can be selected with a mask
+      int size = Integer.highestOneBit(wheelSize);
+      if (size < wheelSize)
+         size <<= 1;
+
+      this.tickMillis = tickMillis;
+      this.clock = clock;
+      tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+      wheel = new List[size];
+      for (int i = 0; i < size; i++)
+         wheel[i] = new ArrayList<>();
+      wheelMask = size - 1;
+
+      thread = new Thread(this::run, "accumulator-maintenance");
+      thread.setDaemon(true);
+      thread.start();
+   }
+
+   /**
+    * Schedule a task to run at every multiple of the given period on the
+    * clock, until cancelled or the scheduler is closed.
+    *
+    * @param task         the task.
+    * @param periodMillis the period in msec.
+    * @return the scheduled task, by which it may be cancelled.
+    * @throws IllegalStateException if the scheduler is closed.
+    */
+   public Task schedule(Runnable task, long periodMillis) {
+      if (periodMillis < 1)
+         throw new IllegalArgumentException("period must be positive: " + periodMillis);
+      if (closed)
+         throw new IllegalStateException("scheduler is closed");
+      Task scheduledTask = new Task(task, periodMillis);
+      tasks.incrementAndGet();
+      scheduled.add(scheduledTask);
+      return scheduledTask;
+   }
+
+   /**
+    * Get the number of tasks scheduled and not cancelled.
+    *
+    * @return the task count.
+    */
+   public int getTasks() {
+      return tasks.get();
+   }
+
+   /**
+    * Get the number of times a task has run.
+    *
+    * @return the run count.
+    */
+   public long getRuns() {
+      return runs.sum();
+   }
+
+   /**
+    * Get the number of times a task has thrown, including Errors.
+    *
+    * @return the failure count.
+    */
+   public long getFailures() {
+      return failures.sum();
+   }
+
+   /**
+    * Check whether the scheduler thread is still running.
+    *
+    * @return <tt>true</tt> until the scheduler is closed and its thread has
+    * ended.
+    */
+   public boolean isRunning() {
+      return thread.isAlive();
+   }
+
+   /**
+    * Stop the scheduler thread, waiting for a task in progress to finish.
+    * Tasks still scheduled never run again.
+    */
+   @Override
+   public void close() {
+      closed = true;
+      thread.interrupt();
+      try {
+         thread.join();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   /**
+    * Turn the wheel one bucket per tick until closed.
+    */
+   private void run() {
+      long start = System.nanoTime();
+      long tick = 0;
+      List<Task> due = new ArrayList<>();
+      while (!closed) {
+         long sleepNanos = start + (tick + 1) * tickNanos - System.nanoTime();
+         if (sleepNanos > 0) {
+            try {
+               TimeUnit.NANOSECONDS.sleep(sleepNanos);
+            } catch (InterruptedException e) {
+               continue;
+            }
+         }
+         tick++;
+
+         Task task;
+         while ((task = scheduled.poll()) != null)
+            add(task, tick);
+
+         // take the tasks due out of the bucket before running them, since
+         // a task may be due again in the same bucket
+         List<Task> bucket = wheel[(int) (tick & wheelMask)];
+         for (int i = bucket.size() - 1; i >= 0; i--) {
+            task = bucket.get(i);
+            if (task.cancelled || task.rounds == 0) {
+               bucket.set(i, bucket.get(bucket.size() - 1));
+               bucket.remove(bucket.size() - 1);
+               if (!task.cancelled)
+                  due.add(task);
+            } else {
+               task.rounds--;
+            }
+         }
+         for (Task run : due) {
+            // a clock behind real time has not reached the multiple yet
+            if (clock.currentTimeMillis() < run.dueMillis) {
+               add(run, tick);
+               continue;
+            }
+            try {
+               run.task.run();
+            } catch (Throwable e) {
+               // an Error from one task must not end the thread which
+               // maintains every accumulator
+               failures.increment();
+               failed(run, e);
+            }
+            runs.increment();
+            add(run, tick);
+         }
+         due.clear();
+      }
+   }
+
+   /**
+    * Log the first failure of a task with its cause, and later ones only
+    * at a fine level.
+    */
+   private void failed(Task task, Throwable e) {
+      try {
+         if (!task.failed) {
+            task.failed = true;
+            LOG.log(Level.WARNING, "Maintenance task " + task.task + " failed, and will run again at its next time;"
+                    + " later failures are logged at FINE", e);
+         } else {
+            LOG.log(Level.FINE, "Maintenance task " + task.task + " failed", e);
+         }
+      } catch (Throwable ignored) {
+         // logging may fail for the same reason, such as memory exhaustion
+      }
+   }
+
+   /**
+    * Put a task into the bucket of the first tick after its next multiple
+    * of its period on the clock, or after the time still left until the
+    * multiple it is waiting for.
+    */
+   private void add(Task task, long tick) {
+      if (task.cancelled)
+         return;
+      long now = clock.currentTimeMillis();
+      if (now >= task.dueMillis)
+         task.dueMillis = now - now % task.periodMillis + task.periodMillis;
+      long delayMillis = task.dueMillis - now;
+      long ticks = Math.max(1, (delayMillis + tickMillis - 1) / tickMillis);
+      task.rounds = (ticks - 1) / wheel.length;
+      wheel[(int) ((tick + ticks) & wheelMask)].add(task);
+   }
+
+   /**
+    * A task scheduled with a period.
+    */
+   public final class Task {
+
+      private final Runnable task;
+      private final long periodMillis;
+      private volatile boolean cancelled;
+
+      /*
+       * The number of turns of the wheel left before the task is due, in
+       * its bucket.  Only the scheduler thread touches it.
+       */
+      private long rounds;
+
+      /*
+       * The time on the clock of the multiple of the period the task next
+       * runs at, and whether it has failed and been logged.  Only the
+       * scheduler thread touches them.
+       */
+      private long dueMillis = Long.MIN_VALUE;
+      private boolean failed;
+
+      private Task(Runnable task, long periodMillis) {
+         this.task = task;
+         this.periodMillis = periodMillis;
+      }
+
+      /**
+       * Cancel the task, so that it does not run again once a run in
+       * progress has finished.  Cancelling a task twice has no effect.
+       */
+      public void cancel() {
+         if (cancelled)
+            return;
+         synchronized (this) {
+            if (cancelled)
+               return;
+            cancelled = true;
+         }
+         tasks.decrementAndGet();
+      }
+   }
+}
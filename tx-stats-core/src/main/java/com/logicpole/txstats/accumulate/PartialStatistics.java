@@ -0,0 +1,199 @@
+package com.logicpole.txstats.accumulate;
+
+import com.logicpole.txstats.dto.StatisticsDTO;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Partial statistics
+ * <p>
+ * The count, sum, minimum and maximum of each slice of an accumulator's
+ * window, tagged with its bucket number.  Buckets are numbered from the
+ * epoch, so the partial statistics of accumulators with the same window
+ * specification on different nodes merge slice by slice into the partial
+ * statistics of their combined values, from which statistics over the whole
+ * window are generated as by {@link DoubleAccumulator#statistics()}.
+ * <p>
+ * Partial statistics are serialized in a compact binary form, in network
+ * byte order:
+ * <pre>
+ * int    magic, "TXPS"
+ * int    version, 1
+ * long   slice length in msec
+ * int    slices in the window
+ * int    number of slice records which follow
+ * record bucket (long), count (long), sum, min and max (doubles)
+ * </pre>
+ * Only the slices holding values are written, so the size is at most
+ * 24 + 40 bytes per slice.
+ * <p>
+ * This class is not thread safe.
+ *
+ * @author Max McCormick
+ */
+public final class PartialStatistics {
+
+   private static final int MAGIC = 0x54585053; // "TXPS"
+   private static final int VERSION = 1;
+   private static final int HEADER_BYTES = 24;
+   private static final int RECORD_BYTES = 40;
+
+   private final WindowSpec spec;
+   private final long sliceMillis;
+   private final int numSlices;
+
+   /*
+    * The bucket of each slice, or EMPTY, and its aggregates.  Bucket b is
+    * held in slice b % numSlices, as in a SliceRing.
+    */
+   private final long[] buckets;
+   private final long[] counts;
+   private final double[] sums;
+   private final double[] mins;
+   private final double[] maxs;
+   private int size;
+
+   /**
+    * Create empty partial statistics over the given window.
+    *
+    * @param spec the window length and slice resolution.
+    */
+   public PartialStatistics(WindowSpec spec) {
+      this.spec = spec;
+      sliceMillis = spec.getSliceMillis();
+      numSlices = spec.getSlices();
+      buckets = new long[numSlices];
+      counts = new long[numSlices];
+      sums = new double[numSlices];
+      mins = new double[numSlices];
+      maxs = new double[numSlices];
+      Arrays.fill(buckets, SliceRing.EMPTY);
+   }
+
+   public WindowSpec getSpec() {
+      return spec;
+   }
+
+   /**
+    * Get the number of slices holding values.
+    */
+   public int size() {
+      return size;
+   }
+
+   /**
+    * Add the aggregates of a group of values in the given bucket.  A bucket
+    * older than the one already held in its slice is ignored, and a newer
+    * one replaces it.
+    */
+   void add(long bucket, long count, double sum, double min, double max) {
+      int i = (int) (bucket % numSlices);
+      if (buckets[i] > bucket)
+         return;
+      if (buckets[i] < bucket) {
+         if (buckets[i] == SliceRing.EMPTY)
+            size++;
+         buckets[i] = bucket;
+         counts[i] = count;
+         sums[i] = sum;
+         mins[i] = min;
+         maxs[i] = max;
+         return;
+      }
+      counts[i] += count;
+      sums[i] += sum;
+      mins[i] = Math.min(mins[i], min);
+      maxs[i] = Math.max(maxs[i], max);
+   }
+
+   /**
+    * Merge the slices of other partial statistics into these.
+    *
+    * @param other partial statistics of the same window specification.
+    * @throws IllegalArgumentException if the window specifications differ.
+    */
+   public void merge(PartialStatistics other) {
+      if (!spec.equals(other.spec))
+         throw new IllegalArgumentException("cannot merge " + other.spec + " into " + spec);
+      for (int i = 0; i < numSlices; i++) {
+         if (other.buckets[i] != SliceRing.EMPTY)
+            add(other.buckets[i], other.counts[i], other.sums[i], other.mins[i], other.maxs[i]);
+      }
+   }
+
+   /**
+    * Generate statistics over the window as of the given time, from the
+    * slices whose bucket is within it.
+    *
+    * @param now the unix epochtime (msec) ending the window.
+    * @return the statistics.
+    */
+   public StatisticsDTO statistics(long now) {
+      long nowBucket = now / sliceMillis;
+      long count = 0;
+      double sum = 0;
+      double min = Double.POSITIVE_INFINITY;
+      double max = Double.NEGATIVE_INFINITY;
+      for (int i = 0; i < numSlices; i++) {
+         if (buckets[i] <= nowBucket - numSlices || buckets[i] > nowBucket)
+            continue;
+         count += counts[i];
+         sum += sums[i];
+         min = Math.min(min, mins[i]);
+         max = Math.max(max, maxs[i]);
+      }
+      if (count == 0)
+         return new StatisticsDTO(0, 0, 0, 0, 0);
+      return new StatisticsDTO(sum, sum / count, max, min, count);
+   }
+
+   /**
+    * Serialize these partial statistics.
+    *
+    * @return the binary form.
+    */
+   public byte[] toBytes() {
+      ByteBuffer out = ByteBuffer.allocate(HEADER_BYTES + size * RECORD_BYTES);
+      out.putInt(MAGIC).putInt(VERSION).putLong(sliceMillis).putInt(numSlices).putInt(size);
+      for (int i = 0; i < numSlices; i++) {
+         if (buckets[i] == SliceRing.EMPTY)
+            continue;
+         out.putLong(buckets[i]).putLong(counts[i]).putDouble(sums[i]).putDouble(mins[i]).putDouble(maxs[i]);
+      }
+      return out.array();
+   }
+
+   /**
+    * Deserialize partial statistics.
+    *
+    * @param bytes the binary form.
+    * @return the partial statistics.
+    * @throws IllegalArgumentException if the bytes are not partial
+    *                                  statistics of a supported version.
+    */
+   public static PartialStatistics fromBytes(byte[] bytes) {
+      ByteBuffer in = ByteBuffer.wrap(bytes);
+      try {
+         if (in.getInt() != MAGIC || in.getInt() != VERSION)
+            throw new IllegalArgumentException("not partial statistics of version " + VERSION);
+         long sliceMillis = in.getLong();
+         int numSlices = in.getInt();
+         int records = in.getInt();
+         if (records < 0 || records > numSlices || in.remaining() != records * RECORD_BYTES)
+            throw new IllegalArgumentException("expected " + records + " slice records in "
+                    + in.remaining() + " bytes");
+         PartialStatistics partial = new PartialStatistics(new WindowSpec(sliceMillis * numSlices, sliceMillis));
+         for (int r = 0; r < records; r++) {
+            long bucket = in.getLong();
+            if (bucket < 0)
+               throw new IllegalArgumentException("negative bucket " + bucket);
+            partial.add(bucket, in.getLong(), in.getDouble(), in.getDouble(), in.getDouble());
+         }
+         return partial;
+      } catch (BufferUnderflowException e) {
+         throw new IllegalArgumentException("truncated partial statistics", e);
+      }
+   }
+}
@@ -0,0 +1,150 @@
+package com.logicpole.txstats.accumulate;
+
+/**
+ * Quantile sketch specification
+ * <p>
+ * Describes a logarithmic histogram used to estimate quantiles of the
+ * accumulated values, in the manner of DDSketch.  Bin i covers the values in
+ * (gamma^(i-1), gamma^i] where gamma = (1 + a) / (1 - a) for a relative
+ * accuracy a, and is represented by the value 2 gamma^i / (gamma + 1).  Any
+ * quantile of values between the minimum and maximum trackable values is then
+ * estimated within a relative error of a.  Values outside that range are
+ * counted in the first or last bin, and estimates are always clamped to the
+ * exact minimum and maximum of the window.
+ * <p>
+ * The number of bins, and therefore the memory of a sketch, is fixed by the
+ * accuracy and the range, at about ln(max / min) / 2a.  For example 1%
+ * accuracy from 0.01 to 1,000,000,000 takes 1,268 bins, ie. about 5 KB per
+ * slice.  Histograms with equal specifications merge by adding bin counts.
+ *
+ * @author Max McCormick
+ */
+public final class SketchSpec {
+
+   /**
+    * The default sketch, with 1% accuracy from 0.01 to 1,000,000,000.
+    */
+   public static final SketchSpec DEFAULT = new SketchSpec(0.01, 0.01, 1e9);
+
+   private final double relativeAccuracy;
+   private final double minValue;
+   private final double maxValue;
+   private final double gamma;
+   private final double logGamma;
+   private final int offset;
+   private final int bins;
+
+   /**
+    * Create a sketch specification.
+    *
+    * @param relativeAccuracy the relative error of quantile estimates, between
+    *                         0 and 1 exclusive.
+    * @param minValue         the smallest value tracked accurately, positive.
+    * @param maxValue         the largest value tracked accurately.
+    * @throws IllegalArgumentException if any argument is out of range.
+    */
+   public SketchSpec(double relativeAccuracy, double minValue, double maxValue) {
+      if (!(relativeAccuracy > 0 && relativeAccuracy < 1))
+         throw new IllegalArgumentException("relative accuracy must be between 0 and 1: " + relativeAccuracy);
+      if (!(minValue > 0 && maxValue > minValue) || Double.isInfinite(maxValue))
+         throw new IllegalArgumentException("invalid value range " + minValue + " to " + maxValue);
+
+      this.relativeAccuracy = relativeAccuracy;
+      this.minValue = minValue;
+      this.maxValue = maxValue;
+      gamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+      logGamma = Math.log(gamma);
+      offset = (int) Math.ceil(Math.log(minValue) / logGamma);
+      bins = (int) Math.ceil(Math.log(maxValue) / logGamma) - offset + 1;
+   }
+
+   public double getRelativeAccuracy() {
+      return relativeAccuracy;
+   }
+
+   public double getMinValue() {
+      return minValue;
+   }
+
+   public double getMaxValue() {
+      return maxValue;
+   }
+
+   /**
+    * Get the number of bins in a histogram of this specification.
+    *
+    * @return the bin count.
+    */
+   public int getBins() {
+      return bins;
+   }
+
+   /**
+    * Get the bin counting the given value.
+    *
+    * @param value the value.
+    * @return the bin, from 0 to getBins() - 1.
+    */
+   public int binOf(double value) {
+      // also sends zero, negative and NaN values to the first bin
+      if (!(value > minValue))
+         return 0;
+      if (value >= maxValue)
+         return bins - 1;
+      int bin = (int) Math.ceil(Math.log(value) / logGamma) - offset;
+      return Math.min(Math.max(bin, 0), bins - 1);
+   }
+
+   /**
+    * Get the value representing the given bin.
+    *
+    * @param bin the bin.
+    * @return the value within the relative accuracy of every value in the bin.
+    */
+   public double valueOf(int bin) {
+      return 2 * Math.exp((bin + offset) * logGamma) / (gamma + 1);
+   }
+
+   /**
+    * Estimate a quantile from a histogram of this specification.
+    *
+    * @param counts the count of each bin.
+    * @param total  the total of the counts, positive.
+    * @param min    the exact minimum of the values counted.
+    * @param max    the exact maximum of the values counted.
+    * @param q      the quantile, from 0 to 1.
+    * @return the estimate of the value at rank q * (total - 1).
+    */
+   public double quantile(long[] counts, long total, double min, double max, double q) {
+      long rank = (long) (q * (total - 1));
+      long seen = 0;
+      for (int bin = 0; bin < bins; bin++) {
+         seen += counts[bin];
+         if (seen > rank)
+            return Math.min(Math.max(valueOf(bin), min), max);
+      }
+      return max;
+   }
+
+   @Override
+   public boolean equals(Object o) {
+      if (this == o)
+         return true;
+      if (!(o instanceof SketchSpec))
+         return false;
+      SketchSpec that = (SketchSpec) o;
+      return relativeAccuracy == that.relativeAccuracy
+              && minValue == that.minValue && maxValue == that.maxValue;
+   }
+
+   @Override
+   public int hashCode() {
+      return 31 * (31 * Double.hashCode(relativeAccuracy) + Double.hashCode(minValue))
+              + Double.hashCode(maxValue);
+   }
+
+   @Override
+   public String toString() {
+      return relativeAccuracy + " from " + minValue + " to " + maxValue;
+   }
+}
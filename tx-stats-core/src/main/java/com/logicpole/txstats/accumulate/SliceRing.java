@@ -0,0 +1,608 @@
+package com.logicpole.txstats.accumulate;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Slice ring
+ * <p>
+ * A fixed-size ring of slices covering one window at one resolution.  Time is
+ * divided into "buckets" of the slice length numbered from the epoch, and
+ * bucket b is held in slice b % numSlices, tagged with its bucket number.
+ * <p>
+ * Slices whose bucket has aged out of the window are removed by
+ * {@link #advance(long)}, which remembers the newest aged bucket so that
+ * repeated calls cost nothing until time moves on by a full slice.
+ * <p>
+ * The ring also keeps aggregates over all of its slices, so that statistics
+ * over the whole window need not visit each slice.  The count and sum are
+ * running totals, adjusted as slices are added to and cleared.  The minimum
+ * and maximum are kept in tournament trees whose leaves are the slices and
+ * whose root is the aggregate over the ring.  Adding a value only walks up
+ * the tree while it improves on the node above, which is rarely more than
+ * the leaf once a slice has a few values, and clearing a slice walks up at
+ * most log2(numSlices) nodes.
+ * <p>
+ * If the ring has a {@link SketchSpec}, each slice also holds a histogram of
+ * its values for quantile estimates, and the ring keeps a running total of
+ * every slice's histogram in the same way as the count and sum.
+ * <p>
+ * If the ring has a {@link DistinctSpec}, each slice also holds HyperLogLog
+ * registers of its keys for distinct counts, and the ring keeps the merge of
+ * every slice's registers.  Registers cannot be subtracted, so the merge is
+ * only raised as keys are added, and is rebuilt from the slices on the next
+ * read after a slice is cleared, ie. at most once per slice of elapsed time.
+ * <p>
+ * If the ring has a state buffer, normally a region of a {@link StateFile},
+ * every change to a slice is also written through to the slice's record in
+ * the buffer, and the ring may be restored from the records on startup.  A
+ * record holds the bucket, count, sum, minimum and maximum, a check hash of
+ * those, and then the slice's histogram and registers.
+ * <p>
+ * This class is not thread safe; callers hold the lock of the owning stripe,
+ * or read it optimistically and validate the lock afterwards.
+ *
+ * @author Max McCormick
+ */
+final class SliceRing {
+
+   // bucket number of a slice which holds no data
+   static final long EMPTY = -1;
+
+   // number of array elements making up a cache line (64 bytes) of padding
+   private static final int PAD_LONGS = 8;
+
+   // offsets within a state record
+   private static final int BUCKET = 0;
+   private static final int COUNT = 8;
+   private static final int SUM = 16;
+   private static final int MIN = 24;
+   private static final int MAX = 32;
+   private static final int CHECK = 40;
+   private static final int SKETCH = 48;
+
+   final long sliceMillis;
+   final int numSlices;
+
+   /*
+    * The bucket number of the data values in a given slice, or EMPTY.
+    */
+   final long[] sliceBucket;
+
+   /*
+    * The count of data values in a given slice.
+    */
+   final long[] sliceCount;
+
+   /*
+    * The sum of data values in a given slice.
+    */
+   final double[] sliceSum;
+
+   /*
+    * Tournament trees of the maximum and minimum of the data values.  Node 1
+    * is the root, the children of node k are 2k and 2k + 1, and the slices
+    * are the leaves, with slice i at node leaves + i.  Leaves of empty slices
+    * hold -Infinity in the maximum tree and +Infinity in the minimum tree.
+    */
+   final double[] maxTree;
+   final double[] minTree;
+   final int leaves;
+
+   /*
+    * The histogram of the data values in each slice, if sketches are kept.
+    * Slice i has the bins from i * bins to (i + 1) * bins - 1.  The totals
+    * hold the sum of all slice histograms.
+    */
+   final SketchSpec sketch;
+   final int bins;
+   final int[] sliceSketch;
+   final long[] totalSketch;
+
+   /*
+    * The HyperLogLog registers of the keys in each slice, if distinct counts
+    * are kept.  Slice i has the registers from i * registers to (i + 1) *
+    * registers - 1.  The totals hold the merge of all slice registers, with
+    * the sum of 2^-register and the count of zero registers over the merge,
+    * unless totalRegistersStale is set.
+    */
+   final DistinctSpec distinct;
+   final int registers;
+   final byte[] sliceRegisters;
+   final byte[] totalRegisters;
+   private double totalInverseSum;
+   private int totalZeros;
+   private boolean totalRegistersStale;
+
+   /*
+    * Running totals of the count and sum of the data values in all slices.
+    * The sum is recomputed from the slices once per revolution of the ring
+    * so that rounding errors from subtracting cleared slices cannot build up.
+    */
+   long totalCount;
+   double totalSum;
+   private long resumBucket = EMPTY;
+
+   /*
+    * The newest bucket known to have aged out of the window.  No slice holds
+    * this bucket or an older one.
+    */
+   long agedBucket = EMPTY;
+
+   /*
+    * Metrics:  the number of slices which have aged out of the window.
+    */
+   long agedSlices;
+
+   /*
+    * The buffer holding a record of each slice, or null if the slices are
+    * not saved, and the size of a record.
+    */
+   private final ByteBuffer state;
+   private final int recordBytes;
+
+   SliceRing(WindowSpec spec, SketchSpec sketch, DistinctSpec distinct) {
+      this(spec, sketch, distinct, null);
+   }
+
+   SliceRing(WindowSpec spec, SketchSpec sketch, DistinctSpec distinct, ByteBuffer state) {
+      sliceMillis = spec.getSliceMillis();
+      numSlices = spec.getSlices();
+      this.sketch = sketch;
+      bins = sketch == null ? 0 : sketch.getBins();
+      this.distinct = distinct;
+      registers = distinct == null ? 0 : distinct.getRegisters();
+
+      // the number of leaves is rounded up to a power of two so that the
+      // tree is complete
+      int size = Integer.highestOneBit(numSlices);
+      if (size < numSlices)
+         size <<= 1;
+      leaves = size;
+
+      // each array is followed by a cache line of padding so that the
+      // arrays of neighbouring rings never share a cache line
+      sliceBucket = new long[numSlices + PAD_LONGS];
+      sliceCount = new long[numSlices + PAD_LONGS];
+      sliceSum = new double[numSlices + PAD_LONGS];
+      maxTree = new double[2 * size + PAD_LONGS];
+      minTree = new double[2 * size + PAD_LONGS];
+      sliceSketch = sketch == null ? null : new int[numSlices * bins + 2 * PAD_LONGS];
+      totalSketch = sketch == null ? null : new long[bins + PAD_LONGS];
+      sliceRegisters = distinct == null ? null : new byte[numSlices * registers + 8 * PAD_LONGS];
+      totalRegisters = distinct == null ? null : new byte[registers + 8 * PAD_LONGS];
+      totalInverseSum = registers;
+      totalZeros = registers;
+
+      // fill bucket array with EMPTY since 0 is a valid bucket, and the
+      // trees with the values of empty slices
+      Arrays.fill(sliceBucket, EMPTY);
+      Arrays.fill(maxTree, Double.NEGATIVE_INFINITY);
+      Arrays.fill(minTree, Double.POSITIVE_INFINITY);
+
+      this.state = state;
+      recordBytes = recordBytes(sketch, distinct);
+   }
+
+   /**
+    * Get the size of the state record of a slice with the given sketch and
+    * distinct specifications, a multiple of 8 bytes.
+    */
+   static int recordBytes(SketchSpec sketch, DistinctSpec distinct) {
+      int bytes = SKETCH + (sketch == null ? 0 : 4 * sketch.getBins())
+              + (distinct == null ? 0 : distinct.getRegisters());
+      return (bytes + 7) & ~7;
+   }
+
+   /**
+    * Get the maximum of the data values in the given slice.
+    */
+   double sliceMax(int i) {
+      return maxTree[leaves + i];
+   }
+
+   /**
+    * Get the minimum of the data values in the given slice.
+    */
+   double sliceMin(int i) {
+      return minTree[leaves + i];
+   }
+
+   /**
+    * Get the maximum of the data values in all slices, or -Infinity if the
+    * ring is empty.
+    */
+   double max() {
+      return maxTree[1];
+   }
+
+   /**
+    * Get the minimum of the data values in all slices, or +Infinity if the
+    * ring is empty.
+    */
+   double min() {
+      return minTree[1];
+   }
+
+   /**
+    * Get the slice index of the given bucket.
+    */
+   int slot(long bucket) {
+      return (int) (bucket % numSlices);
+   }
+
+   /**
+    * Add a group of data values, given by their count, sum, minimum and
+    * maximum, to the slice for the given bucket, replacing whatever the
+    * slice held if that was an older bucket.  Returns the slice, so that the
+    * values can be added to its histogram, or -1 without adding if the bucket
+    * has already aged out of the window or the slice holds a newer bucket.
+    * This can only happen if the calling thread stalled after checking the
+    * window.
+    */
+   int addToSlice(long bucket, long count, double sum, double min, double max) {
+      int i = slot(bucket);
+      if (bucket <= agedBucket || sliceBucket[i] > bucket)
+         return -1;
+      if (sliceBucket[i] != bucket) {
+         // first values in this bucket, so start the slice over.  the slice
+         // is normally already empty, as older buckets are cleared by advance
+         if (sliceBucket[i] != EMPTY)
+            clearSlice(i);
+         sliceBucket[i] = bucket;
+      }
+      // increment count of data values in slice
+      sliceCount[i] += count;
+      totalCount += count;
+      // add values to the slice sum
+      sliceSum[i] += sum;
+      totalSum += sum;
+      // set slice minimum if less than current
+      if (min < minTree[leaves + i])
+         lowerMin(i, min);
+      // set slice maximum if greater than current
+      if (max > maxTree[leaves + i])
+         raiseMax(i, max);
+      if (state != null)
+         saveSlice(i);
+      return i;
+   }
+
+   /**
+    * Add a count of data values in the given bin to the histogram of the
+    * given slice.  The slice must have been returned by addToSlice.
+    */
+   void addToSketch(int i, int bin, long count) {
+      int j = i * bins + bin;
+      sliceSketch[j] += count;
+      totalSketch[bin] += count;
+      if (state != null)
+         state.putInt(i * recordBytes + SKETCH + 4 * bin, sliceSketch[j]);
+   }
+
+   /**
+    * Raise the given register of the given slice to the given rank, if it is
+    * lower.  The slice must have been returned by addToSlice.
+    */
+   void addToDistinct(int i, int register, byte rank) {
+      int j = i * registers + register;
+      if (rank <= sliceRegisters[j])
+         return;
+      sliceRegisters[j] = rank;
+      if (state != null)
+         state.put(i * recordBytes + SKETCH + 4 * bins + register, rank);
+      byte total = totalRegisters[register];
+      if (rank > total && !totalRegistersStale) {
+         totalInverseSum += DistinctSpec.inverse(rank) - DistinctSpec.inverse(total);
+         if (total == 0)
+            totalZeros--;
+         totalRegisters[register] = rank;
+      }
+   }
+
+   /**
+    * Estimate the number of distinct keys in all slices.  The merged
+    * registers must have been rebuilt by refreshDistinct since the last
+    * slice was cleared.  This function does not change the ring, so that it
+    * can be used by optimistic reads.
+    */
+   long distinct() {
+      return distinct.estimate(totalInverseSum, totalZeros);
+   }
+
+   /**
+    * Merge the registers of all slices into the given array.  As for
+    * distinct, the merged registers must be current.
+    */
+   void mergeDistinctInto(byte[] merged) {
+      for (int r = 0; r < registers; r++) {
+         if (totalRegisters[r] > merged[r])
+            merged[r] = totalRegisters[r];
+      }
+   }
+
+   /**
+    * Merge the registers of the given slice into the given array.
+    */
+   void mergeDistinctInto(byte[] merged, int i) {
+      for (int r = 0, j = i * registers; r < registers; r++, j++) {
+         if (sliceRegisters[j] > merged[r])
+            merged[r] = sliceRegisters[j];
+      }
+   }
+
+   /**
+    * Rebuild the merge of the slice registers if a slice has been cleared
+    * since it was last built.  Callers must hold the write lock of the ring.
+    */
+   void refreshDistinct() {
+      if (distinct == null || !totalRegistersStale)
+         return;
+      Arrays.fill(totalRegisters, 0, registers, (byte) 0);
+      for (int i = 0; i < numSlices; i++) {
+         if (sliceBucket[i] != EMPTY)
+            mergeDistinctInto(totalRegisters, i);
+      }
+      double inverseSum = 0;
+      int zeros = 0;
+      for (int r = 0; r < registers; r++) {
+         inverseSum += DistinctSpec.inverse(totalRegisters[r]);
+         if (totalRegisters[r] == 0)
+            zeros++;
+      }
+      totalInverseSum = inverseSum;
+      totalZeros = zeros;
+      totalRegistersStale = false;
+   }
+
+   /**
+    * Add every data value of a slice of another ring, including its
+    * histogram and registers, to the slice for the given bucket.  The rings
+    * must have equal sketch and distinct specifications.  Returns false,
+    * without adding, as for addToSlice.
+    */
+   boolean addSlice(long bucket, SliceRing from, int slot) {
+      int i = addToSlice(bucket, from.sliceCount[slot], from.sliceSum[slot],
+              from.sliceMin(slot), from.sliceMax(slot));
+      if (i < 0)
+         return false;
+      if (sketch != null) {
+         for (int bin = 0, j = slot * bins; bin < bins; bin++, j++) {
+            if (from.sliceSketch[j] != 0)
+               addToSketch(i, bin, from.sliceSketch[j]);
+         }
+      }
+      if (distinct != null) {
+         for (int r = 0, j = slot * registers; r < registers; r++, j++) {
+            if (from.sliceRegisters[j] != 0)
+               addToDistinct(i, r, from.sliceRegisters[j]);
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Clear data in the given slice
+    */
+   void clearSlice(int i) {
+      totalCount -= sliceCount[i];
+      totalSum = totalCount == 0 ? 0 : totalSum - sliceSum[i];
+      sliceBucket[i] = EMPTY;
+      sliceCount[i] = 0;
+      sliceSum[i] = 0;
+      if (sketch != null) {
+         for (int bin = 0, j = i * bins; bin < bins; bin++, j++) {
+            totalSketch[bin] -= sliceSketch[j];
+            sliceSketch[j] = 0;
+         }
+      }
+      if (distinct != null) {
+         Arrays.fill(sliceRegisters, i * registers, (i + 1) * registers, (byte) 0);
+         totalRegistersStale = true;
+      }
+
+      // reset the leaves, then recompute the nodes above them until one is
+      // unaffected, since the nodes above that one are then also unaffected
+      int node = leaves + i;
+      maxTree[node] = Double.NEGATIVE_INFINITY;
+      minTree[node] = Double.POSITIVE_INFINITY;
+      for (node >>= 1; node >= 1; node >>= 1) {
+         double max = Math.max(maxTree[2 * node], maxTree[2 * node + 1]);
+         double min = Math.min(minTree[2 * node], minTree[2 * node + 1]);
+         if (max == maxTree[node] && min == minTree[node])
+            break;
+         maxTree[node] = max;
+         minTree[node] = min;
+      }
+
+      if (state != null)
+         clearRecord(i);
+   }
+
+   /**
+    * Write the bucket, count, sum, minimum and maximum of the given slice,
+    * with their check hash, to its record.  The check is written last, so a
+    * record torn by a crash part way through fails it.
+    */
+   private void saveSlice(int i) {
+      int base = i * recordBytes;
+      long bucket = sliceBucket[i];
+      long count = sliceCount[i];
+      double sum = sliceSum[i];
+      double min = sliceMin(i);
+      double max = sliceMax(i);
+      state.putLong(base + BUCKET, bucket)
+              .putLong(base + COUNT, count)
+              .putDouble(base + SUM, sum)
+              .putDouble(base + MIN, min)
+              .putDouble(base + MAX, max)
+              .putLong(base + CHECK, check(bucket, count, sum, min, max));
+   }
+
+   /**
+    * Mark the record of the given slice empty and zero its histogram and
+    * registers.
+    */
+   private void clearRecord(int i) {
+      int base = i * recordBytes;
+      state.putLong(base + BUCKET, EMPTY);
+      state.putLong(base + CHECK, 0);
+      for (int j = base + COUNT; j < base + recordBytes; j += 8) {
+         if (j != base + CHECK)
+            state.putLong(j, 0);
+      }
+   }
+
+   private static long check(long bucket, long count, double sum, double min, double max) {
+      long h = bucket * 31 + count;
+      h = h * 31 + Double.doubleToRawLongBits(sum);
+      h = h * 31 + Double.doubleToRawLongBits(min);
+      h = h * 31 + Double.doubleToRawLongBits(max);
+      return KeyedAccumulator.hash(h);
+   }
+
+   /**
+    * Restore the slices of an empty ring from their records.  A record is
+    * discarded, and cleared, if it fails its check hash, is for a bucket
+    * which does not belong in its slice or is later than the given current
+    * bucket, or has a histogram which does not add up to its count.
+    * Records of buckets which have since aged out of the window are
+    * restored, and left for the next advance to age out as usual.
+    *
+    * @return the number of slices restored.
+    */
+   int restore(long nowBucket) {
+      int restored = 0;
+      for (int i = 0; i < numSlices; i++) {
+         int base = i * recordBytes;
+         long bucket = state.getLong(base + BUCKET);
+         if (bucket == EMPTY)
+            continue;
+         if (!isValidRecord(i, nowBucket)) {
+            clearRecord(i);
+            continue;
+         }
+         addToSlice(bucket, state.getLong(base + COUNT), state.getDouble(base + SUM),
+                 state.getDouble(base + MIN), state.getDouble(base + MAX));
+         for (int bin = 0; bin < bins; bin++) {
+            int count = state.getInt(base + SKETCH + 4 * bin);
+            if (count != 0)
+               addToSketch(i, bin, count);
+         }
+         for (int r = 0; r < registers; r++) {
+            byte rank = state.get(base + SKETCH + 4 * bins + r);
+            if (rank != 0)
+               addToDistinct(i, r, rank);
+         }
+         restored++;
+      }
+      return restored;
+   }
+
+   private boolean isValidRecord(int i, long nowBucket) {
+      int base = i * recordBytes;
+      long bucket = state.getLong(base + BUCKET);
+      long count = state.getLong(base + COUNT);
+      double sum = state.getDouble(base + SUM);
+      double min = state.getDouble(base + MIN);
+      double max = state.getDouble(base + MAX);
+      if (state.getLong(base + CHECK) != check(bucket, count, sum, min, max)
+              || bucket < 0 || bucket > nowBucket || slot(bucket) != i || count <= 0 || !(min <= max))
+         return false;
+      if (sketch != null) {
+         long total = 0;
+         for (int bin = 0; bin < bins; bin++) {
+            int binCount = state.getInt(base + SKETCH + 4 * bin);
+            if (binCount < 0)
+               return false;
+            total += binCount;
+         }
+         if (total != count)
+            return false;
+      }
+      for (int r = 0; r < registers; r++) {
+         byte rank = state.get(base + SKETCH + 4 * bins + r);
+         if (rank < 0 || rank > 65 - distinct.getPrecision())
+            return false;
+      }
+      return true;
+   }
+
+   /**
+    * Set the maximum of the given slice to a higher value, and every node
+    * above it that the value exceeds.
+    */
+   private void raiseMax(int i, double max) {
+      for (int node = leaves + i; node >= 1 && maxTree[node] < max; node >>= 1)
+         maxTree[node] = max;
+   }
+
+   /**
+    * Set the minimum of the given slice to a lower value, and every node
+    * above it that the value is below.
+    */
+   private void lowerMin(int i, double min) {
+      for (int node = leaves + i; node >= 1 && minTree[node] > min; node >>= 1)
+         minTree[node] = min;
+   }
+
+   /**
+    * Age out every slice whose bucket has left the window as of the given
+    * time, passing each one to the given consumer before it is cleared.
+    * Only the slices of buckets which aged since the last call are visited,
+    * so this costs amortized O(1) per bucket of elapsed time, and at most
+    * one pass over the ring.
+    */
+   void advance(long now, AgedSliceConsumer consumer) {
+      long target = now / sliceMillis - numSlices;
+      if (target <= agedBucket)
+         return;
+
+      // visiting more than numSlices consecutive buckets would only revisit
+      // the same slices
+      long from = Math.max(agedBucket + 1, target - numSlices + 1);
+      for (long b = from; b <= target; b++) {
+         int i = slot(b);
+         long held = sliceBucket[i];
+         if (held != EMPTY && held <= target) {
+            if (consumer != null)
+               consumer.aged(held, this, i);
+            clearSlice(i);
+            agedSlices++;
+         }
+      }
+      agedBucket = target;
+
+      // recompute the running sum once per revolution of the ring
+      if (target - resumBucket >= numSlices) {
+         double sum = 0;
+         for (int i = 0; i < numSlices; i++)
+            sum += sliceSum[i];
+         totalSum = sum;
+         resumBucket = target;
+      }
+   }
+
+   /**
+    * Check whether the ring can be read as of the given time without
+    * changing it, ie. advance would age out no slice and the merged distinct
+    * registers, if any, need no rebuild.
+    */
+   boolean isCurrent(long now) {
+      return now / sliceMillis - numSlices <= agedBucket && !totalRegistersStale;
+   }
+
+   /**
+    * Age out slices without passing them on.
+    */
+   void advance(long now) {
+      advance(now, null);
+   }
+
+   /**
+    * Receiver of slices as they age out of a ring.
+    */
+   interface AgedSliceConsumer {
+      void aged(long bucket, SliceRing ring, int slot);
+   }
+}
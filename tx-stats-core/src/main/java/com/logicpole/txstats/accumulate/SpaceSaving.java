@@ -0,0 +1,175 @@
+package com.logicpole.txstats.accumulate;
+
+import java.util.Arrays;
+
+/**
+ * Space-Saving summary
+ * <p>
+ * Tracks the heaviest keys of a stream of weighted keys in a fixed number of
+ * counters, after Metwally, Agrawal and El Abbadi.  A key already counted has
+ * its weight added to its counter.  Otherwise it takes a free counter, or
+ * failing that replaces the key of the lightest counter and adds its weight
+ * on top, recording the lightest weight as the error of the new key.
+ * <p>
+ * Every counted key's weight is therefore an overestimate of its true weight
+ * by at most its error, and a key which is not counted has a true weight of
+ * at most {@link #minWeight()}, which is itself at most the total weight
+ * divided by the capacity.
+ * <p>
+ * The counters are kept in a min-heap by weight, and found by key through a
+ * small open-addressing index, so an update costs O(log capacity) and
+ * nothing is allocated after construction.
+ * <p>
+ * This class is not thread safe; callers hold the lock of the owner.
+ *
+ * @author Max McCormick
+ */
+final class SpaceSaving {
+
+   final int capacity;
+
+   /*
+    * The key, weight and error of each counter from 0 to size - 1.
+    */
+   final long[] keys;
+   final double[] weights;
+   final double[] errors;
+   int size;
+
+   /*
+    * Min-heap of counters by weight, with the lightest at heap[0], and the
+    * position of each counter in the heap.
+    */
+   private final int[] heap;
+   private final int[] heapPos;
+
+   /*
+    * Open-addressing index from key hash to counter + 1, or 0 if free.  The
+    * index is at least twice the capacity so probes stay short.
+    */
+   private final int[] index;
+   private final int indexMask;
+
+   SpaceSaving(int capacity) {
+      if (capacity < 1)
+         throw new IllegalArgumentException("capacity must be positive: " + capacity);
+      this.capacity = capacity;
+      keys = new long[capacity];
+      weights = new double[capacity];
+      errors = new double[capacity];
+      heap = new int[capacity];
+      heapPos = new int[capacity];
+      index = new int[Integer.highestOneBit(capacity) << 2];
+      indexMask = index.length - 1;
+   }
+
+   /**
+    * Get the weight above which every key is counted.
+    */
+   double minWeight() {
+      return size < capacity ? 0 : weights[heap[0]];
+   }
+
+   /**
+    * Add a positive weight to the given key.
+    */
+   void add(long key, double weight) {
+      int slot = find(key);
+      int c = index[slot] - 1;
+      if (c >= 0) {
+         weights[c] += weight;
+         siftDown(heapPos[c]);
+         return;
+      }
+
+      if (size < capacity) {
+         c = size++;
+         keys[c] = key;
+         weights[c] = weight;
+         errors[c] = 0;
+         index[slot] = c + 1;
+         heap[c] = c;
+         heapPos[c] = c;
+         siftUp(c);
+         return;
+      }
+
+      // replace the lightest key, which is at least as heavy as the new key
+      // could have been so far
+      c = heap[0];
+      double min = weights[c];
+      unindex(find(keys[c]));
+      keys[c] = key;
+      weights[c] = min + weight;
+      errors[c] = min;
+      index[find(key)] = c + 1;
+      siftDown(0);
+   }
+
+   /**
+    * Remove every key.
+    */
+   void clear() {
+      size = 0;
+      Arrays.fill(index, 0);
+   }
+
+   /**
+    * Find the index slot holding the given key, or the free slot where it
+    * would be inserted.
+    */
+   private int find(long key) {
+      for (int i = (int) KeyedAccumulator.hash(key) & indexMask; ; i = (i + 1) & indexMask) {
+         if (index[i] == 0 || keys[index[i] - 1] == key)
+            return i;
+      }
+   }
+
+   /**
+    * Free the given index slot, shifting back any later slots of the same
+    * probe sequence which could no longer be found past a free slot.
+    */
+   private void unindex(int slot) {
+      int free = slot;
+      for (int i = (free + 1) & indexMask; index[i] != 0; i = (i + 1) & indexMask) {
+         int home = (int) KeyedAccumulator.hash(keys[index[i] - 1]) & indexMask;
+         // leave the slot if its home lies cyclically after the free slot
+         boolean after = free <= i ? free < home && home <= i : free < home || home <= i;
+         if (!after) {
+            index[free] = index[i];
+            free = i;
+         }
+      }
+      index[free] = 0;
+   }
+
+   private void siftUp(int pos) {
+      int c = heap[pos];
+      while (pos > 0) {
+         int parent = (pos - 1) >> 1;
+         if (weights[heap[parent]] <= weights[c])
+            break;
+         place(pos, heap[parent]);
+         pos = parent;
+      }
+      place(pos, c);
+   }
+
+   private void siftDown(int pos) {
+      int c = heap[pos];
+      for (int child = 2 * pos + 1; child < size; child = 2 * pos + 1) {
+         if (child + 1 < size && weights[heap[child + 1]] < weights[heap[child]])
+            child++;
+         if (weights[c] <= weights[heap[child]])
+            break;
+         place(pos, heap[child]);
+         pos = child;
+      }
+      place(pos, c);
+   }
+
+   private void place(int pos, int c) {
+      heap[pos] = c;
+      heapPos[c] = pos;
+   }
+}
@@ -0,0 +1,113 @@
+package com.logicpole.txstats.accumulate;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Memory-mapped state file
+ * <p>
+ * Holds the slices of an accumulator in a file mapped into memory, so that
+ * they outlive the process.  The file is a header followed by one region
+ * per slice ring, and each ring writes its slices through to its region as
+ * it updates them.  Writes to the mapping are plain memory stores, which the
+ * operating system writes back to the file in its own time, so they survive
+ * the process crashing but not the machine, unless {@link #force()} is
+ * called.
+ * <p>
+ * The header records a fingerprint of the layout, being the window, sketch
+ * and distinct specifications and the stripe count.  A file with a
+ * different layout, or none, is zeroed on opening, and one with the same
+ * layout is left for the rings to restore their slices from.
+ * <p>
+ * The mapping is released when the buffer is garbage collected, since Java
+ * 8 has no means of unmapping it explicitly.
+ *
+ * @author Max McCormick
+ */
+final class StateFile {
+
+   static final int HEADER_BYTES = 64;
+
+   private static final long MAGIC = 0x5458535441545331L; // "TXSTATS1"
+   private static final int VERSION = 1;
+
+   private final MappedByteBuffer mapping;
+   private final boolean restorable;
+   private int offset = HEADER_BYTES;
+
+   /**
+    * Open or create the state file, mapping enough of it for the given
+    * regions.
+    *
+    * @param path        the file.
+    * @param layout      a description of everything determining the layout.
+    * @param regionBytes the size of each region, in order.
+    * @throws IOException if the file could not be opened or mapped.
+    */
+   StateFile(Path path, String layout, long[] regionBytes) throws IOException {
+      long size = HEADER_BYTES;
+      for (long bytes : regionBytes)
+         size += bytes;
+      if (size > Integer.MAX_VALUE)
+         throw new IllegalArgumentException("state of " + size + " bytes exceeds the 2 GB mapping limit");
+      long fingerprint = fingerprint(layout);
+
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+              StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+         boolean sized = channel.size() == size;
+         if (!sized)
+            channel.truncate(Math.min(channel.size(), size));
+         mapping = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+         mapping.order(ByteOrder.nativeOrder());
+         restorable = sized && mapping.getLong(0) == MAGIC && mapping.getInt(8) == VERSION
+                 && mapping.getLong(16) == fingerprint && mapping.getLong(24) == size;
+      }
+
+      if (!restorable) {
+         for (int i = 0; i + 8 <= size; i += 8)
+            mapping.putLong(i, 0);
+         mapping.putLong(0, MAGIC).putInt(8, VERSION).putLong(16, fingerprint).putLong(24, size);
+      }
+   }
+
+   /**
+    * Check whether the file held slices of the same layout when opened.
+    */
+   boolean isRestorable() {
+      return restorable;
+   }
+
+   /**
+    * Get the next region, of the given size, as a buffer of native byte
+    * order indexed from the start of the region.
+    */
+   ByteBuffer nextRegion(long bytes) {
+      // through Buffer and ByteBuffer, as the covariant overrides of later
+      // JDKs do not exist on Java 8
+      ByteBuffer region = ((ByteBuffer) mapping).duplicate();
+      ((Buffer) region).position(offset);
+      ((Buffer) region).limit(offset + (int) bytes);
+      offset += (int) bytes;
+      return region.slice().order(ByteOrder.nativeOrder());
+   }
+
+   /**
+    * Write every change to the mapping back to the file.
+    */
+   void force() {
+      mapping.force();
+   }
+
+   private static long fingerprint(String layout) {
+      long h = VERSION;
+      for (int i = 0; i < layout.length(); i++)
+         h = KeyedAccumulator.hash(h ^ layout.charAt(i));
+      return h;
+   }
+}
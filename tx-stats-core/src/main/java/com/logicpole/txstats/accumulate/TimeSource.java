@@ -0,0 +1,28 @@
+package com.logicpole.txstats.accumulate;
+
+/**
+ * Time source
+ * <p>
+ * The current time as seen by the accumulators, which place their windows
+ * so that they end at it, and which discard values older than the window or
+ * later than it.  {@link #SYSTEM} is the wall clock.  A {@link Watermark}
+ * instead follows the event time of the values, for replaying recorded
+ * transactions, or for tests which need to move time deterministically.
+ *
+ * @author Max McCormick
+ */
+@FunctionalInterface
+public interface TimeSource {
+
+   /**
+    * The wall clock, as given by {@link System#currentTimeMillis()}.
+    */
+   TimeSource SYSTEM = System::currentTimeMillis;
+
+   /**
+    * Get the current time.
+    *
+    * @return the unix epochtime (msec).
+    */
+   long currentTimeMillis();
+}
@@ -0,0 +1,56 @@
+package com.logicpole.txstats.accumulate;
+
+/**
+ * Event time watermark
+ * <p>
+ * A {@link TimeSource} which is moved forward explicitly rather than by the
+ * wall clock, normally to the latest timestamp of the values seen so far.
+ * Accumulators driven by a watermark keep a window ending at the latest
+ * value, so recorded values are accepted, and slices age out, exactly as
+ * they did when the values were first recorded, however quickly or slowly
+ * they are replayed.
+ * <p>
+ * The watermark never moves backwards.  It may be advanced by one thread
+ * and read by any number of others.
+ *
+ * @author Max McCormick
+ */
+public final class Watermark implements TimeSource {
+
+   private volatile long millis;
+
+   /**
+    * Create a watermark at the start of the epoch, before any value.
+    */
+   public Watermark() {
+      this(0);
+   }
+
+   /**
+    * Create a watermark at the given time.
+    *
+    * @param millis the unix epochtime (msec).
+    */
+   public Watermark(long millis) {
+      this.millis = millis;
+   }
+
+   @Override
+   public long currentTimeMillis() {
+      return millis;
+   }
+
+   /**
+    * Advance the watermark to the given time, if it is later.
+    *
+    * @param millis the unix epochtime (msec).
+    * @return the watermark after advancing.
+    */
+   public long advance(long millis) {
+      // only one thread advances, so a plain check suffices, and the
+      // volatile store is only taken when time moves on
+      if (millis > this.millis)
+         this.millis = millis;
+      return this.millis;
+   }
+}
@@ -0,0 +1,92 @@
+package com.logicpole.txstats.accumulate;
+
+/**
+ * Window specification
+ * <p>
+ * Describes the moving time window over which an accumulator gathers data,
+ * and the resolution of the slices making up the window.  The window length
+ * must be a whole multiple of the slice length.
+ * <p>
+ * The number of slices determines the memory used by an accumulator, 56 to
+ * 88 bytes per slice per stripe depending on how close the count is to a power
+ * of two, so the slice count is limited to {@link #MAX_SLICES}.  Statistics
+ * over the whole window cost the same however many slices there are, but
+ * statistics over part of it visit every slice.  For example a 10 second
+ * window at 100 msec resolution has 100 slices, and a 15 minute window at 5
+ * second resolution has 180.
+ *
+ * @author Max McCormick
+ */
+public final class WindowSpec {
+
+   /**
+    * The largest number of slices a window may have (about 88 MB per stripe).
+    */
+   public static final int MAX_SLICES = 1000000;
+
+   /**
+    * The default window of 60 seconds with one second slices.
+    */
+   public static final WindowSpec DEFAULT = new WindowSpec(60000, 1000);
+
+   private final long windowMillis;
+   private final long sliceMillis;
+   private final int slices;
+
+   /**
+    * Create a window specification.
+    *
+    * @param windowMillis the length of the window in msec.
+    * @param sliceMillis  the length of each slice in msec.
+    * @throws IllegalArgumentException if either length is not positive, the
+    *                                  window is not a multiple of the slice
+    *                                  length, or there would be too many
+    *                                  slices.
+    */
+   public WindowSpec(long windowMillis, long sliceMillis) {
+      if (windowMillis <= 0 || sliceMillis <= 0)
+         throw new IllegalArgumentException("window and slice lengths must be positive");
+      if (windowMillis % sliceMillis != 0)
+         throw new IllegalArgumentException("window " + windowMillis
+                 + " msec is not a multiple of the slice length " + sliceMillis + " msec");
+      if (windowMillis / sliceMillis > MAX_SLICES)
+         throw new IllegalArgumentException("window " + windowMillis + " msec at "
+                 + sliceMillis + " msec resolution exceeds " + MAX_SLICES + " slices");
+
+      this.windowMillis = windowMillis;
+      this.sliceMillis = sliceMillis;
+      this.slices = (int) (windowMillis / sliceMillis);
+   }
+
+   public long getWindowMillis() {
+      return windowMillis;
+   }
+
+   public long getSliceMillis() {
+      return sliceMillis;
+   }
+
+   public int getSlices() {
+      return slices;
+   }
+
+   @Override
+   public boolean equals(Object o) {
+      if (this == o)
+         return true;
+      if (!(o instanceof WindowSpec))
+         return false;
+      WindowSpec that = (WindowSpec) o;
+      return windowMillis == that.windowMillis && sliceMillis == that.sliceMillis;
+   }
+
+   @Override
+   public int hashCode() {
+      return 31 * Long.hashCode(windowMillis) + Long.hashCode(sliceMillis);
+   }
+
+   @Override
+   public String toString() {
+      return windowMillis + "ms/" + sliceMillis + "ms";
+   }
+}
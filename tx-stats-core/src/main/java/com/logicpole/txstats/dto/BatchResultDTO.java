@@ -0,0 +1,39 @@
+package com.logicpole.txstats.dto;
+
+/**
+ * Data transfer object for the outcome of a batch of transactions
+ *
+ * @author Max McCormick
+ */
+public final class BatchResultDTO {
+
+   private static final long serialVersionUID = 1497016756L;
+
+   private long accepted;
+   private long stale;
+   private long invalid;
+
+   // default constructor needed for test
+   public BatchResultDTO() {
+   }
+
+   public BatchResultDTO(long accepted,
+                         long stale,
+                         long invalid) {
+      this.accepted = accepted;
+      this.stale = stale;
+      this.invalid = invalid;
+   }
+
+   public long getAccepted() {
+      return accepted;
+   }
+
+   public long getStale() {
+      return stale;
+   }
+
+   public long getInvalid() {
+      return invalid;
+   }
+}
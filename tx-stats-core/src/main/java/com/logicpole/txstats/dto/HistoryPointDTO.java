@@ -1,14 +1,16 @@
 package com.logicpole.txstats.dto;
 
 /**
- * Data transfer object for statistics of a set of double values
+ * Data transfer object for the statistics of one step of the transaction
+ * history
  *
  * @author Max McCormick
  */
-public final class StatisticsDTO {
+public final class HistoryPointDTO {
 
    private static final long serialVersionUID = 1497016756L;
 
+   private long timestamp;
    private double sum;
    private double avg;
    private double max;
@@ -16,14 +18,16 @@ public final class StatisticsDTO {
    private long count;
 
    // default constructor needed for test
-   public StatisticsDTO() {
+   public HistoryPointDTO() {
    }
 
-   public StatisticsDTO(double sum,
-                        double avg,
-                        double max,
-                        double min,
-                        long count) {
+   public HistoryPointDTO(long timestamp,
+                          double sum,
+                          double avg,
+                          double max,
+                          double min,
+                          long count) {
+      this.timestamp = timestamp;
       this.sum = sum;
       this.avg = avg;
       this.max = max;
@@ -31,6 +35,13 @@ public final class StatisticsDTO {
       this.count = count;
    }
 
+   /**
+    * Get the unix epochtime (msec) at which the step starts.
+    */
+   public long getTimestamp() {
+      return timestamp;
+   }
+
    public double getSum() {
       return sum;
    }
@@ -0,0 +1,119 @@
+package com.logicpole.txstats.dto;
+
+import java.util.Map;
+
+/**
+ * Data transfer object for statistics of a set of double values
+ *
+ * @author Max McCormick
+ */
+public final class StatisticsDTO {
+
+   private static final long serialVersionUID = 1497016756L;
+
+   private double sum;
+   private double avg;
+   private double max;
+   private double min;
+   private long count;
+   private Map<String, Double> quantiles;
+   private Long distinct;
+   private Integer nodes;
+
+   // default constructor needed for test
+   public StatisticsDTO() {
+   }
+
+   public StatisticsDTO(double sum,
+                        double avg,
+                        double max,
+                        double min,
+                        long count) {
+      this.sum = sum;
+      this.avg = avg;
+      this.max = max;
+      this.min = min;
+      this.count = count;
+   }
+
+   public StatisticsDTO(double sum,
+                        double avg,
+                        double max,
+                        double min,
+                        long count,
+                        Map<String, Double> quantiles) {
+      this(sum, avg, max, min, count);
+      this.quantiles = quantiles;
+   }
+
+   public StatisticsDTO(double sum,
+                        double avg,
+                        double max,
+                        double min,
+                        long count,
+                        Map<String, Double> quantiles,
+                        Long distinct) {
+      this(sum, avg, max, min, count, quantiles);
+      this.distinct = distinct;
+   }
+
+   public StatisticsDTO(double sum,
+                        double avg,
+                        double max,
+                        double min,
+                        long count,
+                        Map<String, Double> quantiles,
+                        Long distinct,
+                        Integer nodes) {
+      this(sum, avg, max, min, count, quantiles, distinct);
+      this.nodes = nodes;
+   }
+
+   public double getSum() {
+      return sum;
+   }
+
+   public double getAvg() {
+      return avg;
+   }
+
+   public double getMax() {
+      return max;
+   }
+
+   public double getMin() {
+      return min;
+   }
+
+   public long getCount() {
+      return count;
+   }
+
+   /**
+    * Get the estimated quantiles, keyed by the quantile requested (eg. "0.99").
+    *
+    * @return the quantiles, or null if none were requested.
+    */
+   public Map<String, Double> getQuantiles() {
+      return quantiles;
+   }
+
+   /**
+    * Get the estimated number of distinct keys.
+    *
+    * @return the distinct count, or null if distinct counts are not kept.
+    */
+   public Long getDistinct() {
+      return distinct;
+   }
+
+   /**
+    * Get the number of nodes whose statistics were merged.
+    *
+    * @return the node count, or null if these are the statistics of this
+    * node alone.
+    */
+   public Integer getNodes() {
+      return nodes;
+   }
+}
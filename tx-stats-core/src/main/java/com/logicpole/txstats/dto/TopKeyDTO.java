@@ -0,0 +1,46 @@
+package com.logicpole.txstats.dto;
+
+/**
+ * Data transfer object for one of the top transaction keys
+ *
+ * @author Max McCormick
+ */
+public final class TopKeyDTO {
+
+   private static final long serialVersionUID = 1497016756L;
+
+   private long key;
+   private double value;
+   private double error;
+
+   // default constructor needed for test
+   public TopKeyDTO() {
+   }
+
+   public TopKeyDTO(long key,
+                    double value,
+                    double error) {
+      this.key = key;
+      this.value = value;
+      this.error = error;
+   }
+
+   public long getKey() {
+      return key;
+   }
+
+   /**
+    * Get the estimated count or sum of the key, which is at least the true
+    * value.
+    */
+   public double getValue() {
+      return value;
+   }
+
+   /**
+    * Get the most by which the estimate may exceed the true value.
+    */
+   public double getError() {
+      return error;
+   }
+}
@@ -13,6 +13,7 @@ public final class TransactionDTO implements Serializable {
 
    private long timestamp;
    private double amount;
+   private Long key;
 
    // for auto-creation using introspection
    public TransactionDTO() {
@@ -38,4 +39,18 @@ public final class TransactionDTO implements Serializable {
    public void setAmount(double amount) {
       this.amount = amount;
    }
+
+   /**
+    * Get the key, such as a merchant or account ID, which the transaction is
+    * also accumulated under.
+    *
+    * @return the key, or null if the transaction is not keyed.
+    */
+   public Long getKey() {
+      return key;
+   }
+
+   public void setKey(Long key) {
+      this.key = key;
+   }
 }
@@ -0,0 +1,510 @@
+package com.logicpole.txstats.history;
+
+import com.logicpole.txstats.accumulate.DoubleAccumulator;
+import com.logicpole.txstats.accumulate.WindowSpec;
+import com.logicpole.txstats.dto.HistoryPointDTO;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Transaction history store
+ * <p>
+ * Keeps the count, sum, minimum and maximum of the transactions of every
+ * slice which leaves the window of an accumulator, at a series of levels of
+ * coarser resolution and longer retention, such as by the second for a day,
+ * by the minute for 90 days and by the hour for 5 years.  The slices are
+ * merged across stripes into the buckets of the first level, and each
+ * bucket is appended once complete.
+ * <p>
+ * Each level is a ring of fixed width records in a memory-mapped column
+ * file, holding a column each of the start time, count, sum, minimum and
+ * maximum, so the file is of a size fixed by the retention and resolution of
+ * the level, and the oldest record is overwritten by the next once it is
+ * full.  A record is written before the count of records in the header is
+ * advanced, so a crash part way through appending loses only that record.
+ * A file with a different layout, or none, is zeroed on opening.
+ * <p>
+ * The records of a level are compacted into the next level as each bucket
+ * of the next level completes, which is when the first record beyond it is
+ * appended, so the next level trails by at most one of its buckets.  The
+ * next level is resumed from its own last record, so compaction survives a
+ * restart.  For the records to be compacted before they are overwritten,
+ * the retention of each level must be at least the resolution of the next.
+ * <p>
+ * A range query finds the first record of the range in a level by a binary
+ * search of its time column, then reads on sequentially to the end of the
+ * range.  The range is answered from the coarsest level whose resolution
+ * divides the step, up to the end of its last bucket, and the rest from
+ * each finer level in turn, which holds every record since then, so a query
+ * reads few more records than it returns.
+ * <p>
+ * A slice which leaves the window after its bucket has been appended, such
+ * as from a stripe which has fallen behind, is counted as late and
+ * discarded.
+ *
+ * @author Max McCormick
+ */
+public class HistoryStore implements DoubleAccumulator.ExpiryListener, AutoCloseable {
+
+   /**
+    * The most points a query may return.
+    */
+   public static final int MAX_POINTS = 10000;
+
+   private final Level[] levels;
+
+   /*
+    * Buckets of the first level merged from the slices left the window but
+    * not yet appended, by start time.  Guarded by itself, so that an expiring
+    * slice never waits for a query, and taken within the store lock when
+    * both are held.
+    */
+   private final TreeMap<Long, Bucket> pending = new TreeMap<>();
+
+   /*
+    * The end of the last bucket appended to the first level, before which
+    * expiring slices are late.  Guarded by pending.
+    */
+   private long flushedMillis = Long.MIN_VALUE;
+
+   /*
+    * Metrics.
+    */
+   private final LongAdder late = new LongAdder();
+
+   /**
+    * Open or create the file of each level in the given directory.
+    *
+    * @param directory the directory, created if need be.
+    * @param levels    the retention and resolution of each level, as the
+    *                  window and slice length, from the finest.
+    * @throws IllegalArgumentException if a level does not divide into the
+    *                                  next, is too short to be compacted
+    *                                  into it, or is kept longer than it.
+    * @throws UncheckedIOException     if a file could not be opened or
+    *                                  mapped.
+    */
+   public HistoryStore(Path directory, WindowSpec[] levels) {
+      if (levels.length < 1)
+         throw new IllegalArgumentException("at least one level is required");
+      for (int l = 1; l < levels.length; l++) {
+         long finer = levels[l - 1].getSliceMillis();
+         long coarser = levels[l].getSliceMillis();
+         if (coarser <= finer || coarser % finer != 0)
+            throw new IllegalArgumentException("resolution of level " + l + " must be a multiple of "
+                    + finer + ": " + coarser);
+         if (levels[l - 1].getWindowMillis() < coarser)
+            throw new IllegalArgumentException("retention of level " + (l - 1)
+                    + " must be at least the resolution of the next: " + levels[l - 1].getWindowMillis());
+         if (levels[l].getWindowMillis() < levels[l - 1].getWindowMillis())
+            throw new IllegalArgumentException("retention of level " + l + " must be at least that of the last: "
+                    + levels[l].getWindowMillis());
+      }
+      this.levels = new Level[levels.length];
+      try {
+         Files.createDirectories(directory);
+         for (int l = 0; l < levels.length; l++)
+            this.levels[l] = new Level(directory.resolve("level" + l + ".history"), levels[l]);
+      } catch (IOException e) {
+         throw new UncheckedIOException("cannot map history in " + directory, e);
+      }
+      if (!this.levels[0].isEmpty())
+         flushedMillis = this.levels[0].lastTime() + this.levels[0].resolution;
+   }
+
+   /**
+    * Merge a slice which has left the window into its bucket of the first
+    * level, to be appended once the bucket is complete.
+    */
+   @Override
+   public void expired(long startMillis, long count, double sum, double min, double max) {
+      if (count == 0)
+         return;
+      long resolution = levels[0].resolution;
+      long time = Math.floorDiv(startMillis, resolution) * resolution;
+      synchronized (pending) {
+         if (time < flushedMillis) {
+            late.increment();
+            return;
+         }
+         Bucket bucket = pending.get(time);
+         if (bucket == null)
+            pending.put(time, new Bucket(count, sum, min, max));
+         else
+            bucket.merge(count, sum, min, max);
+      }
+   }
+
+   /**
+    * Append every bucket of the first level which ends at or before the
+    * given time, by when every slice of it must have left the window, and
+    * compact the levels as their buckets complete.
+    *
+    * @param throughMillis the unix epochtime (msec) before which every slice
+    *                      has left the window.
+    */
+   public synchronized void flush(long throughMillis) {
+      long resolution = levels[0].resolution;
+      List<Map.Entry<Long, Bucket>> complete = new ArrayList<>();
+      synchronized (pending) {
+         while (!pending.isEmpty() && pending.firstKey() + resolution <= throughMillis)
+            complete.add(pending.pollFirstEntry());
+         long through = Math.floorDiv(throughMillis, resolution) * resolution;
+         if (through > flushedMillis)
+            flushedMillis = through;
+      }
+      for (Map.Entry<Long, Bucket> entry : complete) {
+         Bucket bucket = entry.getValue();
+         append(0, entry.getKey(), bucket.count, bucket.sum, bucket.min, bucket.max);
+      }
+   }
+
+   /**
+    * Get the statistics of each step of the given range which holds any
+    * transactions.
+    *
+    * @param fromMillis the unix epochtime (msec) at which the range starts,
+    *                   rounded down to a step.
+    * @param toMillis   the unix epochtime (msec) before which it ends,
+    *                   rounded up to a step.
+    * @param stepMillis the length of each step, a multiple of the resolution
+    *                   of the first level.
+    * @return the statistics of each step holding transactions, in order.
+    * @throws IllegalArgumentException if the range is empty, the step is
+    *                                  not a multiple of the first
+    *                                  resolution, or there would be more
+    *                                  than {@link #MAX_POINTS} steps.
+    */
+   public synchronized List<HistoryPointDTO> query(long fromMillis, long toMillis, long stepMillis) {
+      if (stepMillis < 1 || stepMillis % levels[0].resolution != 0)
+         throw new IllegalArgumentException("step must be a multiple of " + levels[0].resolution + ": " + stepMillis);
+      if (toMillis <= fromMillis)
+         throw new IllegalArgumentException("range must not be empty: " + fromMillis + " to " + toMillis);
+      long from = Math.floorDiv(fromMillis, stepMillis) * stepMillis;
+      long to = -Math.floorDiv(-toMillis, stepMillis) * stepMillis;
+      if ((to - from) / stepMillis > MAX_POINTS)
+         throw new IllegalArgumentException("range must have at most " + MAX_POINTS + " steps of " + stepMillis);
+
+      // the levels dividing the step are the finest few.  each level holds
+      // every record since the end of the last bucket of the next, so take
+      // the range from the coarsest up to the end of its last bucket, then
+      // from each finer level up to the end of its own, merging the steps
+      // they share
+      int coarsest = 0;
+      while (coarsest + 1 < levels.length && stepMillis % levels[coarsest + 1].resolution == 0)
+         coarsest++;
+      Steps steps = new Steps(stepMillis);
+      long cursor = from;
+      for (int l = coarsest; l >= 0 && cursor < to; l--) {
+         Level level = levels[l];
+         if (level.isEmpty())
+            continue;
+         long end = l == 0 ? to : Math.min(to, level.lastTime() + level.resolution);
+         if (end > cursor) {
+            level.scan(cursor, end, steps);
+            cursor = end;
+         }
+      }
+      return steps.finish();
+   }
+
+   /**
+    * Get the number of records held by a level.
+    *
+    * @param level the level.
+    * @return the record count.
+    */
+   public synchronized long getRecords(int level) {
+      return levels[level].next - levels[level].first();
+   }
+
+   public int getLevels() {
+      return levels.length;
+   }
+
+   /**
+    * Get the number of slices which left the window after their bucket had
+    * been appended, and were discarded.
+    *
+    * @return the late slice count.
+    */
+   public long getLate() {
+      return late.sum();
+   }
+
+   /**
+    * Write every record through to its file.
+    */
+   @Override
+   public synchronized void close() {
+      for (Level level : levels)
+         level.mapping.force();
+   }
+
+   /**
+    * Append a record to a level, first compacting the records of the level
+    * into the next if it starts a bucket of the next level.
+    */
+   private void append(int l, long time, long count, double sum, double min, double max) {
+      Level level = levels[l];
+      if (!level.isEmpty() && time <= level.lastTime())
+         throw new IllegalStateException("history of level " + l + " must be appended in order: " + time);
+      if (l + 1 < levels.length)
+         compact(l, time);
+      level.append(time, count, sum, min, max);
+   }
+
+   /**
+    * Compact the records of a level held since the last record of the next
+    * level into the next level, up to the bucket of the next level holding
+    * the given time.
+    */
+   private void compact(int l, long time) {
+      Level fine = levels[l];
+      Level coarse = levels[l + 1];
+      long resolution = coarse.resolution;
+      if (fine.isEmpty())
+         return;
+      long start = coarse.isEmpty() ? Long.MIN_VALUE : coarse.lastTime() + resolution;
+      long end = Math.floorDiv(time, resolution) * resolution;
+      if (fine.lastTime() < start || end <= start)
+         return;
+
+      long bucketTime = 0;
+      Bucket bucket = null;
+      for (long i = fine.search(start); i < fine.next; i++) {
+         int slot = fine.slot(i);
+         long recordTime = fine.mapping.getLong(fine.time + slot * 8);
+         if (recordTime >= end)
+            break;
+         long recordBucket = Math.floorDiv(recordTime, resolution) * resolution;
+         long count = fine.mapping.getLong(fine.count + slot * 8);
+         double sum = fine.mapping.getDouble(fine.sum + slot * 8);
+         double min = fine.mapping.getDouble(fine.min + slot * 8);
+         double max = fine.mapping.getDouble(fine.max + slot * 8);
+         if (bucket != null && recordBucket == bucketTime) {
+            bucket.merge(count, sum, min, max);
+            continue;
+         }
+         if (bucket != null)
+            append(l + 1, bucketTime, bucket.count, bucket.sum, bucket.min, bucket.max);
+         bucketTime = recordBucket;
+         bucket = new Bucket(count, sum, min, max);
+      }
+      if (bucket != null)
+         append(l + 1, bucketTime, bucket.count, bucket.sum, bucket.min, bucket.max);
+   }
+
+   /**
+    * The aggregates of a bucket being merged.
+    */
+   private static final class Bucket {
+
+      private long count;
+      private double sum;
+      private double min;
+      private double max;
+
+      private Bucket(long count, double sum, double min, double max) {
+         this.count = count;
+         this.sum = sum;
+         this.min = min;
+         this.max = max;
+      }
+
+      private void merge(long count, double sum, double min, double max) {
+         this.count += count;
+         this.sum += sum;
+         this.min = Math.min(this.min, min);
+         this.max = Math.max(this.max, max);
+      }
+   }
+
+   /**
+    * A level, held in a ring of records in its memory-mapped column file.
+    * Records are numbered in the order appended, and record i is held in
+    * slot i modulo the capacity.
+    */
+   private static final class Level {
+
+      private static final int HEADER_BYTES = 64;
+      private static final long MAGIC = 0x5458484953543031L; // "TXHIST01"
+      private static final int VERSION = 1;
+
+      /*
+       * Offsets of the header fields.
+       */
+      private static final int RESOLUTION = 16;
+      private static final int CAPACITY = 24;
+      private static final int NEXT = 32;
+
+      private final long resolution;
+      private final int capacity;
+      private final MappedByteBuffer mapping;
+
+      /*
+       * Offsets of the columns.
+       */
+      private final int time;
+      private final int count;
+      private final int sum;
+      private final int min;
+      private final int max;
+
+      /*
+       * The number of records ever appended, mirrored from the header.
+       */
+      private long next;
+
+      private Level(Path path, WindowSpec spec) throws IOException {
+         resolution = spec.getSliceMillis();
+         capacity = spec.getSlices();
+         long column = capacity * 8L;
+         long size = HEADER_BYTES + 5 * column;
+         time = HEADER_BYTES;
+         count = (int) (time + column);
+         sum = (int) (count + column);
+         min = (int) (sum + column);
+         max = (int) (min + column);
+
+         boolean restorable;
+         try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                 StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            boolean sized = channel.size() == size;
+            if (!sized)
+               channel.truncate(Math.min(channel.size(), size));
+            mapping = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            mapping.order(ByteOrder.nativeOrder());
+            restorable = sized && mapping.getLong(0) == MAGIC && mapping.getInt(8) == VERSION
+                    && mapping.getLong(RESOLUTION) == resolution && mapping.getLong(CAPACITY) == capacity;
+         }
+         if (!restorable) {
+            for (int i = 0; i + 8 <= size; i += 8)
+               mapping.putLong(i, 0);
+            mapping.putLong(0, MAGIC).putInt(8, VERSION).putLong(RESOLUTION, resolution)
+                    .putLong(CAPACITY, capacity);
+         }
+         next = mapping.getLong(NEXT);
+      }
+
+      private boolean isEmpty() {
+         return next == 0;
+      }
+
+      private long first() {
+         return Math.max(0, next - capacity);
+      }
+
+      private int slot(long i) {
+         return (int) (i % capacity);
+      }
+
+      private long timeOf(long i) {
+         return mapping.getLong(time + slot(i) * 8);
+      }
+
+      private long firstTime() {
+         return timeOf(first());
+      }
+
+      private long lastTime() {
+         return timeOf(next - 1);
+      }
+
+      /**
+       * Find the first record held at or after the given time, by a binary
+       * search of the time column, or the next record number if none.
+       */
+      private long search(long millis) {
+         long low = first();
+         long high = next;
+         while (low < high) {
+            long mid = (low + high) >>> 1;
+            if (timeOf(mid) < millis)
+               low = mid + 1;
+            else
+               high = mid;
+         }
+         return low;
+      }
+
+      /**
+       * Write a record into the next slot, then publish it.
+       */
+      private void append(long millis, long n, double s, double lo, double hi) {
+         int offset = slot(next) * 8;
+         mapping.putLong(time + offset, millis)
+                 .putLong(count + offset, n)
+                 .putDouble(sum + offset, s)
+                 .putDouble(min + offset, lo)
+                 .putDouble(max + offset, hi);
+         next++;
+         mapping.putLong(NEXT, next);
+      }
+
+      /**
+       * Add every record of the given range to its step, by a sequential
+       * scan from the first record of the range.
+       */
+      private void scan(long from, long to, Steps steps) {
+         for (long i = search(from); i < next; i++) {
+            int slot = slot(i) * 8;
+            long millis = mapping.getLong(time + slot);
+            if (millis >= to)
+               break;
+            steps.add(millis, mapping.getLong(count + slot), mapping.getDouble(sum + slot),
+                    mapping.getDouble(min + slot), mapping.getDouble(max + slot));
+         }
+      }
+   }
+
+   /**
+    * The points of a query, built as records are added in time order.
+    */
+   private static final class Steps {
+
+      private final long step;
+      private final List<HistoryPointDTO> points = new ArrayList<>();
+      private long stepTime;
+      private Bucket bucket;
+
+      private Steps(long step) {
+         this.step = step;
+      }
+
+      private void add(long millis, long count, double sum, double min, double max) {
+         long recordStep = Math.floorDiv(millis, step) * step;
+         if (bucket != null && recordStep == stepTime) {
+            bucket.merge(count, sum, min, max);
+            return;
+         }
+         finishStep();
+         stepTime = recordStep;
+         bucket = new Bucket(count, sum, min, max);
+      }
+
+      private List<HistoryPointDTO> finish() {
+         finishStep();
+         return points;
+      }
+
+      private void finishStep() {
+         if (bucket != null)
+            points.add(new HistoryPointDTO(stepTime, bucket.sum, bucket.sum / bucket.count, bucket.max,
+                    bucket.min, bucket.count));
+         bucket = null;
+      }
+   }
+}
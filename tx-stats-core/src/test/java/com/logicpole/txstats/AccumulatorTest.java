@@ -0,0 +1,1082 @@
+package com.logicpole.txstats;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.logicpole.txstats.accumulate.DistinctSpec;
+import com.logicpole.txstats.accumulate.DoubleAccumulator;
+import com.logicpole.txstats.accumulate.FixedPointAccumulator;
+import com.logicpole.txstats.accumulate.HeavyHitters;
+import com.logicpole.txstats.accumulate.KeyedAccumulator;
+import com.logicpole.txstats.accumulate.LatencyHistogram;
+import com.logicpole.txstats.accumulate.MaintenanceScheduler;
+import com.logicpole.txstats.accumulate.PartialStatistics;
+import com.logicpole.txstats.accumulate.SketchSpec;
+import com.logicpole.txstats.accumulate.Watermark;
+import com.logicpole.txstats.accumulate.WindowSpec;
+import com.logicpole.txstats.dto.HistoryPointDTO;
+import com.logicpole.txstats.dto.StatisticsDTO;
+import com.logicpole.txstats.dto.TopKeyDTO;
+import com.logicpole.txstats.history.HistoryStore;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.math.RoundingMode;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for transaction statistics application
+ *
+ * @author Max McCormick
+ */
+public class AccumulatorTest {
+
+   private DoubleAccumulator transactions;
+
+   @Before
+   public void setUp() throws Exception {
+      transactions = new DoubleAccumulator();
+   }
+
+   /**
+    * Generate a short burst of transactions and check that average is
+    * calculated correctly.  This does not test for thread safety of the
+    * DoubleAccumulator, nor does it verify that data is discarded properly.
+    */
+   @Test
+   public void ensureCorrectAveragingSingleThreaded()
+           throws Exception {
+
+      // accumulate a set of transactions
+      int count = 10000;
+      double total = 0;
+      for (int i = 0; i < count; i++) {
+
+         // generate some values
+         long now = System.currentTimeMillis();
+         double amount = i + 1 + ((i % 100) / 100.0);
+
+         total += amount;
+         transactions.accumulate(now, amount);
+      }
+      double sum = total;
+
+      double avg = sum / count;
+      double min = 1.00;
+      double max = (double) count + ((count - 1) % 100) / 100.0;
+
+      // read back the stats
+      StatisticsDTO stats = transactions.statistics();
+
+      // check that the stats are correct.  note:  there should be no effect of
+      // the 60 sec time window. Since adding doubles could create small
+      // rounding errors and yield slightly different results if the numbers are
+      // added in different orders, compare values only to a fixed number of
+      // decimal places.
+      BigDecimal expected = new BigDecimal(avg).setScale(4, RoundingMode.HALF_DOWN);
+      BigDecimal actual = new BigDecimal(stats.getAvg()).setScale(4, RoundingMode.HALF_DOWN);
+      assertThat(actual.equals(expected));
+   }
+
+   /**
+    * Generate a short burst of transactions and check that average is
+    * calculated correctly.  This does not test for thread safety of the
+    * DoubleAccumulator, nor does it verify that data is discarded properly.
+    */
+   @Test
+   public void ensureCorrectMaxMinCountSingleThreaded()
+           throws Exception {
+
+      // accumulate a set of transactions
+      int count = 100;
+      for (int i = 0; i < count; i++) {
+
+         // generate some values
+         long now = System.currentTimeMillis();
+         double amount = i + 1 + ((i % 100) / 100.0);
+         transactions.accumulate(now, amount);
+      }
+      double min = 1.00;
+      double max = (double) count + ((count - 1) % 100) / 100.0;
+
+      // read back the stats
+      StatisticsDTO stats = transactions.statistics();
+
+      assertThat(stats.getMin()).isEqualTo(min);
+      assertThat(stats.getMax()).isEqualTo(max);
+      assertThat(stats.getCount()).isEqualTo(count);
+   }
+
+   /**
+    * Accumulate from several threads into a striped accumulator and check
+    * that the merged statistics account for every value.
+    */
+   @Test
+   public void ensureCorrectMaxMinCountMultiThreadedStriped()
+           throws Exception {
+
+      DoubleAccumulator striped = new DoubleAccumulator(8);
+      assertThat(striped.getStripes()).isEqualTo(8);
+
+      int threads = 8;
+      int perThread = 10000;
+      List<Thread> writers = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+         double base = t * perThread;
+         Thread writer = new Thread(() -> {
+            for (int i = 1; i <= perThread; i++)
+               striped.accumulate(System.currentTimeMillis(), base + i);
+         });
+         writers.add(writer);
+         writer.start();
+      }
+      for (Thread writer : writers)
+         writer.join();
+
+      StatisticsDTO stats = striped.statistics();
+
+      assertThat(stats.getCount()).isEqualTo(threads * perThread);
+      assertThat(stats.getMin()).isEqualTo(1.0);
+      assertThat(stats.getMax()).isEqualTo((double) threads * perThread);
+   }
+
+   /**
+    * Read statistics continually, without locking, while several threads
+    * accumulate the same value, and check that no read ever sees a stripe
+    * part way through a write.
+    */
+   @Test
+   public void ensureOptimisticReadsAreConsistent()
+           throws Exception {
+
+      DoubleAccumulator striped = new DoubleAccumulator(2);
+      int threads = 2;
+      int perThread = 200000;
+      List<Thread> writers = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+         Thread writer = new Thread(() -> {
+            for (int i = 1; i <= perThread; i++)
+               striped.accumulate(System.currentTimeMillis(), 12.5);
+         });
+         writers.add(writer);
+         writer.start();
+      }
+      long reads = 0;
+      long last = 0;
+      while (writers.stream().anyMatch(Thread::isAlive) || reads == 0) {
+         StatisticsDTO stats = striped.statistics();
+         assertThat(stats.getSum()).isEqualTo(stats.getCount() * 12.5);
+         assertThat(stats.getCount()).isGreaterThanOrEqualTo(last);
+         if (stats.getCount() > 0)
+            assertThat(stats.getMax()).isEqualTo(12.5);
+         last = stats.getCount();
+         reads++;
+      }
+      for (Thread writer : writers)
+         writer.join();
+
+      assertThat(striped.statistics().getCount()).isEqualTo(threads * perThread);
+   }
+
+   /**
+    * Read distinct counts continually, from a single ring and from merged
+    * stripes, while several threads accumulate new keys and an event time
+    * watermark moves across slice boundaries.  Then check that the count
+    * equals that of accumulating the same keys at the same times afresh,
+    * so that no read has rebuilt the merged registers under a writer.
+    */
+   @Test
+   public void ensureOptimisticDistinctReadsAreConsistent()
+           throws Exception {
+
+      int threads = 2;
+      int perThread = 200000;
+      for (int stripes = 1; stripes <= 2; stripes++) {
+         Watermark watermark = new Watermark(1500000000000L);
+         WindowSpec[] tiers = {new WindowSpec(100, 1)};
+         DoubleAccumulator counted = new DoubleAccumulator(tiers, stripes, SketchSpec.DEFAULT,
+                 DistinctSpec.DEFAULT, null, watermark);
+         long[][] timestamps = new long[threads][perThread];
+         List<Thread> writers = new ArrayList<>();
+         for (int t = 0; t < threads; t++) {
+            long[] written = timestamps[t];
+            long base = (long) t * perThread;
+            Thread writer = new Thread(() -> {
+               for (int i = 0; i < perThread; i++) {
+                  long timestamp = watermark.currentTimeMillis();
+                  if (counted.accumulate(timestamp, 1.0, base + i))
+                     written[i] = timestamp;
+               }
+            });
+            writers.add(writer);
+            writer.start();
+         }
+         long reads = 0;
+         while (writers.stream().anyMatch(Thread::isAlive) || reads == 0) {
+            assertThat(counted.statistics().getDistinct()).isNotNull();
+            if (++reads % 4 == 0)
+               watermark.advance(watermark.currentTimeMillis() + 1);
+         }
+         for (Thread writer : writers)
+            writer.join();
+
+         long now = watermark.currentTimeMillis();
+         DoubleAccumulator fresh = new DoubleAccumulator(tiers, 1, null, DistinctSpec.DEFAULT, null,
+                 new Watermark(now));
+         for (int t = 0; t < threads; t++) {
+            for (int i = 0; i < perThread; i++) {
+               if (timestamps[t][i] != 0)
+                  fresh.accumulate(timestamps[t][i], 1.0, (long) t * perThread + i);
+            }
+         }
+         assertThat(counted.statistics().getDistinct()).isEqualTo(fresh.statistics().getDistinct());
+      }
+   }
+
+   /**
+    * Check that values anywhere in the last 60 seconds are accumulated, and
+    * that older or future values are discarded.
+    */
+   @Test
+   public void ensureWindowBoundaries()
+           throws Exception {
+
+      long now = System.currentTimeMillis();
+      assertThat(transactions.accumulate(now - 30000, 10.0)).isTrue();
+      assertThat(transactions.accumulate(now - 58000, 20.0)).isTrue();
+      assertThat(transactions.accumulate(now - 61000, 40.0)).isFalse();
+      assertThat(transactions.accumulate(now + 5000, 80.0)).isFalse();
+
+      StatisticsDTO stats = transactions.statistics();
+
+      assertThat(stats.getSum()).isEqualTo(30.0);
+      assertThat(stats.getCount()).isEqualTo(2);
+      assertThat(stats.getMin()).isEqualTo(10.0);
+      assertThat(stats.getMax()).isEqualTo(20.0);
+   }
+
+   /**
+    * Accumulate a batch spanning several slices, including stale and future
+    * values, and check that it gives the same statistics as accumulating the
+    * values one at a time.
+    */
+   @Test
+   public void ensureBatchMatchesSingleAccumulation()
+           throws Exception {
+
+      long now = System.currentTimeMillis();
+      long[] timestamps = {now - 90000, now - 20000, now - 20000, now - 5000,
+              now - 20000, now, now + 10000};
+      double[] amounts = {1.0, 2.0, 3.0, 4.0, 5.0, 6.0, 7.0};
+
+      int accepted = transactions.accumulateAll(timestamps, amounts);
+
+      DoubleAccumulator single = new DoubleAccumulator();
+      for (int i = 0; i < timestamps.length; i++)
+         single.accumulate(timestamps[i], amounts[i]);
+
+      StatisticsDTO batch = transactions.statistics();
+      StatisticsDTO expected = single.statistics();
+
+      assertThat(accepted).isEqualTo(5);
+      assertThat(batch.getCount()).isEqualTo(expected.getCount()).isEqualTo(5);
+      assertThat(batch.getSum()).isEqualTo(expected.getSum()).isEqualTo(20.0);
+      assertThat(batch.getMin()).isEqualTo(expected.getMin()).isEqualTo(2.0);
+      assertThat(batch.getMax()).isEqualTo(expected.getMax()).isEqualTo(6.0);
+   }
+
+   /**
+    * Check that a short, fine grained window keeps only its own span of data.
+    */
+   @Test
+   public void ensureConfiguredWindowBoundaries()
+           throws Exception {
+
+      DoubleAccumulator fraud = new DoubleAccumulator(new WindowSpec(10000, 100), 1);
+      assertThat(fraud.getSpec().getSlices()).isEqualTo(100);
+
+      long now = System.currentTimeMillis();
+      assertThat(fraud.accumulate(now - 5000, 10.0)).isTrue();
+      assertThat(fraud.accumulate(now - 9500, 20.0)).isTrue();
+      assertThat(fraud.accumulate(now - 10500, 40.0)).isFalse();
+      assertThat(fraud.accumulate(now - 30000, 80.0)).isFalse();
+
+      StatisticsDTO stats = fraud.statistics();
+
+      assertThat(stats.getSum()).isEqualTo(30.0);
+      assertThat(stats.getCount()).isEqualTo(2);
+   }
+
+   /**
+    * Check that inconsistent window specifications are rejected.
+    */
+   @Test
+   public void ensureInvalidWindowSpecRejected()
+           throws Exception {
+
+      assertThatThrownBy(() -> new WindowSpec(10000, 300))
+              .isInstanceOf(IllegalArgumentException.class);
+      assertThatThrownBy(() -> new WindowSpec(0, 100))
+              .isInstanceOf(IllegalArgumentException.class);
+      assertThatThrownBy(() -> new WindowSpec(86400000L, 1))
+              .isInstanceOf(IllegalArgumentException.class);
+      assertThat(new WindowSpec(900000, 5000).getSlices()).isEqualTo(180);
+   }
+
+   /**
+    * Accumulate into a tiered accumulator with a short base window, wait for
+    * the values to age out of it, and check that they are still counted once
+    * in the longer window.
+    */
+   @Test
+   public void ensureTiersRollUpAgedSlices()
+           throws Exception {
+
+      WindowSpec[] tiers = {new WindowSpec(1000, 100), new WindowSpec(4000, 500)};
+      DoubleAccumulator tiered = new DoubleAccumulator(tiers, 2);
+
+      long now = System.currentTimeMillis();
+      tiered.accumulate(now, 1.0);
+      tiered.accumulate(now - 300, 2.0);
+      tiered.accumulate(now - 600, 3.0);
+
+      assertThat(tiered.statistics().getCount()).isEqualTo(3);
+      assertThat(tiered.statistics(4000).getCount()).isEqualTo(3);
+
+      Thread.sleep(1200);
+      tiered.accumulate(System.currentTimeMillis(), 4.0);
+
+      StatisticsDTO base = tiered.statistics();
+      StatisticsDTO longer = tiered.statistics(4000);
+
+      assertThat(base.getCount()).isEqualTo(1);
+      assertThat(base.getSum()).isEqualTo(4.0);
+      assertThat(longer.getCount()).isEqualTo(4);
+      assertThat(longer.getSum()).isEqualTo(10.0);
+      assertThat(longer.getMin()).isEqualTo(1.0);
+      assertThat(longer.getMax()).isEqualTo(4.0);
+      assertThatThrownBy(() -> tiered.statistics(5000))
+              .isInstanceOf(IllegalArgumentException.class);
+   }
+
+   /**
+    * Check that the running minimum and maximum recover the next best values
+    * when the slices holding the extremes age out, and that a window shorter
+    * than the tier only counts the slices inside it.
+    */
+   @Test
+   public void ensureAggregatesFollowAgedSlices()
+           throws Exception {
+
+      DoubleAccumulator shortWindow = new DoubleAccumulator(new WindowSpec(1000, 100), 1);
+
+      long now = System.currentTimeMillis();
+      shortWindow.accumulate(now - 800, 100.0);
+      shortWindow.accumulate(now - 800, 0.5);
+      shortWindow.accumulate(now, 7.0);
+      shortWindow.accumulate(now, 3.0);
+
+      StatisticsDTO all = shortWindow.statistics();
+      StatisticsDTO recent = shortWindow.statistics(500);
+
+      assertThat(all.getMax()).isEqualTo(100.0);
+      assertThat(all.getMin()).isEqualTo(0.5);
+      assertThat(recent.getCount()).isEqualTo(2);
+      assertThat(recent.getMax()).isEqualTo(7.0);
+
+      Thread.sleep(400);
+      StatisticsDTO later = shortWindow.statistics();
+
+      assertThat(later.getCount()).isEqualTo(2);
+      assertThat(later.getSum()).isEqualTo(10.0);
+      assertThat(later.getMax()).isEqualTo(7.0);
+      assertThat(later.getMin()).isEqualTo(3.0);
+   }
+
+   /**
+    * Accumulate a range of values, singly and in a batch, into a striped
+    * accumulator with sketches and check that the estimated quantiles are
+    * within the relative accuracy of the exact ones.
+    */
+   @Test
+   public void ensureQuantilesWithinRelativeAccuracy()
+           throws Exception {
+
+      SketchSpec sketch = new SketchSpec(0.01, 0.01, 1e9);
+      DoubleAccumulator sketched = new DoubleAccumulator(new WindowSpec[]{WindowSpec.DEFAULT}, 4, sketch);
+
+      int count = 10000;
+      long now = System.currentTimeMillis();
+      long[] timestamps = new long[count / 2];
+      double[] amounts = new double[count / 2];
+      for (int i = 0; i < count / 2; i++) {
+         timestamps[i] = now - i;
+         amounts[i] = (i + 1) * 1.25;
+         sketched.accumulate(now - i, (count / 2 + i + 1) * 1.25);
+      }
+      sketched.accumulateAll(timestamps, amounts);
+
+      double[] quantiles = {0.0, 0.5, 0.95, 0.99, 1.0};
+      StatisticsDTO stats = sketched.statistics(60000, quantiles);
+
+      assertThat(stats.getCount()).isEqualTo(count);
+      for (double q : quantiles) {
+         double exact = ((long) (q * (count - 1)) + 1) * 1.25;
+         double estimate = stats.getQuantiles().get(Double.toString(q));
+         assertThat(Math.abs(estimate - exact) / exact).isLessThanOrEqualTo(0.01);
+      }
+      assertThat(transactions.statistics().getQuantiles()).isNull();
+      assertThatThrownBy(() -> transactions.statistics(60000, quantiles))
+              .isInstanceOf(IllegalArgumentException.class);
+      assertThatThrownBy(() -> sketched.statistics(60000, new double[]{1.5}))
+              .isInstanceOf(IllegalArgumentException.class);
+   }
+
+   /**
+    * Accumulate values for enough keys to grow the key tables several times,
+    * and check that each key's statistics are its own and respect the
+    * window.  Then let the keys go idle and check that they are dropped,
+    * rather than grown into, when new keys arrive.
+    */
+   @Test
+   public void ensureKeyedStatisticsAndIdleKeysDropped()
+           throws Exception {
+
+      KeyedAccumulator keyed = new KeyedAccumulator(new WindowSpec(1000, 100), 2);
+
+      int keys = 10000;
+      long now = System.currentTimeMillis();
+      for (long key = 0; key < keys; key++) {
+         assertThat(keyed.accumulate(key, now, key)).isTrue();
+         assertThat(keyed.accumulate(key, now - 500, 2 * key)).isTrue();
+      }
+      assertThat(keyed.accumulate(1, now - 1500, 100.0)).isFalse();
+      assertThat(keyed.size()).isEqualTo(keys);
+
+      for (long key = 0; key < keys; key += 999) {
+         StatisticsDTO stats = keyed.statistics(key);
+         assertThat(stats.getCount()).isEqualTo(2);
+         assertThat(stats.getSum()).isEqualTo(3.0 * key);
+         assertThat(stats.getMin()).isEqualTo(key);
+         assertThat(stats.getMax()).isEqualTo(2.0 * key);
+      }
+      assertThat(keyed.statistics(-1).getCount()).isEqualTo(0);
+
+      // once idle for the window, keys have no statistics and make way
+      long memory = keyed.memoryBytes();
+      Thread.sleep(1200);
+      assertThat(keyed.statistics(0).getCount()).isEqualTo(0);
+      now = System.currentTimeMillis();
+      for (long key = keys; key < 2 * keys; key++)
+         keyed.accumulate(key, now, 1.0);
+      assertThat(keyed.size()).isLessThan(2 * keys);
+      assertThat(keyed.memoryBytes()).isEqualTo(memory);
+      assertThat(keyed.statistics(keys).getCount()).isEqualTo(1);
+   }
+
+   /**
+    * Count a few heavy keys among many more light keys than the capacity,
+    * spread over several slices, and check that the heavy keys come out on
+    * top by count and by sum with estimates within their error bounds.  The
+    * heavy keys are each a few times heavier than the guaranteed error of
+    * total / capacity, which is about 1200 for the counts here.
+    */
+   @Test
+   public void ensureHeavyHittersFindTopKeys()
+           throws Exception {
+
+      HeavyHitters hitters = new HeavyHitters(new WindowSpec(10000, 1000), 64, 2);
+
+      Random random = new Random(7);
+      long now = System.currentTimeMillis();
+      long[] heavyCounts = new long[10];
+      double[] heavySums = new double[10];
+      for (int i = 0; i < 200000; i++) {
+         long timestamp = now - random.nextInt(5000);
+         if (i % 4 == 0) {
+            int key = random.nextInt(10);
+            double amount = 10.0 * (key + 1);
+            assertThat(hitters.accumulate(key, timestamp, amount)).isTrue();
+            heavyCounts[key]++;
+            heavySums[key] += amount;
+         } else {
+            hitters.accumulate(1000 + random.nextInt(1000000), timestamp, 1.0);
+         }
+      }
+      assertThat(hitters.accumulate(1, now - 20000, 1.0)).isFalse();
+
+      List<TopKeyDTO> byCount = hitters.top(10, HeavyHitters.By.COUNT);
+      List<TopKeyDTO> bySum = hitters.top(10, HeavyHitters.By.SUM);
+
+      assertThat(byCount).hasSize(10);
+      for (TopKeyDTO top : byCount) {
+         assertThat(top.getKey()).isBetween(0L, 9L);
+         assertThat(top.getValue()).isGreaterThanOrEqualTo(heavyCounts[(int) top.getKey()]);
+         assertThat(top.getValue() - top.getError()).isLessThanOrEqualTo(heavyCounts[(int) top.getKey()]);
+      }
+      for (int i = 0; i < 10; i++) {
+         TopKeyDTO top = bySum.get(i);
+         // keys are weighted by amount, so rank by sum in reverse key order
+         assertThat(top.getKey()).isEqualTo(9 - i);
+         assertThat(top.getValue()).isGreaterThanOrEqualTo(heavySums[(int) top.getKey()]);
+         assertThat(top.getValue() - top.getError()).isLessThanOrEqualTo(heavySums[(int) top.getKey()]);
+      }
+      assertThatThrownBy(() -> hitters.top(65, HeavyHitters.By.SUM))
+              .isInstanceOf(IllegalArgumentException.class);
+   }
+
+   /**
+    * Accumulate repeated keys, singly and in a batch, into a striped and
+    * tiered accumulator and check the distinct counts over the window and a
+    * tier are within three standard errors.  Then let the keys age out and
+    * check that only new keys are counted.
+    */
+   @Test
+   public void ensureDistinctCountWithinError()
+           throws Exception {
+
+      WindowSpec[] tiers = {new WindowSpec(1000, 100), new WindowSpec(10000, 1000)};
+      DoubleAccumulator counted = new DoubleAccumulator(tiers, 2, null, DistinctSpec.DEFAULT);
+
+      int keys = 50000;
+      long now = System.currentTimeMillis();
+      long[] timestamps = new long[keys];
+      double[] values = new double[keys];
+      long[] batchKeys = new long[keys];
+      for (int i = 0; i < keys; i++) {
+         counted.accumulate(now - i % 500, 1.0, i);
+         timestamps[i] = now - i % 500;
+         values[i] = 1.0;
+         batchKeys[i] = 2L * i;
+      }
+      counted.accumulateAll(timestamps, values, batchKeys, null, keys);
+      counted.accumulate(now, 1.0);
+
+      // keys i and 2i together give 75000 distinct keys
+      double error = 3 * 1.04 / Math.sqrt(DistinctSpec.DEFAULT.getRegisters());
+      assertThat(counted.statistics().getCount()).isEqualTo(2 * keys + 1);
+      assertThat((double) counted.statistics().getDistinct()).isBetween(75000 * (1 - error), 75000 * (1 + error));
+      assertThat((double) counted.statistics(10000).getDistinct()).isBetween(75000 * (1 - error), 75000 * (1 + error));
+
+      Thread.sleep(1100);
+      now = System.currentTimeMillis();
+      for (long key = 0; key < 100; key++)
+         counted.accumulate(now, 1.0, 1000000 + key);
+      assertThat(counted.statistics().getDistinct()).isBetween(97L, 103L);
+      assertThat(transactions.statistics().getDistinct()).isNull();
+   }
+
+   /**
+    * Accumulate into an accumulator kept in a state file, then check that a
+    * new accumulator on the file restores its slices, that a torn slice is
+    * discarded, and that a file of another layout is reset.
+    */
+   @Test
+   public void ensureStateFileRestoresValidSlices()
+           throws Exception {
+
+      Path file = Files.createTempFile("txstats", ".state");
+      try {
+         WindowSpec[] tiers = {new WindowSpec(10000, 1000)};
+         long now = System.currentTimeMillis();
+         DoubleAccumulator saved = new DoubleAccumulator(tiers, 1, null, null, file);
+         saved.accumulate(now, 10.0);
+         saved.accumulate(now, 30.0);
+         saved.accumulate(now - 2000, 20.0);
+         assertThat(saved.getRestoredSlices()).isEqualTo(0);
+
+         DoubleAccumulator restored = new DoubleAccumulator(tiers, 1, null, null, file);
+         assertThat(restored.getRestoredSlices()).isEqualTo(2);
+         assertThat(restored.statistics().getCount()).isEqualTo(3);
+         assertThat(restored.statistics().getSum()).isEqualTo(60.0);
+         assertThat(restored.statistics().getMax()).isEqualTo(30.0);
+         assertThat(restored.statistics().getMin()).isEqualTo(10.0);
+
+         // tear the count of the slice of now, as a crash part way through
+         // writing it would.  records of 48 bytes follow a 64 byte header.
+         int slot = (int) (now / 1000 % 10);
+         try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            mapping.order(ByteOrder.nativeOrder());
+            mapping.putLong(64 + slot * 48 + 8, 5);
+         }
+         DoubleAccumulator torn = new DoubleAccumulator(tiers, 1, null, null, file);
+         assertThat(torn.getRestoredSlices()).isEqualTo(1);
+         assertThat(torn.statistics().getCount()).isEqualTo(1);
+         assertThat(torn.statistics().getSum()).isEqualTo(20.0);
+
+         WindowSpec[] other = {new WindowSpec(20000, 1000)};
+         DoubleAccumulator reset = new DoubleAccumulator(other, 1, null, null, file);
+         assertThat(reset.getRestoredSlices()).isEqualTo(0);
+         assertThat(reset.statistics().getCount()).isEqualTo(0);
+      } finally {
+         Files.deleteIfExists(file);
+      }
+   }
+
+   /**
+    * Accumulate values into two striped accumulators, as on two nodes, and
+    * check that their partial statistics, serialized and merged, give the
+    * statistics of all the values, and that partial statistics of another
+    * window or malformed bytes are rejected.
+    */
+   @Test
+   public void ensurePartialStatisticsMerge()
+           throws Exception {
+
+      DoubleAccumulator first = new DoubleAccumulator(4);
+      DoubleAccumulator second = new DoubleAccumulator(2);
+      DoubleAccumulator all = new DoubleAccumulator();
+      Random random = new Random(42);
+      long now = System.currentTimeMillis();
+      for (int i = 0; i < 1000; i++) {
+         long timestamp = now - random.nextInt(59000);
+         double value = 1 + random.nextInt(10000);
+         (i % 3 == 0 ? first : second).accumulate(timestamp, value);
+         all.accumulate(timestamp, value);
+      }
+
+      PartialStatistics merged = PartialStatistics.fromBytes(first.partialStatistics().toBytes());
+      merged.merge(PartialStatistics.fromBytes(second.partialStatistics().toBytes()));
+      StatisticsDTO expected = all.statistics();
+      StatisticsDTO actual = merged.statistics(System.currentTimeMillis());
+      assertThat(actual.getCount()).isEqualTo(expected.getCount());
+      assertThat(actual.getSum()).isEqualTo(expected.getSum());
+      assertThat(actual.getMin()).isEqualTo(expected.getMin());
+      assertThat(actual.getMax()).isEqualTo(expected.getMax());
+      assertThat(new PartialStatistics(WindowSpec.DEFAULT).statistics(now).getCount()).isEqualTo(0);
+
+      assertThatThrownBy(() -> merged.merge(new PartialStatistics(new WindowSpec(60000, 5000))))
+              .isInstanceOf(IllegalArgumentException.class);
+      assertThatThrownBy(() -> PartialStatistics.fromBytes(new byte[]{1, 2, 3}))
+              .isInstanceOf(IllegalArgumentException.class);
+   }
+
+   /**
+    * As ensureConstantSumOverTime, but moving an event time watermark rather
+    * than waiting on the wall clock, so that it runs at once.  Also check
+    * that values are discarded exactly at the edges of the window.
+    */
+   @Test
+   public void ensureConstantSumOverEventTime()
+           throws Exception {
+
+      long start = 1500000000000L;
+      Watermark watermark = new Watermark(start);
+      DoubleAccumulator accumulator = new DoubleAccumulator(
+              new WindowSpec[]{WindowSpec.DEFAULT}, 1, null, null, null, watermark);
+      KeyedAccumulator keyed = new KeyedAccumulator(new WindowSpec(60000, 5000), 1, watermark);
+      for (int count = 1; count <= 12; count++) {
+         long now = watermark.advance(start + (count - 1) * 10000L);
+         assertThat(accumulator.accumulate(now, 10.0)).isTrue();
+         assertThat(keyed.accumulate(7, now, 10.0)).isTrue();
+         assertThat(accumulator.statistics().getSum()).isEqualTo(Math.min(count, 6) * 10.0);
+         assertThat(keyed.statistics(7).getSum()).isEqualTo(Math.min(count, 6) * 10.0);
+      }
+
+      long last = watermark.currentTimeMillis();
+      assertThat(accumulator.accumulate(last + 1, 1.0)).isFalse();
+      assertThat(accumulator.accumulate(last - 60000, 1.0)).isFalse();
+      watermark.advance(last + 59999);
+      assertThat(accumulator.statistics().getCount()).isEqualTo(1);
+      watermark.advance(last + 60000);
+      assertThat(accumulator.statistics().getCount()).isEqualTo(0);
+      assertThat(watermark.advance(start)).isEqualTo(last + 60000);
+   }
+
+   /**
+    * Accumulate amounts of whole cents in random order and check that the
+    * fixed-point sum is exactly the sum of the cents, and that amounts age
+    * out of the window.
+    */
+   @Test
+   public void ensureFixedPointSumIsExact()
+           throws Exception {
+
+      long start = 1500000000000L;
+      Watermark watermark = new Watermark(start);
+      FixedPointAccumulator exact = new FixedPointAccumulator(WindowSpec.DEFAULT, 2, 2, watermark);
+
+      Random random = new Random(7);
+      long cents = 0;
+      BigDecimal expected = BigDecimal.ZERO;
+      for (int i = 0; i < 100000; i++) {
+         long amount = 1 + random.nextInt(10000000);
+         long timestamp = watermark.advance(start + i / 10) - random.nextInt(5000);
+         assertThat(exact.accumulate(timestamp, amount / 100.0)).isTrue();
+         cents += amount;
+         expected = expected.add(BigDecimal.valueOf(amount, 2));
+      }
+      assertThat(exact.toUnits(0.29)).isEqualTo(29);
+      assertThat(exact.toUnits(1.005)).isEqualTo(100);
+
+      StatisticsDTO stats = exact.statistics();
+      assertThat(stats.getCount()).isEqualTo(100000);
+      assertThat(stats.getSum()).isEqualTo(cents / 100.0);
+      assertThat(BigDecimal.valueOf(stats.getSum())).isEqualByComparingTo(expected);
+
+      // the newest values leave the window 60 seconds after the start of
+      // their bucket
+      long lastBucketStart = watermark.currentTimeMillis() / 1000 * 1000;
+      watermark.advance(lastBucketStart + 59999);
+      assertThat(exact.statistics().getCount()).isGreaterThan(0);
+      watermark.advance(lastBucketStart + 60000);
+      assertThat(exact.statistics().getCount()).isEqualTo(0);
+      assertThat(exact.statistics().getSum()).isEqualTo(0);
+      assertThat(exact.accumulate(lastBucketStart, 1.0)).isFalse();
+      assertThat(exact.accumulateUnits(watermark.currentTimeMillis(), 101)).isTrue();
+      assertThat(exact.statistics().getSum()).isEqualTo(1.01);
+   }
+
+   /**
+    * Accumulate from several threads at once into a fixed-point accumulator
+    * and check that no update to its atomic slices is lost.
+    */
+   @Test
+   public void ensureFixedPointAccumulateIsThreadSafe()
+           throws Exception {
+
+      FixedPointAccumulator exact = new FixedPointAccumulator(WindowSpec.DEFAULT, 2, 2);
+      int threads = 4;
+      int perThread = 50000;
+      List<Thread> writers = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+         long base = (long) t * perThread;
+         Thread writer = new Thread(() -> {
+            for (int i = 1; i <= perThread; i++)
+               exact.accumulateUnits(System.currentTimeMillis(), base + i);
+         });
+         writers.add(writer);
+         writer.start();
+      }
+      for (Thread writer : writers)
+         writer.join();
+
+      long n = (long) threads * perThread;
+      StatisticsDTO stats = exact.statistics();
+      assertThat(stats.getCount()).isEqualTo(n);
+      assertThat(stats.getSum()).isEqualTo(n * (n + 1) / 2 / 100.0);
+      assertThat(stats.getMin()).isEqualTo(0.01);
+      assertThat(stats.getMax()).isEqualTo(n / 100.0);
+   }
+
+   /**
+    * Record known durations into a latency histogram and check the
+    * quantiles are within the resolution of its buckets.
+    */
+   @Test
+   public void ensureLatencyHistogramQuantiles()
+           throws Exception {
+
+      LatencyHistogram histogram = new LatencyHistogram();
+      assertThat(histogram.snapshot().quantile(0.5)).isEqualTo(0);
+      for (long nanos = 1; nanos <= 100000; nanos++)
+         histogram.record(nanos * 10);
+      histogram.record(-1);
+
+      LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+      assertThat(snapshot.getCount()).isEqualTo(100001);
+      assertThat(snapshot.getMax()).isEqualTo(1000000);
+      for (double q : new double[]{0.01, 0.5, 0.9, 0.99, 0.999}) {
+         double expected = q * 1000000;
+         assertThat((double) snapshot.quantile(q)).isBetween(expected * 0.93, expected * 1.07);
+      }
+      assertThat(snapshot.quantile(1.0)).isEqualTo(1000000);
+   }
+
+   /**
+    * Advance an event time accumulator across the window and check the
+    * metrics of the accumulator and of a keyed accumulator.
+    */
+   @Test
+   public void ensureAccumulatorMetrics()
+           throws Exception {
+
+      long start = 1500000000000L;
+      Watermark watermark = new Watermark(start);
+      DoubleAccumulator accumulator = new DoubleAccumulator(
+              new WindowSpec[]{WindowSpec.DEFAULT, new WindowSpec(3600000, 60000)}, 1, null, null, null, watermark);
+      for (int second = 0; second < 120; second++)
+         accumulator.accumulate(watermark.advance(start + second * 1000L), 1.0);
+      accumulator.statistics();
+      accumulator.statistics();
+
+      // the 60 one second slices before the last 60 seconds have aged out of
+      // the base tier, and none out of the hour
+      assertThat(accumulator.agedSlices()).containsExactly(60, 0);
+      assertThat(accumulator.getStatisticsCalls()).isEqualTo(2);
+      assertThat(accumulator.getLockWait().snapshot().getCount()).isBetween(0L, 120L);
+
+      for (int i = 0; i < 64000; i++)
+         accumulator.accumulate(watermark.currentTimeMillis(), 1.0);
+      assertThat(accumulator.getLockWait().snapshot().getCount()).isGreaterThan(500);
+
+      KeyedAccumulator keyed = new KeyedAccumulator(new WindowSpec(60000, 5000), 1, watermark);
+      for (int key = 0; key < 1000; key++)
+         keyed.accumulate(key, watermark.currentTimeMillis(), 1.0);
+      watermark.advance(watermark.currentTimeMillis() + 120000);
+      for (int key = 1000; key < 2000; key++)
+         keyed.accumulate(key, watermark.currentTimeMillis(), 1.0);
+      assertThat(keyed.expungedKeys() + keyed.size()).isEqualTo(2000);
+      assertThat(keyed.expungedKeys()).isGreaterThan(0);
+   }
+
+   /**
+    * Maintain many accumulators with one scheduler and check that they
+    * share its one thread, that their maintenance runs, and that closing
+    * them and the scheduler leaves no task or thread behind.
+    */
+   @Test
+   public void ensureAccumulatorsShareMaintenanceThread()
+           throws Exception {
+
+      int before = maintenanceThreads();
+      MaintenanceScheduler scheduler = new MaintenanceScheduler();
+      List<DoubleAccumulator> accumulators = new ArrayList<>();
+      WindowSpec spec = new WindowSpec(1000, 100);
+      for (int i = 0; i < 10000; i++) {
+         DoubleAccumulator accumulator = new DoubleAccumulator(spec, 1);
+         accumulator.maintainWith(scheduler);
+         accumulators.add(accumulator);
+      }
+      assertThat(maintenanceThreads()).isEqualTo(before + 1);
+      assertThat(scheduler.getTasks()).isEqualTo(10000);
+      assertThatThrownBy(() -> accumulators.get(0).maintainWith(scheduler))
+              .isInstanceOf(IllegalStateException.class);
+
+      // every accumulator is maintained as each 100 msec slice turns over
+      long deadline = System.currentTimeMillis() + 5000;
+      while (scheduler.getRuns() < 20000 && System.currentTimeMillis() < deadline)
+         Thread.sleep(10);
+      assertThat(scheduler.getRuns()).isGreaterThanOrEqualTo(20000);
+      assertThat(scheduler.getFailures()).isEqualTo(0);
+
+      for (DoubleAccumulator accumulator : accumulators)
+         accumulator.close();
+      assertThat(scheduler.getTasks()).isEqualTo(0);
+      scheduler.close();
+      assertThat(scheduler.isRunning()).isFalse();
+      assertThat(maintenanceThreads()).isEqualTo(before);
+      assertThatThrownBy(() -> scheduler.schedule(() -> { }, 1000))
+              .isInstanceOf(IllegalStateException.class);
+   }
+
+   /**
+    * Schedule a task which throws an Error on every run alongside one which
+    * does not, and check that the scheduler thread survives the Errors.
+    * Then schedule a task on the clock of a stalled watermark and check that
+    * it waits for the watermark to reach its multiple.
+    */
+   @Test
+   public void ensureSchedulerSurvivesErrorsAndFollowsClock()
+           throws Exception {
+
+      AtomicInteger runs = new AtomicInteger();
+      long deadline = System.currentTimeMillis() + 5000;
+      try (MaintenanceScheduler scheduler = new MaintenanceScheduler()) {
+         scheduler.schedule(() -> {
+            throw new NoSuchMethodError("maintenance");
+         }, 10);
+         scheduler.schedule(runs::incrementAndGet, 10);
+         while ((scheduler.getFailures() < 3 || runs.get() < 3) && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+         assertThat(scheduler.getFailures()).isGreaterThanOrEqualTo(3);
+         assertThat(runs.get()).isGreaterThanOrEqualTo(3);
+         assertThat(scheduler.isRunning()).isTrue();
+      }
+
+      long start = 1500000000000L;
+      Watermark watermark = new Watermark(start);
+      runs.set(0);
+      try (MaintenanceScheduler scheduler = new MaintenanceScheduler(watermark)) {
+         scheduler.schedule(runs::incrementAndGet, 100);
+
+         // nothing runs at the multiple of 100 msec while the watermark
+         // stays short of it, however much real time passes
+         Thread.sleep(300);
+         assertThat(runs.get()).isEqualTo(0);
+         watermark.advance(start + 100);
+         while (runs.get() == 0 && System.currentTimeMillis() < deadline + 1000)
+            Thread.sleep(10);
+         assertThat(runs.get()).isEqualTo(1);
+      }
+   }
+
+   /**
+    * Age a slice out of the window by maintenance and check that statistics
+    * read afterwards do not have to lock the stripe to do so.
+    */
+   @Test
+   public void ensureMaintenanceAgesSlices()
+           throws Exception {
+
+      long start = 1500000000000L;
+      Watermark watermark = new Watermark(start);
+      DoubleAccumulator accumulator = new DoubleAccumulator(new WindowSpec[]{WindowSpec.DEFAULT}, 1,
+              null, DistinctSpec.DEFAULT, null, watermark);
+      accumulator.accumulate(start, 10.0, 42);
+      accumulator.maintain();
+      assertThat(accumulator.statistics().getDistinct()).isEqualTo(1);
+      assertThat(accumulator.getLockedReads()).isEqualTo(0);
+
+      watermark.advance(start + 60000);
+      accumulator.maintain();
+      assertThat(accumulator.agedSlices()[0]).isEqualTo(1);
+      StatisticsDTO stats = accumulator.statistics();
+      assertThat(stats.getCount()).isEqualTo(0);
+      assertThat(stats.getDistinct()).isEqualTo(0);
+      assertThat(accumulator.getLockedReads()).isEqualTo(0);
+   }
+
+   /**
+    * Record 15 minutes of slices aging out of a window into a history of 1
+    * minute by the second and 10 minutes by the minute, and check that
+    * queries by the second and by the minute give the statistics of the
+    * values, stitched across the levels, that the files stay at a fixed size
+    * holding at most the retention, and that the history survives reopening.
+    */
+   @Test
+   public void ensureHistoryRecordsAgedSlices()
+           throws Exception {
+
+      Path directory = Files.createTempDirectory("txstats");
+      try {
+         long start = 1500000000000L / 3600000 * 3600000;
+         Watermark watermark = new Watermark(start);
+         DoubleAccumulator accumulator = new DoubleAccumulator(new WindowSpec[]{new WindowSpec(10000, 1000)}, 1,
+                 null, null, null, watermark);
+         WindowSpec[] levels = {new WindowSpec(60000, 1000), new WindowSpec(600000, 60000)};
+         HistoryStore store = new HistoryStore(directory, levels);
+         accumulator.setExpiryListener(store);
+
+         long end = start + 900000;
+         for (long t = start; t < end; t += 1000) {
+            watermark.advance(t);
+            accumulator.accumulate(t, 1 + t / 1000 % 7);
+            accumulator.accumulate(t, 10.0);
+            accumulator.maintain();
+            store.flush((t / 1000 - 10 + 1) * 1000);
+         }
+         // seconds up to 10 before the last have aged out
+         long last = end - 11000;
+
+         List<HistoryPointDTO> seconds = store.query(last - 29000, last + 1000, 1000);
+         assertThat(seconds).hasSize(30);
+         for (HistoryPointDTO point : seconds) {
+            assertThat(point.getCount()).isEqualTo(2);
+            assertThat(point.getMin()).isEqualTo(1 + point.getTimestamp() / 1000 % 7);
+            assertThat(point.getSum()).isEqualTo(11 + point.getTimestamp() / 1000 % 7);
+         }
+         assertThat(seconds.get(29).getTimestamp()).isEqualTo(last);
+
+         List<Long> counts = new ArrayList<>();
+         List<Double> sums = new ArrayList<>();
+         for (long minute = start; minute <= last; minute += 60000) {
+            long count = 0;
+            double sum = 0;
+            for (long t = minute; t < minute + 60000 && t <= last; t += 1000) {
+               count += 2;
+               sum += 11 + t / 1000 % 7;
+            }
+            counts.add(count);
+            sums.add(sum);
+         }
+         List<HistoryPointDTO> minutes = store.query(start, end, 60000);
+         // minutes 4 to 13 are held by the minute level, the first 4 having
+         // been overwritten, and minute 14 by the second level
+         assertThat(minutes).hasSize(counts.size() - 4);
+         for (int i = 0; i < minutes.size(); i++) {
+            int minute = i + 4;
+            assertThat(minutes.get(i).getTimestamp()).isEqualTo(start + minute * 60000L);
+            assertThat(minutes.get(i).getCount()).isEqualTo(counts.get(minute));
+            assertThat(minutes.get(i).getSum()).isEqualTo(sums.get(minute));
+            assertThat(minutes.get(i).getMax()).isEqualTo(10.0);
+         }
+         assertThat(store.getRecords(0)).isEqualTo(60);
+         assertThat(store.getRecords(1)).isEqualTo(10);
+         assertThat(Files.size(directory.resolve("level0.history"))).isEqualTo(64 + 40 * 60);
+         assertThat(Files.size(directory.resolve("level1.history"))).isEqualTo(64 + 40 * 10);
+
+         // a slice aging out after its second was appended is discarded
+         store.expired(last, 1, 5.0, 5.0, 5.0);
+         store.flush(end);
+         assertThat(store.getLate()).isEqualTo(1);
+         store.close();
+
+         HistoryStore reopened = new HistoryStore(directory, levels);
+         assertThat(reopened.query(start, end, 60000)).usingFieldByFieldElementComparator()
+                 .isEqualTo(minutes);
+         assertThatThrownBy(() -> reopened.query(start, end, 1500))
+                 .isInstanceOf(IllegalArgumentException.class);
+         assertThatThrownBy(() -> reopened.query(start, start + 10001000, 1000))
+                 .isInstanceOf(IllegalArgumentException.class);
+      } finally {
+         for (String level : new String[]{"level0.history", "level1.history"})
+            Files.deleteIfExists(directory.resolve(level));
+         Files.delete(directory);
+      }
+   }
+
+   private static int maintenanceThreads() {
+      int count = 0;
+      for (Thread thread : Thread.getAllStackTraces().keySet()) {
+         if (thread.getName().equals("accumulator-maintenance"))
+            count++;
+      }
+      return count;
+   }
+
+   /**
+    * Add a transaction every 10 seconds for 2 minutes and verify that the
+    * sum never exceeds the sum it had at 1 minute.  This tests that the
+    * time windowing functionality works properly.
+    * <p>
+    * Note:  @Ignore because testing this take over 2 minutes to execute.
+    *
+    * @throws Exception on exception
+    */
+   @Ignore
+   @Test
+   public void ensureConstantSumOverTime()
+           throws Exception {
+
+      int count = 0;
+      while (count < 12) {
+         System.out.println(count + ": Testing in progress, please wait...");
+
+         // add a sample every 10 secs
+         ZonedDateTime zdt;
+         while (true) {
+            Thread.sleep(1000);
+            Instant instant = Instant.now();
+            zdt = instant.atZone(ZoneOffset.UTC);
+            if (zdt.getSecond() % 10 == 0)
+               break;
+         }
+
+         // store a value of 10.0
+         transactions.accumulate(System.currentTimeMillis(), 10.0);
+         count++;
+
+         StatisticsDTO stats = transactions.statistics();
+         if (count > 6)
+            assertThat(stats.getSum()).isEqualTo(60.0);
+         else
+            assertThat(stats.getSum()).isEqualTo(count * 10.0);
+      }
+   }
+}
@@ -0,0 +1,76 @@
+package com.logicpole.txstats.benchmark;
+
+import com.logicpole.txstats.accumulate.DoubleAccumulator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Contention benchmark for DoubleAccumulator.accumulate
+ * <p>
+ * Measures accumulate throughput with an increasing number of writer threads,
+ * for both a single lock and a striped accumulator.  With enough stripes the
+ * throughput should scale close to linearly with the thread count.
+ * <p>
+ * Run with:
+ * <pre>
+ * ./mvnw -pl tx-stats-core test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test \
+ *    -Dexec.args="-cp %classpath com.logicpole.txstats.benchmark.AccumulateContentionBenchmark"
+ * </pre>
+ *
+ * @author Max McCormick
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AccumulateContentionBenchmark {
+
+   @Param({"1", "64"})
+   public int stripes;
+
+   private DoubleAccumulator accumulator;
+
+   @Setup
+   public void setUp() {
+      accumulator = new DoubleAccumulator(stripes);
+   }
+
+   @Benchmark
+   public boolean accumulate() {
+      return accumulator.accumulate(System.currentTimeMillis(), 12.5);
+   }
+
+   /**
+    * Run the benchmark once for each thread count, doubling from one thread
+    * up to the number of available processors.
+    *
+    * @param args unused
+    * @throws Exception on benchmark failure
+    */
+   public static void main(String[] args) throws Exception {
+      int cores = Runtime.getRuntime().availableProcessors();
+      for (int threads = 1; threads <= cores; threads <<= 1) {
+         Options options = new OptionsBuilder()
+                 .include(AccumulateContentionBenchmark.class.getSimpleName())
+                 .threads(threads)
+                 .build();
+         new Runner(options).run();
+      }
+   }
+}
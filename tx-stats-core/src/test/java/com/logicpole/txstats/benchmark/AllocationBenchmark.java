@@ -0,0 +1,71 @@
+package com.logicpole.txstats.benchmark;
+
+import com.logicpole.txstats.accumulate.DoubleAccumulator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Allocation benchmark for the DoubleAccumulator hot paths
+ * <p>
+ * Runs accumulate and statistics with the GC profiler attached.  The
+ * gc.alloc.rate.norm figure (bytes per operation) should be 0 for accumulate.
+ * For statistics it should be the size of the returned StatisticsDTO alone
+ * (64 bytes on a 64-bit JVM with compressed oops), ie. computing the window
+ * itself allocates nothing.
+ * <p>
+ * Run with:
+ * <pre>
+ * ./mvnw -pl tx-stats-core test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test \
+ *    -Dexec.args="-cp %classpath com.logicpole.txstats.benchmark.AllocationBenchmark"
+ * </pre>
+ *
+ * @author Max McCormick
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AllocationBenchmark {
+
+   private DoubleAccumulator accumulator;
+
+   @Setup
+   public void setUp() {
+      accumulator = new DoubleAccumulator();
+      accumulator.accumulate(System.currentTimeMillis(), 12.5);
+   }
+
+   @Benchmark
+   public boolean accumulate() {
+      return accumulator.accumulate(System.currentTimeMillis(), 12.5);
+   }
+
+   @Benchmark
+   public double statistics() {
+      return accumulator.statistics().getSum();
+   }
+
+   public static void main(String[] args) throws Exception {
+      Options options = new OptionsBuilder()
+              .include(AllocationBenchmark.class.getSimpleName())
+              .addProfiler(GCProfiler.class)
+              .build();
+      new Runner(options).run();
+   }
+}
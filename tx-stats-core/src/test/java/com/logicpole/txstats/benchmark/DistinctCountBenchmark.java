@@ -0,0 +1,87 @@
+package com.logicpole.txstats.benchmark;
+
+import com.logicpole.txstats.accumulate.DistinctSpec;
+import com.logicpole.txstats.accumulate.DoubleAccumulator;
+import com.logicpole.txstats.accumulate.WindowSpec;
+import com.logicpole.txstats.dto.StatisticsDTO;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of distinct counts in DoubleAccumulator
+ * <p>
+ * Measures keyed accumulate and whole window statistics with no distinct
+ * counts (precision 0) and with HyperLogLog registers of increasing
+ * precision.  The statistics latency includes the rebuild of the merged
+ * registers each time a slice ages out, amortized over the calls in between.
+ * gc.alloc.rate.norm should be 0 for accumulate, and the size of the
+ * returned StatisticsDTO and its Long for statistics.
+ * <p>
+ * Run with:
+ * <pre>
+ * ./mvnw -pl tx-stats-core test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test \
+ *    -Dexec.args="-cp %classpath com.logicpole.txstats.benchmark.DistinctCountBenchmark"
+ * </pre>
+ *
+ * @author Max McCormick
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DistinctCountBenchmark {
+
+   @Param({"0", "12", "14"})
+   public int precision;
+
+   private DoubleAccumulator accumulator;
+   private long key;
+
+   @Setup
+   public void setUp() {
+      DistinctSpec distinct = precision == 0 ? null : new DistinctSpec(precision);
+      accumulator = new DoubleAccumulator(new WindowSpec[]{WindowSpec.DEFAULT}, 1, null, distinct);
+
+      // spread keyed values over the window so that every slice holds data
+      Random random = new Random(42);
+      long now = System.currentTimeMillis();
+      for (int i = 0; i < 200000; i++)
+         accumulator.accumulate(now - random.nextInt(59000), 12.5, random.nextInt(100000));
+   }
+
+   @Benchmark
+   public boolean accumulateKeyed() {
+      return accumulator.accumulate(System.currentTimeMillis(), 12.5, key++);
+   }
+
+   @Benchmark
+   public StatisticsDTO statistics() {
+      return accumulator.statistics();
+   }
+
+   public static void main(String[] args) throws Exception {
+      Options options = new OptionsBuilder()
+              .include(DistinctCountBenchmark.class.getSimpleName())
+              .addProfiler(GCProfiler.class)
+              .build();
+      new Runner(options).run();
+   }
+}
@@ -0,0 +1,118 @@
+package com.logicpole.txstats.benchmark;
+
+import com.logicpole.txstats.accumulate.DoubleAccumulator;
+import com.logicpole.txstats.accumulate.FixedPointAccumulator;
+import com.logicpole.txstats.accumulate.WindowSpec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.math.BigDecimal;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fixed-point benchmark
+ * <p>
+ * Measures accumulate throughput of the lock-free FixedPointAccumulator
+ * against the locked DoubleAccumulator, with an increasing number of writer
+ * threads and both a single stripe and many.
+ * <p>
+ * Before the benchmark, the main method also accumulates the same random
+ * amounts of whole cents into both, in two different orders, and prints
+ * how far each sum is from the exact one.
+ * <p>
+ * Run with:
+ * <pre>
+ * ./mvnw -pl tx-stats-core test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test \
+ *    -Dexec.args="-cp %classpath com.logicpole.txstats.benchmark.FixedPointBenchmark"
+ * </pre>
+ *
+ * @author Max McCormick
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FixedPointBenchmark {
+
+   @Param({"1", "64"})
+   public int stripes;
+
+   private DoubleAccumulator doubles;
+   private FixedPointAccumulator exact;
+
+   @Setup
+   public void setUp() {
+      doubles = new DoubleAccumulator(stripes);
+      exact = new FixedPointAccumulator(WindowSpec.DEFAULT, stripes, 2);
+   }
+
+   @Benchmark
+   public boolean accumulateDouble() {
+      return doubles.accumulate(System.currentTimeMillis(), 12.5);
+   }
+
+   @Benchmark
+   public boolean accumulateFixedPoint() {
+      return exact.accumulate(System.currentTimeMillis(), 12.5);
+   }
+
+   /**
+    * Print the drift of each sum from the exact sum, then run the benchmark
+    * once for each thread count, doubling from one thread up to the number
+    * of available processors.
+    *
+    * @param args unused
+    * @throws Exception on benchmark failure
+    */
+   public static void main(String[] args) throws Exception {
+      compareSums(1000000);
+
+      int cores = Runtime.getRuntime().availableProcessors();
+      for (int threads = 1; threads <= cores; threads <<= 1) {
+         Options options = new OptionsBuilder()
+                 .include(FixedPointBenchmark.class.getSimpleName())
+                 .threads(threads)
+                 .build();
+         new Runner(options).run();
+      }
+   }
+
+   private static void compareSums(int count) {
+      long[] cents = new long[count];
+      Random random = new Random(42);
+      for (int i = 0; i < count; i++)
+         cents[i] = 1 + random.nextInt(10000000);
+      BigDecimal expected = BigDecimal.ZERO;
+      for (long amount : cents)
+         expected = expected.add(BigDecimal.valueOf(amount, 2));
+
+      for (String order : new String[]{"forward", "reverse"}) {
+         DoubleAccumulator doubles = new DoubleAccumulator();
+         FixedPointAccumulator exact = new FixedPointAccumulator(WindowSpec.DEFAULT, 1, 2);
+         long now = System.currentTimeMillis();
+         for (int i = 0; i < count; i++) {
+            long amount = cents[order.equals("forward") ? i : count - 1 - i];
+            doubles.accumulate(now, amount / 100.0);
+            exact.accumulate(now, amount / 100.0);
+         }
+         System.out.printf("%s: exact %s, double off by %s, fixed-point off by %s%n", order, expected.toPlainString(),
+                 new BigDecimal(doubles.statistics().getSum()).subtract(expected).toPlainString(),
+                 BigDecimal.valueOf(exact.statistics().getSum()).subtract(expected).toPlainString());
+      }
+   }
+}
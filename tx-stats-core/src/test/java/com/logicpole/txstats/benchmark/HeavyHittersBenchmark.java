@@ -0,0 +1,98 @@
+package com.logicpole.txstats.benchmark;
+
+import com.logicpole.txstats.accumulate.DoubleAccumulator;
+import com.logicpole.txstats.accumulate.HeavyHitters;
+import com.logicpole.txstats.accumulate.WindowSpec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Overhead benchmark for HeavyHitters
+ * <p>
+ * Compares the plain DoubleAccumulator.accumulate path with the same path
+ * also counting the value in a HeavyHitters of the default capacity, over a
+ * million distinct keys of which a few are heavy.  Also measures the top 20
+ * query which the dashboard makes.  gc.alloc.rate.norm should be 0 for both
+ * accumulate benchmarks.
+ * <p>
+ * Run with:
+ * <pre>
+ * ./mvnw -pl tx-stats-core test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test \
+ *    -Dexec.args="-cp %classpath com.logicpole.txstats.benchmark.HeavyHittersBenchmark"
+ * </pre>
+ *
+ * @author Max McCormick
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HeavyHittersBenchmark {
+
+   // number of precomputed random keys, a power of two
+   private static final int SAMPLES = 1 << 20;
+
+   private DoubleAccumulator accumulator;
+   private HeavyHitters hitters;
+   private long[] samples;
+   private int next;
+
+   @Setup
+   public void setUp() {
+      accumulator = new DoubleAccumulator();
+      hitters = new HeavyHitters(new WindowSpec(60000, 5000), 256, 1);
+
+      // one value in ten has one of 20 heavy keys, the rest are spread over a
+      // million keys
+      Random random = new Random(42);
+      samples = new long[SAMPLES];
+      for (int i = 0; i < SAMPLES; i++)
+         samples[i] = random.nextInt(10) == 0 ? random.nextInt(20) : 100 + random.nextInt(1000000);
+
+      long now = System.currentTimeMillis();
+      for (long key : samples)
+         hitters.accumulate(key, now, 12.5);
+   }
+
+   @Benchmark
+   public boolean accumulate() {
+      return accumulator.accumulate(System.currentTimeMillis(), 12.5);
+   }
+
+   @Benchmark
+   public boolean accumulateWithHeavyHitters() {
+      long key = samples[next++ & (SAMPLES - 1)];
+      long now = System.currentTimeMillis();
+      return accumulator.accumulate(now, 12.5) & hitters.accumulate(key, now, 12.5);
+   }
+
+   @Benchmark
+   public Object top20() {
+      return hitters.top(20, HeavyHitters.By.SUM);
+   }
+
+   public static void main(String[] args) throws Exception {
+      Options options = new OptionsBuilder()
+              .include(HeavyHittersBenchmark.class.getSimpleName())
+              .addProfiler(GCProfiler.class)
+              .build();
+      new Runner(options).run();
+   }
+}
@@ -0,0 +1,118 @@
+package com.logicpole.txstats.benchmark;
+
+import com.logicpole.txstats.accumulate.WindowSpec;
+import com.logicpole.txstats.dto.HistoryPointDTO;
+import com.logicpole.txstats.history.HistoryStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * History query benchmark
+ * <p>
+ * Measures range queries of a HistoryStore holding two days of history at
+ * the default levels, by the second for a day, by the minute for 90 days
+ * and by the hour for 5 years, with a slice every second:
+ * <pre>
+ * recentMinute  - the last minute by the second, 60 records read
+ * hourBySecond  - the last hour by the second, 3,600 records read
+ * dayByMinute   - the last day by the minute, 1,440 records read from the
+ *                 minute level
+ * twoDaysByHour - the two days by the hour, 48 records read from the hour
+ *                 level and the last minutes from the finer levels
+ * </pre>
+ * Each query seeks the start of its range in a level by a binary search,
+ * and reads from the coarsest level dividing its step, so a query costs
+ * about the points it returns, not the records held.  Setup also reports
+ * the time to append the two days.
+ * <p>
+ * Run with:
+ * <pre>
+ * ./mvnw -pl tx-stats-core test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test \
+ *    -Dexec.args="-cp %classpath com.logicpole.txstats.benchmark.HistoryQueryBenchmark"
+ * </pre>
+ *
+ * @author Max McCormick
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HistoryQueryBenchmark {
+
+   private static final long DAY_MILLIS = 86400000;
+
+   private Path directory;
+   private HistoryStore store;
+   private long end;
+
+   @Setup
+   public void setUp() throws IOException {
+      directory = Files.createTempDirectory("txstats");
+      store = new HistoryStore(directory, new WindowSpec[]{new WindowSpec(DAY_MILLIS, 1000),
+              new WindowSpec(90 * DAY_MILLIS, 60000), new WindowSpec(5 * 365 * DAY_MILLIS, 3600000)});
+      long start = System.currentTimeMillis() / DAY_MILLIS * DAY_MILLIS - 2 * DAY_MILLIS;
+      end = start + 2 * DAY_MILLIS;
+      long began = System.nanoTime();
+      for (long t = start; t < end; t += 1000) {
+         store.expired(t, 10, 125.0, 1.0, 50.0);
+         store.flush(t + 1000);
+      }
+      System.out.printf("%nappended %d seconds in %.1f ms%n", 2 * DAY_MILLIS / 1000,
+              (System.nanoTime() - began) / 1e6);
+   }
+
+   @TearDown
+   public void tearDown() throws IOException {
+      store.close();
+      for (int l = 0; l < store.getLevels(); l++)
+         Files.deleteIfExists(directory.resolve("level" + l + ".history"));
+      Files.delete(directory);
+   }
+
+   @Benchmark
+   public List<HistoryPointDTO> recentMinute() {
+      return store.query(end - 60000, end, 1000);
+   }
+
+   @Benchmark
+   public List<HistoryPointDTO> hourBySecond() {
+      return store.query(end - 3600000, end, 1000);
+   }
+
+   @Benchmark
+   public List<HistoryPointDTO> dayByMinute() {
+      return store.query(end - DAY_MILLIS, end, 60000);
+   }
+
+   @Benchmark
+   public List<HistoryPointDTO> twoDaysByHour() {
+      return store.query(end - 2 * DAY_MILLIS, end, 3600000);
+   }
+
+   public static void main(String[] args) throws Exception {
+      Options options = new OptionsBuilder()
+              .include(HistoryQueryBenchmark.class.getSimpleName())
+              .build();
+      new Runner(options).run();
+   }
+}
@@ -0,0 +1,106 @@
+package com.logicpole.txstats.benchmark;
+
+import com.logicpole.txstats.accumulate.DoubleAccumulator;
+import com.logicpole.txstats.accumulate.KeyedAccumulator;
+import com.logicpole.txstats.accumulate.WindowSpec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ingest benchmark for KeyedAccumulator at increasing key counts
+ * <p>
+ * Every key is accumulated once during setup, so the benchmark measures the
+ * steady state of a populated table, with keys drawn at random so that the
+ * large tables are mostly out of cache.  The unkeyed DoubleAccumulator is
+ * included as a baseline.  The memory of the key tables, and so the bytes
+ * per key, is printed after each run, and gc.alloc.rate.norm should be 0.
+ * <p>
+ * Run with:
+ * <pre>
+ * ./mvnw -pl tx-stats-core test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test \
+ *    -Dexec.args="-Xmx2g -cp %classpath com.logicpole.txstats.benchmark.KeyedAccumulateBenchmark"
+ * </pre>
+ *
+ * @author Max McCormick
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Thread)
+public class KeyedAccumulateBenchmark {
+
+   // number of precomputed random keys, a power of two
+   private static final int SAMPLES = 1 << 20;
+
+   @Param({"1000", "1000000"})
+   public int keys;
+
+   private KeyedAccumulator keyed;
+   private DoubleAccumulator unkeyed;
+   private long[] samples;
+   private int next;
+
+   @Setup
+   public void setUp() {
+      keyed = new KeyedAccumulator(new WindowSpec(60000, 5000), 1);
+      unkeyed = new DoubleAccumulator();
+      long now = System.currentTimeMillis();
+      for (long key = 0; key < keys; key++)
+         keyed.accumulate(key, now, 12.5);
+
+      Random random = new Random(42);
+      samples = new long[SAMPLES];
+      for (int i = 0; i < SAMPLES; i++)
+         samples[i] = random.nextInt(keys);
+   }
+
+   @TearDown
+   public void tearDown() {
+      System.out.println("\nkeys " + keyed.size() + ", table memory " + keyed.memoryBytes()
+              + " bytes, " + keyed.memoryBytes() / keyed.size() + " bytes per key");
+   }
+
+   @Benchmark
+   public boolean accumulateKeyed() {
+      long key = samples[next++ & (SAMPLES - 1)];
+      return keyed.accumulate(key, System.currentTimeMillis(), 12.5);
+   }
+
+   @Benchmark
+   public double statisticsKeyed() {
+      long key = samples[next++ & (SAMPLES - 1)];
+      return keyed.statistics(key).getSum();
+   }
+
+   @Benchmark
+   public boolean accumulateUnkeyed() {
+      return unkeyed.accumulate(System.currentTimeMillis(), 12.5);
+   }
+
+   public static void main(String[] args) throws Exception {
+      Options options = new OptionsBuilder()
+              .include(KeyedAccumulateBenchmark.class.getSimpleName())
+              .addProfiler(GCProfiler.class)
+              .build();
+      new Runner(options).run();
+   }
+}
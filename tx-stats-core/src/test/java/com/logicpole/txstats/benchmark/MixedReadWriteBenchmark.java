@@ -0,0 +1,110 @@
+package com.logicpole.txstats.benchmark;
+
+import com.logicpole.txstats.accumulate.DoubleAccumulator;
+import com.logicpole.txstats.dto.StatisticsDTO;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mixed read/write benchmark for DoubleAccumulator
+ * <p>
+ * Runs writer threads calling accumulate alongside reader threads calling
+ * statistics on the same accumulator, at write to read thread ratios of
+ * 3:1, 2:2 and 1:3, for both a single lock and a striped accumulator.  JMH
+ * reports the throughput of the readers and writers of each group
+ * separately, so the cost each side imposes on the other can be read off
+ * against AccumulateContentionBenchmark.
+ * <p>
+ * Run with:
+ * <pre>
+ * ./mvnw -pl tx-stats-core test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test \
+ *    -Dexec.args="-cp %classpath com.logicpole.txstats.benchmark.MixedReadWriteBenchmark"
+ * </pre>
+ *
+ * @author Max McCormick
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class MixedReadWriteBenchmark {
+
+   @Param({"1", "4"})
+   public int stripes;
+
+   private DoubleAccumulator accumulator;
+
+   @Setup
+   public void setUp() {
+      accumulator = new DoubleAccumulator(stripes);
+   }
+
+   @Benchmark
+   @Group("writeHeavy")
+   @GroupThreads(3)
+   public boolean writeHeavyAccumulate() {
+      return accumulator.accumulate(System.currentTimeMillis(), 12.5);
+   }
+
+   @Benchmark
+   @Group("writeHeavy")
+   @GroupThreads(1)
+   public StatisticsDTO writeHeavyStatistics() {
+      return accumulator.statistics();
+   }
+
+   @Benchmark
+   @Group("balanced")
+   @GroupThreads(2)
+   public boolean balancedAccumulate() {
+      return accumulator.accumulate(System.currentTimeMillis(), 12.5);
+   }
+
+   @Benchmark
+   @Group("balanced")
+   @GroupThreads(2)
+   public StatisticsDTO balancedStatistics() {
+      return accumulator.statistics();
+   }
+
+   @Benchmark
+   @Group("readHeavy")
+   @GroupThreads(1)
+   public boolean readHeavyAccumulate() {
+      return accumulator.accumulate(System.currentTimeMillis(), 12.5);
+   }
+
+   @Benchmark
+   @Group("readHeavy")
+   @GroupThreads(3)
+   public StatisticsDTO readHeavyStatistics() {
+      return accumulator.statistics();
+   }
+
+   public static void main(String[] args) throws Exception {
+      Options options = new OptionsBuilder()
+              .include(MixedReadWriteBenchmark.class.getSimpleName())
+              .addProfiler(GCProfiler.class)
+              .build();
+      new Runner(options).run();
+   }
+}
@@ -0,0 +1,101 @@
+package com.logicpole.txstats.benchmark;
+
+import com.logicpole.txstats.accumulate.DistinctSpec;
+import com.logicpole.txstats.accumulate.DoubleAccumulator;
+import com.logicpole.txstats.accumulate.SketchSpec;
+import com.logicpole.txstats.accumulate.WindowSpec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of keeping DoubleAccumulator slices in a memory-mapped state file
+ * <p>
+ * Measures keyed accumulate into the default tiers, sketch and distinct
+ * counts, with the slices in memory only and also written through to a
+ * state file.  The time to restore an accumulator from the file, with every
+ * slice of the window in use, is printed after each run.  gc.alloc.rate.norm
+ * should be 0 either way.
+ * <p>
+ * Run with:
+ * <pre>
+ * ./mvnw -pl tx-stats-core test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test \
+ *    -Dexec.args="-cp %classpath com.logicpole.txstats.benchmark.StateFileBenchmark"
+ * </pre>
+ *
+ * @author Max McCormick
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StateFileBenchmark {
+
+   private static final WindowSpec[] TIERS = {
+           new WindowSpec(60000, 1000), new WindowSpec(300000, 5000), new WindowSpec(3600000, 60000)};
+
+   @Param({"false", "true"})
+   public boolean persisted;
+
+   private Path file;
+   private DoubleAccumulator accumulator;
+   private long key;
+
+   @Setup
+   public void setUp() throws IOException {
+      file = persisted ? Files.createTempFile("txstats", ".state") : null;
+      accumulator = new DoubleAccumulator(TIERS, 1, SketchSpec.DEFAULT, DistinctSpec.DEFAULT, file);
+
+      // spread values over the window so that every slice holds data
+      Random random = new Random(42);
+      long now = System.currentTimeMillis();
+      for (int i = 0; i < 200000; i++)
+         accumulator.accumulate(now - random.nextInt(59000), 1 + random.nextInt(100000) / 100.0, i);
+   }
+
+   @TearDown
+   public void tearDown() throws IOException {
+      if (file == null)
+         return;
+      long start = System.nanoTime();
+      DoubleAccumulator restored = new DoubleAccumulator(TIERS, 1, SketchSpec.DEFAULT, DistinctSpec.DEFAULT, file);
+      long elapsed = System.nanoTime() - start;
+      System.out.printf("%nrestored %d slices in %.1f ms, %d bytes%n", restored.getRestoredSlices(),
+              elapsed / 1e6, Files.size(file));
+      Files.deleteIfExists(file);
+   }
+
+   @Benchmark
+   public boolean accumulateKeyed() {
+      return accumulator.accumulate(System.currentTimeMillis(), 12.5, key++);
+   }
+
+   public static void main(String[] args) throws Exception {
+      Options options = new OptionsBuilder()
+              .include(StateFileBenchmark.class.getSimpleName())
+              .addProfiler(GCProfiler.class)
+              .build();
+      new Runner(options).run();
+   }
+}
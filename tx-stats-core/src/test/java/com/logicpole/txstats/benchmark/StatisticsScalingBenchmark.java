@@ -0,0 +1,80 @@
+package com.logicpole.txstats.benchmark;
+
+import com.logicpole.txstats.accumulate.DoubleAccumulator;
+import com.logicpole.txstats.accumulate.WindowSpec;
+import com.logicpole.txstats.dto.StatisticsDTO;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Statistics latency against slice count
+ * <p>
+ * Fills a 60 second window at resolutions from one second (60 slices) down to
+ * one msec (60,000 slices), and measures the latency of statistics over the
+ * whole window, which should not depend on the slice count, and over half of
+ * it, which visits every slice.
+ * <p>
+ * Run with:
+ * <pre>
+ * ./mvnw -pl tx-stats-core test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test \
+ *    -Dexec.args="-cp %classpath com.logicpole.txstats.benchmark.StatisticsScalingBenchmark"
+ * </pre>
+ *
+ * @author Max McCormick
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StatisticsScalingBenchmark {
+
+   @Param({"60", "600", "6000", "60000"})
+   public int slices;
+
+   private DoubleAccumulator accumulator;
+
+   @Setup
+   public void setUp() {
+      accumulator = new DoubleAccumulator(new WindowSpec(60000, 60000 / slices), 1);
+
+      // spread values over the window so that every slice holds data
+      Random random = new Random(42);
+      long now = System.currentTimeMillis();
+      for (int i = 0; i < 200000; i++)
+         accumulator.accumulate(now - random.nextInt(59000), random.nextDouble() * 100);
+   }
+
+   @Benchmark
+   public StatisticsDTO wholeWindow() {
+      return accumulator.statistics();
+   }
+
+   @Benchmark
+   public StatisticsDTO halfWindow() {
+      return accumulator.statistics(30000);
+   }
+
+   public static void main(String[] args) throws Exception {
+      Options options = new OptionsBuilder()
+              .include(StatisticsScalingBenchmark.class.getSimpleName())
+              .build();
+      new Runner(options).run();
+   }
+}
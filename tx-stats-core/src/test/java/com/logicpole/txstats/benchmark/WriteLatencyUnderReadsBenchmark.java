@@ -0,0 +1,112 @@
+package com.logicpole.txstats.benchmark;
+
+import com.logicpole.txstats.accumulate.DoubleAccumulator;
+import com.logicpole.txstats.accumulate.LatencyHistogram;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Write latency of DoubleAccumulator under concurrent reads
+ * <p>
+ * Times every accumulate of one writer thread, paced at a fixed rate, while
+ * a number of reader threads call statistics as fast as they can, and
+ * reports the percentiles of the write times, the reads per second and the
+ * fraction of stripe reads which took the lock, for each number of readers.  If readers held up writers, the write tail would
+ * grow with the number of readers; it should not.  The writer is paced, and
+ * its times are taken from when each write was due, so a stall is charged
+ * to every write it delays rather than to one.
+ * <p>
+ * Options, each as --name=value:
+ * <pre>
+ * readers - comma separated reader thread counts (default 0,1,2,4)
+ * rate    - writes per second (default 200000)
+ * seconds - duration of each run (default 5)
+ * stripes - accumulator stripes (default 1)
+ * </pre>
+ * Run with:
+ * <pre>
+ * ./mvnw -pl tx-stats-core test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test \
+ *    -Dexec.args="-cp %classpath com.logicpole.txstats.benchmark.WriteLatencyUnderReadsBenchmark"
+ * </pre>
+ *
+ * @author Max McCormick
+ */
+public final class WriteLatencyUnderReadsBenchmark {
+
+   public static void main(String[] args) throws InterruptedException {
+      Map<String, String> options = new HashMap<>();
+      for (String arg : args)
+         options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+      long rate = Long.parseLong(options.getOrDefault("rate", "200000"));
+      int seconds = Integer.parseInt(options.getOrDefault("seconds", "5"));
+      int stripes = Integer.parseInt(options.getOrDefault("stripes", "1"));
+
+      // warm up both paths before measuring
+      run(new DoubleAccumulator(stripes), 1, rate, 2);
+      System.out.printf("%7s %10s %8s %9s %9s %9s %9s %9s%n",
+              "readers", "reads/s", "locked", "p50 us", "p99 us", "p99.9 us", "p99.99 us", "max us");
+      for (String readers : options.getOrDefault("readers", "0,1,2,4").split(",")) {
+         int n = Integer.parseInt(readers.trim());
+         DoubleAccumulator accumulator = new DoubleAccumulator(stripes);
+         Result result = run(accumulator, n, rate, seconds);
+         LatencyHistogram.Snapshot writes = result.writes;
+         double stripeReads = result.readsPerSecond * seconds * stripes;
+         System.out.printf("%7d %,10.0f %7.4f%% %9.1f %9.1f %9.1f %9.1f %9.1f%n", n, result.readsPerSecond,
+                 stripeReads == 0 ? 0 : 100 * accumulator.getLockedReads() / stripeReads,
+                 writes.quantile(0.5) / 1e3, writes.quantile(0.99) / 1e3, writes.quantile(0.999) / 1e3,
+                 writes.quantile(0.9999) / 1e3, writes.getMax() / 1e3);
+      }
+   }
+
+   private static Result run(DoubleAccumulator accumulator, int readers, long rate, int seconds)
+           throws InterruptedException {
+      LatencyHistogram writes = new LatencyHistogram();
+      LongAdder reads = new LongAdder();
+      long intervalNanos = 1000000000L / rate;
+      long start = System.nanoTime();
+      long end = start + seconds * 1000000000L;
+
+      List<Thread> threads = new ArrayList<>();
+      for (int r = 0; r < readers; r++) {
+         Thread reader = new Thread(() -> {
+            while (System.nanoTime() < end) {
+               accumulator.statistics();
+               reads.increment();
+            }
+         });
+         reader.setDaemon(true);
+         threads.add(reader);
+      }
+      Thread writer = new Thread(() -> {
+         long due = start;
+         while (due < end) {
+            while (System.nanoTime() < due) {
+               // wait for the next write to be due
+            }
+            accumulator.accumulate(System.currentTimeMillis(), 12.5);
+            writes.record(System.nanoTime() - due);
+            due += intervalNanos;
+         }
+      });
+      threads.add(writer);
+      for (Thread thread : threads)
+         thread.start();
+      for (Thread thread : threads)
+         thread.join();
+      return new Result(writes.snapshot(), reads.sum() / (double) seconds);
+   }
+
+   private static final class Result {
+      private final LatencyHistogram.Snapshot writes;
+      private final double readsPerSecond;
+
+      private Result(LatencyHistogram.Snapshot writes, double readsPerSecond) {
+         this.writes = writes;
+         this.readsPerSecond = readsPerSecond;
+      }
+   }
+}
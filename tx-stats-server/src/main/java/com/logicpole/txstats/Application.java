@@ -0,0 +1,81 @@
+package com.logicpole.txstats;
+
+import com.logicpole.txstats.accumulate.MaintenanceScheduler;
+import com.logicpole.txstats.accumulate.TimeSource;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.SpringBootConfiguration;
+import org.springframework.boot.actuate.autoconfigure.EndpointAutoConfiguration;
+import org.springframework.boot.actuate.autoconfigure.EndpointWebMvcAutoConfiguration;
+import org.springframework.boot.actuate.autoconfigure.ManagementServerPropertiesAutoConfiguration;
+import org.springframework.boot.actuate.autoconfigure.PublicMetricsAutoConfiguration;
+import org.springframework.boot.autoconfigure.ImportAutoConfiguration;
+import org.springframework.boot.autoconfigure.context.ConfigurationPropertiesAutoConfiguration;
+import org.springframework.boot.autoconfigure.context.PropertyPlaceholderAutoConfiguration;
+import org.springframework.boot.autoconfigure.jackson.JacksonAutoConfiguration;
+import org.springframework.boot.autoconfigure.web.DispatcherServletAutoConfiguration;
+import org.springframework.boot.autoconfigure.web.EmbeddedServletContainerAutoConfiguration;
+import org.springframework.boot.autoconfigure.web.ErrorMvcAutoConfiguration;
+import org.springframework.boot.autoconfigure.web.HttpMessageConvertersAutoConfiguration;
+import org.springframework.boot.autoconfigure.web.ServerPropertiesAutoConfiguration;
+import org.springframework.boot.autoconfigure.web.WebMvcAutoConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.ComponentScan;
+
+/**
+ * Spring application entry-point
+ *
+ * This will cause the transaction stats rest service to come up at
+ * localhost:8080.
+ *
+ * Rather than enabling every auto-configuration on the classpath, which
+ * evaluates the conditions of well over a hundred of them at startup, only
+ * those the service uses are imported:  the embedded container and Spring
+ * MVC with Jackson, configuration properties, and the actuator endpoints
+ * behind GET /metrics.  A feature needing another auto-configuration must
+ * add it here.
+ *
+ * TODO:  make the application context configurable
+ *
+ * @author Max McCormick
+ */
+@SpringBootConfiguration
+@ComponentScan
+@ImportAutoConfiguration({
+        PropertyPlaceholderAutoConfiguration.class,
+        ConfigurationPropertiesAutoConfiguration.class,
+        JacksonAutoConfiguration.class,
+        EmbeddedServletContainerAutoConfiguration.class,
+        ServerPropertiesAutoConfiguration.class,
+        DispatcherServletAutoConfiguration.class,
+        HttpMessageConvertersAutoConfiguration.class,
+        WebMvcAutoConfiguration.class,
+        ErrorMvcAutoConfiguration.class,
+        ManagementServerPropertiesAutoConfiguration.class,
+        EndpointAutoConfiguration.class,
+        EndpointWebMvcAutoConfiguration.class,
+        PublicMetricsAutoConfiguration.class})
+public class Application {
+
+   public static void main(String[] args) {
+      SpringApplication.run(Application.class, args);
+   }
+
+   /**
+    * The clock at which the statistics windows end, the wall clock.  A test
+    * may replace it with a {@link com.logicpole.txstats.accumulate.Watermark}
+    * to move time itself.
+    */
+   @Bean
+   public TimeSource timeSource() {
+      return TimeSource.SYSTEM;
+   }
+
+   /**
+    * The single thread maintaining every accumulator and running the ticks
+    * of the statistics stream, as their slices turn over on the given clock.
+    */
+   @Bean(destroyMethod = "close")
+   public MaintenanceScheduler maintenanceScheduler(TimeSource timeSource) {
+      return new MaintenanceScheduler(timeSource);
+   }
+}
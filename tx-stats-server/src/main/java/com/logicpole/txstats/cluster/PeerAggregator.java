@@ -0,0 +1,169 @@
+package com.logicpole.txstats.cluster;
+
+import com.logicpole.txstats.accumulate.PartialStatistics;
+import com.logicpole.txstats.config.ClusterProperties;
+import com.logicpole.txstats.dto.StatisticsDTO;
+import com.logicpole.txstats.service.TransactionService;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Peer aggregator
+ * <p>
+ * Answers statistics over every node of a deployment, each of which sees
+ * only its share of the transactions, by fetching the partial statistics of
+ * the configured peers from GET /statistics/partial in parallel and merging
+ * them with those of this node.
+ * <p>
+ * The partial statistics of each peer are reused for the configured cache
+ * time, and concurrent requests share a fetch in progress, so the peers are
+ * asked at most once per cache time however often the global statistics are
+ * read.  A peer which fails, or does not answer within the timeout, is left
+ * out, which shows in the node count of the statistics.
+ *
+ * @author Max McCormick
+ */
+@Component
+public class PeerAggregator {
+
+   private final TransactionService service;
+   private final long timeoutMillis;
+   private final long cacheMillis;
+   private final List<Peer> peers = new ArrayList<>();
+   private final ExecutorService executor;
+
+   /**
+    * Create the aggregator.
+    *
+    * @param service    the transaction accumulators of this node.
+    * @param properties the peers, timeout and cache time.
+    */
+   public PeerAggregator(TransactionService service, ClusterProperties properties) {
+      this.service = service;
+      timeoutMillis = properties.getTimeoutMillis();
+      cacheMillis = properties.getCacheMillis();
+      for (String url : properties.getPeers())
+         peers.add(new Peer(url.endsWith("/") ? url.substring(0, url.length() - 1) : url));
+      executor = peers.isEmpty() ? null : Executors.newFixedThreadPool(peers.size(), runnable -> {
+         Thread thread = new Thread(runnable, "peer-fetch");
+         thread.setDaemon(true);
+         return thread;
+      });
+   }
+
+   @PreDestroy
+   public void close() {
+      if (executor != null)
+         executor.shutdownNow();
+   }
+
+   /**
+    * Check whether any peers are configured.
+    *
+    * @return <tt>true</tt> if there are peers to aggregate.
+    */
+   public boolean isEnabled() {
+      return !peers.isEmpty();
+   }
+
+   /**
+    * Get the statistics over the window of this node and every peer which
+    * answers within the timeout.
+    *
+    * @return the merged statistics, with the number of nodes merged.
+    */
+   public StatisticsDTO statistics() {
+      List<Future<PartialStatistics>> fetches = new ArrayList<>();
+      for (Peer peer : peers)
+         fetches.add(peer.fetch());
+
+      PartialStatistics merged = service.getTransactions().partialStatistics();
+      int nodes = 1;
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+      for (Future<PartialStatistics> fetch : fetches) {
+         try {
+            merged.merge(fetch.get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS));
+            nodes++;
+         } catch (ExecutionException | TimeoutException | IllegalArgumentException e) {
+            // leave the peer out
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            break;
+         }
+      }
+
+      StatisticsDTO stats = merged.statistics(service.getTransactions().getClock().currentTimeMillis());
+      return new StatisticsDTO(stats.getSum(), stats.getAvg(), stats.getMax(), stats.getMin(), stats.getCount(),
+              null, null, nodes);
+   }
+
+   /**
+    * Fetch the partial statistics of one node.
+    */
+   private PartialStatistics fetch(String url) throws IOException {
+      HttpURLConnection connection = (HttpURLConnection) new URL(url + "/statistics/partial").openConnection();
+      connection.setConnectTimeout((int) timeoutMillis);
+      connection.setReadTimeout((int) timeoutMillis);
+      if (connection.getResponseCode() != HttpURLConnection.HTTP_OK)
+         throw new IOException(url + " returned " + connection.getResponseCode());
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      try (InputStream in = connection.getInputStream()) {
+         byte[] buffer = new byte[4096];
+         for (int n = in.read(buffer); n >= 0; n = in.read(buffer))
+            body.write(buffer, 0, n);
+      }
+      return PartialStatistics.fromBytes(body.toByteArray());
+   }
+
+   /**
+    * A peer, with its last partial statistics and any fetch in progress.
+    */
+   private final class Peer {
+
+      private final String url;
+      private Future<PartialStatistics> last;
+      private long fetchedNanos;
+
+      private Peer(String url) {
+         this.url = url;
+      }
+
+      /**
+       * Get the last partial statistics fetched if they are recent, or the
+       * fetch in progress, or else start a new fetch.
+       */
+      private synchronized Future<PartialStatistics> fetch() {
+         long now = System.nanoTime();
+         if (last != null && (!last.isDone() || now - fetchedNanos < TimeUnit.MILLISECONDS.toNanos(cacheMillis)))
+            return last;
+         CompletableFuture<PartialStatistics> future = new CompletableFuture<>();
+         executor.execute(() -> {
+            // complete the future whatever is thrown, since a fetch which
+            // never completes would be returned as in progress for good
+            try {
+               future.complete(PeerAggregator.this.fetch(url));
+            } catch (Throwable e) {
+               future.completeExceptionally(e);
+            }
+         });
+         last = future;
+         fetchedNanos = now;
+         return future;
+      }
+   }
+}
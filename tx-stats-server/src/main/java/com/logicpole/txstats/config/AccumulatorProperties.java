@@ -0,0 +1,310 @@
+package com.logicpole.txstats.config;
+
+import com.logicpole.txstats.accumulate.DistinctSpec;
+import com.logicpole.txstats.accumulate.SketchSpec;
+import com.logicpole.txstats.accumulate.WindowSpec;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Configuration properties for the transaction accumulator
+ * <p>
+ * Bound from the <tt>txstats.accumulator</tt> prefix, for example:
+ * <pre>
+ * txstats.accumulator.window-millis=10000
+ * txstats.accumulator.resolution-millis=100
+ * txstats.accumulator.stripes=8
+ * </pre>
+ * Longer windows at coarser resolutions may be added as tiers, which are fed
+ * from the base window as its slices age, for example:
+ * <pre>
+ * txstats.accumulator.tiers[0].window-millis=300000
+ * txstats.accumulator.tiers[0].resolution-millis=5000
+ * txstats.accumulator.tiers[1].window-millis=3600000
+ * txstats.accumulator.tiers[1].resolution-millis=60000
+ * </pre>
+ * Keyed transactions are also accumulated per key over a separate, usually
+ * coarser, window:
+ * <pre>
+ * txstats.accumulator.key-window-millis=60000
+ * txstats.accumulator.key-resolution-millis=5000
+ * txstats.accumulator.top-capacity=256
+ * </pre>
+ * The slices of the window and tiers may be kept in a memory-mapped file so
+ * that a restart resumes with them:
+ * <pre>
+ * txstats.accumulator.state-file=/var/lib/tx-stats/window.state
+ * </pre>
+ * Amounts may also be accumulated exactly, as whole minor units, over the
+ * base window, in which case GET /statistics reports the exact sums:
+ * <pre>
+ * txstats.accumulator.fixed-point-scale=2
+ * </pre>
+ *
+ * @author Max McCormick
+ */
+@Component
+@ConfigurationProperties(prefix = "txstats.accumulator")
+public class AccumulatorProperties {
+
+   /**
+    * Length of the moving window in msec.
+    */
+   private long windowMillis = WindowSpec.DEFAULT.getWindowMillis();
+
+   /**
+    * Length of each slice of the window in msec.  Must divide the window.
+    */
+   private long resolutionMillis = WindowSpec.DEFAULT.getSliceMillis();
+
+   /**
+    * Number of independently locked accumulator stripes.
+    */
+   private int stripes = 1;
+
+   /**
+    * Additional windows, each longer and coarser than the one before.
+    */
+   private List<Tier> tiers = new ArrayList<>();
+
+   /**
+    * Relative accuracy of quantile estimates, or 0 to keep no quantile
+    * sketches.
+    */
+   private double quantileAccuracy = SketchSpec.DEFAULT.getRelativeAccuracy();
+
+   /**
+    * Smallest and largest values for which quantile estimates are accurate.
+    */
+   private double quantileMinValue = SketchSpec.DEFAULT.getMinValue();
+   private double quantileMaxValue = SketchSpec.DEFAULT.getMaxValue();
+
+   /**
+    * Number of hash bits selecting a distinct count register, or 0 to keep
+    * no distinct counts.
+    */
+   private int distinctPrecision = DistinctSpec.DEFAULT.getPrecision();
+
+   /**
+    * Length of the moving window of each key in msec.
+    */
+   private long keyWindowMillis = 60 * 1000;
+
+   /**
+    * Length of each slice of the window of each key in msec.  Must divide the
+    * key window.
+    */
+   private long keyResolutionMillis = 5 * 1000;
+
+   /**
+    * Number of keys counted per slice of the key window when finding the top
+    * keys, and the most top keys which may be requested.
+    */
+   private int topCapacity = 256;
+
+   /**
+    * File in which to keep the slices of the statistics window and tiers, so
+    * that they survive a restart, or null to keep them in memory only.
+    */
+   private String stateFile;
+
+   /**
+    * Decimal places of the minor units in which amounts are accumulated
+    * exactly, such as 2 for cents, or null to accumulate doubles only.
+    */
+   private Integer fixedPointScale;
+
+   public long getWindowMillis() {
+      return windowMillis;
+   }
+
+   public void setWindowMillis(long windowMillis) {
+      this.windowMillis = windowMillis;
+   }
+
+   public long getResolutionMillis() {
+      return resolutionMillis;
+   }
+
+   public void setResolutionMillis(long resolutionMillis) {
+      this.resolutionMillis = resolutionMillis;
+   }
+
+   public int getStripes() {
+      return stripes;
+   }
+
+   public void setStripes(int stripes) {
+      this.stripes = stripes;
+   }
+
+   public List<Tier> getTiers() {
+      return tiers;
+   }
+
+   public void setTiers(List<Tier> tiers) {
+      this.tiers = tiers;
+   }
+
+   public double getQuantileAccuracy() {
+      return quantileAccuracy;
+   }
+
+   public void setQuantileAccuracy(double quantileAccuracy) {
+      this.quantileAccuracy = quantileAccuracy;
+   }
+
+   public double getQuantileMinValue() {
+      return quantileMinValue;
+   }
+
+   public void setQuantileMinValue(double quantileMinValue) {
+      this.quantileMinValue = quantileMinValue;
+   }
+
+   public double getQuantileMaxValue() {
+      return quantileMaxValue;
+   }
+
+   public void setQuantileMaxValue(double quantileMaxValue) {
+      this.quantileMaxValue = quantileMaxValue;
+   }
+
+   public int getDistinctPrecision() {
+      return distinctPrecision;
+   }
+
+   public void setDistinctPrecision(int distinctPrecision) {
+      this.distinctPrecision = distinctPrecision;
+   }
+
+   public long getKeyWindowMillis() {
+      return keyWindowMillis;
+   }
+
+   public void setKeyWindowMillis(long keyWindowMillis) {
+      this.keyWindowMillis = keyWindowMillis;
+   }
+
+   public long getKeyResolutionMillis() {
+      return keyResolutionMillis;
+   }
+
+   public void setKeyResolutionMillis(long keyResolutionMillis) {
+      this.keyResolutionMillis = keyResolutionMillis;
+   }
+
+   public int getTopCapacity() {
+      return topCapacity;
+   }
+
+   public void setTopCapacity(int topCapacity) {
+      this.topCapacity = topCapacity;
+   }
+
+   public String getStateFile() {
+      return stateFile;
+   }
+
+   public void setStateFile(String stateFile) {
+      this.stateFile = stateFile;
+   }
+
+   public Integer getFixedPointScale() {
+      return fixedPointScale;
+   }
+
+   public void setFixedPointScale(Integer fixedPointScale) {
+      this.fixedPointScale = fixedPointScale;
+   }
+
+   /**
+    * Get the window specification described by these properties.
+    *
+    * @return the window specification.
+    * @throws IllegalArgumentException if the window and resolution are not
+    *                                  compatible.
+    */
+   public WindowSpec toWindowSpec() {
+      return new WindowSpec(windowMillis, resolutionMillis);
+   }
+
+   /**
+    * Get the window specifications of the base window and every tier.
+    *
+    * @return the window specifications, from the finest to the coarsest.
+    * @throws IllegalArgumentException if a window and resolution are not
+    *                                  compatible.
+    */
+   public WindowSpec[] toWindowSpecs() {
+      WindowSpec[] specs = new WindowSpec[tiers.size() + 1];
+      specs[0] = toWindowSpec();
+      for (int t = 0; t < tiers.size(); t++)
+         specs[t + 1] = new WindowSpec(tiers.get(t).getWindowMillis(), tiers.get(t).getResolutionMillis());
+      return specs;
+   }
+
+   /**
+    * Get the quantile sketch specification described by these properties.
+    *
+    * @return the sketch specification, or null if quantiles are disabled.
+    * @throws IllegalArgumentException if the accuracy or range is invalid.
+    */
+   public SketchSpec toSketchSpec() {
+      if (quantileAccuracy == 0)
+         return null;
+      return new SketchSpec(quantileAccuracy, quantileMinValue, quantileMaxValue);
+   }
+
+   /**
+    * Get the distinct count specification described by these properties.
+    *
+    * @return the distinct count specification, or null if distinct counts
+    * are disabled.
+    * @throws IllegalArgumentException if the precision is invalid.
+    */
+   public DistinctSpec toDistinctSpec() {
+      if (distinctPrecision == 0)
+         return null;
+      return new DistinctSpec(distinctPrecision);
+   }
+
+   /**
+    * Get the window specification of each key described by these properties.
+    *
+    * @return the window specification.
+    * @throws IllegalArgumentException if the window and resolution are not
+    *                                  compatible.
+    */
+   public WindowSpec toKeyWindowSpec() {
+      return new WindowSpec(keyWindowMillis, keyResolutionMillis);
+   }
+
+   /**
+    * A longer window at a coarser resolution.
+    */
+   public static class Tier {
+
+      private long windowMillis;
+      private long resolutionMillis;
+
+      public long getWindowMillis() {
+         return windowMillis;
+      }
+
+      public void setWindowMillis(long windowMillis) {
+         this.windowMillis = windowMillis;
+      }
+
+      public long getResolutionMillis() {
+         return resolutionMillis;
+      }
+
+      public void setResolutionMillis(long resolutionMillis) {
+         this.resolutionMillis = resolutionMillis;
+      }
+   }
+}
@@ -0,0 +1,49 @@
+package com.logicpole.txstats.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Configuration properties for caching the response of GET /statistics
+ * <p>
+ * Bound from the <tt>txstats.cache</tt> prefix, for example:
+ * <pre>
+ * txstats.cache.enabled=true
+ * txstats.cache.stale-millis=50
+ * </pre>
+ *
+ * @author Max McCormick
+ */
+@Component
+@ConfigurationProperties(prefix = "txstats.cache")
+public class CacheProperties {
+
+   /**
+    * Whether the serialized statistics are cached, rather than generated
+    * and serialized on every request.
+    */
+   private boolean enabled = true;
+
+   /**
+    * Longest time for which the cached statistics are served after a
+    * transaction has been accumulated, in msec, or 0 to generate them again
+    * on the first request after any transaction.
+    */
+   private long staleMillis = 0;
+
+   public boolean isEnabled() {
+      return enabled;
+   }
+
+   public void setEnabled(boolean enabled) {
+      this.enabled = enabled;
+   }
+
+   public long getStaleMillis() {
+      return staleMillis;
+   }
+
+   public void setStaleMillis(long staleMillis) {
+      this.staleMillis = staleMillis;
+   }
+}
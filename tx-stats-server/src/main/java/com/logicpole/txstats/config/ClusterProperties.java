@@ -0,0 +1,65 @@
+package com.logicpole.txstats.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Configuration properties for aggregating statistics over several nodes
+ * <p>
+ * Bound from the <tt>txstats.cluster</tt> prefix, for example:
+ * <pre>
+ * txstats.cluster.peers=http://node2:8080,http://node3:8080
+ * txstats.cluster.timeout-millis=250
+ * txstats.cluster.cache-millis=1000
+ * </pre>
+ * GET /statistics/global is only served if peers are given.
+ *
+ * @author Max McCormick
+ */
+@Component
+@ConfigurationProperties(prefix = "txstats.cluster")
+public class ClusterProperties {
+
+   /**
+    * Base urls of the other nodes, whose partial statistics are merged with
+    * those of this node.
+    */
+   private List<String> peers = new ArrayList<>();
+
+   /**
+    * Longest time to wait for the partial statistics of the peers, in msec.
+    */
+   private long timeoutMillis = 250;
+
+   /**
+    * Time for which the partial statistics of a peer are reused, in msec.
+    */
+   private long cacheMillis = 1000;
+
+   public List<String> getPeers() {
+      return peers;
+   }
+
+   public void setPeers(List<String> peers) {
+      this.peers = peers;
+   }
+
+   public long getTimeoutMillis() {
+      return timeoutMillis;
+   }
+
+   public void setTimeoutMillis(long timeoutMillis) {
+      this.timeoutMillis = timeoutMillis;
+   }
+
+   public long getCacheMillis() {
+      return cacheMillis;
+   }
+
+   public void setCacheMillis(long cacheMillis) {
+      this.cacheMillis = cacheMillis;
+   }
+}
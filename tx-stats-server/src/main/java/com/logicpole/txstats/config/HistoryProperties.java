@@ -0,0 +1,99 @@
+package com.logicpole.txstats.config;
+
+import com.logicpole.txstats.accumulate.WindowSpec;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Configuration properties for the transaction history
+ * <p>
+ * Bound from the <tt>txstats.history</tt> prefix, for example:
+ * <pre>
+ * txstats.history.directory=/var/lib/tx-stats/history
+ * txstats.history.levels[0].resolution-millis=1000
+ * txstats.history.levels[0].retention-millis=86400000
+ * txstats.history.levels[1].resolution-millis=60000
+ * txstats.history.levels[1].retention-millis=7776000000
+ * </pre>
+ * Each level is kept in its own file in the directory, of a size fixed by
+ * its retention and resolution.  The history is only kept if a directory is
+ * given.
+ *
+ * @author Max McCormick
+ */
+@Component
+@ConfigurationProperties(prefix = "txstats.history")
+public class HistoryProperties {
+
+   /**
+    * Directory holding the file of each level, or null to keep no history.
+    */
+   private String directory;
+
+   /**
+    * The levels of the history, each coarser than the one before.
+    */
+   private List<Level> levels = new ArrayList<>();
+
+   public String getDirectory() {
+      return directory;
+   }
+
+   public void setDirectory(String directory) {
+      this.directory = directory;
+   }
+
+   public List<Level> getLevels() {
+      return levels;
+   }
+
+   public void setLevels(List<Level> levels) {
+      this.levels = levels;
+   }
+
+   /**
+    * Get the retention and resolution of every level, as the window and
+    * slice length of a window specification.
+    *
+    * @return the level specifications, from the finest to the coarsest.
+    * @throws IllegalArgumentException if there are no levels, or a
+    *                                  retention and resolution are not
+    *                                  compatible.
+    */
+   public WindowSpec[] toLevelSpecs() {
+      if (levels.isEmpty())
+         throw new IllegalArgumentException("at least one history level is required");
+      WindowSpec[] specs = new WindowSpec[levels.size()];
+      for (int l = 0; l < specs.length; l++)
+         specs[l] = new WindowSpec(levels.get(l).getRetentionMillis(), levels.get(l).getResolutionMillis());
+      return specs;
+   }
+
+   /**
+    * A resolution at which the history is kept, and for how long.
+    */
+   public static class Level {
+
+      private long retentionMillis;
+      private long resolutionMillis;
+
+      public long getRetentionMillis() {
+         return retentionMillis;
+      }
+
+      public void setRetentionMillis(long retentionMillis) {
+         this.retentionMillis = retentionMillis;
+      }
+
+      public long getResolutionMillis() {
+         return resolutionMillis;
+      }
+
+      public void setResolutionMillis(long resolutionMillis) {
+         this.resolutionMillis = resolutionMillis;
+      }
+   }
+}
@@ -0,0 +1,83 @@
+package com.logicpole.txstats.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Configuration properties for transaction ingestion
+ * <p>
+ * Bound from the <tt>txstats.ingest</tt> prefix, for example:
+ * <pre>
+ * txstats.ingest.port=9090
+ * txstats.ingest.buffer-bytes=65536
+ * </pre>
+ * The listener is disabled unless a port is given.
+ * <p>
+ * POST /transactions may also publish transactions to a queue drained into
+ * the accumulators by a single thread, rather than accumulating them on the
+ * request thread:
+ * <pre>
+ * txstats.ingest.queue-capacity=65536
+ * txstats.ingest.drain-batch-size=1024
+ * </pre>
+ *
+ * @author Max McCormick
+ */
+@Component
+@ConfigurationProperties(prefix = "txstats.ingest")
+public class IngestProperties {
+
+   /**
+    * TCP port of the binary ingestion listener, 0 for any free port, or -1
+    * to disable it.
+    */
+   private int port = -1;
+
+   /**
+    * Size of the receive buffer of each connection in bytes.
+    */
+   private int bufferBytes = 64 * 1024;
+
+   /**
+    * Number of transactions the ingest queue holds, rounded up to a power of
+    * two, or 0 to accumulate on the request thread.
+    */
+   private int queueCapacity = 0;
+
+   /**
+    * Most transactions drained from the ingest queue at once.
+    */
+   private int drainBatchSize = 1024;
+
+   public int getPort() {
+      return port;
+   }
+
+   public void setPort(int port) {
+      this.port = port;
+   }
+
+   public int getBufferBytes() {
+      return bufferBytes;
+   }
+
+   public void setBufferBytes(int bufferBytes) {
+      this.bufferBytes = bufferBytes;
+   }
+
+   public int getQueueCapacity() {
+      return queueCapacity;
+   }
+
+   public void setQueueCapacity(int queueCapacity) {
+      this.queueCapacity = queueCapacity;
+   }
+
+   public int getDrainBatchSize() {
+      return drainBatchSize;
+   }
+
+   public void setDrainBatchSize(int drainBatchSize) {
+      this.drainBatchSize = drainBatchSize;
+   }
+}
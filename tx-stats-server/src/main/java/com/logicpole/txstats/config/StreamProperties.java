@@ -0,0 +1,62 @@
+package com.logicpole.txstats.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Configuration properties for streaming statistics to subscribers
+ * <p>
+ * Bound from the <tt>txstats.stream</tt> prefix, for example:
+ * <pre>
+ * txstats.stream.tick-millis=500
+ * txstats.stream.max-subscribers=1000
+ * txstats.stream.drop-after-millis=10000
+ * </pre>
+ *
+ * @author Max McCormick
+ */
+@Component
+@ConfigurationProperties(prefix = "txstats.stream")
+public class StreamProperties {
+
+   /**
+    * Interval at which the statistics are computed and sent to every
+    * subscriber of GET /statistics/stream, in msec.
+    */
+   private long tickMillis = 500;
+
+   /**
+    * Most subscribers at once.  Further subscriptions are refused with 503.
+    */
+   private int maxSubscribers = 1000;
+
+   /**
+    * Time after which a subscriber which has not accepted any statistics is
+    * dropped, in msec.
+    */
+   private long dropAfterMillis = 10000;
+
+   public long getTickMillis() {
+      return tickMillis;
+   }
+
+   public void setTickMillis(long tickMillis) {
+      this.tickMillis = tickMillis;
+   }
+
+   public int getMaxSubscribers() {
+      return maxSubscribers;
+   }
+
+   public void setMaxSubscribers(int maxSubscribers) {
+      this.maxSubscribers = maxSubscribers;
+   }
+
+   public long getDropAfterMillis() {
+      return dropAfterMillis;
+   }
+
+   public void setDropAfterMillis(long dropAfterMillis) {
+      this.dropAfterMillis = dropAfterMillis;
+   }
+}
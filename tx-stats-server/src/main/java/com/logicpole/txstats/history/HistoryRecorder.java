@@ -0,0 +1,137 @@
+package com.logicpole.txstats.history;
+
+import com.logicpole.txstats.accumulate.DoubleAccumulator;
+import com.logicpole.txstats.accumulate.MaintenanceScheduler;
+import com.logicpole.txstats.accumulate.TimeSource;
+import com.logicpole.txstats.accumulate.WindowSpec;
+import com.logicpole.txstats.config.HistoryProperties;
+import com.logicpole.txstats.dto.HistoryPointDTO;
+import com.logicpole.txstats.service.TransactionService;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * Transaction history recorder
+ * <p>
+ * Records the statistics of the window into a {@link HistoryStore} as its
+ * slices age out, if a history directory is configured.  Once per slice the
+ * {@link MaintenanceScheduler} thread ages the slices of every stripe up to
+ * the current time, so that every slice of a bucket has been passed to the
+ * store, and then appends the complete buckets.  Slices still in the window
+ * at shutdown are recorded once they age out after a restart, if the window
+ * is kept in a state file.
+ *
+ * @author Max McCormick
+ */
+@Component
+public class HistoryRecorder {
+
+   private final DoubleAccumulator transactions;
+   private final MaintenanceScheduler scheduler;
+   private final TimeSource clock;
+   private final long sliceMillis;
+   private final int numSlices;
+   private MaintenanceScheduler.Task recorder;
+
+   /*
+    * The store, or null if no history is kept.
+    */
+   private final HistoryStore store;
+
+   /**
+    * Create the recorder, opening the store if a directory is configured.
+    *
+    * @param service    the transaction accumulators.
+    * @param properties the directory and levels of the history.
+    * @param scheduler  the scheduler running the recording.
+    * @param clock      the clock at which the window ends.
+    * @throws IllegalArgumentException if the first level is not a multiple
+    *                                  of the slices of the window.
+    */
+   public HistoryRecorder(TransactionService service, HistoryProperties properties,
+                          MaintenanceScheduler scheduler, TimeSource clock) {
+      transactions = service.getTransactions();
+      this.scheduler = scheduler;
+      this.clock = clock;
+      WindowSpec window = transactions.getSpec();
+      sliceMillis = window.getSliceMillis();
+      numSlices = window.getSlices();
+      if (properties.getDirectory() == null) {
+         store = null;
+         return;
+      }
+      WindowSpec[] levels = properties.toLevelSpecs();
+      if (levels[0].getSliceMillis() % sliceMillis != 0)
+         throw new IllegalArgumentException("history resolution must be a multiple of " + sliceMillis + ": "
+                 + levels[0].getSliceMillis());
+      store = new HistoryStore(Paths.get(properties.getDirectory()), levels);
+   }
+
+   @PostConstruct
+   public void start() {
+      if (store == null)
+         return;
+      transactions.setExpiryListener(store);
+      recorder = scheduler.schedule(this::record, sliceMillis);
+   }
+
+   @PreDestroy
+   public void stop() {
+      if (store == null)
+         return;
+      recorder.cancel();
+      record();
+      store.close();
+   }
+
+   /**
+    * Check whether history is kept.
+    *
+    * @return <tt>true</tt> if a history directory is configured.
+    */
+   public boolean isEnabled() {
+      return store != null;
+   }
+
+   public HistoryStore getStore() {
+      return store;
+   }
+
+   /**
+    * Get the statistics of each step of the given range holding
+    * transactions, as by {@link HistoryStore#query(long, long, long)}.
+    *
+    * @throws IllegalStateException if no history is kept.
+    */
+   public List<HistoryPointDTO> query(long fromMillis, long toMillis, long stepMillis) {
+      if (store == null)
+         throw new IllegalStateException("no history directory is configured");
+      return store.query(fromMillis, toMillis, stepMillis);
+   }
+
+   /**
+    * As {@link #query(long, long, long)}, up to the current time of the
+    * clock the history is recorded by.
+    *
+    * @throws IllegalStateException if no history is kept.
+    */
+   public List<HistoryPointDTO> query(long fromMillis, long stepMillis) {
+      return query(fromMillis, clock.currentTimeMillis(), stepMillis);
+   }
+
+   /**
+    * Age out every slice which has left the window, then append the
+    * buckets they complete.
+    */
+   private void record() {
+      // read the time first, so that maintaining ages out at least every
+      // slice before the first still in the window as of then
+      long now = clock.currentTimeMillis();
+      transactions.maintain();
+      store.flush((now / sliceMillis - numSlices + 1) * sliceMillis);
+   }
+}
@@ -0,0 +1,427 @@
+package com.logicpole.txstats.ingest;
+
+import com.logicpole.txstats.config.IngestProperties;
+import com.logicpole.txstats.service.TransactionService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Binary transaction ingestion listener
+ * <p>
+ * An optional TCP listener, running alongside the REST resource, which
+ * accepts transactions as fixed width binary records and accumulates them
+ * into the same statistics as POST /transactions, at a fraction of the cost
+ * of parsing JSON.
+ * <p>
+ * A connection starts with one format byte, 16 for unkeyed records or 24 for
+ * keyed records, followed by any number of records of that many bytes, each
+ * in network (big endian) byte order:
+ * <pre>
+ * offset 0  - 8 byte signed timestamp, unix epoch time in msec
+ * offset 8  - 8 byte IEEE 754 double amount
+ * offset 16 - 8 byte signed key, in keyed records only
+ * </pre>
+ * A record with a timestamp of 0 or an amount which is not positive is
+ * invalid, and one older than the window is stale, as for POST /transactions.
+ * <p>
+ * The listener acknowledges records with the cumulative counts of the
+ * connection, as three 8 byte longs in network byte order:
+ * <pre>
+ * offset 0  - accepted, the number of records accumulated
+ * offset 8  - stale, the number older than the window
+ * offset 16 - invalid, the number which were invalid
+ * </pre>
+ * An ack is sent after each read which completes a record, but acks are
+ * coalesced while an earlier one is still being sent, so a client need not
+ * read them at all.  When the client shuts down its output, the listener
+ * sends a final ack of every record received and closes the connection.  A
+ * trailing partial record is counted as invalid.  A connection with an
+ * unknown format byte is closed without an ack.
+ * <p>
+ * A single thread serves every connection with a selector.  Each connection
+ * decodes its records straight from a direct buffer into preallocated
+ * arrays, which are accumulated a chunk at a time, so nothing is allocated
+ * per record.
+ * <p>
+ * A failure of the selector or of accepting a connection is logged and
+ * counted, and the listener waits a moment and carries on, so that it keeps
+ * accepting connections once the cause, such as running out of file
+ * descriptors, has passed.  A failure while serving a connection closes
+ * only that connection.  Should the listener thread end for any other
+ * reason, that is logged and {@link #isRunning()} turns false, which
+ * {@link IngestMetrics} publishes.
+ *
+ * @author Max McCormick
+ */
+@Component
+public class BinaryIngestListener {
+
+   /**
+    * The format byte, and record length, of unkeyed and keyed records.
+    */
+   public static final int UNKEYED_RECORD_BYTES = 16;
+   public static final int KEYED_RECORD_BYTES = 24;
+
+   /**
+    * The length of an ack.
+    */
+   public static final int ACK_BYTES = 24;
+
+   /*
+    * Number of records accumulated at once.
+    */
+   private static final int CHUNK_SIZE = 1024;
+
+   /*
+    * Time to wait after the selector or an accept fails before selecting
+    * again.
+    */
+   private static final long RETRY_MILLIS = 100;
+
+   private static final Logger LOG = LoggerFactory.getLogger(BinaryIngestListener.class);
+
+   private final TransactionService service;
+   private final IngestProperties properties;
+
+   private Selector selector;
+   private ServerSocketChannel server;
+   private Thread thread;
+   private volatile boolean running;
+
+   /*
+    * Metrics.
+    */
+   private final LongAdder connections = new LongAdder();
+   private final LongAdder failures = new LongAdder();
+
+   /**
+    * Create the listener.
+    *
+    * @param service    the transaction accumulators.
+    * @param properties the port and buffer size.
+    */
+   public BinaryIngestListener(TransactionService service, IngestProperties properties) {
+      if (properties.getBufferBytes() < 1 + KEYED_RECORD_BYTES)
+         throw new IllegalArgumentException("buffer must hold a record: " + properties.getBufferBytes());
+      this.service = service;
+      this.properties = properties;
+   }
+
+   /**
+    * Start listening, if a port is configured.
+    *
+    * @throws IOException if the port could not be bound.
+    */
+   @PostConstruct
+   public void start() throws IOException {
+      if (properties.getPort() < 0)
+         return;
+      selector = Selector.open();
+      server = ServerSocketChannel.open();
+      server.bind(new InetSocketAddress(properties.getPort()));
+      server.configureBlocking(false);
+      server.register(selector, SelectionKey.OP_ACCEPT);
+      running = true;
+      thread = new Thread(this::run, "binary-ingest");
+      thread.setDaemon(true);
+      thread.start();
+   }
+
+   /**
+    * Stop listening and close every connection.
+    *
+    * @throws InterruptedException if interrupted waiting for the listener
+    *                              thread.
+    * @throws IOException          if the selector could not be closed.
+    */
+   @PreDestroy
+   public void stop() throws InterruptedException, IOException {
+      if (thread == null)
+         return;
+      running = false;
+      selector.wakeup();
+      thread.join();
+      for (SelectionKey key : selector.keys())
+         key.channel().close();
+      selector.close();
+      thread = null;
+   }
+
+   /**
+    * Get the port the listener is bound to.
+    *
+    * @return the local port, or -1 if the listener is not running.
+    */
+   public int getLocalPort() {
+      return thread == null ? -1 : server.socket().getLocalPort();
+   }
+
+   /**
+    * Check whether the listener is configured.
+    *
+    * @return <tt>true</tt> if a port is configured.
+    */
+   public boolean isEnabled() {
+      return properties.getPort() >= 0;
+   }
+
+   /**
+    * Check whether the listener thread is serving connections.
+    *
+    * @return <tt>true</tt> from start until stopped, unless the thread
+    * ended on an unexpected error.
+    */
+   public boolean isRunning() {
+      Thread current = thread;
+      return running && current != null && current.isAlive();
+   }
+
+   /**
+    * Get the number of connections accepted.
+    *
+    * @return the connection count.
+    */
+   public long getConnections() {
+      return connections.sum();
+   }
+
+   /**
+    * Get the number of times the selector or an accept failed.
+    *
+    * @return the failure count.
+    */
+   public long getFailures() {
+      return failures.sum();
+   }
+
+   private void run() {
+      try {
+         while (running) {
+            try {
+               selector.select();
+            } catch (IOException e) {
+               failed("Binary ingest selector failed", e);
+               continue;
+            }
+            Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+            while (selected.hasNext()) {
+               SelectionKey key = selected.next();
+               selected.remove();
+               if (key.isValid() && key.isAcceptable()) {
+                  try {
+                     accept();
+                  } catch (IOException e) {
+                     failed("Binary ingest accept failed", e);
+                  }
+                  continue;
+               }
+               try {
+                  if (key.isValid() && key.isReadable())
+                     read(key, (Connection) key.attachment());
+                  else if (key.isValid() && key.isWritable())
+                     writeAck(key, (Connection) key.attachment());
+               } catch (IOException e) {
+                  // the client went away.  its counts have nowhere to go.
+                  close(key);
+               } catch (RuntimeException e) {
+                  LOG.warn("Binary ingest connection failed, closing it", e);
+                  close(key);
+               }
+            }
+         }
+      } catch (ClosedSelectorException e) {
+         if (running)
+            LOG.error("Binary ingest selector closed, no longer accepting transactions", e);
+      } catch (Throwable e) {
+         LOG.error("Binary ingest listener failed, no longer accepting transactions", e);
+         throw e;
+      }
+   }
+
+   /**
+    * Log and count a failure of the selector or of accepting a connection,
+    * and wait a moment before selecting again, rather than spinning on a
+    * failure which persists.
+    */
+   private void failed(String message, IOException e) {
+      failures.increment();
+      LOG.warn(message + ", retrying in " + RETRY_MILLIS + " msec", e);
+      try {
+         TimeUnit.MILLISECONDS.sleep(RETRY_MILLIS);
+      } catch (InterruptedException interrupted) {
+         // not used to stop the listener, which wakes the selector instead,
+         // and an interrupt left set would keep select from blocking
+      }
+   }
+
+   private void accept() throws IOException {
+      SocketChannel channel = server.accept();
+      if (channel == null)
+         return;
+      connections.increment();
+      channel.configureBlocking(false);
+      channel.socket().setTcpNoDelay(true);
+      channel.register(selector, SelectionKey.OP_READ, new Connection(channel, properties.getBufferBytes()));
+   }
+
+   /**
+    * Read what is available, accumulate every complete record and ack.
+    */
+   private void read(SelectionKey key, Connection c) throws IOException {
+      ByteBuffer in = c.in;
+      if (c.channel.read(in) < 0)
+         c.closing = true;
+      // through Buffer, as the covariant overrides of later JDKs do not
+      // exist on Java 8
+      ((Buffer) in).flip();
+
+      if (c.recordBytes == 0 && in.hasRemaining()) {
+         int format = in.get();
+         if (format != UNKEYED_RECORD_BYTES && format != KEYED_RECORD_BYTES) {
+            close(key);
+            return;
+         }
+         c.recordBytes = format;
+         Arrays.fill(c.keyed, format == KEYED_RECORD_BYTES);
+      }
+      if (c.recordBytes != 0)
+         decode(c);
+
+      if (c.closing && in.hasRemaining()) {
+         c.invalid++;
+         ((Buffer) in).position(in.limit());
+      }
+      in.compact();
+      writeAck(key, c);
+   }
+
+   /**
+    * Decode and accumulate every complete record in the buffer.
+    */
+   private void decode(Connection c) {
+      ByteBuffer in = c.in;
+      boolean keyed = c.recordBytes == KEYED_RECORD_BYTES;
+      int length = 0;
+      while (in.remaining() >= c.recordBytes) {
+         long timestamp = in.getLong();
+         double amount = in.getDouble();
+         long key = keyed ? in.getLong() : 0;
+         // make sure we have some realistic values, as for POST /transactions
+         if (timestamp == 0 || !(amount > 0)) {
+            c.invalid++;
+            continue;
+         }
+         c.timestamps[length] = timestamp;
+         c.amounts[length] = amount;
+         c.keys[length] = key;
+         if (++length == CHUNK_SIZE) {
+            accumulate(c, length);
+            length = 0;
+         }
+      }
+      accumulate(c, length);
+   }
+
+   private void accumulate(Connection c, int length) {
+      int accepted = service.accumulateAll(c.timestamps, c.amounts, c.keys, c.keyed, length);
+      c.accepted += accepted;
+      c.stale += length - accepted;
+   }
+
+   /**
+    * Send the current counts unless an ack of them has been sent already,
+    * then close the connection once the final ack is sent.
+    */
+   private void writeAck(SelectionKey key, Connection c) throws IOException {
+      ByteBuffer ack = c.ack;
+      while (true) {
+         if (!ack.hasRemaining()) {
+            long total = c.accepted + c.stale + c.invalid;
+            if (total == c.ackedTotal && (!c.closing || c.ackedFinal))
+               break;
+            ((Buffer) ack).clear();
+            ack.putLong(c.accepted).putLong(c.stale).putLong(c.invalid);
+            ((Buffer) ack).flip();
+            c.ackedTotal = total;
+            c.ackedFinal = c.closing;
+         }
+         c.channel.write(ack);
+         if (ack.hasRemaining())
+            break;
+      }
+
+      if (ack.hasRemaining())
+         key.interestOps(c.closing ? SelectionKey.OP_WRITE : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+      else if (c.closing)
+         close(key);
+      else
+         key.interestOps(SelectionKey.OP_READ);
+   }
+
+   private static void close(SelectionKey key) {
+      key.cancel();
+      try {
+         key.channel().close();
+      } catch (IOException e) {
+         // already closed
+      }
+   }
+
+   /**
+    * The buffers and counts of one connection.
+    */
+   private static final class Connection {
+
+      final SocketChannel channel;
+      final ByteBuffer in;
+      final ByteBuffer ack = ByteBuffer.allocateDirect(ACK_BYTES);
+
+      /*
+       * The chunk of decoded records awaiting accumulation.
+       */
+      final long[] timestamps = new long[CHUNK_SIZE];
+      final double[] amounts = new double[CHUNK_SIZE];
+      final long[] keys = new long[CHUNK_SIZE];
+      final boolean[] keyed = new boolean[CHUNK_SIZE];
+
+      /*
+       * The record length, or 0 until the format byte is read.
+       */
+      int recordBytes;
+
+      long accepted;
+      long stale;
+      long invalid;
+
+      /*
+       * The total of the counts last acked, and whether that was the final
+       * ack.
+       */
+      long ackedTotal;
+      boolean ackedFinal;
+      boolean closing;
+
+      Connection(SocketChannel channel, int bufferBytes) {
+         this.channel = channel;
+         in = ByteBuffer.allocateDirect(bufferBytes);
+         ((Buffer) ack).limit(0);
+      }
+   }
+}
@@ -0,0 +1,73 @@
+package com.logicpole.txstats.ingest;
+
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Ingest metrics
+ * <p>
+ * Publishes the state of the ingest queue and of the binary ingestion
+ * listener to the actuator metrics endpoint, for whichever is enabled:
+ * <pre>
+ * ingest.queue.capacity       - transactions the queue holds
+ * ingest.queue.depth          - transactions queued and not yet drained
+ * ingest.queue.rejected       - transactions refused because it was full
+ *                               or stopping
+ * ingest.queue.drained        - transactions drained
+ * ingest.queue.stale          - drained transactions older than the window
+ * ingest.queue.batches        - batches drained
+ * ingest.queue.batch.last     - size of the last batch
+ * ingest.queue.batch.mean     - mean batch size
+ * ingest.queue.lag.last.usec  - publish to accumulate time of the oldest
+ *                               transaction of the last batch
+ * ingest.queue.lag.mean.usec  - the same, averaged over every batch
+ * ingest.binary.running       - 1 while the listener serves connections,
+ *                               0 if its thread has ended
+ * ingest.binary.connections   - connections accepted
+ * ingest.binary.failures      - selector or accept failures retried
+ * </pre>
+ *
+ * @author Max McCormick
+ */
+@Component
+public class IngestMetrics implements PublicMetrics {
+
+   private final IngestQueue queue;
+   private final BinaryIngestListener listener;
+
+   public IngestMetrics(IngestQueue queue, BinaryIngestListener listener) {
+      this.queue = queue;
+      this.listener = listener;
+   }
+
+   @Override
+   public Collection<Metric<?>> metrics() {
+      List<Metric<?>> metrics = new ArrayList<>();
+      if (listener.isEnabled()) {
+         metrics.add(new Metric<>("ingest.binary.running", listener.isRunning() ? 1 : 0));
+         metrics.add(new Metric<>("ingest.binary.connections", listener.getConnections()));
+         metrics.add(new Metric<>("ingest.binary.failures", listener.getFailures()));
+      }
+      if (!queue.isEnabled())
+         return metrics;
+      long batches = queue.getBatches();
+      metrics.add(new Metric<>("ingest.queue.capacity", queue.getCapacity()));
+      metrics.add(new Metric<>("ingest.queue.depth", queue.getDepth()));
+      metrics.add(new Metric<>("ingest.queue.rejected", queue.getRejected()));
+      metrics.add(new Metric<>("ingest.queue.drained", queue.getDrained()));
+      metrics.add(new Metric<>("ingest.queue.stale", queue.getStale()));
+      metrics.add(new Metric<>("ingest.queue.batches", batches));
+      metrics.add(new Metric<>("ingest.queue.batch.last", queue.getLastBatchSize()));
+      metrics.add(new Metric<>("ingest.queue.batch.mean",
+              batches == 0 ? 0.0 : (double) queue.getDrained() / batches));
+      metrics.add(new Metric<>("ingest.queue.lag.last.usec", queue.getLastLagNanos() / 1e3));
+      metrics.add(new Metric<>("ingest.queue.lag.mean.usec",
+              batches == 0 ? 0.0 : queue.getTotalLagNanos() / 1e3 / batches));
+      return metrics;
+   }
+}
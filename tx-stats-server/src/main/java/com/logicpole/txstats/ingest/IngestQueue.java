@@ -0,0 +1,320 @@
+package com.logicpole.txstats.ingest;
+
+import com.logicpole.txstats.config.IngestProperties;
+import com.logicpole.txstats.service.TransactionService;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous ingest queue
+ * <p>
+ * A bounded, preallocated ring of transactions, published by any number of
+ * request threads and drained by a single consumer thread into the
+ * accumulators in batches.  Request threads never wait on the accumulator
+ * locks, and when the ring is full a transaction is refused at once rather
+ * than queued, so a burst is shed instead of stalling the servlet pool.
+ * <p>
+ * A producer claims the next sequence number with a compare and set on the
+ * tail, bounded by the consumer's head, writes the transaction to the slot
+ * of that sequence, and then publishes the slot by storing its sequence
+ * number.  The consumer takes the run of consecutive published slots from
+ * its head, up to the drain batch size, copies them out and frees them by
+ * advancing the head before accumulating them.  An idle consumer parks, and
+ * is unparked by the next producer.
+ * <p>
+ * Stopping the queue sets a closed bit in the tail, so that no sequence
+ * number can be claimed after it, and the consumer drains every sequence
+ * claimed before it, waiting for any still being written, before the stop
+ * returns.  A transaction is therefore either refused or accumulated, never
+ * accepted and then lost on shutdown.
+ * <p>
+ * The queue is disabled, and refuses every transaction, if the configured
+ * capacity is 0.
+ *
+ * @author Max McCormick
+ */
+@Component
+public class IngestQueue {
+
+   /*
+    * Longest time an idle consumer parks before checking the ring again, as
+    * a backstop to being unparked.
+    */
+   private static final long PARK_NANOS = 1000000L;
+
+   /*
+    * Set in the tail once the queue is stopping.
+    */
+   private static final long CLOSED = 1L << 62;
+
+   private final TransactionService service;
+   private final int capacity;
+   private final int mask;
+   private final int batchSize;
+
+   /*
+    * The ring.  published holds the sequence number of the transaction in
+    * each slot, once it has been written, and -1 before the first.
+    */
+   private final long[] timestamps;
+   private final double[] amounts;
+   private final long[] keys;
+   private final boolean[] keyed;
+   private final long[] publishNanos;
+   private final AtomicLongArray published;
+
+   /*
+    * The next sequence number to claim, with the closed bit once stopping,
+    * and the next to drain.
+    */
+   private final AtomicLong tail = new AtomicLong();
+   private volatile long head;
+
+   /*
+    * The batch being accumulated by the consumer.
+    */
+   private final long[] batchTimestamps;
+   private final double[] batchAmounts;
+   private final long[] batchKeys;
+   private final boolean[] batchKeyed;
+
+   private Thread consumer;
+   private volatile boolean waiting;
+
+   /*
+    * Metrics.  Every field but rejected is written by the consumer only.
+    */
+   private final LongAdder rejected = new LongAdder();
+   private volatile long batches;
+   private volatile long drained;
+   private volatile long stale;
+   private volatile long lastBatchSize;
+   private volatile long lastLagNanos;
+   private volatile long totalLagNanos;
+
+   /**
+    * Create the queue.
+    *
+    * @param service    the transaction accumulators.
+    * @param properties the queue capacity and drain batch size.
+    */
+   public IngestQueue(TransactionService service, IngestProperties properties) {
+      if (properties.getQueueCapacity() < 0)
+         throw new IllegalArgumentException("capacity must not be negative: " + properties.getQueueCapacity());
+      if (properties.getDrainBatchSize() < 1)
+         throw new IllegalArgumentException("batch size must be positive: " + properties.getDrainBatchSize());
+
+      // round up to a power of two so a slot can be selected with a mask
+      int size = Integer.highestOneBit(properties.getQueueCapacity());
+      if (size < properties.getQueueCapacity())
+         size <<= 1;
+
+      this.service = service;
+      capacity = size;
+      mask = size - 1;
+      batchSize = properties.getDrainBatchSize();
+      timestamps = new long[size];
+      amounts = new double[size];
+      keys = new long[size];
+      keyed = new boolean[size];
+      publishNanos = new long[size];
+      published = new AtomicLongArray(size);
+      for (int i = 0; i < size; i++)
+         published.set(i, -1);
+      int batch = size == 0 ? 0 : Math.min(batchSize, size);
+      batchTimestamps = new long[batch];
+      batchAmounts = new double[batch];
+      batchKeys = new long[batch];
+      batchKeyed = new boolean[batch];
+   }
+
+   /**
+    * Start the consumer, if the queue is enabled.
+    */
+   @PostConstruct
+   public void start() {
+      if (capacity == 0)
+         return;
+      consumer = new Thread(this::drain, "ingest-queue");
+      consumer.setDaemon(true);
+      consumer.start();
+   }
+
+   /**
+    * Refuse any further transactions, and stop the consumer once it has
+    * drained every transaction queued before.
+    *
+    * @throws InterruptedException if interrupted waiting for the consumer.
+    */
+   @PreDestroy
+   public void stop() throws InterruptedException {
+      tail.getAndUpdate(seq -> seq | CLOSED);
+      if (consumer == null)
+         return;
+      LockSupport.unpark(consumer);
+      consumer.join();
+      consumer = null;
+   }
+
+   /**
+    * Check whether transactions are queued rather than accumulated on the
+    * request thread.
+    *
+    * @return <tt>true</tt> if the queue is enabled.
+    */
+   public boolean isEnabled() {
+      return capacity > 0;
+   }
+
+   /**
+    * Publish a transaction to be accumulated, unless the queue is full.
+    * <p>
+    * This function is lock free and allocates nothing.
+    *
+    * @param timestamp the unix epochtime (msec) of the transaction.
+    * @param amount    the transaction amount.
+    * @param isKeyed   whether the transaction is keyed.
+    * @param key       the transaction key, if keyed.
+    * @return <tt>true</tt> if the transaction was queued, false if the queue
+    * is full, stopping or disabled.
+    */
+   public boolean offer(long timestamp, double amount, boolean isKeyed, long key) {
+      long seq;
+      do {
+         seq = tail.get();
+         // the closed bit also makes the queue look full
+         if (seq - head >= capacity) {
+            rejected.increment();
+            return false;
+         }
+      } while (!tail.compareAndSet(seq, seq + 1));
+
+      int i = (int) seq & mask;
+      timestamps[i] = timestamp;
+      amounts[i] = amount;
+      keys[i] = key;
+      keyed[i] = isKeyed;
+      publishNanos[i] = System.nanoTime();
+      // the volatile store publishes the slot to the consumer
+      published.set(i, seq);
+      if (waiting)
+         LockSupport.unpark(consumer);
+      return true;
+   }
+
+   /**
+    * Take batches from the ring and accumulate them until stopped and empty.
+    */
+   private void drain() {
+      long next = head;
+      while (tail.get() != (next | CLOSED)) {
+         int n = 0;
+         long oldestNanos = 0;
+         while (n < batchTimestamps.length && published.get((int) next & mask) == next) {
+            int i = (int) next & mask;
+            if (n == 0)
+               oldestNanos = publishNanos[i];
+            batchTimestamps[n] = timestamps[i];
+            batchAmounts[n] = amounts[i];
+            batchKeys[n] = keys[i];
+            batchKeyed[n] = keyed[i];
+            n++;
+            next++;
+         }
+
+         if (n == 0) {
+            // check again after announcing the wait, so a producer either
+            // sees the announcement or its slot is seen here
+            waiting = true;
+            if ((tail.get() & CLOSED) == 0 && published.get((int) next & mask) != next)
+               LockSupport.parkNanos(this, PARK_NANOS);
+            waiting = false;
+            continue;
+         }
+
+         // free the slots before accumulating, so producers can proceed
+         head = next;
+         int accepted = service.accumulateAll(batchTimestamps, batchAmounts, batchKeys, batchKeyed, n);
+         long lag = System.nanoTime() - oldestNanos;
+         batches++;
+         drained += n;
+         stale += n - accepted;
+         lastBatchSize = n;
+         lastLagNanos = lag;
+         totalLagNanos += lag;
+      }
+   }
+
+   /**
+    * Get the number of transactions the queue holds.
+    */
+   public int getCapacity() {
+      return capacity;
+   }
+
+   /**
+    * Get the number of transactions queued and not yet drained.
+    */
+   public long getDepth() {
+      return Math.max((tail.get() & ~CLOSED) - head, 0);
+   }
+
+   /**
+    * Get the number of transactions refused because the queue was full or
+    * stopping.
+    */
+   public long getRejected() {
+      return rejected.sum();
+   }
+
+   /**
+    * Get the number of transactions drained, including stale ones.
+    */
+   public long getDrained() {
+      return drained;
+   }
+
+   /**
+    * Get the number of drained transactions which had fallen out of the
+    * window by the time they were accumulated.
+    */
+   public long getStale() {
+      return stale;
+   }
+
+   /**
+    * Get the number of batches drained.
+    */
+   public long getBatches() {
+      return batches;
+   }
+
+   /**
+    * Get the size of the last batch drained.
+    */
+   public long getLastBatchSize() {
+      return lastBatchSize;
+   }
+
+   /**
+    * Get the time from publishing to accumulating the oldest transaction of
+    * the last batch.
+    */
+   public long getLastLagNanos() {
+      return lastLagNanos;
+   }
+
+   /**
+    * Get the total over every batch of the time from publishing to
+    * accumulating its oldest transaction.
+    */
+   public long getTotalLagNanos() {
+      return totalLagNanos;
+   }
+}
@@ -0,0 +1,530 @@
+package com.logicpole.txstats.replay;
+
+import com.logicpole.txstats.accumulate.DistinctSpec;
+import com.logicpole.txstats.accumulate.DoubleAccumulator;
+import com.logicpole.txstats.accumulate.SketchSpec;
+import com.logicpole.txstats.accumulate.WindowSpec;
+import com.logicpole.txstats.accumulate.Watermark;
+import com.logicpole.txstats.dto.StatisticsDTO;
+import com.logicpole.txstats.ingest.BinaryIngestListener;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Transaction replay runner
+ * <p>
+ * Replays a file of recorded transactions through a DoubleAccumulator whose
+ * window follows the event time of the transactions, as fast as they can be
+ * read, and writes the statistics of the window as of the end of every
+ * interval of event time, so that the statistics the service would have
+ * given at any moment of the recording can be reproduced.
+ * <p>
+ * The accumulator's clock must be a {@link Watermark}, which the runner
+ * advances to the latest timestamp replayed.  Transactions are therefore
+ * accepted or found stale, and slices age out, as they would have been on
+ * arrival in timestamp order.  A transaction more than a window older than
+ * the latest is stale, and one with a timestamp of 0 or an amount which is
+ * not positive is invalid, as for POST /transactions.
+ * <p>
+ * Two file formats are read, each through memory-mapped regions of the file
+ * so that files of any size stream without copying:
+ * <ul>
+ * <li>CSV, one transaction per line as <tt>timestamp,amount[,key]</tt>, with
+ * an optional header line.  A line which cannot be parsed is invalid.</li>
+ * <li>Binary, the stream of the binary ingestion listener: a format byte of
+ * 16 or 24 followed by records of timestamp, amount and, for 24, key, in
+ * network byte order.  See {@link BinaryIngestListener}.</li>
+ * </ul>
+ * The statistics are written as CSV, one line per interval:
+ * <pre>
+ * time,count,sum,avg,min,max[,distinct][,q0.5,...]
+ * </pre>
+ * where time is the end of the interval, exclusive.  Intervals are written
+ * from the first transaction until the window is empty, and a gap longer
+ * than that is skipped to the interval of the next transaction.
+ * <p>
+ * Run with:
+ * <pre>
+ * ./mvnw -pl tx-stats-server compile exec:exec -Dexec.executable=java \
+ *    -Dexec.args="-cp %classpath com.logicpole.txstats.replay.ReplayRunner --input=transactions.csv"
+ * </pre>
+ * Options, each as --name=value:
+ * <pre>
+ * input              - the file to replay (required)
+ * format             - csv or binary (default csv for a .csv file,
+ *                      otherwise binary)
+ * output             - the file to write the statistics to (default stdout)
+ * window-millis      - length of the window (default 60000)
+ * resolution-millis  - length of each slice of the window (default 1000)
+ * every-millis       - length of each interval (default resolution-millis)
+ * quantiles          - comma separated quantiles to estimate (default none)
+ * distinct-precision - precision of the distinct key count, or 0 for none
+ *                      (default 0)
+ * </pre>
+ * <p>
+ * This class is not thread safe.
+ *
+ * @author Max McCormick
+ */
+public final class ReplayRunner {
+
+   /*
+    * Number of transactions accumulated at once.
+    */
+   private static final int CHUNK_SIZE = 1024;
+
+   /*
+    * Most bytes of the file mapped at once.
+    */
+   private static final long REGION_BYTES = 1L << 30;
+
+   /*
+    * Powers of ten exactly representable as doubles, dividing a decimal
+    * mantissa of at most 15 digits with a single correctly rounded division.
+    */
+   private static final double[] POWERS_OF_TEN = {
+           1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+           1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+   private static final int MAX_FAST_DIGITS = 15;
+
+   private final DoubleAccumulator accumulator;
+   private final Watermark watermark;
+   private final long everyMillis;
+   private final long windowMillis;
+   private final double[] quantiles;
+   private final Writer out;
+
+   /*
+    * The chunk of transactions awaiting accumulation, and the latest
+    * timestamp in it.
+    */
+   private final long[] timestamps = new long[CHUNK_SIZE];
+   private final double[] amounts = new double[CHUNK_SIZE];
+   private final long[] keys = new long[CHUNK_SIZE];
+   private final boolean[] keyed = new boolean[CHUNK_SIZE];
+   private int length;
+   private long latest = Long.MIN_VALUE;
+
+   /*
+    * The end of the current interval, or Long.MIN_VALUE before the first
+    * transaction.
+    */
+   private long intervalEnd = Long.MIN_VALUE;
+
+   /*
+    * The position of the CSV parser in the current region.
+    */
+   private int cursor;
+
+   private long records;
+   private long accepted;
+   private long stale;
+   private long invalid;
+   private long intervals;
+
+   /**
+    * Create a runner.
+    *
+    * @param accumulator the accumulator, whose clock must be a watermark.
+    * @param everyMillis the length of each interval of event time.
+    * @param quantiles   the quantiles to estimate, or null for none.
+    * @param out         the writer of the statistics.
+    * @throws IllegalArgumentException if the accumulator's clock is not a
+    *                                  watermark, or the interval is not
+    *                                  positive.
+    */
+   public ReplayRunner(DoubleAccumulator accumulator, long everyMillis, double[] quantiles, Writer out) {
+      if (!(accumulator.getClock() instanceof Watermark))
+         throw new IllegalArgumentException("the accumulator must be driven by a watermark");
+      if (everyMillis < 1)
+         throw new IllegalArgumentException("interval must be positive: " + everyMillis);
+      this.accumulator = accumulator;
+      watermark = (Watermark) accumulator.getClock();
+      this.everyMillis = everyMillis;
+      windowMillis = accumulator.getSpec().getWindowMillis();
+      this.quantiles = quantiles == null ? null : quantiles.clone();
+      this.out = out;
+   }
+
+   public long getRecords() {
+      return records;
+   }
+
+   public long getAccepted() {
+      return accepted;
+   }
+
+   public long getStale() {
+      return stale;
+   }
+
+   public long getInvalid() {
+      return invalid;
+   }
+
+   public long getIntervals() {
+      return intervals;
+   }
+
+   /**
+    * Replay a CSV file of transactions.
+    *
+    * @param path the file.
+    * @throws IOException if the file could not be read, has a line longer
+    *                     than a region, or the statistics could not be
+    *                     written.
+    */
+   public void replayCsv(Path path) throws IOException {
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+         long size = channel.size();
+         long position = 0;
+         while (position < size) {
+            int regionBytes = (int) Math.min(size - position, REGION_BYTES);
+            ByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position, regionBytes);
+            boolean last = position + regionBytes == size;
+            int consumed = parseLines(region, regionBytes, last, position == 0);
+            if (consumed == 0 && !last)
+               throw new IOException("line at " + position + " is longer than " + REGION_BYTES + " bytes");
+            position += consumed;
+         }
+      }
+   }
+
+   /**
+    * Replay a binary file of transactions, in the format of the binary
+    * ingestion listener.  A trailing partial record is invalid.
+    *
+    * @param path the file.
+    * @throws IOException if the file could not be read or has an unknown
+    *                     format byte, or the statistics could not be
+    *                     written.
+    */
+   public void replayBinary(Path path) throws IOException {
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+         long size = channel.size();
+         if (size == 0)
+            return;
+         ByteBuffer format = ByteBuffer.allocate(1);
+         channel.read(format, 0);
+         int recordBytes = format.get(0);
+         if (recordBytes != BinaryIngestListener.UNKEYED_RECORD_BYTES
+                 && recordBytes != BinaryIngestListener.KEYED_RECORD_BYTES)
+            throw new IOException("unknown record format " + recordBytes);
+         boolean isKeyed = recordBytes == BinaryIngestListener.KEYED_RECORD_BYTES;
+
+         long position = 1;
+         long regionRecords = REGION_BYTES / recordBytes;
+         while (size - position >= recordBytes) {
+            long count = Math.min((size - position) / recordBytes, regionRecords);
+            int regionBytes = (int) (count * recordBytes);
+            ByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position, regionBytes);
+            for (int offset = 0; offset < regionBytes; offset += recordBytes) {
+               add(region.getLong(offset), region.getDouble(offset + 8),
+                       isKeyed, isKeyed ? region.getLong(offset + 16) : 0);
+            }
+            position += regionBytes;
+         }
+         if (position < size) {
+            records++;
+            invalid++;
+         }
+      }
+   }
+
+   /**
+    * Accumulate the remaining transactions, write the statistics of the
+    * last interval and flush the writer.
+    *
+    * @throws IOException if the statistics could not be written.
+    */
+   public void finish() throws IOException {
+      accumulateChunk();
+      if (intervalEnd != Long.MIN_VALUE)
+         writeInterval();
+      out.flush();
+   }
+
+   /**
+    * Add a transaction, first writing the statistics of every interval
+    * which ends at or before its timestamp.
+    */
+   private void add(long timestamp, double amount, boolean isKeyed, long key) throws IOException {
+      records++;
+      // make sure we have some realistic values, as for POST /transactions
+      if (timestamp == 0 || !(amount > 0)) {
+         invalid++;
+         return;
+      }
+      if (timestamp >= intervalEnd) {
+         if (intervalEnd == Long.MIN_VALUE) {
+            intervalEnd = intervalOf(timestamp);
+            writeHeader();
+         } else {
+            accumulateChunk();
+            while (timestamp >= intervalEnd) {
+               long count = writeInterval();
+               // once the window is empty, skip to the next transaction
+               if (count == 0 && timestamp >= intervalEnd)
+                  intervalEnd = intervalOf(timestamp);
+            }
+         }
+      }
+      timestamps[length] = timestamp;
+      amounts[length] = amount;
+      keys[length] = key;
+      keyed[length] = isKeyed;
+      if (timestamp > latest)
+         latest = timestamp;
+      if (++length == CHUNK_SIZE)
+         accumulateChunk();
+   }
+
+   /**
+    * Get the end of the interval holding the given time.
+    */
+   private long intervalOf(long timestamp) {
+      return Math.floorDiv(timestamp, everyMillis) * everyMillis + everyMillis;
+   }
+
+   private void accumulateChunk() {
+      if (length == 0)
+         return;
+      watermark.advance(latest);
+      int count = accumulator.accumulateAll(timestamps, amounts, keys, keyed, length);
+      accepted += count;
+      stale += length - count;
+      length = 0;
+   }
+
+   private void writeHeader() throws IOException {
+      out.write("time,count,sum,avg,min,max");
+      if (accumulator.getDistinct() != null)
+         out.write(",distinct");
+      if (quantiles != null) {
+         for (double q : quantiles)
+            out.write(",q" + q);
+      }
+      out.write('\n');
+   }
+
+   /**
+    * Write the statistics of the window ending with the current interval,
+    * and move on to the next interval.
+    *
+    * @return the count of the statistics.
+    */
+   private long writeInterval() throws IOException {
+      watermark.advance(intervalEnd - 1);
+      StatisticsDTO stats = accumulator.statistics(windowMillis, quantiles);
+      StringBuilder line = new StringBuilder(128);
+      line.append(intervalEnd).append(',').append(stats.getCount()).append(',').append(stats.getSum())
+              .append(',').append(stats.getAvg()).append(',').append(stats.getMin())
+              .append(',').append(stats.getMax());
+      if (stats.getDistinct() != null)
+         line.append(',').append(stats.getDistinct());
+      if (stats.getQuantiles() != null) {
+         for (Double estimate : stats.getQuantiles().values())
+            line.append(',').append(estimate);
+      }
+      out.append(line).append('\n');
+      intervals++;
+      intervalEnd += everyMillis;
+      return stats.getCount();
+   }
+
+   /**
+    * Replay the complete lines of a region of a CSV file, and the trailing
+    * partial line if this is the last region.
+    *
+    * @return the number of bytes of the region consumed.
+    */
+   private int parseLines(ByteBuffer region, int limit, boolean last, boolean first) throws IOException {
+      int start = 0;
+      while (start < limit) {
+         int end = start;
+         while (end < limit && region.get(end) != '\n')
+            end++;
+         if (end == limit && !last)
+            return start;
+         // a header line is one not starting with a digit
+         if (!(first && start == 0 && !isDigit(region.get(0))))
+            parseLine(region, start, end);
+         start = end + 1;
+      }
+      return limit;
+   }
+
+   /**
+    * Replay one line of timestamp, amount and optional key.
+    */
+   private void parseLine(ByteBuffer region, int start, int end) throws IOException {
+      if (end > start && region.get(end - 1) == '\r')
+         end--;
+      if (end == start)
+         return;
+
+      cursor = start;
+      long timestamp = parseLong(region, end);
+      if (timestamp == Long.MIN_VALUE || cursor == end || region.get(cursor++) != ',') {
+         records++;
+         invalid++;
+         return;
+      }
+      double amount = parseDouble(region, end);
+      boolean isKeyed = false;
+      long key = 0;
+      if (!Double.isNaN(amount) && cursor < end && region.get(cursor) == ',') {
+         cursor++;
+         key = parseLong(region, end);
+         isKeyed = key != Long.MIN_VALUE;
+      }
+      if (Double.isNaN(amount) || cursor != end || key == Long.MIN_VALUE) {
+         records++;
+         invalid++;
+         return;
+      }
+      add(timestamp, amount, isKeyed, key);
+   }
+
+   /**
+    * Parse an optionally signed integer of up to 18 digits at the cursor.
+    *
+    * @return the value, or Long.MIN_VALUE if there is none.
+    */
+   private long parseLong(ByteBuffer region, int end) {
+      boolean negative = cursor < end && region.get(cursor) == '-';
+      if (negative)
+         cursor++;
+      int digitsStart = cursor;
+      long value = 0;
+      while (cursor < end && isDigit(region.get(cursor)))
+         value = value * 10 + (region.get(cursor++) - '0');
+      if (cursor == digitsStart || cursor - digitsStart > 18)
+         return Long.MIN_VALUE;
+      return negative ? -value : value;
+   }
+
+   /**
+    * Parse a decimal number at the cursor.  Numbers of up to 15 significant
+    * digits without an exponent are converted exactly without allocating,
+    * and others by {@link Double#parseDouble(String)}.
+    *
+    * @return the value, or NaN if there is none.
+    */
+   private double parseDouble(ByteBuffer region, int end) {
+      int start = cursor;
+      boolean negative = cursor < end && region.get(cursor) == '-';
+      if (negative)
+         cursor++;
+      long mantissa = 0;
+      int digits = 0;
+      int scale = 0;
+      boolean point = false;
+      boolean any = false;
+      for (; cursor < end; cursor++) {
+         byte c = region.get(cursor);
+         if (isDigit(c)) {
+            any = true;
+            if (mantissa != 0 || c != '0')
+               digits++;
+            if (digits <= MAX_FAST_DIGITS)
+               mantissa = mantissa * 10 + (c - '0');
+            if (point)
+               scale++;
+         } else if (c == '.' && !point) {
+            point = true;
+         } else {
+            break;
+         }
+      }
+      boolean exponent = cursor < end && (region.get(cursor) == 'e' || region.get(cursor) == 'E');
+      if (any && !exponent && digits <= MAX_FAST_DIGITS && scale < POWERS_OF_TEN.length) {
+         double value = mantissa / POWERS_OF_TEN[scale];
+         return negative ? -value : value;
+      }
+
+      // the slow path, for exponents and long mantissas
+      while (cursor < end && region.get(cursor) != ',')
+         cursor++;
+      byte[] text = new byte[cursor - start];
+      for (int i = 0; i < text.length; i++)
+         text[i] = region.get(start + i);
+      try {
+         return Double.parseDouble(new String(text, StandardCharsets.ISO_8859_1));
+      } catch (NumberFormatException e) {
+         return Double.NaN;
+      }
+   }
+
+   private static boolean isDigit(byte c) {
+      return c >= '0' && c <= '9';
+   }
+
+   public static void main(String[] args) throws IOException {
+      Map<String, String> options = parseOptions(args);
+      String input = options.get("input");
+      if (input == null)
+         throw new IllegalArgumentException("--input=file is required");
+      Path path = Paths.get(input);
+      String format = options.getOrDefault("format", input.endsWith(".csv") ? "csv" : "binary");
+      long windowMillis = Long.parseLong(options.getOrDefault("window-millis", "60000"));
+      long resolutionMillis = Long.parseLong(options.getOrDefault("resolution-millis", "1000"));
+      long everyMillis = Long.parseLong(options.getOrDefault("every-millis", Long.toString(resolutionMillis)));
+      int precision = Integer.parseInt(options.getOrDefault("distinct-precision", "0"));
+      double[] quantiles = null;
+      if (options.containsKey("quantiles")) {
+         String[] parts = options.get("quantiles").split(",");
+         quantiles = new double[parts.length];
+         for (int i = 0; i < parts.length; i++)
+            quantiles[i] = Double.parseDouble(parts[i].trim());
+      }
+
+      DoubleAccumulator accumulator = new DoubleAccumulator(
+              new WindowSpec[]{new WindowSpec(windowMillis, resolutionMillis)}, 1,
+              quantiles == null ? null : SketchSpec.DEFAULT,
+              precision == 0 ? null : new DistinctSpec(precision), null, new Watermark());
+      Writer out = options.containsKey("output")
+              ? Files.newBufferedWriter(Paths.get(options.get("output")), StandardCharsets.UTF_8)
+              : new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16);
+      ReplayRunner runner = new ReplayRunner(accumulator, everyMillis, quantiles, out);
+
+      long start = System.nanoTime();
+      if (format.equals("csv"))
+         runner.replayCsv(path);
+      else if (format.equals("binary"))
+         runner.replayBinary(path);
+      else
+         throw new IllegalArgumentException("format must be csv or binary: " + format);
+      runner.finish();
+      double seconds = (System.nanoTime() - start) / 1e9;
+      if (options.containsKey("output"))
+         out.close();
+
+      System.err.printf("replayed %d records (%d accepted, %d stale, %d invalid) into %d intervals"
+                      + " in %.2f s, %.0f records/s%n", runner.getRecords(), runner.getAccepted(),
+              runner.getStale(), runner.getInvalid(), runner.getIntervals(), seconds,
+              runner.getRecords() / seconds);
+   }
+
+   private static Map<String, String> parseOptions(String[] args) {
+      Map<String, String> options = new HashMap<>();
+      for (String arg : args) {
+         if (!arg.startsWith("--") || arg.indexOf('=') < 0)
+            throw new IllegalArgumentException("expected --name=value but found " + arg);
+         options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+      }
+      return options;
+   }
+}
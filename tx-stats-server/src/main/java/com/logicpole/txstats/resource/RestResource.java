@@ -0,0 +1,520 @@
+package com.logicpole.txstats.resource;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.logicpole.txstats.accumulate.HeavyHitters;
+import com.logicpole.txstats.accumulate.PartialStatistics;
+import com.logicpole.txstats.cluster.PeerAggregator;
+import com.logicpole.txstats.history.HistoryRecorder;
+import com.logicpole.txstats.dto.BatchResultDTO;
+import com.logicpole.txstats.dto.HistoryPointDTO;
+import com.logicpole.txstats.dto.StatisticsDTO;
+import com.logicpole.txstats.dto.TopKeyDTO;
+import com.logicpole.txstats.dto.TransactionDTO;
+import com.logicpole.txstats.ingest.IngestQueue;
+import com.logicpole.txstats.resource.TransactionMetrics.Outcome;
+import com.logicpole.txstats.service.TransactionService;
+import com.logicpole.txstats.stream.StatisticsBroadcaster;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * REST API resource for transaction statistics
+ *
+ * @author Max McCormick
+ */
+@RestController
+public class RestResource {
+
+   /*
+    * Number of transactions from a batch accumulated at once.
+    */
+   private static final int BATCH_CHUNK_SIZE = 1024;
+
+   /**
+    * The accumulators shared with the other ingestion paths.
+    */
+   private final TransactionService service;
+
+   /**
+    * The queue of transactions to accumulate off the request thread, if
+    * enabled.
+    */
+   private final IngestQueue queue;
+
+   /**
+    * The aggregator of the statistics of the peer nodes, if configured.
+    */
+   private final PeerAggregator aggregator;
+
+   /**
+    * The broadcaster of the statistics to streaming subscribers.
+    */
+   private final StatisticsBroadcaster broadcaster;
+
+   /**
+    * The counts of the outcomes of posted transactions.
+    */
+   private final TransactionMetrics metrics;
+
+   /**
+    * The serialized statistics of the base window.
+    */
+   private final StatisticsCache cache;
+
+   /**
+    * The recorder of the transaction history, if configured.
+    */
+   private final HistoryRecorder history;
+
+   /**
+    * Create the resource.
+    *
+    * @param service     the transaction accumulators.
+    * @param queue       the ingest queue.
+    * @param aggregator  the peer aggregator.
+    * @param broadcaster the statistics broadcaster.
+    * @param metrics     the transaction metrics.
+    * @param cache       the statistics cache.
+    * @param history     the history recorder.
+    */
+   public RestResource(TransactionService service, IngestQueue queue, PeerAggregator aggregator,
+                       StatisticsBroadcaster broadcaster, TransactionMetrics metrics, StatisticsCache cache,
+                       HistoryRecorder history) {
+      this.service = service;
+      this.queue = queue;
+      this.aggregator = aggregator;
+      this.broadcaster = broadcaster;
+      this.metrics = metrics;
+      this.cache = cache;
+      this.history = history;
+   }
+
+   /**
+    * Create a new transaction.
+    * <p>
+    * Example body:
+    * {
+    * "amount": 12.3,
+    * "timestamp": 1478192204000,
+    * "key": 42
+    * }
+    * <p>
+    * Where:
+    * amount  - transaction amount
+    * timestamp  - transaction time in epoch in millis in UTC time zone.
+    * key  - optional long, such as a merchant ID, to also accumulate the
+    * transaction under for GET /statistics/{key}
+    * <p>
+    * Returns:  Empty body with either 201 or 204.
+    * 201 - in case of success
+    * 204 - if transaction is older than 60 seconds
+    * <p>
+    * If the ingest queue is enabled the transaction is queued to be
+    * accumulated by another thread, and the returns are:
+    * 202 - in case it was queued
+    * 204 - if transaction is older than 60 seconds
+    * 503 - if the queue is full, with a Retry-After header
+    * <p>
+    * Where:
+    * amount  is a double specifying the amount
+    * time  is a long specifying unix epoch time format in milliseconds
+    *
+    * @param response the http response object
+    * @param transaction the http request payload, mapped into the correct dto.
+    */
+   @RequestMapping(method = RequestMethod.POST, value = "/transactions")
+   public void addTransaction(HttpServletResponse response, @RequestBody TransactionDTO transaction) {
+      /*long timestamp = 0;
+      double amount = 0;
+      try {
+         timestamp = Long.parseLong(payload.get("timestamp"));
+         amount = Double.parseDouble(payload.get("amount"));
+      } catch (Throwable t) {
+         // ignore
+      }*/
+      // make sure we have some realistic values.  a transaction of a negative
+      // or zero amount would not make sense.
+      if (transaction.getTimestamp() == 0 || transaction.getAmount() <= 0) {
+         metrics.record(Outcome.INVALID);
+         response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+         return;
+      }
+      if (queue.isEnabled()) {
+         queueTransaction(response, transaction);
+         return;
+      }
+      boolean accepted;
+      if (transaction.getKey() != null)
+         accepted = service.accumulate(transaction.getTimestamp(), transaction.getAmount(), transaction.getKey());
+      else
+         accepted = service.accumulate(transaction.getTimestamp(), transaction.getAmount());
+      if (accepted) {
+         metrics.record(Outcome.CREATED);
+         response.setStatus(HttpServletResponse.SC_CREATED);
+      } else {
+         metrics.record(Outcome.STALE);
+         response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+      }
+   }
+
+   /**
+    * Queue a valid transaction, refusing it at once if the queue is full.
+    */
+   private void queueTransaction(HttpServletResponse response, TransactionDTO transaction) {
+      if (!service.getTransactions().inWindow(transaction.getTimestamp())) {
+         metrics.record(Outcome.STALE);
+         response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+      } else if (queue.offer(transaction.getTimestamp(), transaction.getAmount(), transaction.getKey() != null,
+              transaction.getKey() == null ? 0 : transaction.getKey())) {
+         metrics.record(Outcome.QUEUED);
+         response.setStatus(HttpServletResponse.SC_ACCEPTED);
+      } else {
+         metrics.record(Outcome.REJECTED);
+         response.setHeader("Retry-After", "1");
+         response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      }
+   }
+
+   /**
+    * Create a batch of transactions.
+    * <p>
+    * The body is either a JSON array of transactions or newline delimited
+    * JSON (NDJSON) with one transaction per line, and is read as a stream so
+    * it may be arbitrarily long.  Each transaction has the same form as for
+    * POST /transactions.
+    * <p>
+    * Example body:
+    * [
+    * { "amount": 12.3, "timestamp": 1478192204000 },
+    * { "amount": 7.5, "timestamp": 1478192204120 }
+    * ]
+    * <p>
+    * Returns:  counts of the transactions in the batch, with 200 or 400.
+    * 200 - if the body was read in full
+    * 400 - if the body was malformed.  Transactions before the error have
+    * been accumulated and are included in the counts.
+    * <p>
+    * Example Response:
+    * {
+    * "accepted": 2, "stale": 0, "invalid": 0
+    * }
+    * <p>
+    * Where:
+    * accepted  is a long specifying the number of transactions accumulated
+    * stale  is a long specifying the number older than 60 seconds
+    * invalid  is a long specifying the number with a missing timestamp or a
+    * non-positive amount
+    *
+    * @param request  the http request, from which the body is streamed.
+    * @param response the http response object
+    * @return the counts as a data transfer object.
+    * @throws IOException if the body could not be read.
+    */
+   @RequestMapping(method = RequestMethod.POST, value = "/transactions/batch")
+   public BatchResultDTO addTransactions(HttpServletRequest request, HttpServletResponse response)
+           throws IOException {
+      TransactionStreamReader reader = new TransactionStreamReader(BATCH_CHUNK_SIZE);
+      long[] accepted = new long[1];
+      try {
+         reader.read(request.getInputStream(),
+                 (timestamps, amounts, keys, keyed, length) ->
+                         accepted[0] += service.accumulateAll(timestamps, amounts, keys, keyed, length));
+         response.setStatus(HttpServletResponse.SC_OK);
+      } catch (JsonProcessingException e) {
+         response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+      }
+      long stale = reader.getTotal() - reader.getInvalid() - accepted[0];
+      metrics.record(Outcome.CREATED, accepted[0]);
+      metrics.record(Outcome.STALE, stale);
+      metrics.record(Outcome.INVALID, reader.getInvalid());
+      return new BatchResultDTO(accepted[0], stale, reader.getInvalid());
+   }
+
+   /**
+    * Get current transaction statistics
+    * <p>
+    * Example Response:
+    * {
+    * "sum": 1000, "avg": 100, "max": 200, "min": 50, "count": 10, "distinct": 4
+    * }
+    * <p>
+    * Where:
+    * sum  is a double specifying the total sum of transaction value in the last 60 seconds
+    * avg  is a double specifying the average amount of transaction value in the last 60 seconds
+    * max  is a double specifying single highest transaction value in the last 60 seconds
+    * min  is a double specifying single lowest transaction value in the last 60 seconds
+    * count  is a long specifying the total number of transactions happened in the last 60 seconds
+    * distinct  is a long specifying the estimated number of distinct keys of the keyed
+    * transactions in the last 60 seconds, present if distinct counts are enabled
+    * <p>
+    * The optional window parameter selects a different window, such as
+    * <tt>?window=5m</tt>, up to the longest configured tier.  It is a number
+    * with a unit of ms, s, m or h, or plain msec.
+    * <p>
+    * The optional quantiles parameter adds estimates of the given quantiles
+    * of the transaction amounts, such as <tt>?quantiles=0.5,0.99</tt>, to the
+    * response:
+    * {
+    * "sum": 1000, "avg": 100, "max": 200, "min": 50, "count": 10,
+    * "quantiles": { "0.5": 99.8, "0.99": 199.2 }
+    * }
+    * <p>
+    * Returns 400 if the window is malformed or not covered, or a quantile is
+    * malformed or not between 0 and 1.
+    * <p>
+    * The statistics of the base window, with neither parameter, are served
+    * from the {@link StatisticsCache} with an ETag header, and a request
+    * with an If-None-Match header holding the same tag gets 304 and no body.
+    *
+    * @param window    the length of the window, or null for the base window.
+    * @param quantiles comma separated quantiles to estimate, or null for none.
+    * @param request   the web request, checked for an entity tag
+    * @param response  the http response object
+    * @return the statistics as a data transfer object, or null if already
+    * written.
+    * @throws IOException if the cached statistics could not be written.
+    */
+   @RequestMapping("/statistics")
+   public StatisticsDTO statistics(@RequestParam(value = "window", required = false) String window,
+                                   @RequestParam(value = "quantiles", required = false) String quantiles,
+                                   WebRequest request, HttpServletResponse response) throws IOException {
+      if (window == null && quantiles == null) {
+         StatisticsCache.Entry entry = cache.get();
+         response.setHeader("Cache-Control", "no-cache");
+         // sets the ETag header, and 304 if the request's tag matches
+         if (request.checkNotModified(entry.getETag())) {
+            cache.notModified();
+            return null;
+         }
+         response.setContentType(MediaType.APPLICATION_JSON_UTF8_VALUE);
+         response.setContentLength(entry.getBody().length);
+         response.getOutputStream().write(entry.getBody());
+         return null;
+      }
+      try {
+         long windowMillis = window == null
+                 ? service.getTransactions().getSpec().getWindowMillis() : parseMillis(window);
+         return service.getTransactions().statistics(windowMillis, quantiles == null ? null : parseQuantiles(quantiles));
+      } catch (IllegalArgumentException | ArithmeticException e) {
+         response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+         return null;
+      }
+   }
+
+   /**
+    * Get the top transaction keys
+    * <p>
+    * Example Response, for <tt>?by=sum&amp;k=2</tt>:
+    * [
+    * { "key": 42, "value": 1200.5, "error": 0 },
+    * { "key": 7, "value": 980, "error": 12.5 }
+    * ]
+    * <p>
+    * Where:
+    * key  is a long specifying the transaction key
+    * value  is a double specifying the estimated count or sum of the key's
+    * transactions over the key window, which is never below the true value
+    * error  is a double specifying the most by which value may exceed the
+    * true value
+    * <p>
+    * Returns 400 if by is not sum or count, or k is not from 1 to the
+    * configured top capacity.
+    *
+    * @param by       sum or count, the ranking of the keys.
+    * @param k        the number of keys.
+    * @param response the http response object
+    * @return the top keys, heaviest first.
+    */
+   @RequestMapping("/statistics/top")
+   public List<TopKeyDTO> top(@RequestParam(value = "by", defaultValue = "sum") String by,
+                              @RequestParam(value = "k", defaultValue = "20") int k,
+                              HttpServletResponse response) {
+      try {
+         return service.getTopKeys().top(k, HeavyHitters.By.valueOf(by.toUpperCase()));
+      } catch (IllegalArgumentException e) {
+         response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+         return null;
+      }
+   }
+
+   /**
+    * Stream current transaction statistics
+    * <p>
+    * Responds with a text/event-stream of server-sent events, each holding
+    * the statistics of the window in the same form as GET /statistics, at
+    * the configured tick:
+    * <pre>
+    * data: {"sum":1000.0,"avg":100.0,"max":200.0,"min":50.0,"count":10}
+    * </pre>
+    * The statistics are generated once per tick for every subscriber.  A
+    * subscriber which reads too slowly misses intermediate events, being
+    * sent only the latest, and is dropped if it reads nothing for the
+    * configured drop time.
+    * <p>
+    * Returns 503 if there are already as many subscribers as allowed.
+    *
+    * @param request  the http request.
+    * @param response the http response object
+    * @throws IOException if the response could not be opened.
+    */
+   @RequestMapping(method = RequestMethod.GET, value = "/statistics/stream")
+   public void streamStatistics(HttpServletRequest request, HttpServletResponse response) throws IOException {
+      if (!broadcaster.subscribe(request, response))
+         response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+   }
+
+   /**
+    * Get the partial statistics of this node
+    * <p>
+    * Returns the count, sum, minimum and maximum of each slice of the
+    * window, tagged with its epoch aligned bucket number, in the binary form
+    * of {@link PartialStatistics}, as application/octet-stream.  The partial
+    * statistics of several nodes merge into those of all their transactions.
+    *
+    * @return the partial statistics in binary form.
+    */
+   @RequestMapping(value = "/statistics/partial", produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+   public byte[] partialStatistics() {
+      return service.getTransactions().partialStatistics().toBytes();
+   }
+
+   /**
+    * Get current transaction statistics over every node
+    * <p>
+    * Merges the partial statistics of this node and of every configured
+    * peer which answers in time, and returns statistics of the same form as
+    * GET /statistics, with the number of nodes merged:
+    * {
+    * "sum": 3000, "avg": 100, "max": 200, "min": 50, "count": 30, "nodes": 3
+    * }
+    * <p>
+    * Returns 404 if no peers are configured.
+    *
+    * @param response the http response object
+    * @return the statistics as a data transfer object.
+    */
+   @RequestMapping("/statistics/global")
+   public StatisticsDTO globalStatistics(HttpServletResponse response) {
+      if (!aggregator.isEnabled()) {
+         response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+         return null;
+      }
+      return aggregator.statistics();
+   }
+
+   /**
+    * Get the transaction history
+    * <p>
+    * Example Response, for <tt>?from=1478192160000&amp;to=1478192280000&amp;step=1m</tt>:
+    * [
+    * { "timestamp": 1478192160000, "sum": 1000, "avg": 100, "max": 200, "min": 50, "count": 10 },
+    * { "timestamp": 1478192220000, "sum": 450, "avg": 150, "max": 300, "min": 20, "count": 3 }
+    * ]
+    * <p>
+    * Where:
+    * timestamp  is a long specifying the unix epoch time in milliseconds at
+    * which the step starts, and the other fields are as in GET /statistics
+    * over the step
+    * <p>
+    * The from parameter is the unix epoch time in milliseconds of the start
+    * of the range, rounded down to a step, and the optional to parameter
+    * the time before which it ends, by default now.  The step is a duration
+    * as for GET /statistics?window=, by default 1m, and must be a multiple of
+    * the finest history resolution.  Steps with no transactions are left
+    * out, as is the current window, which only enters the history as its
+    * slices age out.
+    * <p>
+    * Returns 400 if the range is empty, the step is malformed or not a
+    * multiple of the finest resolution, or the range has more than 10,000
+    * steps, and 404 if no history directory is configured.
+    *
+    * @param from     the start of the range.
+    * @param to       the end of the range, or null for now.
+    * @param step     the length of each step.
+    * @param response the http response object
+    * @return the statistics of each step holding transactions, oldest first.
+    */
+   @RequestMapping("/statistics/history")
+   public List<HistoryPointDTO> history(@RequestParam(value = "from") long from,
+                                        @RequestParam(value = "to", required = false) Long to,
+                                        @RequestParam(value = "step", defaultValue = "1m") String step,
+                                        HttpServletResponse response) {
+      if (!history.isEnabled()) {
+         response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+         return null;
+      }
+      try {
+         long stepMillis = parseMillis(step);
+         return to == null ? history.query(from, stepMillis) : history.query(from, to, stepMillis);
+      } catch (IllegalArgumentException | ArithmeticException e) {
+         response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+         return null;
+      }
+   }
+
+   /**
+    * Get current transaction statistics for one transaction key
+    * <p>
+    * The response has the same form as GET /statistics, over the configured
+    * key window (by default the last 60 seconds) and covering only the
+    * transactions posted with the given key.  A key with no transactions in
+    * the window has statistics of zero.
+    *
+    * @param key the transaction key.
+    * @return the statistics as a data transfer object.
+    */
+   @RequestMapping("/statistics/{key}")
+   public StatisticsDTO statistics(@PathVariable("key") long key) {
+      return service.getKeyedTransactions().statistics(key);
+   }
+
+   /**
+    * Parse a comma separated list of quantiles.
+    *
+    * @throws IllegalArgumentException if a quantile is not a number.
+    */
+   static double[] parseQuantiles(String quantiles) {
+      String[] parts = quantiles.split(",");
+      double[] values = new double[parts.length];
+      for (int i = 0; i < parts.length; i++)
+         values[i] = Double.parseDouble(parts[i].trim());
+      return values;
+   }
+
+   /**
+    * Parse a duration such as 500ms, 10s, 5m or 1h into msec.  A number with
+    * no unit is taken as msec.
+    *
+    * @throws IllegalArgumentException if the duration is malformed.
+    * @throws ArithmeticException      if the duration overflows.
+    */
+   static long parseMillis(String duration) {
+      String text = duration.trim();
+      long unit = 1;
+      if (text.endsWith("ms")) {
+         text = text.substring(0, text.length() - 2);
+      } else if (text.endsWith("s")) {
+         unit = 1000;
+         text = text.substring(0, text.length() - 1);
+      } else if (text.endsWith("m")) {
+         unit = 60 * 1000;
+         text = text.substring(0, text.length() - 1);
+      } else if (text.endsWith("h")) {
+         unit = 60 * 60 * 1000;
+         text = text.substring(0, text.length() - 1);
+      }
+      // NumberFormatException is an IllegalArgumentException
+      return Math.multiplyExact(Long.parseLong(text.trim()), unit);
+   }
+}
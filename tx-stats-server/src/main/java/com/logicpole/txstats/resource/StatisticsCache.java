@@ -0,0 +1,213 @@
+package com.logicpole.txstats.resource;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.logicpole.txstats.accumulate.LatencyHistogram;
+import com.logicpole.txstats.accumulate.TimeSource;
+import com.logicpole.txstats.config.CacheProperties;
+import com.logicpole.txstats.dto.StatisticsDTO;
+import com.logicpole.txstats.service.TransactionService;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Statistics cache
+ * <p>
+ * Holds the statistics of the base window serialized as the JSON body of
+ * GET /statistics, with an entity tag, so that a request between changes
+ * is answered with the same bytes rather than generating and serializing
+ * the statistics again.
+ * <p>
+ * The statistics only change when a transaction is accumulated or a slice
+ * of the window ages out.  The cached body is therefore generated again on
+ * the first request after the slice turns over, or after a transaction has
+ * been accumulated, which writers signal with a flag they set only when it
+ * is clear.  Under a steady stream of transactions that would be every
+ * request, so the body may instead be served until it is as old as the
+ * configured staleness, as long as the slice has not turned over, and no
+ * transaction is then left out of the statistics for longer than that.
+ * <p>
+ * The entity tag is a hash of the body, so statistics generated again
+ * without having changed keep their tag, and a conditional request with
+ * the tag is answered with 304.
+ *
+ * @author Max McCormick
+ */
+@Component
+public class StatisticsCache {
+
+   private final TransactionService service;
+   private final ObjectMapper mapper;
+   private final TimeSource clock;
+   private final boolean enabled;
+   private final long staleNanos;
+   private final long sliceMillis;
+
+   /*
+    * The latest statistics, or null before the first request.
+    */
+   private volatile Entry current;
+
+   /*
+    * Metrics.
+    */
+   private final LongAdder hits = new LongAdder();
+   private final LongAdder misses = new LongAdder();
+   private final LongAdder notModified = new LongAdder();
+   private final LatencyHistogram serializeLatency = new LatencyHistogram();
+
+   /**
+    * Create the cache.
+    *
+    * @param service    the transaction accumulators.
+    * @param mapper     the mapper serializing the statistics.
+    * @param clock      the clock at which the window ends.
+    * @param properties whether to cache, and the staleness allowed.
+    */
+   public StatisticsCache(TransactionService service, ObjectMapper mapper, TimeSource clock,
+                          CacheProperties properties) {
+      if (properties.getStaleMillis() < 0)
+         throw new IllegalArgumentException("staleness must not be negative: " + properties.getStaleMillis());
+      this.service = service;
+      this.mapper = mapper;
+      this.clock = clock;
+      enabled = properties.isEnabled();
+      staleNanos = TimeUnit.MILLISECONDS.toNanos(properties.getStaleMillis());
+      sliceMillis = service.getTransactions().getSpec().getSliceMillis();
+   }
+
+   /**
+    * Get the serialized statistics of the base window, generating them if
+    * they have changed, or at most the staleness ago.
+    *
+    * @return the statistics and their entity tag.
+    * @throws JsonProcessingException if the statistics could not be
+    *                                 serialized.
+    */
+   public Entry get() throws JsonProcessingException {
+      if (!enabled)
+         return generate();
+      Entry entry = current;
+      if (entry != null && isFresh(entry)) {
+         hits.increment();
+         return entry;
+      }
+      return refresh();
+   }
+
+   /**
+    * Count a request answered with 304 as its entity tag matched.
+    */
+   public void notModified() {
+      notModified.increment();
+   }
+
+   public boolean isEnabled() {
+      return enabled;
+   }
+
+   public long getHits() {
+      return hits.sum();
+   }
+
+   public long getMisses() {
+      return misses.sum();
+   }
+
+   public long getNotModified() {
+      return notModified.sum();
+   }
+
+   /**
+    * Get the times taken to serialize the statistics on a miss, each of
+    * which a hit saves, along with generating them.
+    *
+    * @return the serialization latencies.
+    */
+   public LatencyHistogram getSerializeLatency() {
+      return serializeLatency;
+   }
+
+   private boolean isFresh(Entry entry) {
+      if (clock.currentTimeMillis() / sliceMillis != entry.bucket)
+         return false;
+      return !service.isWritten() || System.nanoTime() - entry.createdNanos < staleNanos;
+   }
+
+   /**
+    * Generate and serialize the statistics, unless another request has
+    * done so while this one waited.  Requests which miss at once share one
+    * generation.
+    */
+   private synchronized Entry refresh() throws JsonProcessingException {
+      Entry entry = current;
+      if (entry != null && isFresh(entry)) {
+         hits.increment();
+         return entry;
+      }
+      entry = generate();
+      current = entry;
+      return entry;
+   }
+
+   /**
+    * Generate and serialize the statistics, timing the serialization.  The
+    * time to generate them is timed by the accumulator.
+    */
+   private Entry generate() throws JsonProcessingException {
+      // take the slice, and clear the flag, before reading the statistics,
+      // so that a change while they are read is not missed
+      long bucket = clock.currentTimeMillis() / sliceMillis;
+      if (enabled)
+         service.clearWritten();
+      StatisticsDTO statistics = service.statistics();
+      long start = System.nanoTime();
+      byte[] body = mapper.writeValueAsBytes(statistics);
+      long now = System.nanoTime();
+      serializeLatency.record(now - start);
+      misses.increment();
+      return new Entry(body, bucket, now);
+   }
+
+   /**
+    * Serialized statistics, with their entity tag.
+    */
+   public static final class Entry {
+
+      private final byte[] body;
+      private final String etag;
+      private final long bucket;
+      private final long createdNanos;
+
+      private Entry(byte[] body, long bucket, long createdNanos) {
+         this.body = body;
+         this.bucket = bucket;
+         this.createdNanos = createdNanos;
+         // 64 bit FNV-1a
+         long hash = 0xcbf29ce484222325L;
+         for (byte b : body)
+            hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+         etag = "\"" + Long.toHexString(hash) + "\"";
+      }
+
+      /**
+       * Get the statistics as a JSON body.  The array must not be modified.
+       *
+       * @return the body.
+       */
+      public byte[] getBody() {
+         return body;
+      }
+
+      /**
+       * Get the quoted entity tag of the body.
+       *
+       * @return the entity tag.
+       */
+      public String getETag() {
+         return etag;
+      }
+   }
+}
@@ -0,0 +1,163 @@
+package com.logicpole.txstats.resource;
+
+import com.logicpole.txstats.accumulate.DoubleAccumulator;
+import com.logicpole.txstats.accumulate.LatencyHistogram;
+import com.logicpole.txstats.history.HistoryRecorder;
+import com.logicpole.txstats.history.HistoryStore;
+import com.logicpole.txstats.service.TransactionService;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Transaction metrics
+ * <p>
+ * Counts the outcome of every transaction posted, singly or in a batch, and
+ * publishes the counts to the actuator metrics endpoint along with the
+ * internals of the accumulators:
+ * <pre>
+ * transactions.created               - accumulated (201, or in a batch)
+ * transactions.queued                - queued to be accumulated (202)
+ * transactions.stale                 - older than the window (204)
+ * transactions.invalid               - missing timestamp or non-positive
+ *                                      amount (400)
+ * transactions.rejected              - refused by a full queue (503)
+ * accumulator.lock.wait.samples      - writer lock acquisitions timed, one
+ *                                      in 64
+ * accumulator.lock.wait.p50.usec     - median time to acquire a lock
+ * accumulator.lock.wait.p99.usec     - 99th percentile of the same
+ * accumulator.lock.wait.max.usec     - longest time to acquire a lock
+ * accumulator.statistics.count       - statistics generated
+ * accumulator.statistics.p50.usec    - median time to generate them, sampled
+ *                                      from one in 64
+ * accumulator.statistics.p99.usec    - 99th percentile of the same
+ * accumulator.statistics.max.usec    - longest time to generate them
+ * accumulator.statistics.locked      - stripe reads which took the lock
+ *                                      rather than reading optimistically
+ * accumulator.tier&lt;n&gt;.slices.aged    - slices aged out of each tier
+ * statistics.cache.hits              - GET /statistics served from the cache
+ * statistics.cache.misses            - GET /statistics generated and
+ *                                      serialized
+ * statistics.cache.not.modified      - GET /statistics answered with 304
+ * statistics.cache.serialize.p50.usec - median time to serialize them on
+ *                                      a miss
+ * statistics.cache.serialize.p99.usec - 99th percentile of the same
+ * statistics.cache.serialize.max.usec - longest time to serialize them
+ * statistics.cache.saved.msec        - serialization time saved by the
+ *                                      hits, at the median, besides the
+ *                                      time to generate the statistics
+ * keys.size                          - transaction keys held
+ * keys.expunged                      - idle keys dropped
+ * history.level&lt;n&gt;.records          - records held by each history level,
+ *                                      if history is kept
+ * history.late                       - slices which aged out after their
+ *                                      history bucket was appended
+ * </pre>
+ * The counters are striped, so recording an outcome does not contend
+ * between request threads.  The accumulator metrics are read when
+ * published, and cost nothing until then beyond the sampled lock timing.
+ *
+ * @author Max McCormick
+ */
+@Component
+public class TransactionMetrics implements PublicMetrics {
+
+   /**
+    * The outcome of a posted transaction.
+    */
+   public enum Outcome {
+      CREATED, QUEUED, STALE, INVALID, REJECTED
+   }
+
+   private final TransactionService service;
+   private final StatisticsCache cache;
+   private final HistoryRecorder history;
+   private final LongAdder[] outcomes = new LongAdder[Outcome.values().length];
+
+   public TransactionMetrics(TransactionService service, StatisticsCache cache, HistoryRecorder history) {
+      this.service = service;
+      this.cache = cache;
+      this.history = history;
+      for (int i = 0; i < outcomes.length; i++)
+         outcomes[i] = new LongAdder();
+   }
+
+   /**
+    * Count a transaction with the given outcome.
+    *
+    * @param outcome the outcome.
+    */
+   public void record(Outcome outcome) {
+      outcomes[outcome.ordinal()].increment();
+   }
+
+   /**
+    * Count several transactions with the given outcome.
+    *
+    * @param outcome the outcome.
+    * @param count   the number of transactions.
+    */
+   public void record(Outcome outcome, long count) {
+      if (count != 0)
+         outcomes[outcome.ordinal()].add(count);
+   }
+
+   /**
+    * Get the number of transactions counted with the given outcome.
+    *
+    * @param outcome the outcome.
+    * @return the count.
+    */
+   public long getCount(Outcome outcome) {
+      return outcomes[outcome.ordinal()].sum();
+   }
+
+   @Override
+   public Collection<Metric<?>> metrics() {
+      List<Metric<?>> metrics = new ArrayList<>();
+      for (Outcome outcome : Outcome.values())
+         metrics.add(new Metric<>("transactions." + outcome.name().toLowerCase(), getCount(outcome)));
+
+      DoubleAccumulator transactions = service.getTransactions();
+      LatencyHistogram.Snapshot lockWait = transactions.getLockWait().snapshot();
+      metrics.add(new Metric<>("accumulator.lock.wait.samples", lockWait.getCount()));
+      addLatencies(metrics, "accumulator.lock.wait", lockWait);
+      LatencyHistogram.Snapshot statistics = transactions.getStatisticsLatency().snapshot();
+      metrics.add(new Metric<>("accumulator.statistics.count", transactions.getStatisticsCalls()));
+      addLatencies(metrics, "accumulator.statistics", statistics);
+      metrics.add(new Metric<>("accumulator.statistics.locked", transactions.getLockedReads()));
+      long[] aged = transactions.agedSlices();
+      for (int t = 0; t < aged.length; t++)
+         metrics.add(new Metric<>("accumulator.tier" + t + ".slices.aged", aged[t]));
+
+      long hits = cache.getHits();
+      LatencyHistogram.Snapshot serialize = cache.getSerializeLatency().snapshot();
+      metrics.add(new Metric<>("statistics.cache.hits", hits));
+      metrics.add(new Metric<>("statistics.cache.misses", cache.getMisses()));
+      metrics.add(new Metric<>("statistics.cache.not.modified", cache.getNotModified()));
+      addLatencies(metrics, "statistics.cache.serialize", serialize);
+      metrics.add(new Metric<>("statistics.cache.saved.msec", hits * serialize.quantile(0.5) / 1e6));
+
+      metrics.add(new Metric<>("keys.size", service.getKeyedTransactions().size()));
+      metrics.add(new Metric<>("keys.expunged", service.getKeyedTransactions().expungedKeys()));
+
+      if (history.isEnabled()) {
+         HistoryStore store = history.getStore();
+         for (int l = 0; l < store.getLevels(); l++)
+            metrics.add(new Metric<>("history.level" + l + ".records", store.getRecords(l)));
+         metrics.add(new Metric<>("history.late", store.getLate()));
+      }
+      return metrics;
+   }
+
+   private static void addLatencies(List<Metric<?>> metrics, String prefix, LatencyHistogram.Snapshot snapshot) {
+      metrics.add(new Metric<>(prefix + ".p50.usec", snapshot.quantile(0.5) / 1e3));
+      metrics.add(new Metric<>(prefix + ".p99.usec", snapshot.quantile(0.99) / 1e3));
+      metrics.add(new Metric<>(prefix + ".max.usec", snapshot.getMax() / 1e3));
+   }
+}
@@ -0,0 +1,159 @@
+package com.logicpole.txstats.resource;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Streaming reader for batches of transactions
+ * <p>
+ * Reads either a JSON array of transactions or newline delimited JSON (one
+ * transaction object per line) directly with the Jackson streaming parser, so
+ * no object is bound per transaction.  Transactions are collected into fixed
+ * size primitive arrays and handed to a {@link Sink} each time the arrays fill
+ * up, so a body of any length is processed in constant memory.
+ *
+ * @author Max McCormick
+ */
+class TransactionStreamReader {
+
+   private static final JsonFactory factory = new JsonFactory();
+
+   /**
+    * Receiver of chunks of valid transactions.
+    */
+   interface Sink {
+      void accept(long[] timestamps, double[] amounts, long[] keys, boolean[] keyed, int length);
+   }
+
+   private final long[] timestamps;
+   private final double[] amounts;
+   private final long[] keys;
+   private final boolean[] keyed;
+   private int length;
+   private long total;
+   private long invalid;
+
+   /**
+    * Create a reader.
+    *
+    * @param chunkSize the number of transactions handed to the sink at once.
+    */
+   TransactionStreamReader(int chunkSize) {
+      timestamps = new long[chunkSize];
+      amounts = new double[chunkSize];
+      keys = new long[chunkSize];
+      keyed = new boolean[chunkSize];
+   }
+
+   /**
+    * Read all the transactions in the stream, passing valid ones to the sink.
+    * A transaction is valid if it has a non-zero timestamp, a positive
+    * amount and, if it has a key, an integer key.
+    *
+    * @param in   the stream holding a JSON array or NDJSON.
+    * @param sink the receiver of valid transactions.
+    * @throws JsonParseException if the stream is not well formed.  Transactions
+    *                            read before the error have already been passed
+    *                            to the sink.
+    * @throws IOException        if the stream could not be read.
+    */
+   void read(InputStream in, Sink sink) throws IOException {
+      try (JsonParser parser = factory.createParser(in)) {
+         JsonToken token = parser.nextToken();
+         boolean array = token == JsonToken.START_ARRAY;
+         if (array)
+            token = parser.nextToken();
+
+         // a JSON array ends with END_ARRAY, NDJSON with the end of input
+         while (token != null && token != JsonToken.END_ARRAY) {
+            if (token != JsonToken.START_OBJECT)
+               throw new JsonParseException(parser, "expected a transaction object but found " + token);
+            readTransaction(parser);
+            if (length == timestamps.length)
+               flush(sink);
+            token = parser.nextToken();
+         }
+         if (array && token == null)
+            throw new JsonParseException(parser, "unterminated array");
+      } finally {
+         // pass on whatever was read, even if the rest of the stream was bad
+         flush(sink);
+      }
+   }
+
+   /**
+    * Get the number of transactions read, including invalid ones.
+    */
+   long getTotal() {
+      return total;
+   }
+
+   /**
+    * Get the number of invalid transactions read.
+    */
+   long getInvalid() {
+      return invalid;
+   }
+
+   /**
+    * Read the fields of one transaction object, the start of which has just
+    * been consumed.
+    */
+   private void readTransaction(JsonParser parser) throws IOException {
+      long timestamp = 0;
+      double amount = 0;
+      long key = 0;
+      boolean hasKey = false;
+      boolean numeric = true;
+
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+         String field = parser.getCurrentName();
+         JsonToken value = parser.nextToken();
+         if ("timestamp".equals(field)) {
+            if (value == JsonToken.VALUE_NUMBER_INT)
+               timestamp = parser.getLongValue();
+            else
+               numeric = false;
+         } else if ("amount".equals(field)) {
+            if (value.isNumeric())
+               amount = parser.getDoubleValue();
+            else
+               numeric = false;
+         } else if ("key".equals(field)) {
+            if (value == JsonToken.VALUE_NUMBER_INT) {
+               key = parser.getLongValue();
+               hasKey = true;
+            } else if (value != JsonToken.VALUE_NULL) {
+               numeric = false;
+            }
+         } else {
+            // ignore unknown fields, including any nested structure
+            parser.skipChildren();
+         }
+      }
+
+      // same rules as a single transaction.  a transaction of a negative or
+      // zero amount would not make sense.
+      total++;
+      if (!numeric || timestamp == 0 || amount <= 0) {
+         invalid++;
+         return;
+      }
+      timestamps[length] = timestamp;
+      amounts[length] = amount;
+      keys[length] = key;
+      keyed[length] = hasKey;
+      length++;
+   }
+
+   private void flush(Sink sink) {
+      if (length > 0)
+         sink.accept(timestamps, amounts, keys, keyed, length);
+      length = 0;
+   }
+}
@@ -0,0 +1,254 @@
+package com.logicpole.txstats.service;
+
+import com.logicpole.txstats.accumulate.DoubleAccumulator;
+import com.logicpole.txstats.accumulate.FixedPointAccumulator;
+import com.logicpole.txstats.accumulate.HeavyHitters;
+import com.logicpole.txstats.accumulate.KeyedAccumulator;
+import com.logicpole.txstats.accumulate.MaintenanceScheduler;
+import com.logicpole.txstats.accumulate.TimeSource;
+import com.logicpole.txstats.config.AccumulatorProperties;
+import com.logicpole.txstats.dto.StatisticsDTO;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.nio.file.Paths;
+
+/**
+ * Transaction accumulators
+ * <p>
+ * Holds the accumulators shared by every ingestion path, the REST resource
+ * and the binary ingestion listener, so that transactions from any of them
+ * are counted in the same statistics.  The window state is restored from
+ * its file, if configured, when the accumulators are created.
+ * <p>
+ * The time is read once per transaction, or per chunk, and the transaction
+ * is fed to the exact, keyed and top key accumulators as of that time only
+ * once the double accumulator has accepted it, so that every accumulator
+ * agrees on whether a transaction at the edge of the window was stale.
+ *
+ * @author Max McCormick
+ */
+@Service
+public class TransactionService {
+
+   /**
+    * This object can accumulates double values and give simple statistics
+    * based on data timestamped within the configured window, by default the
+    * last minute
+    */
+   private final DoubleAccumulator transactions;
+
+   /**
+    * This object accumulates the same values per transaction key, such as a
+    * merchant ID, over the configured key window.
+    */
+   private final KeyedAccumulator keyedTransactions;
+
+   /**
+    * This object tracks the transaction keys with the highest count and sum
+    * over the configured key window.
+    */
+   private final HeavyHitters topKeys;
+
+   /**
+    * This object accumulates the same values exactly, in minor units, over
+    * the base window, or is null if fixed-point amounts are not enabled.
+    */
+   private final FixedPointAccumulator exactTransactions;
+
+   /*
+    * The clock at which the windows end, read once for each transaction or
+    * chunk.
+    */
+   private final TimeSource clock;
+
+   /*
+    * Set when a transaction is accumulated, unless already set, and cleared
+    * by the reader which tracks it, so that writers only write the shared
+    * cache line once per read rather than on every transaction.
+    */
+   private volatile boolean written;
+
+   /**
+    * Create the accumulators.
+    *
+    * @param properties the accumulator window, resolution and stripe count.
+    * @param clock      the clock at which the windows end.
+    */
+   public TransactionService(AccumulatorProperties properties, TimeSource clock) {
+      this(properties, clock, null);
+   }
+
+   /**
+    * Create the accumulators, with the slices of the window aged out by the
+    * given scheduler as they turn over.
+    *
+    * @param properties the accumulator window, resolution and stripe count.
+    * @param clock      the clock at which the windows end.
+    * @param scheduler  the maintenance scheduler, or null for none.
+    */
+   @Autowired
+   public TransactionService(AccumulatorProperties properties, TimeSource clock, MaintenanceScheduler scheduler) {
+      this.transactions = new DoubleAccumulator(properties.toWindowSpecs(), properties.getStripes(),
+              properties.toSketchSpec(), properties.toDistinctSpec(),
+              properties.getStateFile() == null ? null : Paths.get(properties.getStateFile()), clock);
+      this.keyedTransactions = new KeyedAccumulator(properties.toKeyWindowSpec(), properties.getStripes(), clock);
+      this.topKeys = new HeavyHitters(properties.toKeyWindowSpec(), properties.getTopCapacity(),
+              properties.getStripes(), clock);
+      this.exactTransactions = properties.getFixedPointScale() == null ? null
+              : new FixedPointAccumulator(properties.toWindowSpec(), properties.getStripes(),
+              properties.getFixedPointScale(), clock);
+      this.clock = clock;
+      if (scheduler != null)
+         transactions.maintainWith(scheduler);
+   }
+
+   /**
+    * Stop maintaining the window and write its state through to its file,
+    * if kept in one, on shutdown.
+    */
+   @PreDestroy
+   public void close() {
+      transactions.close();
+   }
+
+   public DoubleAccumulator getTransactions() {
+      return transactions;
+   }
+
+   public KeyedAccumulator getKeyedTransactions() {
+      return keyedTransactions;
+   }
+
+   public HeavyHitters getTopKeys() {
+      return topKeys;
+   }
+
+   public FixedPointAccumulator getExactTransactions() {
+      return exactTransactions;
+   }
+
+   /**
+    * Clear the written flag, returning whether any transaction has been
+    * accumulated since it was last cleared.  The flag is cleared before the
+    * caller reads the statistics, so a transaction accumulated while they
+    * are read sets it again.
+    *
+    * @return <tt>true</tt> if a transaction has been accumulated since the
+    * last call.
+    */
+   public boolean clearWritten() {
+      if (!written)
+         return false;
+      written = false;
+      return true;
+   }
+
+   /**
+    * Get whether a transaction has been accumulated since the written flag
+    * was last cleared.
+    *
+    * @return <tt>true</tt> if a transaction has been accumulated.
+    */
+   public boolean isWritten() {
+      return written;
+   }
+
+   /**
+    * Get the statistics of the base window.  If fixed-point amounts are
+    * enabled the count, sum, average, minimum and maximum are the exact ones,
+    * and the distinct count, if kept, is taken from the double accumulator
+    * as of the same time.
+    *
+    * @return the statistics.
+    */
+   public StatisticsDTO statistics() {
+      if (exactTransactions == null)
+         return transactions.statistics();
+      long now = clock.currentTimeMillis();
+      StatisticsDTO stats = transactions.statisticsAsOf(now);
+      StatisticsDTO exact = exactTransactions.statisticsAsOf(now);
+      return new StatisticsDTO(exact.getSum(), exact.getAvg(), exact.getMax(), exact.getMin(), exact.getCount(),
+              null, stats.getDistinct());
+   }
+
+   /**
+    * Accumulate an unkeyed transaction.
+    *
+    * @param timestamp the unix epochtime (msec) of the transaction.
+    * @param amount    the transaction amount.
+    * @return <tt>true</tt> if the transaction was accumulated, false if it
+    * fell outside the current time window.
+    */
+   public boolean accumulate(long timestamp, double amount) {
+      long now = clock.currentTimeMillis();
+      if (!transactions.accumulateAsOf(now, timestamp, amount))
+         return false;
+      if (exactTransactions != null)
+         exactTransactions.accumulateAsOf(now, timestamp, amount);
+      return written(true);
+   }
+
+   /**
+    * Accumulate a keyed transaction, both overall and under its key.
+    *
+    * @param timestamp the unix epochtime (msec) of the transaction.
+    * @param amount    the transaction amount.
+    * @param key       the transaction key.
+    * @return <tt>true</tt> if the transaction was accumulated, false if it
+    * fell outside the current time window.
+    */
+   public boolean accumulate(long timestamp, double amount, long key) {
+      long now = clock.currentTimeMillis();
+      if (!transactions.accumulateAsOf(now, timestamp, amount, key))
+         return false;
+      keyedTransactions.accumulateAsOf(now, key, timestamp, amount);
+      topKeys.accumulateAsOf(now, key, timestamp, amount);
+      if (exactTransactions != null)
+         exactTransactions.accumulateAsOf(now, timestamp, amount);
+      return written(true);
+   }
+
+   /**
+    * Accumulate a chunk of transactions, each keyed or not, as by
+    * {@link DoubleAccumulator#accumulateAll(long[], double[], long[], boolean[], int)}.
+    * Only the transactions in the window of the double accumulator are fed
+    * to the others.
+    *
+    * @param timestamps the unix epochtime (msec) of each transaction.
+    * @param amounts    the amount of each transaction.
+    * @param keys       the key of each keyed transaction.
+    * @param keyed      whether each transaction is keyed.
+    * @param length     the number of transactions.
+    * @return the number of transactions accumulated.
+    */
+   public int accumulateAll(long[] timestamps, double[] amounts, long[] keys, boolean[] keyed, int length) {
+      long now = clock.currentTimeMillis();
+      int accepted = transactions.accumulateAllAsOf(now, timestamps, amounts, keys, keyed, length);
+      if (accepted == 0)
+         return 0;
+      for (int i = 0; i < length; i++) {
+         if (!transactions.inWindowAsOf(now, timestamps[i]))
+            continue;
+         if (keyed[i]) {
+            keyedTransactions.accumulateAsOf(now, keys[i], timestamps[i], amounts[i]);
+            topKeys.accumulateAsOf(now, keys[i], timestamps[i], amounts[i]);
+         }
+         if (exactTransactions != null)
+            exactTransactions.accumulateAsOf(now, timestamps[i], amounts[i]);
+      }
+      written(true);
+      return accepted;
+   }
+
+   /**
+    * Set the written flag if something was accumulated and the flag is not
+    * already set.
+    */
+   private boolean written(boolean accepted) {
+      if (accepted && !written)
+         written = true;
+      return accepted;
+   }
+}
@@ -0,0 +1,358 @@
+package com.logicpole.txstats.stream;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.logicpole.txstats.accumulate.MaintenanceScheduler;
+import com.logicpole.txstats.config.StreamProperties;
+import com.logicpole.txstats.service.TransactionService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Statistics broadcaster
+ * <p>
+ * Streams the statistics of the window to any number of subscribers as
+ * server-sent events.  Once per tick, while there are subscribers, the
+ * stream thread generates the statistics, serializes them once into an
+ * event, and offers the same bytes to every subscriber, so the cost of a
+ * tick does not depend on the number of subscribers beyond the write itself.
+ * <p>
+ * The tick is timed by the {@link MaintenanceScheduler}, whose thread also
+ * ages the slices of every accumulator, so it only hands the broadcast to
+ * the stream thread.  At most one broadcast runs at a time:  a tick which
+ * finds the last one still running is skipped and counted, so however many
+ * subscribers there are, the stream neither delays maintenance nor queues
+ * work behind itself.  A failure to serialize the statistics is counted
+ * and logged, the first at warning level, and the next tick tries again.
+ * <p>
+ * Subscribers are written with non-blocking servlet output, so a slow
+ * subscriber never holds up the tick.  A subscriber which cannot take an
+ * event keeps only the latest one, replacing any it has not been sent, and
+ * is sent it once it can take more.  A subscriber which has taken nothing
+ * for the configured drop time is dropped.
+ *
+ * @author Max McCormick
+ */
+@Component
+public class StatisticsBroadcaster {
+
+   /*
+    * Sent to a new subscriber if there is no event yet, to send the response
+    * headers at once.
+    */
+   private static final byte[] OPENING = ":\n\n".getBytes(StandardCharsets.UTF_8);
+   private static final byte[] DATA = "data: ".getBytes(StandardCharsets.UTF_8);
+
+   private static final Logger LOG = LoggerFactory.getLogger(StatisticsBroadcaster.class);
+
+   private final TransactionService service;
+   private final ObjectMapper mapper;
+   private final long tickMillis;
+   private final int maxSubscribers;
+   private final long dropAfterNanos;
+   private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+   private final MaintenanceScheduler scheduler;
+   private MaintenanceScheduler.Task ticker;
+
+   /*
+    * The stream thread, and whether a broadcast is queued or running on it.
+    */
+   private final ExecutorService streamer;
+   private final AtomicBoolean broadcasting = new AtomicBoolean();
+
+   /*
+    * The event of the last tick, or null if there were no subscribers.
+    */
+   private volatile byte[] latest;
+
+   /*
+    * Metrics.
+    */
+   private volatile long ticks;
+   private final LongAdder dropped = new LongAdder();
+   private final LongAdder refused = new LongAdder();
+   private final LongAdder skipped = new LongAdder();
+   private final LongAdder failures = new LongAdder();
+
+   /**
+    * Create the broadcaster.
+    *
+    * @param service    the transaction accumulators.
+    * @param mapper     the mapper serializing the statistics.
+    * @param properties the tick, subscriber limit and drop time.
+    * @param scheduler  the scheduler running the ticks.
+    */
+   public StatisticsBroadcaster(TransactionService service, ObjectMapper mapper, StreamProperties properties,
+                                MaintenanceScheduler scheduler) {
+      if (properties.getTickMillis() < 1)
+         throw new IllegalArgumentException("tick must be positive: " + properties.getTickMillis());
+      this.service = service;
+      this.mapper = mapper;
+      tickMillis = properties.getTickMillis();
+      maxSubscribers = properties.getMaxSubscribers();
+      dropAfterNanos = TimeUnit.MILLISECONDS.toNanos(properties.getDropAfterMillis());
+      this.scheduler = scheduler;
+      streamer = Executors.newSingleThreadExecutor(runnable -> {
+         Thread thread = new Thread(runnable, "statistics-stream");
+         thread.setDaemon(true);
+         return thread;
+      });
+   }
+
+   @PostConstruct
+   public void start() {
+      ticker = scheduler.schedule(this::tick, tickMillis);
+   }
+
+   @PreDestroy
+   public void stop() {
+      ticker.cancel();
+      streamer.shutdownNow();
+      for (Subscriber subscriber : subscribers)
+         subscriber.close();
+   }
+
+   /**
+    * Subscribe the client of a request to the statistics, switching the
+    * request to asynchronous mode with non-blocking output.
+    *
+    * @param request  the http request.
+    * @param response the http response.
+    * @return <tt>true</tt> if subscribed, false if there are already as
+    * many subscribers as allowed.
+    * @throws IOException if the response output could not be opened.
+    */
+   public synchronized boolean subscribe(HttpServletRequest request, HttpServletResponse response)
+           throws IOException {
+      if (subscribers.size() >= maxSubscribers) {
+         refused.increment();
+         return false;
+      }
+      response.setContentType("text/event-stream;charset=UTF-8");
+      response.setHeader("Cache-Control", "no-cache");
+      AsyncContext context = request.startAsync();
+      context.setTimeout(0);
+      byte[] event = latest;
+      Subscriber subscriber = new Subscriber(context, response.getOutputStream(), event == null ? OPENING : event);
+      subscribers.add(subscriber);
+      context.addListener(subscriber);
+      subscriber.out.setWriteListener(subscriber);
+      return true;
+   }
+
+   public int getSubscribers() {
+      return subscribers.size();
+   }
+
+   public long getTicks() {
+      return ticks;
+   }
+
+   public long getDropped() {
+      return dropped.sum();
+   }
+
+   public long getRefused() {
+      return refused.sum();
+   }
+
+   public long getSkipped() {
+      return skipped.sum();
+   }
+
+   public long getFailures() {
+      return failures.sum();
+   }
+
+   /**
+    * Hand a broadcast to the stream thread, unless there are no subscribers
+    * or the last broadcast is still running.  Runs on the maintenance
+    * thread, so does nothing more.
+    */
+   private void tick() {
+      if (subscribers.isEmpty()) {
+         latest = null;
+         return;
+      }
+      if (!broadcasting.compareAndSet(false, true)) {
+         skipped.increment();
+         return;
+      }
+      try {
+         streamer.execute(this::broadcast);
+      } catch (RejectedExecutionException e) {
+         // stopping
+         broadcasting.set(false);
+      }
+   }
+
+   /**
+    * Generate and serialize the statistics, and offer them to every
+    * subscriber.
+    */
+   private void broadcast() {
+      try {
+         byte[] event;
+         try {
+            event = event(mapper.writeValueAsBytes(service.statistics()));
+         } catch (JsonProcessingException | RuntimeException e) {
+            failures.increment();
+            if (failures.sum() == 1)
+               LOG.warn("Could not serialize the statistics for the stream, later failures are logged at debug", e);
+            else
+               LOG.debug("Could not serialize the statistics for the stream", e);
+            return;
+         }
+         latest = event;
+         ticks++;
+         long now = System.nanoTime();
+         for (Subscriber subscriber : subscribers)
+            subscriber.send(event, now);
+      } finally {
+         broadcasting.set(false);
+      }
+   }
+
+   /**
+    * Frame JSON, which holds no line breaks, as a server-sent event.
+    */
+   private static byte[] event(byte[] json) {
+      byte[] event = new byte[DATA.length + json.length + 2];
+      System.arraycopy(DATA, 0, event, 0, DATA.length);
+      System.arraycopy(json, 0, event, DATA.length, json.length);
+      event[event.length - 2] = '\n';
+      event[event.length - 1] = '\n';
+      return event;
+   }
+
+   /**
+    * A subscriber, with the event it has yet to be sent, if any.  The tick
+    * thread and the container's write callbacks synchronize on it.
+    */
+   private final class Subscriber implements WriteListener, AsyncListener {
+
+      private final AsyncContext context;
+      private final ServletOutputStream out;
+      private byte[] pending;
+      private boolean unflushed;
+      private long acceptedNanos;
+      private boolean closed;
+
+      private Subscriber(AsyncContext context, ServletOutputStream out, byte[] pending) {
+         this.context = context;
+         this.out = out;
+         this.pending = pending;
+         acceptedNanos = System.nanoTime();
+      }
+
+      /**
+       * Replace any pending event with the given one and write it if the
+       * output is ready, or drop the subscriber if it has taken nothing for
+       * too long.
+       */
+      private synchronized void send(byte[] event, long now) {
+         if (closed)
+            return;
+         pending = event;
+         write(now);
+         if (pending != null && now - acceptedNanos > dropAfterNanos) {
+            dropped.increment();
+            close();
+         }
+      }
+
+      /**
+       * Write the pending event and flush it, for as long as the output is
+       * ready.  When it is not, the container calls onWritePossible once it
+       * is.
+       */
+      private void write(long now) {
+         try {
+            while (!closed && out.isReady()) {
+               if (unflushed) {
+                  unflushed = false;
+                  out.flush();
+               } else if (pending != null) {
+                  out.write(pending);
+                  pending = null;
+                  unflushed = true;
+                  acceptedNanos = now;
+               } else {
+                  break;
+               }
+            }
+         } catch (IOException e) {
+            close();
+         }
+      }
+
+      private synchronized void close() {
+         if (closed)
+            return;
+         closed = true;
+         pending = null;
+         subscribers.remove(this);
+         try {
+            context.complete();
+         } catch (IllegalStateException e) {
+            // already completed by the container
+         }
+      }
+
+      @Override
+      public synchronized void onWritePossible() {
+         write(System.nanoTime());
+      }
+
+      @Override
+      public void onError(Throwable t) {
+         close();
+      }
+
+      @Override
+      public void onComplete(AsyncEvent event) {
+         closed();
+      }
+
+      @Override
+      public void onTimeout(AsyncEvent event) {
+         close();
+      }
+
+      @Override
+      public void onError(AsyncEvent event) {
+         close();
+      }
+
+      @Override
+      public void onStartAsync(AsyncEvent event) {
+      }
+
+      private synchronized void closed() {
+         closed = true;
+         pending = null;
+         subscribers.remove(this);
+      }
+   }
+}
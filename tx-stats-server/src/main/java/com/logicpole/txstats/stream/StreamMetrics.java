@@ -0,0 +1,47 @@
+package com.logicpole.txstats.stream;
+
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Stream metrics
+ * <p>
+ * Publishes the state of the statistics stream to the actuator metrics
+ * endpoint:
+ * <pre>
+ * stream.subscribers  - subscribers to GET /statistics/stream
+ * stream.ticks        - events broadcast
+ * stream.skipped      - ticks skipped while the last broadcast still ran
+ * stream.failures     - ticks whose statistics could not be serialized
+ * stream.dropped      - subscribers dropped for taking nothing
+ * stream.refused      - subscriptions refused over max-subscribers (503)
+ * </pre>
+ *
+ * @author Max McCormick
+ */
+@Component
+public class StreamMetrics implements PublicMetrics {
+
+   private final StatisticsBroadcaster broadcaster;
+
+   public StreamMetrics(StatisticsBroadcaster broadcaster) {
+      this.broadcaster = broadcaster;
+   }
+
+   @Override
+   public Collection<Metric<?>> metrics() {
+      List<Metric<?>> metrics = new ArrayList<>();
+      metrics.add(new Metric<>("stream.subscribers", broadcaster.getSubscribers()));
+      metrics.add(new Metric<>("stream.ticks", broadcaster.getTicks()));
+      metrics.add(new Metric<>("stream.skipped", broadcaster.getSkipped()));
+      metrics.add(new Metric<>("stream.failures", broadcaster.getFailures()));
+      metrics.add(new Metric<>("stream.dropped", broadcaster.getDropped()));
+      metrics.add(new Metric<>("stream.refused", broadcaster.getRefused()));
+      return metrics;
+   }
+}
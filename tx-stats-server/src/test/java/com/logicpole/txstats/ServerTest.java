@@ -0,0 +1,271 @@
+package com.logicpole.txstats;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.logicpole.txstats.accumulate.DistinctSpec;
+import com.logicpole.txstats.accumulate.DoubleAccumulator;
+import com.logicpole.txstats.accumulate.SketchSpec;
+import com.logicpole.txstats.accumulate.TimeSource;
+import com.logicpole.txstats.accumulate.Watermark;
+import com.logicpole.txstats.accumulate.WindowSpec;
+import com.logicpole.txstats.config.AccumulatorProperties;
+import com.logicpole.txstats.config.IngestProperties;
+import com.logicpole.txstats.ingest.IngestQueue;
+import com.logicpole.txstats.replay.ReplayRunner;
+import com.logicpole.txstats.service.TransactionService;
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tests for the components of the transaction statistics server around the
+ * accumulators
+ *
+ * @author Max McCormick
+ */
+public class ServerTest {
+
+   /**
+    * Fill an ingest queue before its consumer starts and check that it
+    * refuses the overflow, then start the consumer and check that it drains
+    * every queued transaction, keyed or not, into the accumulators.
+    */
+   @Test
+   public void ensureIngestQueueRefusesWhenFullAndDrains()
+           throws Exception {
+
+      IngestProperties properties = new IngestProperties();
+      properties.setQueueCapacity(6);
+      properties.setDrainBatchSize(3);
+      TransactionService service = new TransactionService(new AccumulatorProperties(), TimeSource.SYSTEM);
+      IngestQueue queue = new IngestQueue(service, properties);
+
+      long now = System.currentTimeMillis();
+      assertThat(queue.getCapacity()).isEqualTo(8);
+      for (int i = 0; i < 8; i++)
+         assertThat(queue.offer(now, 10.0, i % 2 == 0, 5)).isTrue();
+      assertThat(queue.offer(now, 10.0, false, 0)).isFalse();
+      assertThat(queue.getDepth()).isEqualTo(8);
+      assertThat(queue.getRejected()).isEqualTo(1);
+
+      queue.start();
+      try {
+         for (int i = 0; i < 100 && queue.getDrained() < 8; i++)
+            Thread.sleep(10);
+      } finally {
+         queue.stop();
+      }
+      assertThat(queue.getDrained()).isEqualTo(8);
+      assertThat(queue.getBatches()).isGreaterThanOrEqualTo(3);
+      assertThat(queue.getDepth()).isEqualTo(0);
+      assertThat(service.getTransactions().statistics().getSum()).isEqualTo(80.0);
+      assertThat(service.getKeyedTransactions().statistics(5).getCount()).isEqualTo(4);
+   }
+
+   /**
+    * Offer transactions from several threads while the ingest queue is
+    * stopped, and check that each offer was either refused or drained into
+    * the accumulators by the time the stop returns, and that offers after
+    * it are refused.
+    */
+   @Test
+   public void ensureIngestQueueDrainsOffersAcceptedBeforeStop()
+           throws Exception {
+
+      IngestProperties properties = new IngestProperties();
+      properties.setQueueCapacity(1024);
+      TransactionService service = new TransactionService(new AccumulatorProperties(), TimeSource.SYSTEM);
+      IngestQueue queue = new IngestQueue(service, properties);
+      queue.start();
+
+      long now = System.currentTimeMillis();
+      AtomicLong accepted = new AtomicLong();
+      CountDownLatch offering = new CountDownLatch(4);
+      Thread[] producers = new Thread[4];
+      for (int t = 0; t < producers.length; t++) {
+         producers[t] = new Thread(() -> {
+            offering.countDown();
+            for (int i = 0; i < 100000; i++) {
+               if (queue.offer(now, 1.0, false, 0))
+                  accepted.incrementAndGet();
+            }
+         });
+         producers[t].start();
+      }
+      offering.await();
+      queue.stop();
+      long drained = service.getTransactions().statistics().getCount();
+      for (Thread producer : producers)
+         producer.join();
+
+      assertThat(queue.offer(now, 1.0, false, 0)).isFalse();
+      assertThat(drained).isEqualTo(accepted.get());
+      assertThat(queue.getDrained()).isEqualTo(accepted.get());
+      assertThat(queue.getDepth()).isEqualTo(0);
+   }
+
+   /**
+    * Accumulate amounts of whole cents in random order through a service
+    * with fixed-point amounts, and check that its statistics have exactly
+    * the sum of the cents.
+    */
+   @Test
+   public void ensureServiceReportsExactSum()
+           throws Exception {
+
+      long start = 1500000000000L;
+      Watermark watermark = new Watermark(start);
+      AccumulatorProperties properties = new AccumulatorProperties();
+      properties.setFixedPointScale(2);
+      TransactionService service = new TransactionService(properties, watermark);
+
+      Random random = new Random(7);
+      long cents = 0;
+      for (int i = 0; i < 100000; i++) {
+         long amount = 1 + random.nextInt(10000000);
+         long timestamp = watermark.advance(start + i / 10) - random.nextInt(5000);
+         assertThat(service.accumulate(timestamp, amount / 100.0)).isTrue();
+         cents += amount;
+      }
+      assertThat(service.statistics().getSum()).isEqualTo(cents / 100.0);
+      assertThat(service.statistics().getCount()).isEqualTo(100000);
+   }
+
+   /**
+    * Accumulate transactions in the oldest slice of the window with fixed-point
+    * amounts enabled, on a clock which ticks past the window edge on every
+    * read, and check that the double, exact and keyed accumulators agree on
+    * each one, singly and in a chunk.
+    */
+   @Test
+   public void ensureServiceAgreesOnWindowEdge()
+           throws Exception {
+
+      long start = 1500000000000L;
+      long edge = start + 59999;
+      AtomicLong time = new AtomicLong(edge);
+      AtomicLong tick = new AtomicLong(1);
+      AccumulatorProperties properties = new AccumulatorProperties();
+      properties.setFixedPointScale(2);
+      TransactionService service = new TransactionService(properties, () -> time.getAndAdd(tick.get()));
+
+      assertThat(service.accumulate(start, 10.25)).isTrue();
+      time.set(edge);
+      assertThat(service.accumulate(start, 5.5, 7)).isTrue();
+      time.set(edge);
+      assertThat(service.accumulateAll(new long[]{start - 1, start, start + 30000}, new double[]{1, 2, 3},
+              new long[]{7, 7, 8}, new boolean[]{true, true, false}, 3)).isEqualTo(2);
+
+      time.set(edge);
+      tick.set(0);
+      assertThat(service.getTransactions().statistics().getCount()).isEqualTo(4);
+      assertThat(service.getExactTransactions().statistics().getCount()).isEqualTo(4);
+      assertThat(service.getExactTransactions().statistics().getSum()).isEqualTo(20.75);
+      assertThat(service.getKeyedTransactions().statistics(7).getCount()).isEqualTo(2);
+      assertThat(service.statistics().getCount()).isEqualTo(4);
+      assertThat(service.statistics().getSum()).isEqualTo(20.75);
+
+      // a slice later the oldest transactions are stale for every accumulator
+      time.set(edge + 1);
+      assertThat(service.accumulate(start, 1)).isFalse();
+      assertThat(service.accumulate(start, 1, 7)).isFalse();
+      assertThat(service.getTransactions().statistics().getCount()).isEqualTo(1);
+      assertThat(service.getExactTransactions().statistics().getCount()).isEqualTo(1);
+      assertThat(service.statistics().getSum()).isEqualTo(3.0);
+   }
+
+   /**
+    * Replay a CSV file with a header, invalid lines, a gap longer than the
+    * window and a stale transaction, and check the statistics series.
+    */
+   @Test
+   public void ensureReplayWritesStatisticsSeries()
+           throws Exception {
+
+      long t0 = 1500000000000L;
+      Path file = Files.createTempFile("txstats", ".csv");
+      try {
+         Files.write(file, ("timestamp,amount,key\n"
+                 + (t0 + 100) + ",10\n"
+                 + (t0 + 500) + ",20.0,7\r\n"
+                 + (t0 + 1500) + ",30\n"
+                 + "abc\n"
+                 + (t0 + 1600) + ",-1\n"
+                 + "\n"
+                 + (t0 + 200000) + ",4e1\n"
+                 + (t0 + 1000) + ",50").getBytes(StandardCharsets.UTF_8));
+         StringWriter out = new StringWriter();
+         ReplayRunner runner = new ReplayRunner(new DoubleAccumulator(new WindowSpec[]{WindowSpec.DEFAULT},
+                 1, null, null, null, new Watermark()), 1000, null, out);
+         runner.replayCsv(file);
+         runner.finish();
+
+         assertThat(runner.getRecords()).isEqualTo(7);
+         assertThat(runner.getAccepted()).isEqualTo(4);
+         assertThat(runner.getStale()).isEqualTo(1);
+         assertThat(runner.getInvalid()).isEqualTo(2);
+
+         // every interval until the window empties, then the one after the gap
+         String[] lines = out.toString().split("\n");
+         assertThat(lines.length).isEqualTo(64);
+         assertThat(runner.getIntervals()).isEqualTo(63);
+         assertThat(lines[0]).isEqualTo("time,count,sum,avg,min,max");
+         assertThat(lines[1]).isEqualTo((t0 + 1000) + ",2,30.0,15.0,10.0,20.0");
+         assertThat(lines[2]).isEqualTo((t0 + 2000) + ",3,60.0,20.0,10.0,30.0");
+         assertThat(lines[61]).isEqualTo((t0 + 61000) + ",1,30.0,30.0,30.0,30.0");
+         assertThat(lines[62]).isEqualTo((t0 + 62000) + ",0,0.0,0.0,0.0,0.0");
+         assertThat(lines[63]).isEqualTo((t0 + 201000) + ",1,40.0,40.0,40.0,40.0");
+      } finally {
+         Files.deleteIfExists(file);
+      }
+   }
+
+
+   /**
+    * Replay a binary file of keyed records, in the format of the binary
+    * ingestion listener, with a trailing partial record.
+    */
+   @Test
+   public void ensureReplayReadsBinaryRecords()
+           throws Exception {
+
+      long t0 = 1500000000000L;
+      ByteBuffer records = ByteBuffer.allocate(1 + 3 * 24 + 5);
+      records.put((byte) 24);
+      records.putLong(t0 + 100).putDouble(10).putLong(1);
+      records.putLong(t0 + 500).putDouble(20).putLong(2);
+      records.putLong(t0 + 1500).putDouble(30).putLong(1);
+      Path file = Files.createTempFile("txstats", ".bin");
+      try {
+         Files.write(file, records.array());
+         StringWriter out = new StringWriter();
+         ReplayRunner runner = new ReplayRunner(new DoubleAccumulator(new WindowSpec[]{WindowSpec.DEFAULT},
+                 1, SketchSpec.DEFAULT, DistinctSpec.DEFAULT, null, new Watermark()), 1000,
+                 new double[]{0.5}, out);
+         runner.replayBinary(file);
+         runner.finish();
+
+         assertThat(runner.getRecords()).isEqualTo(4);
+         assertThat(runner.getAccepted()).isEqualTo(3);
+         assertThat(runner.getInvalid()).isEqualTo(1);
+         String[] lines = out.toString().split("\n");
+         assertThat(lines).hasSize(3);
+         assertThat(lines[0]).isEqualTo("time,count,sum,avg,min,max,distinct,q0.5");
+         assertThat(lines[1]).startsWith((t0 + 1000) + ",2,30.0,15.0,10.0,20.0,2,");
+         assertThat(lines[2]).startsWith((t0 + 2000) + ",3,60.0,20.0,10.0,30.0,2,");
+      } finally {
+         Files.deleteIfExists(file);
+      }
+
+      assertThatThrownBy(() -> new ReplayRunner(new DoubleAccumulator(), 1000, null, new StringWriter()))
+              .isInstanceOf(IllegalArgumentException.class);
+   }
+}
@@ -0,0 +1,447 @@
+package com.logicpole.txstats;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.logicpole.txstats.dto.BatchResultDTO;
+import com.logicpole.txstats.dto.StatisticsDTO;
+import com.logicpole.txstats.dto.TopKeyDTO;
+import com.logicpole.txstats.dto.TransactionDTO;
+import com.logicpole.txstats.ingest.BinaryIngestListener;
+import com.logicpole.txstats.stream.StatisticsBroadcaster;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.context.embedded.LocalServerPort;
+import org.springframework.boot.web.client.RestTemplateBuilder;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+/**
+ * Test transaction statistics rest service
+ *
+ * @author Max McCormick
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(webEnvironment= SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {"txstats.ingest.port=0", "txstats.stream.tick-millis=100"})
+public class TransactionStatsTest {
+
+   @Autowired
+   private TestRestTemplate restTemplate;
+
+   @Autowired
+   private BinaryIngestListener ingestListener;
+
+   @Autowired
+   private StatisticsBroadcaster broadcaster;
+
+   @LocalServerPort
+   private int port;
+
+   /**
+    * Simple single-threaded test of transaction stats service.
+    * This test simply posts 10 transactions of different amounts,
+    * getting the statistics and checking the average after each
+    * transaction is posted.
+    */
+   @Test
+   public void testTransactionStatsSingleThreaded() {
+      int count = 10;
+      double sum = 0.0;
+      for (int i=1; i<=count; i++) {
+         double amt = i * 10.0;
+         addTransaction(amt);
+         StatisticsDTO stats = getStats();
+         sum += amt;
+         double avg = sum / i;
+         assertThat(stats.getAvg(), is(avg));
+      }
+   }
+
+   /**
+    * Post a JSON array batch holding valid, stale and invalid transactions
+    * and check the counts returned and the resulting statistics.
+    */
+   @Test
+   @DirtiesContext
+   public void testTransactionBatchArray() {
+      long now = System.currentTimeMillis();
+      String body = "[" +
+              "{\"timestamp\":" + now + ",\"amount\":10.0}," +
+              "{\"timestamp\":" + (now - 1000) + ",\"amount\":30.0,\"note\":{\"x\":1}}," +
+              "{\"timestamp\":" + (now - 120000) + ",\"amount\":50.0}," +
+              "{\"timestamp\":" + now + ",\"amount\":-5.0}" +
+              "]";
+
+      StatisticsDTO before = getStats();
+      ResponseEntity<BatchResultDTO> response = addTransactions(body, MediaType.APPLICATION_JSON);
+      StatisticsDTO after = getStats();
+
+      assertThat(response.getStatusCode(), is(HttpStatus.OK));
+      assertThat(response.getBody().getAccepted(), is(2L));
+      assertThat(response.getBody().getStale(), is(1L));
+      assertThat(response.getBody().getInvalid(), is(1L));
+      assertThat(after.getCount() - before.getCount(), is(2L));
+      assertThat(after.getSum() - before.getSum(), is(40.0));
+   }
+
+   /**
+    * Post an NDJSON batch and check the counts, then post a malformed one
+    * and check that it is rejected.
+    */
+   @Test
+   @DirtiesContext
+   public void testTransactionBatchNdjson() {
+      long now = System.currentTimeMillis();
+      String body = "{\"timestamp\":" + now + ",\"amount\":1.5}\n" +
+              "{\"timestamp\":" + now + ",\"amount\":2.5}\n" +
+              "{\"amount\":2.5}\n";
+
+      ResponseEntity<BatchResultDTO> response = addTransactions(body, MediaType.valueOf("application/x-ndjson"));
+
+      assertThat(response.getStatusCode(), is(HttpStatus.OK));
+      assertThat(response.getBody().getAccepted(), is(2L));
+      assertThat(response.getBody().getInvalid(), is(1L));
+
+      response = addTransactions("[{\"timestamp\":" + now + ",\"amount\":1.5}, 42]",
+              MediaType.APPLICATION_JSON);
+
+      assertThat(response.getStatusCode(), is(HttpStatus.BAD_REQUEST));
+      assertThat(response.getBody().getAccepted(), is(1L));
+   }
+
+   /**
+    * Get statistics over longer windows, answered from the configured tiers,
+    * and check that windows beyond the longest tier are rejected.
+    */
+   @Test
+   public void testStatisticsWindow() {
+      StatisticsDTO minute = getStats();
+      ResponseEntity<StatisticsDTO> hour = restTemplate
+              .getForEntity("/statistics?window=1h", StatisticsDTO.class);
+
+      assertThat(hour.getStatusCode(), is(HttpStatus.OK));
+      assertThat(hour.getBody().getCount(), greaterThanOrEqualTo(minute.getCount()));
+      assertThat(restTemplate.getForEntity("/statistics?window=5m", StatisticsDTO.class)
+              .getStatusCode(), is(HttpStatus.OK));
+      assertThat(restTemplate.getForEntity("/statistics?window=2h", StatisticsDTO.class)
+              .getStatusCode(), is(HttpStatus.BAD_REQUEST));
+      assertThat(restTemplate.getForEntity("/statistics?window=soon", StatisticsDTO.class)
+              .getStatusCode(), is(HttpStatus.BAD_REQUEST));
+   }
+
+   /**
+    * Get quantile estimates and check that they are ordered and within the
+    * window's range, and that malformed quantiles are rejected.
+    */
+   @Test
+   @DirtiesContext
+   public void testStatisticsQuantiles() {
+      for (int i = 1; i <= 100; i++)
+         addTransaction(i);
+
+      StatisticsDTO stats = restTemplate
+              .getForObject("/statistics?quantiles=0.5,0.99", StatisticsDTO.class);
+
+      double median = stats.getQuantiles().get("0.5");
+      double p99 = stats.getQuantiles().get("0.99");
+      assertThat(median, closeTo(50.0, 1.0));
+      assertThat(p99, closeTo(99.0, 1.0));
+      assertThat(p99, lessThanOrEqualTo(stats.getMax()));
+      assertThat(getStats().getQuantiles(), is(nullValue()));
+      assertThat(restTemplate.getForEntity("/statistics?quantiles=0.5,2", StatisticsDTO.class)
+              .getStatusCode(), is(HttpStatus.BAD_REQUEST));
+   }
+
+   /**
+    * Post keyed transactions, singly and in a batch, and check that each
+    * key's statistics cover only its own transactions.
+    */
+   @Test
+   @DirtiesContext
+   public void testStatisticsByKey() {
+      long now = System.currentTimeMillis();
+      TransactionDTO keyed = new TransactionDTO(now, 10.0);
+      keyed.setKey(7L);
+      assertThat(restTemplate.postForEntity("/transactions", keyed, TransactionDTO.class)
+              .getStatusCode(), is(HttpStatus.CREATED));
+      addTransaction(1000.0);
+      addTransactions("{\"timestamp\":" + now + ",\"amount\":20.0,\"key\":7}\n" +
+              "{\"timestamp\":" + now + ",\"amount\":5.0,\"key\":8}\n", MediaType.valueOf("application/x-ndjson"));
+
+      StatisticsDTO all = getStats();
+      StatisticsDTO seven = restTemplate.getForObject("/statistics/7", StatisticsDTO.class);
+      StatisticsDTO eight = restTemplate.getForObject("/statistics/8", StatisticsDTO.class);
+      StatisticsDTO nine = restTemplate.getForObject("/statistics/9", StatisticsDTO.class);
+
+      assertThat(seven.getCount(), is(2L));
+      assertThat(seven.getSum(), is(30.0));
+      assertThat(seven.getMax(), is(20.0));
+      assertThat(eight.getCount(), is(1L));
+      assertThat(eight.getMin(), is(5.0));
+      assertThat(nine.getCount(), is(0L));
+      assertThat(all.getCount(), is(4L));
+      assertThat(all.getDistinct(), is(2L));
+      assertThat(restTemplate.getForEntity("/statistics/merchant", StatisticsDTO.class)
+              .getStatusCode(), is(HttpStatus.BAD_REQUEST));
+   }
+
+   /**
+    * Post keyed transactions and check the top keys by count and by sum, and
+    * that an unknown ranking is rejected.
+    */
+   @Test
+   @DirtiesContext
+   public void testStatisticsTop() {
+      long now = System.currentTimeMillis();
+      StringBuilder body = new StringBuilder();
+      for (int i = 0; i < 5; i++)
+         body.append("{\"timestamp\":").append(now).append(",\"amount\":1.0,\"key\":11}\n");
+      body.append("{\"timestamp\":").append(now).append(",\"amount\":100.0,\"key\":12}\n");
+      addTransactions(body.toString(), MediaType.valueOf("application/x-ndjson"));
+
+      TopKeyDTO[] byCount = restTemplate.getForObject("/statistics/top?by=count&k=2", TopKeyDTO[].class);
+      TopKeyDTO[] bySum = restTemplate.getForObject("/statistics/top?k=1", TopKeyDTO[].class);
+
+      assertThat(byCount.length, is(2));
+      assertThat(byCount[0].getKey(), is(11L));
+      assertThat(byCount[0].getValue(), is(5.0));
+      assertThat(byCount[1].getKey(), is(12L));
+      assertThat(bySum.length, is(1));
+      assertThat(bySum[0].getKey(), is(12L));
+      assertThat(bySum[0].getValue(), is(100.0));
+      assertThat(restTemplate.getForEntity("/statistics/top?by=volume", String.class)
+              .getStatusCode(), is(HttpStatus.BAD_REQUEST));
+      assertThat(restTemplate.getForEntity("/statistics/top?k=0", String.class)
+              .getStatusCode(), is(HttpStatus.BAD_REQUEST));
+   }
+
+   /**
+    * Send keyed binary records, valid, stale, invalid and a trailing partial
+    * record, to the ingestion listener and check the final ack, the
+    * resulting statistics and the listener metrics.
+    */
+   @Test
+   @DirtiesContext
+   public void testBinaryIngest() throws IOException {
+      long now = System.currentTimeMillis();
+      long[] ack = new long[3];
+      try (Socket socket = new Socket("localhost", ingestListener.getLocalPort())) {
+         DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+         out.writeByte(BinaryIngestListener.KEYED_RECORD_BYTES);
+         for (int i = 0; i < 3; i++) {
+            out.writeLong(now);
+            out.writeDouble(10.0 * (i + 1));
+            out.writeLong(21);
+         }
+         out.writeLong(now - 3600 * 1000);
+         out.writeDouble(5.0);
+         out.writeLong(21);
+         out.writeLong(now);
+         out.writeDouble(-5.0);
+         out.writeLong(21);
+         out.writeLong(now);
+         out.flush();
+         socket.shutdownOutput();
+
+         // acks are cumulative, so the last holds every record
+         DataInputStream in = new DataInputStream(socket.getInputStream());
+         try {
+            while (true) {
+               ack[0] = in.readLong();
+               ack[1] = in.readLong();
+               ack[2] = in.readLong();
+            }
+         } catch (EOFException e) {
+            // the listener closed the connection after the final ack
+         }
+      }
+
+      assertThat(ack[0], is(3L));
+      assertThat(ack[1], is(1L));
+      assertThat(ack[2], is(2L));
+      StatisticsDTO stats = restTemplate.getForObject("/statistics/21", StatisticsDTO.class);
+      assertThat(stats.getCount(), is(3L));
+      assertThat(stats.getSum(), is(60.0));
+      assertThat(getStats().getCount(), is(3L));
+
+      Map<?, ?> metrics = restTemplate.getForObject("/metrics", Map.class);
+      assertThat(metric(metrics, "ingest.binary.running"), is(1L));
+      assertThat(metric(metrics, "ingest.binary.connections"), is(1L));
+      assertThat(metric(metrics, "ingest.binary.failures"), is(0L));
+   }
+
+   /**
+    * Subscribe twice to the statistics stream, read an event from each, and
+    * check that the subscribers are let go once they disconnect.
+    */
+   @Test
+   public void testStatisticsStream() throws IOException, InterruptedException {
+      addTransaction(12.0);
+      HttpURLConnection[] connections = new HttpURLConnection[2];
+      for (int i = 0; i < connections.length; i++) {
+         connections[i] = (HttpURLConnection) new URL("http://localhost:" + port + "/statistics/stream").openConnection();
+         connections[i].setReadTimeout(5000);
+         assertThat(connections[i].getResponseCode(), is(200));
+         assertThat(connections[i].getContentType(), startsWith("text/event-stream"));
+      }
+      for (HttpURLConnection connection : connections) {
+         BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
+         String line = reader.readLine();
+         while (line != null && !line.startsWith("data: "))
+            line = reader.readLine();
+         assertThat(line, notNullValue());
+         StatisticsDTO stats = new ObjectMapper().readValue(line.substring(6), StatisticsDTO.class);
+         assertThat(stats.getCount(), greaterThanOrEqualTo(1L));
+         assertThat(stats.getMax(), greaterThanOrEqualTo(12.0));
+      }
+      assertThat(broadcaster.getSubscribers(), is(2));
+
+      for (HttpURLConnection connection : connections)
+         connection.disconnect();
+      for (int i = 0; i < 50 && broadcaster.getSubscribers() > 0; i++)
+         Thread.sleep(100);
+      assertThat(broadcaster.getSubscribers(), is(0));
+   }
+
+   /**
+    * Start a second instance on localhost, aggregating this one and a peer
+    * which is not listening, post a transaction to each instance and check
+    * the global statistics of the second.
+    */
+   @Test
+   @DirtiesContext
+   public void testStatisticsGlobal() {
+      ConfigurableApplicationContext second = SpringApplication.run(Application.class,
+              "--server.port=0", "--spring.jmx.enabled=false", "--logging.level.root=WARN",
+              "--txstats.cluster.peers=http://localhost:" + port + ",http://localhost:1");
+      try {
+         TestRestTemplate secondTemplate = new TestRestTemplate(new RestTemplateBuilder()
+                 .rootUri("http://localhost:" + second.getEnvironment().getProperty("local.server.port")));
+         addTransaction(10.0);
+         assertThat(secondTemplate.postForEntity("/transactions",
+                 new TransactionDTO(System.currentTimeMillis(), 30.0), TransactionDTO.class)
+                 .getStatusCode(), is(HttpStatus.CREATED));
+
+         StatisticsDTO global = secondTemplate.getForObject("/statistics/global", StatisticsDTO.class);
+         assertThat(global.getCount(), is(2L));
+         assertThat(global.getSum(), is(40.0));
+         assertThat(global.getMin(), is(10.0));
+         assertThat(global.getNodes(), is(2));
+         assertThat(restTemplate.getForEntity("/statistics/global", String.class)
+                 .getStatusCode(), is(HttpStatus.NOT_FOUND));
+      } finally {
+         second.close();
+      }
+   }
+   /**
+    * Post created, stale and invalid transactions and check that the
+    * outcome counts published to the metrics endpoint follow, along with
+    * the statistics latency.
+    */
+   @Test
+   @DirtiesContext
+   public void testTransactionMetrics() {
+      Map<?, ?> before = restTemplate.getForObject("/metrics", Map.class);
+      long now = System.currentTimeMillis();
+      addTransaction(5.0);
+      assertThat(restTemplate.postForEntity("/transactions", new TransactionDTO(now - 120000, 5.0),
+              TransactionDTO.class).getStatusCode(), is(HttpStatus.NO_CONTENT));
+      assertThat(restTemplate.postForEntity("/transactions", new TransactionDTO(now, -5.0),
+              TransactionDTO.class).getStatusCode(), is(HttpStatus.BAD_REQUEST));
+      getStats();
+      Map<?, ?> after = restTemplate.getForObject("/metrics", Map.class);
+
+      for (String name : new String[]{"transactions.created", "transactions.stale", "transactions.invalid"})
+         assertThat(name, metric(after, name) - metric(before, name), is(1L));
+      assertThat(metric(after, "accumulator.statistics.count"),
+              greaterThan(metric(before, "accumulator.statistics.count")));
+      assertThat(after.containsKey("accumulator.lock.wait.p99.usec"), is(true));
+      assertThat(after.containsKey("accumulator.tier0.slices.aged"), is(true));
+      assertThat(after.containsKey("keys.expunged"), is(true));
+   }
+
+   /**
+    * Get the statistics twice, the second time with the entity tag of the
+    * first, and check that it is not modified until a transaction is
+    * posted, and that the cache counts both.
+    */
+   @Test
+   @DirtiesContext
+   public void testStatisticsNotModified() throws InterruptedException {
+      // start at the beginning of a 1 second slice, as the cached entry is
+      // dropped when the slice turns over
+      Thread.sleep(1000 - System.currentTimeMillis() % 1000);
+      Map<?, ?> before = restTemplate.getForObject("/metrics", Map.class);
+      ResponseEntity<StatisticsDTO> first = restTemplate.getForEntity("/statistics", StatisticsDTO.class);
+      String etag = first.getHeaders().getETag();
+      assertThat(first.getStatusCode(), is(HttpStatus.OK));
+      assertThat(etag, notNullValue());
+
+      HttpHeaders headers = new HttpHeaders();
+      headers.setIfNoneMatch(etag);
+      HttpEntity<?> conditional = new HttpEntity<>(headers);
+      ResponseEntity<StatisticsDTO> second = restTemplate.exchange("/statistics", HttpMethod.GET, conditional,
+              StatisticsDTO.class);
+      assertThat(second.getStatusCode(), is(HttpStatus.NOT_MODIFIED));
+      assertThat(second.getHeaders().getETag(), is(etag));
+
+      addTransaction(7.0);
+      ResponseEntity<StatisticsDTO> third = restTemplate.exchange("/statistics", HttpMethod.GET, conditional,
+              StatisticsDTO.class);
+      assertThat(third.getStatusCode(), is(HttpStatus.OK));
+      assertThat(third.getHeaders().getETag(), not(etag));
+      assertThat(third.getBody().getCount(), is(first.getBody().getCount() + 1));
+
+      Map<?, ?> after = restTemplate.getForObject("/metrics", Map.class);
+      assertThat(metric(after, "statistics.cache.hits") - metric(before, "statistics.cache.hits"), is(1L));
+      assertThat(metric(after, "statistics.cache.not.modified")
+              - metric(before, "statistics.cache.not.modified"), is(1L));
+   }
+
+   private static long metric(Map<?, ?> metrics, String name) {
+      return ((Number) metrics.get(name)).longValue();
+   }
+
+   private ResponseEntity<BatchResultDTO> addTransactions(String body, MediaType type) {
+      HttpHeaders headers = new HttpHeaders();
+      headers.setContentType(type);
+      return restTemplate.exchange("/transactions/batch", HttpMethod.POST,
+              new HttpEntity<>(body, headers), BatchResultDTO.class);
+   }
+
+   private void addTransaction(double amount) {
+      HttpEntity<TransactionDTO> request = new HttpEntity<>(new TransactionDTO(System.currentTimeMillis(), amount));
+      ResponseEntity<TransactionDTO> response = restTemplate
+              .exchange("/transactions", HttpMethod.POST, request, TransactionDTO.class);
+      assertThat(response.getStatusCode(), is(HttpStatus.CREATED));
+   }
+
+   private StatisticsDTO getStats() {
+      return this.restTemplate.getForObject("/statistics", StatisticsDTO.class);
+   }
+}
@@ -0,0 +1,217 @@
+package com.logicpole.txstats.benchmark;
+
+import com.logicpole.txstats.Application;
+import com.logicpole.txstats.ingest.BinaryIngestListener;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ingest throughput of the binary listener against POST /transactions
+ * <p>
+ * Starts an instance on free localhost ports, sends the same transactions
+ * through each path in turn and reports the wall clock rate and the rate per
+ * core of server CPU, being the CPU time of the threads serving the path:
+ * the listener thread for binary ingestion, and the Tomcat threads for
+ * POST /transactions.  Client and GC time are not counted, so the rate per
+ * core is what one server core sustains whatever the number of cores of the
+ * machine.
+ * <p>
+ * The binary client streams records over one connection and waits for the
+ * final ack.  The HTTP clients post one transaction per request over
+ * keep-alive connections.
+ * <p>
+ * Options, each as --name=value:
+ * <pre>
+ * records  - number of binary records (default 5000000)
+ * requests - number of POST /transactions requests (default 50000)
+ * threads  - number of HTTP client threads (default 4)
+ * keys     - number of transaction keys, or 0 for unkeyed (default 0)
+ * </pre>
+ * Run with:
+ * <pre>
+ * ./mvnw -pl tx-stats-server test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test \
+ *    -Dexec.args="-cp %classpath com.logicpole.txstats.benchmark.IngestThroughputBenchmark"
+ * </pre>
+ *
+ * @author Max McCormick
+ */
+public final class IngestThroughputBenchmark {
+
+   private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+   private final int keys;
+
+   private IngestThroughputBenchmark(int keys) {
+      this.keys = keys;
+   }
+
+   public static void main(String[] args) throws Exception {
+      Map<String, String> options = parseOptions(args);
+      int records = Integer.parseInt(options.getOrDefault("records", "5000000"));
+      int requests = Integer.parseInt(options.getOrDefault("requests", "50000"));
+      int threads = Integer.parseInt(options.getOrDefault("threads", "4"));
+      int keys = Integer.parseInt(options.getOrDefault("keys", "0"));
+
+      ConfigurableApplicationContext context = SpringApplication.run(Application.class,
+              "--server.port=0", "--txstats.ingest.port=0", "--logging.level.root=WARN");
+      try {
+         String url = "http://localhost:" + context.getEnvironment().getProperty("local.server.port");
+         int port = context.getBean(BinaryIngestListener.class).getLocalPort();
+         IngestThroughputBenchmark benchmark = new IngestThroughputBenchmark(keys);
+
+         // warm up both paths before measuring either
+         benchmark.sendBinary(port, records / 10);
+         benchmark.sendHttp(url, requests / 10, threads);
+
+         System.out.printf("%-20s %10s %8s %12s %10s %14s%n",
+                 "path", "records", "seconds", "records/s", "server cpu", "records/core/s");
+         long cpu = cpuNanos("binary-ingest");
+         long start = System.nanoTime();
+         benchmark.sendBinary(port, records);
+         report("binary", records, System.nanoTime() - start, cpuNanos("binary-ingest") - cpu);
+
+         cpu = cpuNanos("http-nio-");
+         start = System.nanoTime();
+         benchmark.sendHttp(url, requests, threads);
+         report("POST /transactions", requests, System.nanoTime() - start, cpuNanos("http-nio-") - cpu);
+      } finally {
+         context.close();
+      }
+   }
+
+   /**
+    * Stream records over one connection and wait for the final ack.
+    */
+   private void sendBinary(int port, int records) throws IOException {
+      int recordBytes = keys > 0 ? BinaryIngestListener.KEYED_RECORD_BYTES
+              : BinaryIngestListener.UNKEYED_RECORD_BYTES;
+      ByteBuffer out = ByteBuffer.allocateDirect(64 * 1024);
+      ByteBuffer ack = ByteBuffer.allocateDirect(64 * 1024);
+      try (SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port))) {
+         out.put((byte) recordBytes);
+         for (int i = 0; i < records; i++) {
+            if (out.remaining() < recordBytes) {
+               out.flip();
+               while (out.hasRemaining())
+                  channel.write(out);
+               out.clear();
+            }
+            out.putLong(System.currentTimeMillis()).putDouble(1 + i % 100000 / 100.0);
+            if (keys > 0)
+               out.putLong(i % keys);
+         }
+         out.flip();
+         while (out.hasRemaining())
+            channel.write(out);
+         channel.shutdownOutput();
+
+         // the acks queued while sending are drained here.  the last one
+         // counts every record.
+         long total = 0;
+         while (channel.read(ack) >= 0) {
+            ack.flip();
+            while (ack.remaining() >= BinaryIngestListener.ACK_BYTES)
+               total = ack.getLong() + ack.getLong() + ack.getLong();
+            ack.compact();
+         }
+         if (total != records)
+            throw new IllegalStateException("acked " + total + " of " + records + " records");
+      }
+   }
+
+   /**
+    * Post one transaction per request from several threads.
+    */
+   private void sendHttp(String url, int requests, int threads) throws Exception {
+      AtomicLong next = new AtomicLong();
+      AtomicLong errors = new AtomicLong();
+      List<Thread> senders = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+         Thread sender = new Thread(() -> {
+            for (long i = next.getAndIncrement(); i < requests; i = next.getAndIncrement()) {
+               if (!post(url, i))
+                  errors.incrementAndGet();
+            }
+         });
+         sender.start();
+         senders.add(sender);
+      }
+      for (Thread sender : senders)
+         sender.join();
+      if (errors.get() > 0)
+         throw new IllegalStateException(errors.get() + " of " + requests + " requests failed");
+   }
+
+   private boolean post(String url, long i) {
+      String body = "{\"timestamp\":" + System.currentTimeMillis() + ",\"amount\":" + (1 + i % 100000 / 100.0)
+              + (keys > 0 ? ",\"key\":" + i % keys : "") + "}";
+      try {
+         HttpURLConnection connection = (HttpURLConnection) new URL(url + "/transactions").openConnection();
+         connection.setRequestMethod("POST");
+         connection.setRequestProperty("Content-Type", "application/json");
+         connection.setDoOutput(true);
+         try (OutputStream out = connection.getOutputStream()) {
+            out.write(body.getBytes(StandardCharsets.UTF_8));
+         }
+         int status = connection.getResponseCode();
+         // read the body in full so the connection is kept alive for reuse
+         InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+         if (in != null) {
+            byte[] buffer = new byte[4096];
+            while (in.read(buffer) >= 0) {
+               // discard
+            }
+            in.close();
+         }
+         return status < 300;
+      } catch (IOException e) {
+         return false;
+      }
+   }
+
+   /**
+    * Get the total CPU time of the live threads whose name starts with the
+    * given prefix.
+    */
+   private static long cpuNanos(String prefix) {
+      long total = 0;
+      for (ThreadInfo info : THREADS.getThreadInfo(THREADS.getAllThreadIds())) {
+         if (info != null && info.getThreadName().startsWith(prefix))
+            total += Math.max(THREADS.getThreadCpuTime(info.getThreadId()), 0);
+      }
+      return total;
+   }
+
+   private static void report(String path, int records, long elapsedNanos, long cpuNanos) {
+      System.out.printf("%-20s %10d %8.2f %12.0f %10.2f %14.0f%n", path, records, elapsedNanos / 1e9,
+              records * 1e9 / elapsedNanos, cpuNanos / 1e9, records * 1e9 / cpuNanos);
+   }
+
+   private static Map<String, String> parseOptions(String[] args) {
+      Map<String, String> options = new HashMap<>();
+      for (String arg : args) {
+         if (!arg.startsWith("--") || arg.indexOf('=') < 0)
+            throw new IllegalArgumentException("expected --name=value but found " + arg);
+         options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+      }
+      return options;
+   }
+}
@@ -0,0 +1,90 @@
+package com.logicpole.txstats.benchmark;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.logicpole.txstats.dto.StatisticsDTO;
+import com.logicpole.txstats.dto.TransactionDTO;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Jackson binding benchmark for the request and response bodies
+ * <p>
+ * Measures reading a TransactionDTO from the body of POST /transactions and
+ * writing the StatisticsDTO of GET /statistics, with an ObjectMapper set up
+ * as the application's (leaving out null fields), to compare with the cost
+ * of accumulate and statistics themselves.
+ * <p>
+ * Run with:
+ * <pre>
+ * ./mvnw -pl tx-stats-server test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test \
+ *    -Dexec.args="-cp %classpath com.logicpole.txstats.benchmark.JsonBindingBenchmark"
+ * </pre>
+ *
+ * @author Max McCormick
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class JsonBindingBenchmark {
+
+   private ObjectReader transactionReader;
+   private ObjectWriter statisticsWriter;
+   private byte[] transaction;
+   private byte[] keyedTransaction;
+   private StatisticsDTO statistics;
+
+   @Setup
+   public void setUp() {
+      ObjectMapper mapper = new ObjectMapper().setSerializationInclusion(JsonInclude.Include.NON_NULL);
+      transactionReader = mapper.readerFor(TransactionDTO.class);
+      statisticsWriter = mapper.writerFor(StatisticsDTO.class);
+      transaction = "{\"amount\":12.3,\"timestamp\":1478192204000}".getBytes(StandardCharsets.UTF_8);
+      keyedTransaction = "{\"amount\":12.3,\"timestamp\":1478192204000,\"key\":42}".getBytes(StandardCharsets.UTF_8);
+      statistics = new StatisticsDTO(1000, 100, 200, 50, 10, null, 4L);
+   }
+
+   @Benchmark
+   public TransactionDTO readTransaction() throws IOException {
+      return transactionReader.readValue(transaction);
+   }
+
+   @Benchmark
+   public TransactionDTO readKeyedTransaction() throws IOException {
+      return transactionReader.readValue(keyedTransaction);
+   }
+
+   @Benchmark
+   public byte[] writeStatistics() throws IOException {
+      return statisticsWriter.writeValueAsBytes(statistics);
+   }
+
+   public static void main(String[] args) throws Exception {
+      Options options = new OptionsBuilder()
+              .include(JsonBindingBenchmark.class.getSimpleName())
+              .addProfiler(GCProfiler.class)
+              .build();
+      new Runner(options).run();
+   }
+}
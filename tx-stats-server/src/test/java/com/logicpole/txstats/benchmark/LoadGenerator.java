@@ -0,0 +1,309 @@
+package com.logicpole.txstats.benchmark;
+
+import com.logicpole.txstats.Application;
+import com.logicpole.txstats.accumulate.SketchSpec;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * End-to-end HTTP load generator
+ * <p>
+ * Drives POST /transactions and GET /statistics at a mix of requests and a
+ * series of increasing rates against a running instance, or by default
+ * against an instance it starts itself on a free localhost port, and reports
+ * the latency distribution at each rate and the rate at which the service
+ * saturates.
+ * <p>
+ * The load is open-loop:  request i of a step is due at start + i / rate
+ * whether or not earlier requests have completed, and a pool of sender
+ * threads takes each request as it falls due or as soon as a sender is
+ * free.  The response time of a request is measured from when it was due,
+ * not from when it was sent, so time spent queued behind a slow response is
+ * counted rather than omitted (the "coordinated omission" of a closed-loop
+ * generator, which quietly slows down along with the service).  The service
+ * time, from sending, is reported alongside for comparison.
+ * <p>
+ * Latencies are recorded in log histograms of 1% relative accuracy, one per
+ * sender thread, which are merged at the end of each step.
+ * <p>
+ * A step is saturated if it completes less than 95% of its target rate, or
+ * its 99th percentile response time exceeds the given objective.  The
+ * process exits with status 1 if the service saturates below the gate rate,
+ * so it may be used as a release gate.
+ * <p>
+ * Options, each as --name=value:
+ * <pre>
+ * url        - base url of a running instance (default: start one locally)
+ * rates      - comma separated target rates in requests/s
+ *              (default 250,500,1000,2000,4000,8000)
+ * duration   - seconds per rate (default 10)
+ * warmup     - seconds of warmup at the first rate (default 5)
+ * read-ratio - fraction of requests which are GET /statistics (default 0.1)
+ * keys       - number of transaction keys, or 0 for unkeyed (default 0)
+ * threads    - number of sender threads (default 64)
+ * slo-p99    - 99th percentile response time objective in msec (default 100)
+ * gate-rate  - rate in requests/s below which saturation fails (default 0)
+ * </pre>
+ * Run with:
+ * <pre>
+ * ./mvnw -pl tx-stats-server test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test \
+ *    -Dexec.args="-cp %classpath com.logicpole.txstats.benchmark.LoadGenerator --rates=500,1000,2000"
+ * </pre>
+ *
+ * @author Max McCormick
+ */
+public final class LoadGenerator {
+
+   /*
+    * Latency histogram bins, in nanoseconds from 1 usec to 100 sec.
+    */
+   private static final SketchSpec LATENCY = new SketchSpec(0.01, 1e3, 1e11);
+
+   private static final double[] PERCENTILES = {0.5, 0.9, 0.99, 0.999, 0.9999};
+
+   private final String url;
+   private final double readRatio;
+   private final int keys;
+   private final int threads;
+
+   private LoadGenerator(String url, double readRatio, int keys, int threads) {
+      this.url = url;
+      this.readRatio = readRatio;
+      this.keys = keys;
+      this.threads = threads;
+   }
+
+   public static void main(String[] args) throws Exception {
+      Map<String, String> options = parseOptions(args);
+      String url = options.get("url");
+      double readRatio = Double.parseDouble(options.getOrDefault("read-ratio", "0.1"));
+      int keys = Integer.parseInt(options.getOrDefault("keys", "0"));
+      int threads = Integer.parseInt(options.getOrDefault("threads", "64"));
+      int duration = Integer.parseInt(options.getOrDefault("duration", "10"));
+      int warmup = Integer.parseInt(options.getOrDefault("warmup", "5"));
+      double sloMillis = Double.parseDouble(options.getOrDefault("slo-p99", "100"));
+      int gateRate = Integer.parseInt(options.getOrDefault("gate-rate", "0"));
+      List<Integer> rates = new ArrayList<>();
+      for (String rate : options.getOrDefault("rates", "250,500,1000,2000,4000,8000").split(","))
+         rates.add(Integer.parseInt(rate.trim()));
+
+      ConfigurableApplicationContext context = null;
+      if (url == null) {
+         context = SpringApplication.run(Application.class, "--server.port=0", "--logging.level.root=WARN");
+         url = "http://localhost:" + context.getEnvironment().getProperty("local.server.port");
+      }
+
+      int saturation = -1;
+      try {
+         LoadGenerator generator = new LoadGenerator(url, readRatio, keys, threads);
+         System.out.printf("load against %s, %.0f%% reads, %d keys, %d threads, %d s per rate%n",
+                 url, readRatio * 100, keys, threads, duration);
+         if (warmup > 0)
+            generator.runStep(rates.get(0), warmup);
+
+         System.out.printf("%8s %9s %7s  %-42s  %-42s%n", "target/s", "actual/s", "errors",
+                 "response ms p50 p90 p99 p99.9 p99.99 max", "service ms p50 p90 p99 p99.9 p99.99 max");
+         for (int rate : rates) {
+            Step step = generator.runStep(rate, duration);
+            System.out.printf("%8d %9.0f %7d  %-42s  %-42s%n", rate, step.achievedRate(), step.errors,
+                    step.response.summary(), step.service.summary());
+            if (step.achievedRate() < 0.95 * rate || step.response.quantile(0.99) / 1e6 > sloMillis) {
+               saturation = rate;
+               break;
+            }
+         }
+      } finally {
+         if (context != null)
+            context.close();
+      }
+
+      if (saturation < 0) {
+         System.out.println("not saturated at " + rates.get(rates.size() - 1) + " requests/s");
+      } else {
+         System.out.println("saturated at " + saturation + " requests/s");
+         if (saturation < gateRate) {
+            System.out.println("FAILED: saturated below the gate rate of " + gateRate + " requests/s");
+            System.exit(1);
+         }
+      }
+   }
+
+   /**
+    * Run requests at the given rate for the given number of seconds.
+    */
+   private Step runStep(int rate, int seconds) throws InterruptedException {
+      long interval = 1000000000L / rate;
+      long total = (long) rate * seconds;
+      long start = System.nanoTime() + 10000000L;
+      AtomicLong next = new AtomicLong();
+      Step step = new Step(seconds);
+
+      List<Thread> senders = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+         Thread sender = new Thread(() -> {
+            Histogram response = new Histogram();
+            Histogram service = new Histogram();
+            long errors = 0;
+            long completed = 0;
+            for (long i = next.getAndIncrement(); i < total; i = next.getAndIncrement()) {
+               // wait until the request is due.  if it is already overdue,
+               // every sender was busy, and the delay counts as latency.
+               long due = start + i * interval;
+               for (long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime())
+                  LockSupport.parkNanos(wait);
+
+               long sent = System.nanoTime();
+               if (!send())
+                  errors++;
+               long done = System.nanoTime();
+               response.record(done - due);
+               service.record(done - sent);
+               completed++;
+            }
+            step.add(response, service, errors, completed);
+         });
+         sender.setDaemon(true);
+         sender.start();
+         senders.add(sender);
+      }
+      for (Thread sender : senders)
+         sender.join();
+      step.elapsedNanos = System.nanoTime() - start;
+      return step;
+   }
+
+   /**
+    * Send one request, chosen by the read ratio.
+    *
+    * @return true if the request succeeded.
+    */
+   private boolean send() {
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      try {
+         HttpURLConnection connection;
+         if (random.nextDouble() < readRatio) {
+            connection = (HttpURLConnection) new URL(url + "/statistics").openConnection();
+         } else {
+            String body = "{\"timestamp\":" + System.currentTimeMillis()
+                    + ",\"amount\":" + (1 + random.nextInt(100000) / 100.0)
+                    + (keys > 0 ? ",\"key\":" + random.nextInt(keys) : "") + "}";
+            connection = (HttpURLConnection) new URL(url + "/transactions").openConnection();
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", "application/json");
+            connection.setDoOutput(true);
+            try (OutputStream out = connection.getOutputStream()) {
+               out.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+         }
+         int status = connection.getResponseCode();
+         // read the body in full so the connection is kept alive for reuse
+         InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+         if (in != null) {
+            byte[] buffer = new byte[4096];
+            while (in.read(buffer) >= 0) {
+               // discard
+            }
+            in.close();
+         }
+         return status < 300;
+      } catch (IOException e) {
+         return false;
+      }
+   }
+
+   private static Map<String, String> parseOptions(String[] args) {
+      Map<String, String> options = new HashMap<>();
+      for (String arg : args) {
+         if (!arg.startsWith("--") || arg.indexOf('=') < 0)
+            throw new IllegalArgumentException("expected --name=value but found " + arg);
+         options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+      }
+      return options;
+   }
+
+   /**
+    * The merged results of one rate.
+    */
+   private static final class Step {
+
+      private final Histogram response = new Histogram();
+      private final Histogram service = new Histogram();
+      private final int seconds;
+      private long errors;
+      private long completed;
+      private long elapsedNanos;
+
+      private Step(int seconds) {
+         this.seconds = seconds;
+      }
+
+      private synchronized void add(Histogram response, Histogram service, long errors, long completed) {
+         this.response.add(response);
+         this.service.add(service);
+         this.errors += errors;
+         this.completed += completed;
+      }
+
+      /**
+       * Get the completed requests per second, over the time until the last
+       * completed, which is longer than the step if the service fell behind.
+       */
+      private double achievedRate() {
+         return completed * 1e9 / Math.max(elapsedNanos, seconds * 1000000000L);
+      }
+   }
+
+   /**
+    * A latency histogram in nanoseconds.
+    */
+   private static final class Histogram {
+
+      private final long[] counts = new long[LATENCY.getBins()];
+      private long total;
+      private double min = Double.POSITIVE_INFINITY;
+      private double max = Double.NEGATIVE_INFINITY;
+
+      private void record(long nanos) {
+         counts[LATENCY.binOf(nanos)]++;
+         total++;
+         min = Math.min(min, nanos);
+         max = Math.max(max, nanos);
+      }
+
+      private void add(Histogram other) {
+         for (int bin = 0; bin < counts.length; bin++)
+            counts[bin] += other.counts[bin];
+         total += other.total;
+         min = Math.min(min, other.min);
+         max = Math.max(max, other.max);
+      }
+
+      private double quantile(double q) {
+         return total == 0 ? 0 : LATENCY.quantile(counts, total, min, max, q);
+      }
+
+      /**
+       * Get the percentiles and maximum in msec.
+       */
+      private String summary() {
+         StringBuilder summary = new StringBuilder();
+         for (double q : PERCENTILES)
+            summary.append(String.format("%.2f ", quantile(q) / 1e6));
+         return summary.append(String.format("%.2f", total == 0 ? 0 : max / 1e6)).toString();
+      }
+   }
+}
@@ -0,0 +1,135 @@
+package com.logicpole.txstats.benchmark;
+
+import com.logicpole.txstats.accumulate.DistinctSpec;
+import com.logicpole.txstats.accumulate.DoubleAccumulator;
+import com.logicpole.txstats.accumulate.Watermark;
+import com.logicpole.txstats.accumulate.WindowSpec;
+import com.logicpole.txstats.replay.ReplayRunner;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Replay throughput of ReplayRunner
+ * <p>
+ * Writes the same transactions, spread over several hours of event time
+ * with a little disorder, as a CSV file and as a binary file, then replays
+ * each file a few times, discarding the statistics series, and reports the
+ * records replayed per second of the best run.  The files are read from the
+ * page cache after the first run, so this measures parsing and
+ * accumulation rather than the disk.
+ * <p>
+ * Options, each as --name=value:
+ * <pre>
+ * records - number of transactions (default 20000000)
+ * keys    - number of transaction keys, or 0 for unkeyed (default 0)
+ * runs    - number of replays of each file (default 3)
+ * </pre>
+ * Run with:
+ * <pre>
+ * ./mvnw -pl tx-stats-server test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test \
+ *    -Dexec.args="-cp %classpath com.logicpole.txstats.benchmark.ReplayThroughputBenchmark"
+ * </pre>
+ *
+ * @author Max McCormick
+ */
+public final class ReplayThroughputBenchmark {
+
+   public static void main(String[] args) throws IOException {
+      Map<String, String> options = new HashMap<>();
+      for (String arg : args)
+         options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+      int records = Integer.parseInt(options.getOrDefault("records", "20000000"));
+      int keys = Integer.parseInt(options.getOrDefault("keys", "0"));
+      int runs = Integer.parseInt(options.getOrDefault("runs", "3"));
+
+      Path csv = Files.createTempFile("txstats", ".csv");
+      Path binary = Files.createTempFile("txstats", ".bin");
+      try {
+         write(csv, binary, records, keys);
+         System.out.printf("%d records, %d keys: csv %d MB, binary %d MB%n", records, keys,
+                 Files.size(csv) >> 20, Files.size(binary) >> 20);
+         for (String format : new String[]{"csv", "binary"}) {
+            double best = 0;
+            for (int run = 0; run < runs; run++) {
+               ReplayRunner runner = new ReplayRunner(new DoubleAccumulator(
+                       new WindowSpec[]{WindowSpec.DEFAULT}, 1, null, keys == 0 ? null : DistinctSpec.DEFAULT,
+                       null, new Watermark()), 1000, null, NULL_WRITER);
+               long start = System.nanoTime();
+               if (format.equals("csv"))
+                  runner.replayCsv(csv);
+               else
+                  runner.replayBinary(binary);
+               runner.finish();
+               double rate = runner.getRecords() / ((System.nanoTime() - start) / 1e9);
+               best = Math.max(best, rate);
+               System.out.printf("%-6s run %d: %,.0f records/s, %d accepted, %d stale, %d intervals%n", format,
+                       run + 1, rate, runner.getAccepted(), runner.getStale(), runner.getIntervals());
+            }
+            System.out.printf("%-6s best:  %,.0f records/s%n", format, best);
+         }
+      } finally {
+         Files.deleteIfExists(csv);
+         Files.deleteIfExists(binary);
+      }
+   }
+
+   /**
+    * Write transactions at about 1,000 per second of event time, each up to
+    * 2 seconds late, in both formats.
+    */
+   private static void write(Path csv, Path binary, int records, int keys) throws IOException {
+      Random random = new Random(42);
+      long time = 1500000000000L;
+      try (OutputStream text = new BufferedOutputStream(Files.newOutputStream(csv), 1 << 16);
+           DataOutputStream data = new DataOutputStream(
+                   new BufferedOutputStream(Files.newOutputStream(binary), 1 << 16))) {
+         text.write("timestamp,amount,key\n".getBytes(StandardCharsets.UTF_8));
+         data.writeByte(keys == 0 ? 16 : 24);
+         StringBuilder line = new StringBuilder();
+         for (int i = 0; i < records; i++) {
+            time += random.nextInt(2);
+            long timestamp = time - random.nextInt(2000);
+            long cents = 1 + random.nextInt(1000000);
+            long key = keys == 0 ? 0 : random.nextInt(keys);
+            line.setLength(0);
+            line.append(timestamp).append(',').append(cents / 100).append('.');
+            if (cents % 100 < 10)
+               line.append('0');
+            line.append(cents % 100);
+            if (keys != 0)
+               line.append(',').append(key);
+            line.append('\n');
+            for (int c = 0; c < line.length(); c++)
+               text.write(line.charAt(c));
+            data.writeLong(timestamp);
+            data.writeDouble(cents / 100.0);
+            if (keys != 0)
+               data.writeLong(key);
+         }
+      }
+   }
+
+   private static final Writer NULL_WRITER = new Writer() {
+      @Override
+      public void write(char[] buffer, int offset, int length) {
+      }
+
+      @Override
+      public void flush() {
+      }
+
+      @Override
+      public void close() {
+      }
+   };
+}
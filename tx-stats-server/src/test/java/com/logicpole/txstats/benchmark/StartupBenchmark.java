@@ -0,0 +1,244 @@
+package com.logicpole.txstats.benchmark;
+
+import com.logicpole.txstats.Application;
+import com.logicpole.txstats.accumulate.DistinctSpec;
+import com.logicpole.txstats.accumulate.DoubleAccumulator;
+import com.logicpole.txstats.accumulate.HeavyHitters;
+import com.logicpole.txstats.accumulate.KeyedAccumulator;
+import com.logicpole.txstats.accumulate.MaintenanceScheduler;
+import com.logicpole.txstats.accumulate.SketchSpec;
+import com.logicpole.txstats.accumulate.TimeSource;
+import com.logicpole.txstats.accumulate.WindowSpec;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Startup benchmark
+ * <p>
+ * Measures how long each artifact takes to start in a fresh JVM, and its
+ * resident memory once started, by launching it repeatedly as a child
+ * process:
+ * <pre>
+ * core       - tx-stats-core alone, on a class path of only its classes,
+ *              creating the accumulators of the default configuration and
+ *              reading statistics, as an embedding process would
+ * server     - tx-stats-server with its explicit auto-configurations, until
+ *              ready to serve requests on a free port
+ * server-all - the same with every auto-configuration on the class path
+ *              enabled, as before they were made explicit, for comparison
+ * </pre>
+ * The time is taken from launching the process to its reporting ready, so
+ * includes starting the JVM, and the JVM uptime at that point is reported
+ * alongside.  The resident set size is read from /proc/self/status, so is
+ * only reported on Linux.  A first launch of each artifact warms the file
+ * cache and is discarded, and the median and minimum of the rest are
+ * reported.  The server is launched with the test class path of this
+ * module, which holds this class, so its component scan also reads the test
+ * classes.
+ * <p>
+ * Options, each as --name=value:
+ * <pre>
+ * runs      - launches measured per artifact (default 10)
+ * artifacts - comma separated artifacts to launch
+ *             (default core,server,server-all)
+ * jvm-args  - space separated options of each JVM launched (default none)
+ * </pre>
+ * Run with:
+ * <pre>
+ * ./mvnw -pl tx-stats-server test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test \
+ *    -Dexec.args="-cp %classpath com.logicpole.txstats.benchmark.StartupBenchmark --runs=5"
+ * </pre>
+ *
+ * @author Max McCormick
+ */
+public final class StartupBenchmark {
+
+   /*
+    * Printed by an artifact once started, with the JVM uptime and resident
+    * set size.
+    */
+   private static final String READY = "startup-ready ";
+
+   private StartupBenchmark() {
+   }
+
+   public static void main(String[] args) throws Exception {
+      Map<String, String> options = parseOptions(args);
+      int runs = Integer.parseInt(options.getOrDefault("runs", "10"));
+      String[] artifacts = options.getOrDefault("artifacts", "core,server,server-all").split(",");
+      String jvmArgs = options.getOrDefault("jvm-args", "").trim();
+
+      String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+      // the core class path holds only the core classes, and this class for
+      // its probe, which refers to nothing else
+      String coreClassPath = location(DoubleAccumulator.class) + File.pathSeparator
+              + location(StartupBenchmark.class);
+      String serverClassPath = System.getProperty("java.class.path");
+
+      System.out.printf("%-11s %5s %14s %14s %14s%n", "artifact", "runs", "startup ms", "uptime ms",
+              "rss MB");
+      for (String artifact : artifacts) {
+         List<String> command = new ArrayList<>();
+         command.add(java);
+         if (!jvmArgs.isEmpty())
+            command.addAll(Arrays.asList(jvmArgs.split("\\s+")));
+         command.add("-cp");
+         switch (artifact.trim()) {
+            case "core":
+               command.add(coreClassPath);
+               command.add(CoreStartup.class.getName());
+               break;
+            case "server":
+               command.add(serverClassPath);
+               command.add(ServerStartup.class.getName());
+               break;
+            case "server-all":
+               command.add(serverClassPath);
+               command.add(ServerStartup.class.getName());
+               command.add("all");
+               break;
+            default:
+               throw new IllegalArgumentException("unknown artifact: " + artifact);
+         }
+
+         launch(command);
+         long[] startup = new long[runs];
+         long[] uptime = new long[runs];
+         long[] rss = new long[runs];
+         for (int r = 0; r < runs; r++) {
+            long[] result = launch(command);
+            startup[r] = result[0];
+            uptime[r] = result[1];
+            rss[r] = result[2];
+         }
+         Arrays.sort(startup);
+         Arrays.sort(uptime);
+         Arrays.sort(rss);
+         System.out.printf("%-11s %5d %7d (%4d) %7d (%4d) %7.1f (%4.0f)%n", artifact.trim(), runs,
+                 startup[runs / 2], startup[0], uptime[runs / 2], uptime[0],
+                 rss[runs / 2] / 1024.0, rss[0] / 1024.0);
+      }
+      System.out.println("medians, with minimums in brackets");
+   }
+
+   /**
+    * Launch an artifact and wait for it to report ready, then end it.
+    *
+    * @return the time to ready and JVM uptime in msec, and the resident set
+    * size in KB.
+    */
+   private static long[] launch(List<String> command) throws IOException, InterruptedException {
+      long start = System.nanoTime();
+      Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+      try (BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream(),
+              StandardCharsets.UTF_8))) {
+         String line;
+         while ((line = out.readLine()) != null) {
+            if (line.startsWith(READY)) {
+               long startup = (System.nanoTime() - start) / 1000000;
+               String[] fields = line.substring(READY.length()).split(" ");
+               return new long[]{startup, Long.parseLong(fields[0]), Long.parseLong(fields[1])};
+            }
+         }
+         throw new IllegalStateException("exited with status " + process.waitFor() + " before starting: "
+                 + command);
+      } finally {
+         process.destroyForcibly().waitFor();
+      }
+   }
+
+   private static String location(Class<?> type) throws URISyntaxException {
+      return Paths.get(type.getProtectionDomain().getCodeSource().getLocation().toURI()).toString();
+   }
+
+   /**
+    * Report ready with the JVM uptime and resident set size.
+    */
+   private static void ready() throws IOException {
+      long rss = -1;
+      if (Files.isReadable(Paths.get("/proc/self/status"))) {
+         for (String line : Files.readAllLines(Paths.get("/proc/self/status"), StandardCharsets.UTF_8)) {
+            if (line.startsWith("VmRSS:"))
+               rss = Long.parseLong(line.replaceAll("[^0-9]", ""));
+         }
+      }
+      System.out.println(READY + ManagementFactory.getRuntimeMXBean().getUptime() + " " + rss);
+      System.out.flush();
+   }
+
+   private static Map<String, String> parseOptions(String[] args) {
+      Map<String, String> options = new HashMap<>();
+      for (String arg : args) {
+         if (!arg.startsWith("--") || arg.indexOf('=') < 0)
+            throw new IllegalArgumentException("expected --name=value but found " + arg);
+         options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+      }
+      return options;
+   }
+
+   /**
+    * Starts the core as an embedding process would, with the accumulators
+    * of the default configuration.  Refers only to core classes.
+    */
+   public static final class CoreStartup {
+
+      public static void main(String[] args) throws IOException {
+         WindowSpec keyWindow = new WindowSpec(60000, 5000);
+         DoubleAccumulator transactions = new DoubleAccumulator(new WindowSpec[]{WindowSpec.DEFAULT,
+                 new WindowSpec(300000, 5000), new WindowSpec(3600000, 60000)}, 1,
+                 SketchSpec.DEFAULT, DistinctSpec.DEFAULT, null, TimeSource.SYSTEM);
+         KeyedAccumulator keyedTransactions = new KeyedAccumulator(keyWindow, 1);
+         HeavyHitters topKeys = new HeavyHitters(keyWindow, 256, 1);
+         MaintenanceScheduler scheduler = new MaintenanceScheduler();
+         transactions.maintainWith(scheduler);
+
+         long now = System.currentTimeMillis();
+         transactions.accumulate(now, 12.5, 42);
+         keyedTransactions.accumulate(42, now, 12.5);
+         topKeys.accumulate(42, now, 12.5);
+         if (transactions.statistics().getCount() != 1)
+            throw new IllegalStateException("transaction not accumulated");
+         ready();
+         System.exit(0);
+      }
+   }
+
+   /**
+    * Starts the server on a free port, with every auto-configuration given
+    * the argument "all".
+    */
+   public static final class ServerStartup {
+
+      public static void main(String[] args) throws IOException {
+         Object[] sources = args.length > 0 && args[0].equals("all")
+                 ? new Object[]{Application.class, AllAutoConfigurations.class}
+                 : new Object[]{Application.class};
+         SpringApplication.run(sources, new String[]{"--server.port=0"});
+         ready();
+         System.exit(0);
+      }
+   }
+
+   /**
+    * Enables every auto-configuration on the class path.  Not a component,
+    * so the component scan of the application leaves it out.
+    */
+   @EnableAutoConfiguration
+   static final class AllAutoConfigurations {
+   }
+}
@@ -0,0 +1,138 @@
+package com.logicpole.txstats.benchmark;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.logicpole.txstats.accumulate.LatencyHistogram;
+import com.logicpole.txstats.accumulate.TimeSource;
+import com.logicpole.txstats.config.AccumulatorProperties;
+import com.logicpole.txstats.config.CacheProperties;
+import com.logicpole.txstats.resource.StatisticsCache;
+import com.logicpole.txstats.service.TransactionService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Statistics cache benchmark
+ * <p>
+ * Measures the body of GET /statistics generated and serialized on every
+ * request, against served from the StatisticsCache, both with no
+ * transactions arriving and with a writer accumulating transactions as fast
+ * as it can alongside three readers, at each staleness.  The accumulators
+ * are set up as the application's, with quantile sketches and distinct
+ * counts, and the mapper leaves out null fields.
+ * <p>
+ * At the end of each run the hit rate of the cache is printed, with the
+ * median time to serialize the statistics on a miss, which each hit saves
+ * along with generating them.
+ * <p>
+ * Run with:
+ * <pre>
+ * ./mvnw -pl tx-stats-server test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test \
+ *    -Dexec.args="-cp %classpath com.logicpole.txstats.benchmark.StatisticsCacheBenchmark"
+ * </pre>
+ *
+ * @author Max McCormick
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class StatisticsCacheBenchmark {
+
+   @Param({"0", "50"})
+   public long staleMillis;
+
+   private TransactionService service;
+   private ObjectMapper mapper;
+   private StatisticsCache cache;
+   private long startHits;
+   private long startMisses;
+
+   @Setup
+   public void setUp() {
+      service = new TransactionService(new AccumulatorProperties(), TimeSource.SYSTEM);
+      mapper = new ObjectMapper().setSerializationInclusion(JsonInclude.Include.NON_NULL);
+      CacheProperties properties = new CacheProperties();
+      properties.setStaleMillis(staleMillis);
+      cache = new StatisticsCache(service, mapper, TimeSource.SYSTEM, properties);
+      long now = System.currentTimeMillis();
+      for (int i = 0; i < 10000; i++)
+         service.accumulate(now - i % 60000, 1 + i % 1000, i % 500);
+      // warm up serialization, which a miss otherwise times interpreted as
+      // there are so few
+      try {
+         for (int i = 0; i < 20000; i++)
+            mapper.writeValueAsBytes(service.statistics());
+         cache.get();
+      } catch (JsonProcessingException e) {
+         throw new IllegalStateException(e);
+      }
+      startHits = cache.getHits();
+      startMisses = cache.getMisses();
+   }
+
+   @TearDown
+   public void tearDown() {
+      long hits = cache.getHits() - startHits;
+      long misses = cache.getMisses() - startMisses;
+      LatencyHistogram.Snapshot serialize = cache.getSerializeLatency().snapshot();
+      System.out.printf("%nstale %d ms: %d hits, %d misses, %.3f%% hits, median serialization %.1f us%n",
+              staleMillis, hits, misses, 100.0 * hits / Math.max(1, hits + misses),
+              serialize.quantile(0.5) / 1e3);
+   }
+
+   @Benchmark
+   @Group("uncached")
+   public byte[] uncached() throws JsonProcessingException {
+      return mapper.writeValueAsBytes(service.statistics());
+   }
+
+   @Benchmark
+   @Group("cached")
+   public byte[] cached() throws JsonProcessingException {
+      return cache.get().getBody();
+   }
+
+   @Benchmark
+   @Group("underWrites")
+   @GroupThreads(3)
+   public byte[] underWritesCached() throws JsonProcessingException {
+      return cache.get().getBody();
+   }
+
+   @Benchmark
+   @Group("underWrites")
+   @GroupThreads(1)
+   public boolean underWritesAccumulate() {
+      return service.accumulate(System.currentTimeMillis(), 12.5);
+   }
+
+   public static void main(String[] args) throws Exception {
+      Options options = new OptionsBuilder()
+              .include(StatisticsCacheBenchmark.class.getSimpleName())
+              .addProfiler(GCProfiler.class)
+              .build();
+      new Runner(options).run();
+   }
+}